@@ -0,0 +1,212 @@
+package app;
+
+import ipc.BytesMessage;
+import ipc.Message;
+import ipc.MessagePasser;
+import ipc.MessagePool;
+import ipc.TimeStampedMessage;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class measures the memory allocated per message in a steady state. Two
+ * nodes run in one JVM and exchange batches of messages, first to warm up,
+ * then while the bytes allocated by all threads and the garbage collections
+ * are counted. Messages are pooled bytes messages by default, or time stamped
+ * messages with a string payload to compare with. For pooled messages the
+ * configuration file should set messagePoolSize (larger than the batch) and
+ * logMessages: false.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class AllocationBenchmark {
+	private static final int MIN_CMD_ARG = 4;
+	private static final int MAX_CMD_ARG = 6;
+	private static final String USAGE = "usage: java -cp :snakeyaml-1.11.jar app/AllocationBenchmark <configuration_file_or_url> <sender_name> <receiver_name> <count> [<payload_bytes> [bytes|object]]";
+	private static final long READY_TIMEOUT = 30000;
+	private static final int DEFAULT_PAYLOAD_BYTES = 100;
+	private static final int BATCH_SIZE = 32;
+	private static final String KIND = "allocation";
+	private static final String PAYLOAD_OBJECT = "object";
+
+	private MessagePasser sender;
+	private MessagePasser receiver;
+	private String receiverName;
+	private String payload;
+	private byte[] bytes;
+	private boolean raw;
+
+	/**
+	 * Warm up, then measure the allocations of the messages.
+	 * 
+	 * @param configurationFileName
+	 *            Path of the local configuration file or URL to download it
+	 *            from.
+	 * @param senderName
+	 *            Name of the sending node.
+	 * @param receiverName
+	 *            Name of the receiving node.
+	 * @param count
+	 *            Number of messages measured, as many are sent to warm up.
+	 * @param payloadBytes
+	 *            Size of each message payload.
+	 * @param raw
+	 *            True to send pooled bytes messages.
+	 */
+	public void run(String configurationFileName, String senderName,
+			String receiverName, int count, int payloadBytes, boolean raw) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("allocation counting is not supported by this JVM");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		sender = new MessagePasser(configurationFileName, senderName);
+		receiver = new MessagePasser(configurationFileName, receiverName);
+		if (!sender.awaitReady(READY_TIMEOUT)
+				|| !receiver.awaitReady(READY_TIMEOUT)) {
+			System.out.println("failed to load configuration, see "
+					+ sender.getLogFileName() + " and "
+					+ receiver.getLogFileName());
+			sender.close();
+			receiver.close();
+			return;
+		}
+		sender.initialize();
+		receiver.initialize();
+
+		this.receiverName = receiverName;
+		this.raw = raw;
+		char[] chars = new char[payloadBytes];
+		Arrays.fill(chars, 'x');
+		this.payload = new String(chars);
+		this.bytes = new byte[payloadBytes];
+		Arrays.fill(bytes, (byte) 'x');
+
+		if (!exchange(count)) {
+			return;
+		}
+		long[] ids = threads.getAllThreadIds();
+		long allocatedBefore = sum(threads.getThreadAllocatedBytes(ids));
+		long collectionsBefore = collections();
+		long collectionTimeBefore = collectionTime();
+		boolean done = exchange(count);
+		long allocated = sum(threads.getThreadAllocatedBytes(ids))
+				- allocatedBefore;
+		long collections = collections() - collectionsBefore;
+		long collectionTime = collectionTime() - collectionTimeBefore;
+		if (!done) {
+			return;
+		}
+
+		System.out.println("messages: " + count + ", payload: " + payloadBytes
+				+ " bytes, " + (raw ? "pooled bytes messages" : "objects"));
+		System.out.println(String.format("allocated: %.1f bytes/message",
+				allocated / (double) count));
+		System.out.println("garbage collections: " + collections + ", "
+				+ collectionTime + " ms");
+		printPool("sender", sender.getMessagePool());
+		printPool("receiver", receiver.getMessagePool());
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Send messages in batches, receiving each batch before the next one so
+	 * that the pools are not drained.
+	 * 
+	 * @param count
+	 *            Number of messages.
+	 * @return True if all messages arrived.
+	 */
+	private boolean exchange(int count) {
+		for (int sent = 0; sent < count; sent += BATCH_SIZE) {
+			int batch = Math.min(BATCH_SIZE, count - sent);
+			for (int i = 0; i < batch; i++) {
+				if (raw) {
+					BytesMessage message = sender.obtain(receiverName, KIND);
+					ByteBuffer buffer = message.getBuffer();
+					buffer.put(bytes);
+					buffer.flip();
+					sender.send(message);
+				} else {
+					sender.send(new TimeStampedMessage(receiverName, KIND,
+							payload));
+				}
+			}
+			for (int i = 0; i < batch; i++) {
+				Message message = receiver.receive();
+				if (message == null) {
+					System.out.println("receiver closed after "
+							+ (sent + i) + " messages");
+					sender.close();
+					receiver.close();
+					return false;
+				}
+				if (message instanceof BytesMessage) {
+					((BytesMessage) message).release();
+				}
+			}
+		}
+		return true;
+	}
+
+	private static long sum(long[] values) {
+		long sum = 0;
+		for (long value : values) {
+			if (value > 0) {
+				sum += value;
+			}
+		}
+		return sum;
+	}
+
+	private static long collections() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	private static long collectionTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			time += Math.max(gc.getCollectionTime(), 0);
+		}
+		return time;
+	}
+
+	private static void printPool(String name, MessagePool pool) {
+		if (pool == null) {
+			System.out.println(name + " pool: off");
+		} else {
+			System.out.println(name + " pool: " + pool.getCreatedCount()
+					+ " messages created, " + pool.getFreeCount() + " free");
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < MIN_CMD_ARG || args.length > MAX_CMD_ARG) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+		int payloadBytes = DEFAULT_PAYLOAD_BYTES;
+		if (args.length > MIN_CMD_ARG) {
+			payloadBytes = Integer.parseInt(args[4]);
+		}
+		boolean raw = args.length < MAX_CMD_ARG
+				|| !args[5].equals(PAYLOAD_OBJECT);
+		AllocationBenchmark benchmark = new AllocationBenchmark();
+		benchmark.run(args[0], args[1], args[2], Integer.parseInt(args[3]),
+				payloadBytes, raw);
+	}
+}
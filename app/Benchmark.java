@@ -0,0 +1,159 @@
+package app;
+
+import ipc.BytesMessage;
+import ipc.Message;
+import ipc.MessagePasser;
+import ipc.TimeStampedMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class measures the throughput of the communication infrastructure by
+ * running two nodes in one JVM and sending a batch of messages from one to
+ * the other. Options such as reliable delivery are taken from the
+ * configuration file, so running it with two configuration files shows their
+ * overhead. The payload is a string by default, or raw bytes sent as a
+ * BytesMessage. A first batch of the same size is sent and received before
+ * the one measured, so that the JIT has compiled what the messages go
+ * through, e.g. the ciphers of the TLS transport.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Benchmark {
+	private static final int MIN_CMD_ARG = 4;
+	private static final int MAX_CMD_ARG = 6;
+	private static final String USAGE = "usage: java -cp :snakeyaml-1.11.jar app/Benchmark <configuration_file_or_url> <sender_name> <receiver_name> <count> [<payload_bytes> [object|bytes]]";
+	private static final long READY_TIMEOUT = 30000;
+	private static final int DEFAULT_PAYLOAD_BYTES = 100;
+	private static final String KIND = "benchmark";
+	private static final String PAYLOAD_BYTES = "bytes";
+
+	// the first batch warms up, the last one is measured
+	private static final int BATCHES = 2;
+
+	private MessagePasser sender;
+	private MessagePasser receiver;
+
+	/**
+	 * Send the messages and wait until all of them are delivered.
+	 * 
+	 * @param configurationFileName
+	 *            Path of the local configuration file or URL to download it
+	 *            from.
+	 * @param senderName
+	 *            Name of the sending node.
+	 * @param receiverName
+	 *            Name of the receiving node.
+	 * @param count
+	 *            Number of messages to send.
+	 * @param payloadBytes
+	 *            Size of each message payload.
+	 * @param raw
+	 *            True to send the payload as raw bytes.
+	 */
+	public void run(String configurationFileName, String senderName,
+			String receiverName, int count, int payloadBytes, boolean raw) {
+		sender = new MessagePasser(configurationFileName, senderName);
+		receiver = new MessagePasser(configurationFileName, receiverName);
+		if (!sender.awaitReady(READY_TIMEOUT)
+				|| !receiver.awaitReady(READY_TIMEOUT)) {
+			System.out.println("failed to load configuration, see "
+					+ sender.getLogFileName() + " and "
+					+ receiver.getLogFileName());
+			sender.close();
+			receiver.close();
+			return;
+		}
+		sender.initialize();
+		receiver.initialize();
+
+		char[] chars = new char[payloadBytes];
+		Arrays.fill(chars, 'x');
+		String payload = new String(chars);
+		byte[] bytes = new byte[payloadBytes];
+		Arrays.fill(bytes, (byte) 'x');
+
+		long start = 0;
+		long sent = -1;
+		for (int batch = 0; batch < BATCHES; batch++) {
+			start = System.nanoTime();
+			sent = sendBatch(receiverName, count, raw, payload, bytes);
+			if (sent < 0) {
+				sender.close();
+				receiver.close();
+				return;
+			}
+		}
+		long end = System.nanoTime();
+
+		double seconds = (end - start) / (double) TimeUnit.SECONDS.toNanos(1);
+		System.out.println("messages: " + count + ", payload: " + payloadBytes
+				+ " bytes");
+		System.out.println(String.format("enqueue: %.3f s, total: %.3f s",
+				(sent - start) / (double) TimeUnit.SECONDS.toNanos(1), seconds));
+		System.out.println(String.format("throughput: %.0f msgs/s, %.2f MB/s",
+				count / seconds, count * (double) payloadBytes / seconds
+						/ (1024 * 1024)));
+		System.out.println("retransmissions: "
+				+ sender.getRetransmissionCount() + ", duplicates dropped: "
+				+ receiver.getDuplicateCount());
+		System.out.println("control frames: " + receiver.getControlFrameCount()
+				+ ", acks carried by messages: "
+				+ receiver.getPiggybackedAckCount());
+		System.out.println("compression (sender): "
+				+ sender.getCompressionStats());
+		System.out.println("compression (receiver): "
+				+ receiver.getCompressionStats());
+		System.out.println("link " + senderName + " -> " + receiverName + ": "
+				+ receiver.getLinkStats().get(senderName));
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Send a batch of messages and wait until all of them are delivered.
+	 * 
+	 * @return System.nanoTime() once all were passed to send(), -1 if the
+	 *         receiver closed before all were delivered.
+	 */
+	private long sendBatch(String receiverName, int count, boolean raw,
+			String payload, byte[] bytes) {
+		for (int i = 0; i < count; i++) {
+			if (raw) {
+				sender.send(new BytesMessage(receiverName, KIND, ByteBuffer
+						.wrap(bytes)));
+			} else {
+				sender.send(new TimeStampedMessage(receiverName, KIND, payload));
+			}
+		}
+		long sent = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			Message message = receiver.receive();
+			if (message == null) {
+				System.out.println("receiver closed after " + i + " messages");
+				return -1;
+			}
+		}
+		return sent;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < MIN_CMD_ARG || args.length > MAX_CMD_ARG) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+		int payloadBytes = DEFAULT_PAYLOAD_BYTES;
+		if (args.length > MIN_CMD_ARG) {
+			payloadBytes = Integer.parseInt(args[4]);
+		}
+		boolean raw = args.length == MAX_CMD_ARG
+				&& args[5].equals(PAYLOAD_BYTES);
+		Benchmark benchmark = new Benchmark();
+		benchmark.run(args[0], args[1], args[2], Integer.parseInt(args[3]),
+				payloadBytes, raw);
+	}
+}
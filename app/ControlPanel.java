@@ -5,7 +5,6 @@ import ipc.TimeStampedMessage;
 
 import java.util.Scanner;
 
-import clock.ClockService;
 import clock.TimeStamp;
 
 /**
@@ -18,7 +17,8 @@ import clock.TimeStamp;
  */
 public class ControlPanel {
 	private static final int NUM_CMD_ARG = 2;
-	private static final String USAGE = "usage: java -cp :snakeyaml-1.11.jar app/ControlPanel <configuration_file_name> <local_name>";
+	private static final long READY_TIMEOUT = 30000;
+	private static final String USAGE = "usage: java -cp :snakeyaml-1.11.jar app/ControlPanel <configuration_file_or_url> <local_name>";
 
 	private static final String HELP_CMD = "help";
 	private static final String HELP_CONTENT = "send <process_name> <kind> <message>";
@@ -46,6 +46,9 @@ public class ControlPanel {
 			while (true) {
 				TimeStampedMessage message = (TimeStampedMessage) (messagePasser
 						.receive());
+				if (message == null) {
+					return;
+				}
 				System.out.println("message delivered to local node - "
 						+ message.toString());
 			}
@@ -57,7 +60,8 @@ public class ControlPanel {
 	 * the communication infrastructure.
 	 * 
 	 * @param configurationFileName
-	 *            Name of file which is uploaded in Dropbox.
+	 *            Path of the local configuration file or URL to download it
+	 *            from.
 	 * @param localName
 	 *            Name of the local node.
 	 * 
@@ -65,13 +69,10 @@ public class ControlPanel {
 	public void startUserInterface(String configurationFileName,
 			String localName) {
 		messagePasser = new MessagePasser(configurationFileName, localName);
-		while (!messagePasser.parseConfigurationFinished()) {
-			continue;
-		}
-		if (messagePasser.getClockServiceType() != ClockService.ClockType.DEFAULT) {
-			ClockService.initialize(messagePasser.getNumOfNodes(),
-					messagePasser.getClockServiceType(),
-					messagePasser.getLocalNodeId());
+		if (!messagePasser.awaitReady(READY_TIMEOUT)) {
+			System.out.println("failed to load configuration, see "
+					+ messagePasser.getLogFileName());
+			System.exit(-1);
 		}
 		messagePasser.initialize();
 
@@ -99,14 +100,15 @@ public class ControlPanel {
 					System.out.println("invalid command");
 				}
 			} else if (cmd.equals(EVENT_CMD)) {
-				TimeStamp ts = ClockService.getInstance().updateLocalTime();
+				TimeStamp ts = messagePasser.getClock().updateLocalTime();
 				System.out.println("local time updated to: " + ts.toString());
 			} else if (cmd.equals(TIME_CMD)) {
-				TimeStamp ts = ClockService.getInstance().getLocalTimeCopy();
+				TimeStamp ts = messagePasser.getClock().getLocalTimeCopy();
 				System.out.println("local time: " + ts.toString());
 			} else if (cmd.equals(QUIT_CMD)) {
 				scanner.close();
-				System.exit(-1);
+				messagePasser.close();
+				return;
 			}
 			if (!receiverThread.isAlive()) {
 				System.out
@@ -0,0 +1,247 @@
+package app;
+
+import ipc.EventJournal;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class decodes the event journals of one or more nodes and rebuilds
+ * the causal graph of their messages: a message sent by A to B with sequence
+ * number n is the one B received from A with sequence number n, and the
+ * events of each node are ordered as they happened there. The events of all
+ * nodes are listed in wall clock order, followed by every message with its
+ * send and receive events, and the messages that were sent but never
+ * received (or the other way around). With -dot the graph is written in the
+ * Graphviz format instead.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class JournalReader {
+	private static final String USAGE = "usage: java app/JournalReader [-dot] <journal_file> [<journal_file> ...]";
+	private static final String OPTION_DOT = "-dot";
+
+	private List<EventJournal.Contents> journals;
+
+	// events of all nodes, and the node of each
+	private List<Entry> entries;
+
+	// first send and first receive of every message, by link and sequence
+	private LinkedHashMap<String, Entry> sends;
+	private HashMap<String, Entry> receives;
+
+	// sends dropped by a rule, by link and sequence
+	private HashMap<String, Entry> dropped;
+
+	private static class Entry {
+		private EventJournal.Contents journal;
+		private EventJournal.Event event;
+		private double millis;
+
+		public Entry(EventJournal.Contents journal, EventJournal.Event event) {
+			this.journal = journal;
+			this.event = event;
+			this.millis = journal.toMillis(event);
+		}
+
+		private String id() {
+			return journal.getNode() + "_" + event.getNumber();
+		}
+	}
+
+	public JournalReader(List<EventJournal.Contents> journals) {
+		this.journals = journals;
+		this.entries = new ArrayList<Entry>();
+		this.sends = new LinkedHashMap<String, Entry>();
+		this.receives = new HashMap<String, Entry>();
+		this.dropped = new HashMap<String, Entry>();
+		for (EventJournal.Contents journal : journals) {
+			for (EventJournal.Event event : journal.getEvents()) {
+				entries.add(new Entry(journal, event));
+			}
+		}
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Double.compare(a.millis, b.millis);
+			}
+		});
+		for (Entry entry : entries) {
+			EventJournal.Event event = entry.event;
+			String node = entry.journal.getNode();
+			if (event.getType() == EventJournal.SEND) {
+				putFirst(sends, key(node, event.getPeer(), event), entry);
+			} else if (event.getType() == EventJournal.RECEIVE) {
+				putFirst(receives, key(event.getPeer(), node, event), entry);
+			} else if (event.getType() == EventJournal.RULE
+					&& (event.getDetail() & EventJournal.RULE_RECEIVE) == 0
+					&& event.getAction().equals("drop")) {
+				putFirst(dropped, key(node, event.getPeer(), event), entry);
+			}
+		}
+	}
+
+	private static String key(String source, String dest,
+			EventJournal.Event event) {
+		return source + "\u0000" + dest + "\u0000" + event.getSequenceNumber();
+	}
+
+	private static <T> void putFirst(Map<String, T> map, String key, T value) {
+		if (!map.containsKey(key)) {
+			map.put(key, value);
+		}
+	}
+
+	/**
+	 * Print the events, the messages and the unmatched events.
+	 */
+	public void printText() {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd HH:mm:ss.SSS");
+		for (EventJournal.Contents journal : journals) {
+			System.out.println("journal of " + journal.getNode() + ": "
+					+ journal.getEvents().size() + " events, opened at "
+					+ format.format(new Date(journal.getStartMillis())));
+		}
+		if (entries.isEmpty()) {
+			return;
+		}
+		double origin = entries.get(0).millis;
+		System.out.println();
+		System.out.println("events:");
+		for (Entry entry : entries) {
+			System.out.println(String.format("%12.3f ms %s %s", entry.millis
+					- origin, entry.journal.getNode(), entry.event));
+		}
+		System.out.println();
+		System.out.println("messages:");
+		ArrayList<String> lost = new ArrayList<String>();
+		for (Map.Entry<String, Entry> item : sends.entrySet()) {
+			Entry send = item.getValue();
+			Entry receive = receives.get(item.getKey());
+			String link = send.journal.getNode() + " -> "
+					+ send.event.getPeer() + " [kind] "
+					+ send.event.getKind() + " [seq] "
+					+ send.event.getSequenceNumber();
+			if (receive == null) {
+				lost.add(link);
+				continue;
+			}
+			System.out.println(String.format("%s sent at %.3f ms, received at"
+					+ " %.3f ms (%+.3f ms)", link, send.millis - origin,
+					receive.millis - origin, receive.millis - send.millis));
+		}
+		System.out.println();
+		System.out.println("sent but not received (the journal of the"
+				+ " destination may be missing or may start later):");
+		for (String link : lost) {
+			System.out.println(link);
+		}
+		for (Map.Entry<String, Entry> item : dropped.entrySet()) {
+			Entry drop = item.getValue();
+			if (!sends.containsKey(item.getKey())) {
+				System.out.println(drop.journal.getNode() + " -> "
+						+ drop.event.getPeer() + " [kind] "
+						+ drop.event.getKind() + " [seq] "
+						+ drop.event.getSequenceNumber()
+						+ " dropped by a send rule");
+			}
+		}
+		System.out.println();
+		System.out.println("received but not sent (the journal of the source"
+				+ " may be missing or may have been overwritten):");
+		for (Map.Entry<String, Entry> item : receives.entrySet()) {
+			if (!sends.containsKey(item.getKey())) {
+				Entry receive = item.getValue();
+				System.out.println(receive.event.getPeer() + " -> "
+						+ receive.journal.getNode() + " [kind] "
+						+ receive.event.getKind() + " [seq] "
+						+ receive.event.getSequenceNumber());
+			}
+		}
+	}
+
+	/**
+	 * Print the causal graph in the Graphviz format: one cluster per node
+	 * with its send and receive events in order, and an edge per message.
+	 */
+	public void printDot() {
+		System.out.println("digraph messages {");
+		System.out.println("  rankdir=TB;");
+		for (EventJournal.Contents journal : journals) {
+			System.out.println("  subgraph \"cluster_" + journal.getNode()
+					+ "\" {");
+			System.out.println("    label=\"" + journal.getNode() + "\";");
+			String previous = null;
+			for (EventJournal.Event event : journal.getEvents()) {
+				if (event.getType() != EventJournal.SEND
+						&& event.getType() != EventJournal.RECEIVE) {
+					continue;
+				}
+				String id = new Entry(journal, event).id();
+				String label = EventJournal.typeName(event.getType())
+						+ (event.getType() == EventJournal.SEND ? " to "
+								: " from ") + event.getPeer() + " #"
+						+ event.getSequenceNumber();
+				System.out.println("    \"" + id + "\" [label=\""
+						+ escape(label) + "\"];");
+				if (previous != null) {
+					System.out.println("    \"" + previous + "\" -> \"" + id
+							+ "\" [style=dotted];");
+				}
+				previous = id;
+			}
+			System.out.println("  }");
+		}
+		for (Map.Entry<String, Entry> item : sends.entrySet()) {
+			Entry receive = receives.get(item.getKey());
+			if (receive != null) {
+				Entry send = item.getValue();
+				System.out.println("  \"" + send.id() + "\" -> \""
+						+ receive.id() + "\" [label=\""
+						+ escape(send.event.getKind()) + "\"];");
+			}
+		}
+		System.out.println("}");
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	public static void main(String[] args) {
+		boolean dot = args.length > 0 && args[0].equals(OPTION_DOT);
+		int first = dot ? 1 : 0;
+		if (args.length <= first) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+		ArrayList<EventJournal.Contents> journals = new ArrayList<EventJournal.Contents>();
+		for (int i = first; i < args.length; i++) {
+			try {
+				journals.add(EventJournal.read(args[i]));
+			} catch (IOException ex) {
+				System.err.println("failed to read " + args[i] + " - "
+						+ ex.getMessage());
+			}
+		}
+		if (journals.isEmpty()) {
+			System.exit(-1);
+		}
+		JournalReader reader = new JournalReader(journals);
+		if (dot) {
+			reader.printDot();
+		} else {
+			reader.printText();
+		}
+	}
+}
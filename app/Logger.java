@@ -10,7 +10,6 @@ import java.util.Collections;
 import java.util.Scanner;
 import java.util.concurrent.locks.ReentrantLock;
 
-import clock.ClockService;
 import clock.TimeStamp;
 
 /**
@@ -23,7 +22,8 @@ import clock.TimeStamp;
  */
 public class Logger {
 	private static final int NUM_CMD_ARG = 2;
-	private static final String USAGE = "usage: java -cp :snakeyaml-1.11.jar app/Logger <configuration_file_name> <log_name>";
+	private static final long READY_TIMEOUT = 30000;
+	private static final String USAGE = "usage: java -cp :snakeyaml-1.11.jar app/Logger <configuration_file_or_url> <log_name>";
 	private static final String HELP_CMD = "help";
 	private static final String HELP_CONTENT = "dump (type quit to exit)";
 	private static final String DUMP_CMD = "dump";
@@ -48,6 +48,9 @@ public class Logger {
 			while (true) {
 				TimeStampedMessage tsm = (TimeStampedMessage) messagePasser
 						.receive();
+				if (tsm == null) {
+					return;
+				}
 				msgLock.lock();
 				allMsg.add(tsm);
 				msgLock.unlock();
@@ -60,7 +63,8 @@ public class Logger {
 	 * the centralized logging facility.
 	 * 
 	 * @param configurationFileName
-	 *            Name of file which is uploaded in Dropbox.
+	 *            Path of the local configuration file or URL to download it
+	 *            from.
 	 * @param logName
 	 *            Name of the local node.
 	 * 
@@ -68,13 +72,10 @@ public class Logger {
 	public void startLogger(String configurationFileName, String logName) {
 		FileWriter logWriter = null;
 		messagePasser = new MessagePasser(configurationFileName, logName);
-		while (!messagePasser.parseConfigurationFinished()) {
-			continue;
-		}
-		if (messagePasser.getClockServiceType() != ClockService.ClockType.DEFAULT) {
-			ClockService.initialize(messagePasser.getNumOfNodes(),
-					messagePasser.getClockServiceType(),
-					messagePasser.getLocalNodeId());
+		if (!messagePasser.awaitReady(READY_TIMEOUT)) {
+			System.out.println("failed to load configuration, see "
+					+ messagePasser.getLogFileName());
+			System.exit(-1);
 		}
 		messagePasser.initialize();
 
@@ -114,14 +115,15 @@ public class Logger {
 					ioe.printStackTrace();
 				}
 			} else if (cmd.equals(EVENT_CMD)) {
-				TimeStamp ts = ClockService.getInstance().updateLocalTime();
+				TimeStamp ts = messagePasser.getClock().updateLocalTime();
 				System.out.println("local time updated to: " + ts.toString());
 			} else if (cmd.equals(TIME_CMD)) {
-				TimeStamp ts = ClockService.getInstance().getLocalTimeCopy();
+				TimeStamp ts = messagePasser.getClock().getLocalTimeCopy();
 				System.out.println("local time: " + ts.toString());
 			} else if (cmd.equals(QUIT_CMD)) {
 				scanner.close();
-				System.exit(-1);
+				messagePasser.close();
+				return;
 			}
 		}
 	}
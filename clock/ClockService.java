@@ -5,8 +5,9 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * This class defines the clock service while hiding the details. It is the base
  * class of Logical and Vector which are the two types of service in our system.
- * The main job of this class is to keep track of local time stamp and provide
- * access to the instance using singleton design pattern.
+ * The main job of this class is to keep track of local time stamp. Every
+ * message passer has a clock service of its own, so nodes sharing a JVM keep
+ * separate clocks.
  * 
  * @author Jason Xi
  * @author Yinsu Chu
@@ -18,45 +19,39 @@ public abstract class ClockService {
 	public static final int STEP = 1;
 
 	// protects and keeps track of local time stamp
-	private static ReentrantLock localTimeLock;
-	private static TimeStamp localTime;
-
-	// singleton design pattern
-	private static ClockService instance;
-
-	// dimension of the vector clock
-	private static int dimension;
-
-	// type of the clock service
-	private static ClockType type;
-
-	// the id of the local node (used as the index into the vector clock)
-	private static int localNodeId;
+	private ReentrantLock localTimeLock;
+	private TimeStamp localTime;
 
 	// DEFAULT - no clock service
 	public enum ClockType {
 		LOGICAL, VECTOR, DEFAULT
 	}
 
+	protected ClockService(int dimension, ClockType type, int localNodeId) {
+		this.localTimeLock = new ReentrantLock();
+		this.localTime = new TimeStamp(dimension, type, localNodeId);
+	}
+
 	/**
-	 * This method must be called before using.
+	 * Create the clock service of a node.
 	 * 
-	 * @param dimension
+	 * @param d
 	 *            The dimension of the vector clock, i.e. the number of nodes in
 	 *            the distributed system.
-	 * @param type
+	 * @param t
 	 *            The type of this clock service.
-	 * @param localNodeId
+	 * @param id
 	 *            The id of the local node, which is used as the index into the
 	 *            vector clock.
+	 * @return The clock service, null for DEFAULT.
 	 */
-	public static void initialize(int d, ClockType t, int id) {
-		localTimeLock = null;
-		localTime = null;
-		instance = null;
-		dimension = d;
-		type = t;
-		localNodeId = id;
+	public static ClockService create(int d, ClockType t, int id) {
+		if (t == ClockType.LOGICAL) {
+			return new Logical(d, id);
+		} else if (t == ClockType.VECTOR) {
+			return new Vector(d, id);
+		}
+		return null;
 	}
 
 	protected void getLocalTimeLock() {
@@ -79,19 +74,6 @@ public abstract class ClockService {
 		return localTime;
 	}
 
-	public static ClockService getInstance() {
-		if (instance == null) {
-			localTimeLock = new ReentrantLock();
-			localTime = new TimeStamp(dimension, type, localNodeId);
-			if (type == ClockType.LOGICAL) {
-				instance = new Logical();
-			} else if (type == ClockType.VECTOR) {
-				instance = new Vector();
-			}
-		}
-		return instance;
-	}
-
 	/**
 	 * Advance the local time stamp by the step defined in ClockService and
 	 * return the updated time stamp.
@@ -107,6 +89,19 @@ public abstract class ClockService {
 		return timeStamp;
 	}
 
+	/**
+	 * Change the dimension of the vector clock when nodes join or leave. New
+	 * entries start from 0, entries beyond the new dimension are dropped.
+	 * 
+	 * @param d
+	 *            The new dimension of the vector clock.
+	 */
+	public void resize(int d) {
+		localTimeLock.lock();
+		localTime.resize(d);
+		localTimeLock.unlock();
+	}
+
 	/**
 	 * Update the local time stamp by comparing to the given time stamp. If the
 	 * given time stamp is newer than the local one, the local one will be
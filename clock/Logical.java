@@ -9,6 +9,10 @@ package clock;
  */
 public class Logical extends ClockService {
 
+	public Logical(int dimension, int localNodeId) {
+		super(dimension, ClockType.LOGICAL, localNodeId);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
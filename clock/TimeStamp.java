@@ -77,10 +77,37 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
 		if (type == ClockService.ClockType.LOGICAL) {
 			logical += ClockService.STEP;
 		} else if (type == ClockService.ClockType.VECTOR) {
+			if (localNodeId >= vector.length) {
+				resize(localNodeId + 1);
+			}
 			vector[localNodeId] += ClockService.STEP;
 		}
 	}
 
+	/**
+	 * Change the dimension of the vector clock, new entries start from 0.
+	 * 
+	 * @param dimension
+	 *            The new dimension.
+	 */
+	protected void resize(int dimension) {
+		if (dimension != vector.length) {
+			vector = Arrays.copyOf(vector, dimension);
+		}
+	}
+
+	/**
+	 * Entry of the vector clock, time stamps taken before a node joined do not
+	 * have its entry and count as 0 for it.
+	 * 
+	 * @param i
+	 *            Index into the vector clock.
+	 * @return The entry, 0 if the index is beyond the dimension.
+	 */
+	protected int getVectorEntry(int i) {
+		return i < vector.length ? vector[i] : 0;
+	}
+
 	@Override
 	public String toString() {
 		if (type == ClockService.ClockType.LOGICAL) {
@@ -90,6 +117,55 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
 		}
 	}
 
+	/**
+	 * @return Number of values in the time stamp: 1 for a logical clock, the
+	 *         dimension for a vector clock, 0 otherwise.
+	 */
+	public int size() {
+		if (type == ClockService.ClockType.LOGICAL) {
+			return 1;
+		} else if (type == ClockService.ClockType.VECTOR) {
+			return vector.length;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param i
+	 *            Index of the value, below size().
+	 * @return The logical time, or entry i of the vector clock.
+	 */
+	public int getValue(int i) {
+		if (type == ClockService.ClockType.LOGICAL) {
+			return logical;
+		}
+		return getVectorEntry(i);
+	}
+
+	public ClockService.ClockType getType() {
+		return type;
+	}
+
+	/**
+	 * Rebuild a time stamp from its values, e.g. one read back from a
+	 * recording. It is never advanced, so it belongs to no node.
+	 * 
+	 * @param type
+	 *            The type of the clock service.
+	 * @param values
+	 *            The values as given by getValue(), one for a logical clock.
+	 * @return The time stamp.
+	 */
+	public static TimeStamp restore(ClockService.ClockType type, int[] values) {
+		TimeStamp timeStamp = new TimeStamp(0, type, 0);
+		if (type == ClockService.ClockType.LOGICAL && values.length > 0) {
+			timeStamp.logical = values[0];
+		} else if (type == ClockService.ClockType.VECTOR) {
+			timeStamp.vector = values.clone();
+		}
+		return timeStamp;
+	}
+
 	protected int getLogical() {
 		return logical;
 	}
@@ -125,10 +201,11 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
 		} else if (type == ClockService.ClockType.VECTOR) {
 			boolean biggerThan = false;
 			boolean smallerThan = false;
-			for (int i = 0; i < this.vector.length; i++) {
-				if ((this.vector)[i] > (ts.vector)[i]) {
+			int length = Math.max(this.vector.length, ts.vector.length);
+			for (int i = 0; i < length; i++) {
+				if (this.getVectorEntry(i) > ts.getVectorEntry(i)) {
 					biggerThan = true;
-				} else if ((this.vector)[i] < (ts.vector)[i]) {
+				} else if (this.getVectorEntry(i) < ts.getVectorEntry(i)) {
 					smallerThan = true;
 				}
 			}
@@ -153,10 +230,11 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
 		} else if (type == ClockService.ClockType.VECTOR) {
 			boolean biggerThan = false;
 			boolean smallerThan = false;
-			for (int i = 0; i < this.vector.length; i++) {
-				if ((this.vector)[i] > (ts.vector)[i]) {
+			int length = Math.max(this.vector.length, ts.vector.length);
+			for (int i = 0; i < length; i++) {
+				if (this.getVectorEntry(i) > ts.getVectorEntry(i)) {
 					biggerThan = true;
-				} else if ((this.vector)[i] < (ts.vector)[i]) {
+				} else if (this.getVectorEntry(i) < ts.getVectorEntry(i)) {
 					smallerThan = true;
 				}
 			}
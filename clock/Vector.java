@@ -2,6 +2,10 @@ package clock;
 
 public class Vector extends ClockService {
 
+	public Vector(int dimension, int localNodeId) {
+		super(dimension, ClockType.VECTOR, localNodeId);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -11,9 +15,17 @@ public class Vector extends ClockService {
 		TimeStamp timeStamp = null;
 		getLocalTimeLock();
 		TimeStamp localTime = getLocalTimeRef();
+
+		/*
+		 * the sender may already know about nodes that joined after our last
+		 * membership update, keep its entries for them
+		 */
+		if (newTime.getVector().length > localTime.getVector().length) {
+			localTime.resize(newTime.getVector().length);
+		}
 		for (int i = 0; i < localTime.getVector().length; i++) {
 			(localTime.getVector())[i] = Math.max((localTime.getVector())[i],
-					(newTime.getVector())[i]);
+					newTime.getVectorEntry(i));
 		}
 		localTime.advance();
 		timeStamp = new TimeStamp(localTime);
@@ -0,0 +1,41 @@
+package ipc;
+
+import java.io.Serializable;
+
+/**
+ * Acknowledgement sent back to the source of reliable messages. It says that
+ * all messages up to the cumulative sequence number have been received, and
+ * which of the next 64 messages have been received out of order.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Ack implements Serializable {
+	private static final long serialVersionUID = -1893262620873046313L;
+
+	// every sequence number up to and including this one has been received
+	private long cumulative;
+
+	// bit i set means cumulative + 1 + i has been received
+	private long selective;
+
+	public Ack(long cumulative, long selective) {
+		this.cumulative = cumulative;
+		this.selective = selective;
+	}
+
+	@Override
+	public String toString() {
+		return "[cumulative] " + cumulative + " [selective] "
+				+ Long.toBinaryString(selective);
+	}
+
+	public long getCumulative() {
+		return cumulative;
+	}
+
+	public long getSelective() {
+		return selective;
+	}
+}
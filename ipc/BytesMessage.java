@@ -0,0 +1,204 @@
+package ipc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * A message whose payload is already encoded. The payload goes on the wire as
+ * it is instead of through object serialization, and the receiver gets it as
+ * a slice of the buffer the frame was read into. The bytes between the
+ * position and the limit of the buffer when the message is sent are the
+ * payload. Bytes messages carry no time stamp and are never compressed.
+ * 
+ * A message taken from a MessagePool must be given back: once sent it belongs
+ * to the message passer, which releases it when it has been written (and
+ * acknowledged, with reliable delivery). A received pooled message belongs to
+ * the application, which calls release() when done with the payload. A
+ * message that is never released is simply left to the garbage collector. An
+ * unpooled message must not be changed until it is acknowledged (or sent,
+ * without reliable delivery).
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class BytesMessage extends Message {
+	private static final long serialVersionUID = -3160398214736511257L;
+
+	// not serialized, the wire format writes it after the other fields
+	private transient ByteBuffer payload;
+
+	// bounds of the payload in its buffer, fixed when the message is sent
+	private transient int start;
+	private transient int end;
+
+	// view of the payload written on the wire, one per copy
+	private transient ByteBuffer view;
+
+	// null for an unpooled message, references are shared by the copies
+	private transient MessagePool pool;
+	private transient AtomicInteger references;
+
+	// encoded header fields and the values they were encoded from
+	private transient byte[] header;
+	private transient String headerDest;
+	private transient String headerKind;
+	private transient String headerSource;
+
+	public BytesMessage(String dest, String kind, ByteBuffer payload) {
+		super(dest, kind, null);
+		this.payload = payload;
+		this.start = payload.position();
+		this.end = payload.limit();
+		this.view = null;
+		this.pool = null;
+		this.references = null;
+		this.header = null;
+	}
+
+	/**
+	 * A message owned by a pool.
+	 * 
+	 * @param pool
+	 *            The pool.
+	 * @param bufferSize
+	 *            Capacity of the payload buffer.
+	 */
+	BytesMessage(MessagePool pool, int bufferSize) {
+		this(null, null, ByteBuffer.allocate(bufferSize));
+		this.pool = pool;
+		this.references = new AtomicInteger();
+	}
+
+	/**
+	 * @return A view of the payload starting at index 0, reading it does not
+	 *         move the position of the payload buffer.
+	 */
+	public ByteBuffer getPayload() {
+		return payload.slice();
+	}
+
+	/**
+	 * @return The payload buffer itself. A message to send is filled through
+	 *         it (and flipped), a received one can be read from it without
+	 *         creating a view: the payload lies between its position and its
+	 *         limit.
+	 */
+	public ByteBuffer getBuffer() {
+		return payload;
+	}
+
+	/**
+	 * @return Number of bytes in the payload.
+	 */
+	public int getPayloadLength() {
+		return payload.remaining();
+	}
+
+	@Override
+	public Object getData() {
+		return getPayload();
+	}
+
+	/**
+	 * Give a pooled message back to its pool once every copy made by the
+	 * message passer is released too. Nothing happens to an unpooled message.
+	 */
+	@Override
+	public void release() {
+		if (pool != null && references.decrementAndGet() == 0) {
+			pool.recycle(this);
+		}
+	}
+
+	@Override
+	void retain() {
+		if (pool != null) {
+			references.incrementAndGet();
+		}
+	}
+
+	@Override
+	Message copy() {
+		BytesMessage copy = (BytesMessage) super.copy();
+		copy.view = null;
+		retain();
+		return copy;
+	}
+
+	/**
+	 * Fix the payload to the current position and limit of its buffer.
+	 */
+	void seal() {
+		start = payload.position();
+		end = payload.limit();
+	}
+
+	/**
+	 * @return The payload to write, a view owned by this copy of the message
+	 *         that is reset on every call.
+	 */
+	ByteBuffer wireView() {
+		if (view == null) {
+			view = payload.duplicate();
+		}
+		view.clear();
+		view.limit(end);
+		view.position(start);
+		return view;
+	}
+
+	/**
+	 * Prepare a pooled message for another use.
+	 * 
+	 * @param dest
+	 *            The destination.
+	 * @param kind
+	 *            The kind.
+	 */
+	void reset(String dest, String kind) {
+		setDest(dest);
+		setKind(kind);
+		setSource(null);
+		setSequenceNumber(0);
+		setDupe(false);
+		setEncoded(null);
+		setTrace(null);
+		payload.clear();
+		seal();
+		references.set(1);
+	}
+
+	/**
+	 * @return The header encoded for the current destination, kind and source,
+	 *         null if they changed since it was encoded.
+	 */
+	byte[] getHeader() {
+		if (header == null || !same(headerDest, getDest())
+				|| !same(headerKind, getKind())
+				|| !same(headerSource, getSource())) {
+			return null;
+		}
+		return header;
+	}
+
+	void setHeader(byte[] header) {
+		this.header = header;
+		this.headerDest = getDest();
+		this.headerKind = getKind();
+		this.headerSource = getSource();
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public String toString() {
+		return "[src] " + getSource() + " [dst] " + getDest() + " [kind] "
+				+ getKind() + " [seq] " + getSequenceNumber() + " [dup] "
+				+ (isDupe() ? "true" : "false") + " [data] "
+				+ payload.remaining() + " bytes";
+	}
+}
@@ -0,0 +1,149 @@
+package ipc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression setting of one kind of messages, from the compression part of
+ * the configuration file. Serialized messages at least as large as the
+ * threshold are compressed with Deflate, unless that does not make them
+ * smaller.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Compression {
+	public static final String CODEC_NONE = "none";
+	public static final String CODEC_DEFLATE = "deflate";
+
+	// messages pass through unchanged
+	public static final Compression NONE = new Compression(CODEC_NONE,
+			Deflater.DEFAULT_COMPRESSION, Integer.MAX_VALUE);
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private String codec;
+	private int level;
+	private int threshold;
+
+	/**
+	 * @param codec
+	 *            CODEC_NONE or CODEC_DEFLATE.
+	 * @param level
+	 *            Deflate level from 1 (fastest) to 9 (smallest), or
+	 *            Deflater.DEFAULT_COMPRESSION.
+	 * @param threshold
+	 *            Smallest size in bytes worth compressing.
+	 */
+	public Compression(String codec, int level, int threshold) {
+		this.codec = codec;
+		this.level = level;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Compress a serialized message.
+	 * 
+	 * @param data
+	 *            Buffer holding the serialized message.
+	 * @param offset
+	 *            Start of the message in the buffer.
+	 * @param length
+	 *            Size of the message.
+	 * @return The compressed bytes, null if the message is below the
+	 *         threshold or does not get smaller.
+	 */
+	public byte[] compress(byte[] data, int offset, int length) {
+		if (!CODEC_DEFLATE.equals(codec) || length < threshold) {
+			return null;
+		}
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			ByteArrayOutputStream output = new ByteArrayOutputStream(
+					length / 2);
+			byte[] chunk = new byte[CHUNK_SIZE];
+			while (!deflater.finished()) {
+				output.write(chunk, 0, deflater.deflate(chunk));
+				if (output.size() >= length) {
+					return null;
+				}
+			}
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Restore a message compressed by {@link #compress(byte[], int, int)}.
+	 * 
+	 * @param data
+	 *            Buffer holding the compressed bytes.
+	 * @param offset
+	 *            Start of the compressed bytes in the buffer.
+	 * @param size
+	 *            Number of compressed bytes.
+	 * @param length
+	 *            Size of the serialized message.
+	 * @return The serialized message.
+	 * @throws IOException
+	 *             If the data is corrupt.
+	 */
+	public static byte[] decompress(byte[] data, int offset, int size,
+			int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, size);
+			byte[] result = new byte[length];
+			int done = 0;
+			while (done < length && !inflater.finished()) {
+				int n = inflater.inflate(result, done, length - done);
+				if (n == 0
+						&& (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				done += n;
+			}
+			if (done != length) {
+				throw new IOException("compressed message is truncated");
+			}
+			return result;
+		} catch (DataFormatException ex) {
+			throw new IOException("compressed message is corrupt - "
+					+ ex.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	public String getCodec() {
+		return codec;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return Smallest size in bytes worth compressing, Integer.MAX_VALUE if
+	 *         the codec is none.
+	 */
+	public int getThreshold() {
+		return CODEC_DEFLATE.equals(codec) ? threshold : Integer.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		if (!CODEC_DEFLATE.equals(codec)) {
+			return codec;
+		}
+		return codec + " (level " + level + ", threshold " + threshold
+				+ " bytes)";
+	}
+}
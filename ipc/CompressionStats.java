@@ -0,0 +1,133 @@
+package ipc;
+
+/**
+ * Statistics of the compression done by one node: how much the compressed
+ * messages shrank and the CPU time spent on both ends.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class CompressionStats {
+	private long compressed;
+
+	// messages that reached the threshold but did not get smaller
+	private long incompressible;
+
+	// sizes of the compressed messages before and after compression
+	private long originalBytes;
+	private long compressedBytes;
+
+	private long compressNanos;
+	private long decompressed;
+	private long decompressNanos;
+
+	public CompressionStats() {
+		this.compressed = 0;
+		this.incompressible = 0;
+		this.originalBytes = 0;
+		this.compressedBytes = 0;
+		this.compressNanos = 0;
+		this.decompressed = 0;
+		this.decompressNanos = 0;
+	}
+
+	/**
+	 * Copy constructor used to take a consistent snapshot.
+	 * 
+	 * @param stats
+	 *            The statistics to copy.
+	 */
+	private CompressionStats(CompressionStats stats) {
+		this.compressed = stats.compressed;
+		this.incompressible = stats.incompressible;
+		this.originalBytes = stats.originalBytes;
+		this.compressedBytes = stats.compressedBytes;
+		this.compressNanos = stats.compressNanos;
+		this.decompressed = stats.decompressed;
+		this.decompressNanos = stats.decompressNanos;
+	}
+
+	/**
+	 * Record an attempt to compress a message.
+	 * 
+	 * @param original
+	 *            Size of the serialized message.
+	 * @param result
+	 *            Size after compression, -1 if it did not get smaller.
+	 * @param nanos
+	 *            Time spent.
+	 */
+	public synchronized void recordCompress(int original, int result,
+			long nanos) {
+		compressNanos += nanos;
+		if (result < 0) {
+			incompressible++;
+			return;
+		}
+		compressed++;
+		originalBytes += original;
+		compressedBytes += result;
+	}
+
+	/**
+	 * Record a message restored from its compressed form.
+	 * 
+	 * @param nanos
+	 *            Time spent.
+	 */
+	public synchronized void recordDecompress(long nanos) {
+		decompressed++;
+		decompressNanos += nanos;
+	}
+
+	public synchronized CompressionStats snapshot() {
+		return new CompressionStats(this);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "[compressed] " + compressed + " [incompressible] "
+				+ incompressible + " [ratio] "
+				+ String.format("%.2f", getRatio()) + " [compress ms] "
+				+ compressNanos / 1000000 + " [decompressed] " + decompressed
+				+ " [decompress ms] " + decompressNanos / 1000000;
+	}
+
+	/**
+	 * @return Compressed size over original size of the compressed messages,
+	 *         1 if none.
+	 */
+	public synchronized double getRatio() {
+		return originalBytes == 0 ? 1 : compressedBytes
+				/ (double) originalBytes;
+	}
+
+	public synchronized long getCompressed() {
+		return compressed;
+	}
+
+	public synchronized long getIncompressible() {
+		return incompressible;
+	}
+
+	public synchronized long getOriginalBytes() {
+		return originalBytes;
+	}
+
+	public synchronized long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	public synchronized long getCompressNanos() {
+		return compressNanos;
+	}
+
+	public synchronized long getDecompressed() {
+		return decompressed;
+	}
+
+	public synchronized long getDecompressNanos() {
+		return decompressNanos;
+	}
+}
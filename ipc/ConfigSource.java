@@ -0,0 +1,43 @@
+package ipc;
+
+/**
+ * A place where the YAML configuration file comes from. The source keeps a
+ * local copy of the file up to date, MessagePasser always parses the local
+ * copy.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public interface ConfigSource {
+
+	/**
+	 * @return Name of the local configuration file to parse.
+	 */
+	String getFileName();
+
+	/**
+	 * Bring the local configuration file up to date, called once at startup
+	 * before the file is parsed for the first time.
+	 * 
+	 * @return True if the local file can be parsed, false otherwise.
+	 */
+	boolean fetch();
+
+	/**
+	 * Block until the configuration may have changed or the timeout expires.
+	 * When true is returned the local file holds a complete new version.
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait in milliseconds.
+	 * @return True on new configuration detected, false otherwise.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	boolean awaitChange(long timeout) throws InterruptedException;
+
+	/**
+	 * Release resources held by the source.
+	 */
+	void close();
+}
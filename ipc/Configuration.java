@@ -0,0 +1,997 @@
+package ipc;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.yaml.snakeyaml.Yaml;
+
+import clock.ClockService;
+
+/**
+ * The YAML configuration file of a node, read as a whole. Every part is parsed
+ * and checked here before the message passer applies any of it, so that a
+ * reload takes effect completely or not at all. The settings a node only
+ * reads upon starting are parsed on every load too, and ignored on a reload.
+ *
+ * @author Jason Xi
+ * @author Yinsu Chu
+ *
+ */
+public class Configuration {
+	public static final int DEFAULT_RETRANSMIT_TIMEOUT = 200;
+	public static final int DEFAULT_RETRANSMIT_BUFFER_SIZE = 1024;
+	public static final int DEFAULT_HEARTBEAT_INTERVAL = 1000;
+	public static final double DEFAULT_PHI_THRESHOLD = 8;
+	public static final int DEFAULT_MESSAGE_BUFFER_SIZE = 64 * 1024;
+	public static final long DEFAULT_JOURNAL_SIZE = 16 * 1024 * 1024;
+	public static final double DEFAULT_REPLAY_SPEED = 1;
+
+	// the largest UDP payload in an Ethernet frame without fragmentation
+	public static final int DEFAULT_DATAGRAM_MTU = 1472;
+
+	public static final String TRANSPORT_TCP = "tcp";
+	public static final String TRANSPORT_MEMORY = "memory";
+	public static final String TRANSPORT_TLS = "tls";
+
+	private static final String ITEM_CONFIGURATION = "configuration";
+	private static final String ITEM_SEND_RULES = "sendRules";
+	private static final String ITEM_RECEIVE_RULES = "receiveRules";
+	private static final String ITEM_GROUPS = "groups";
+	private static final String ITEM_COMPRESSION = "compression";
+	private static final String ITEM_DATAGRAMS = "datagrams";
+	private static final String ITEM_PRIORITIES = "priorities";
+	private static final String CLOCK_SERVICE_TYPE = "clockService";
+	private static final String CLOCK_SERVICE_LOGICAL = "logical";
+	private static final String CLOCK_SERVICE_VECTOR = "vector";
+	private static final String CONTACT_NAME = "name";
+	private static final String CONTACT_IP = "ip";
+	private static final String CONTACT_PORT = "port";
+	private static final String CONTACT_ID = "id";
+	private static final String GROUP_NAME = "name";
+	private static final String GROUP_MEMBERS = "members";
+	private static final String GROUP_ORDERED = "ordered";
+	private static final String COMPRESSION_KIND = "kind";
+	private static final String COMPRESSION_CODEC = "codec";
+	private static final String COMPRESSION_LEVEL = "level";
+	private static final String COMPRESSION_THRESHOLD = "threshold";
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	private static final String DATAGRAM_KIND = "kind";
+	private static final String DATAGRAM_MTU = "mtu";
+	private static final String PRIORITY_CLASS = "class";
+	private static final String PRIORITY_WEIGHT = "weight";
+	private static final String PRIORITY_KINDS = "kinds";
+	private static final String FRAGMENT_SIZE = "fragmentSize";
+	private static final String SEND_BUFFER_SIZE = "sendBufferSize";
+
+	// messages larger than this are split when priority classes are on
+	private static final int DEFAULT_FRAGMENT_SIZE = 16 * 1024;
+	private static final int MIN_FRAGMENT_SIZE = 1024;
+
+	/*
+	 * send buffer of the TCP sockets when priority classes are on, the bytes
+	 * in the kernel are sent in order whatever their class
+	 */
+	private static final int DEFAULT_SEND_BUFFER_SIZE = 64 * 1024;
+	private static final String RELIABLE = "reliable";
+	private static final String RETRANSMIT_TIMEOUT = "retransmitTimeout";
+	private static final String RETRANSMIT_BUFFER_SIZE = "retransmitBufferSize";
+	private static final String HEARTBEAT_INTERVAL = "heartbeatInterval";
+	private static final String PHI_THRESHOLD = "phiThreshold";
+	private static final String MESSAGE_POOL_SIZE = "messagePoolSize";
+	private static final String MESSAGE_BUFFER_SIZE = "messageBufferSize";
+	private static final String LOG_MESSAGES = "logMessages";
+	private static final String METRICS_PORT = "metricsPort";
+	private static final String TRACE_SAMPLE_RATE = "traceSampleRate";
+	private static final String JOURNAL = "journal";
+	private static final String JOURNAL_SIZE = "journalSize";
+	private static final String JOURNAL_NAME = "{name}";
+	private static final String TRANSPORT = "transport";
+	private static final String SHARED_MEMORY = "sharedMemory";
+	private static final String KEY_STORE = "keyStore";
+	private static final String KEY_STORE_PASSWORD = "keyStorePassword";
+	private static final String TRUST_STORE = "trustStore";
+	private static final String TRUST_STORE_PASSWORD = "trustStorePassword";
+	private static final String RECORD = "record";
+	private static final String REPLAY = "replay";
+	private static final String REPLAY_SPEED = "replaySpeed";
+
+	/*
+	 * types of the values in the configuration file outside the rules, they
+	 * are checked before anything else is read so that a typo is reported
+	 * with the key it is under
+	 */
+	private static final HashMap<String, Class<?>> VALUE_TYPES = valueTypes();
+
+	private String localName;
+	private LogTool logger;
+
+	// nodes by name, with the IDs given in the file or -1
+	private LinkedHashMap<String, Contact> contacts;
+
+	private ClockService.ClockType clockType;
+	private boolean reliable;
+	private int retransmitTimeout;
+	private int retransmitBufferSize;
+	private int heartbeatInterval;
+	private double phiThreshold;
+
+	// null if the file leaves them as they are
+	private Double traceSampleRate;
+	private Boolean logMessages;
+
+	private String journalFile;
+	private long journalSize;
+	private String transport;
+	private boolean sharedMemory;
+	private String keyStore;
+	private String keyStorePassword;
+	private String trustStore;
+	private String trustStorePassword;
+	private String recordFile;
+	private String replayFile;
+	private double replaySpeed;
+	private int metricsPort;
+	private int messagePoolSize;
+	private int messageBufferSize;
+
+	private Rule[] sendRules;
+	private Rule[] receiveRules;
+
+	// groups by name with their known members, and the ordered ones
+	private HashMap<String, List<String>> groups;
+	private Set<String> orderedGroups;
+
+	private HashMap<String, Compression> compressions;
+	private Compression defaultCompression;
+
+	private boolean datagramsConfigured;
+	private Set<String> datagramKinds;
+	private int datagramMtu;
+
+	private boolean prioritiesConfigured;
+	private LinkedHashMap<String, Integer> priorityWeights;
+	private HashMap<String, String> priorityClasses;
+	private int fragmentSize;
+	private int sendBufferSize;
+
+	private Configuration(String localName, LogTool logger) {
+		this.localName = localName;
+		this.logger = logger;
+		this.contacts = new LinkedHashMap<String, Contact>();
+		this.clockType = ClockService.ClockType.DEFAULT;
+		this.reliable = false;
+		this.retransmitTimeout = DEFAULT_RETRANSMIT_TIMEOUT;
+		this.retransmitBufferSize = DEFAULT_RETRANSMIT_BUFFER_SIZE;
+		this.heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+		this.phiThreshold = DEFAULT_PHI_THRESHOLD;
+		this.traceSampleRate = null;
+		this.logMessages = null;
+		this.journalFile = null;
+		this.journalSize = DEFAULT_JOURNAL_SIZE;
+		this.transport = TRANSPORT_TCP;
+		this.sharedMemory = true;
+		this.keyStore = null;
+		this.keyStorePassword = null;
+		this.trustStore = null;
+		this.trustStorePassword = null;
+		this.recordFile = null;
+		this.replayFile = null;
+		this.replaySpeed = DEFAULT_REPLAY_SPEED;
+		this.metricsPort = -1;
+		this.messagePoolSize = 0;
+		this.messageBufferSize = DEFAULT_MESSAGE_BUFFER_SIZE;
+		this.sendRules = new Rule[0];
+		this.receiveRules = new Rule[0];
+		this.groups = new HashMap<String, List<String>>();
+		this.orderedGroups = new HashSet<String>();
+		this.compressions = new HashMap<String, Compression>();
+		this.defaultCompression = Compression.NONE;
+		this.datagramsConfigured = false;
+		this.datagramKinds = new HashSet<String>();
+		this.datagramMtu = DEFAULT_DATAGRAM_MTU;
+		this.prioritiesConfigured = false;
+		this.priorityWeights = new LinkedHashMap<String, Integer>();
+		this.priorityClasses = new HashMap<String, String>();
+		this.fragmentSize = 0;
+		this.sendBufferSize = 0;
+	}
+
+	/**
+	 * Read a configuration file.
+	 *
+	 * @param fileName
+	 *            Path of the configuration file.
+	 * @param localName
+	 *            Name of the local node, which must be in the file.
+	 * @param logger
+	 *            Where problems with the file are reported.
+	 * @return The configuration, null if the file cannot be read or is
+	 *         invalid.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Configuration load(String fileName, String localName,
+			LogTool logger) {
+		Yaml yaml = new Yaml();
+		InputStream is = null;
+		try {
+			is = new FileInputStream(fileName);
+		} catch (IOException ex) {
+			logger.error("failed to open config file - " + ex.getMessage());
+			return null;
+		}
+		HashMap<String, ArrayList<HashMap<String, Object>>> yamlMap = null;
+		try {
+			yamlMap = (HashMap<String, ArrayList<HashMap<String, Object>>>) (yaml
+					.load(is));
+		} catch (Exception ex) {
+			logger.error("failed to parse config file - " + ex.getMessage());
+		}
+		try {
+			is.close();
+		} catch (IOException ex) {
+			logger.error("failed to close config file - " + ex.getMessage());
+		}
+		if (yamlMap == null) {
+			return null;
+		}
+		Configuration configuration = new Configuration(localName, logger);
+		if (!configuration.checkTypes(yamlMap)) {
+			return null;
+		}
+		try {
+			if (!configuration.read(yamlMap)) {
+				return null;
+			}
+		} catch (RuntimeException ex) {
+			logger.error("invalid config file - " + ex);
+			return null;
+		}
+		return configuration;
+	}
+
+	/**
+	 * Read every part of the YAML file.
+	 *
+	 * @param yamlMap
+	 *            The parsed YAML file.
+	 * @return True if the file can be applied, false otherwise.
+	 */
+	private boolean read(
+			HashMap<String, ArrayList<HashMap<String, Object>>> yamlMap) {
+		ArrayList<HashMap<String, Object>> groupRules = null;
+		for (Map.Entry<String, ArrayList<HashMap<String, Object>>> entry : yamlMap
+				.entrySet()) {
+			String part = entry.getKey();
+			if (part.equals(ITEM_CONFIGURATION)) {
+				if (!localConfiguration(entry.getValue())) {
+					return false;
+				}
+			} else if (part.equals(ITEM_SEND_RULES)) {
+				sendRules = Rule.compileAll(entry.getValue(), logger);
+			} else if (part.equals(ITEM_RECEIVE_RULES)) {
+				receiveRules = Rule.compileAll(entry.getValue(), logger);
+			} else if (part.equals(ITEM_GROUPS)) {
+				groupRules = entry.getValue();
+			} else if (part.equals(ITEM_COMPRESSION)) {
+				compressionConfiguration(entry.getValue());
+			} else if (part.equals(ITEM_DATAGRAMS)) {
+				datagramConfiguration(entry.getValue());
+			} else if (part.equals(ITEM_PRIORITIES)) {
+				priorityConfiguration(entry.getValue());
+			} else {
+				logger.error("unknown config part " + part + " ignored");
+			}
+		}
+		if (!contacts.containsKey(localName)) {
+			logger.error("local name " + localName
+					+ " does not exist in the config file");
+			return false;
+		}
+
+		// groups refer to nodes, so they are read after the membership
+		groupConfiguration(groupRules);
+		return true;
+	}
+
+	/**
+	 * Check that every part of the YAML file other than the rules is a list
+	 * of items, and that the values in the items have the types they are read
+	 * as. The rules check their own values.
+	 *
+	 * @param yamlMap
+	 *            The parsed YAML file.
+	 * @return True if the file can be applied, false otherwise.
+	 */
+	private boolean checkTypes(Map<String, ?> yamlMap) {
+		for (Map.Entry<String, ?> part : yamlMap.entrySet()) {
+
+			// an empty part is read as a missing one
+			if (part.getValue() == null) {
+				continue;
+			}
+			if (!(part.getValue() instanceof List)) {
+				logger.error("config part " + part.getKey()
+						+ " is not a list");
+				return false;
+			}
+			for (Object item : (List<?>) part.getValue()) {
+				if (!(item instanceof Map)) {
+					logger.error("item " + item + " of config part "
+							+ part.getKey() + " is not a map");
+					return false;
+				}
+				if (part.getKey().equals(ITEM_SEND_RULES)
+						|| part.getKey().equals(ITEM_RECEIVE_RULES)) {
+					continue;
+				}
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) item).entrySet()) {
+					Class<?> type = VALUE_TYPES.get(entry.getKey());
+					Object value = entry.getValue();
+					if (type == null || value == null) {
+						continue;
+					}
+					boolean valid = type.isInstance(value);
+					if (valid && value instanceof List) {
+						for (Object element : (List<?>) value) {
+							valid &= element instanceof String;
+						}
+					}
+					if (!valid) {
+						logger.error("invalid value " + value + " of "
+								+ entry.getKey() + " in config part "
+								+ part.getKey() + ", expected "
+								+ type.getSimpleName()
+								+ (type == List.class ? " of strings" : ""));
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the configuration part of the YAML file: the nodes and the
+	 * settings of the local one. An item that is neither a known setting nor
+	 * a node with a name, an IP and a port is ignored.
+	 *
+	 * @param configRules
+	 *            The configuration part parsed from the YAML file, may be
+	 *            null.
+	 * @return False if a node ID is taken twice or the transport is unknown.
+	 */
+	private boolean localConfiguration(
+			ArrayList<HashMap<String, Object>> configRules) {
+		if (configRules == null) {
+			return true;
+		}
+		for (HashMap<String, Object> map : configRules) {
+			if (map.containsKey(CLOCK_SERVICE_TYPE)) {
+				clockServiceType((String) map.get(CLOCK_SERVICE_TYPE));
+			} else if (map.containsKey(RELIABLE)
+					|| map.containsKey(RETRANSMIT_TIMEOUT)
+					|| map.containsKey(RETRANSMIT_BUFFER_SIZE)) {
+				reliableConfiguration(map);
+			} else if (map.containsKey(HEARTBEAT_INTERVAL)
+					|| map.containsKey(PHI_THRESHOLD)) {
+				failureDetectorConfiguration(map);
+			} else if (map.containsKey(TRACE_SAMPLE_RATE)) {
+				traceSampleRate = ((Number) map.get(TRACE_SAMPLE_RATE))
+						.doubleValue();
+			} else if (map.containsKey(JOURNAL)
+					|| map.containsKey(JOURNAL_SIZE)) {
+				journalConfiguration(map);
+			} else if (map.containsKey(TRANSPORT)) {
+				if (!transportConfiguration(map)) {
+					return false;
+				}
+			} else if (map.containsKey(RECORD) || map.containsKey(REPLAY)
+					|| map.containsKey(REPLAY_SPEED)) {
+				recordingConfiguration(map);
+			} else if (map.containsKey(METRICS_PORT)) {
+				metricsPort = (Integer) map.get(METRICS_PORT);
+			} else if (map.containsKey(MESSAGE_POOL_SIZE)
+					|| map.containsKey(MESSAGE_BUFFER_SIZE)
+					|| map.containsKey(LOG_MESSAGES)) {
+				messageConfiguration(map);
+			} else {
+				String name = (String) map.get(CONTACT_NAME);
+				String IP = (String) map.get(CONTACT_IP);
+				Integer port = (Integer) map.get(CONTACT_PORT);
+				Integer id = (Integer) map.get(CONTACT_ID);
+				if (name == null || IP == null || port == null) {
+					logger.error("unknown configuration item " + map
+							+ " ignored");
+					continue;
+				}
+				contacts.put(name, new Contact(IP, port, id == null ? -1
+						: id));
+			}
+		}
+		HashMap<Integer, String> used = new HashMap<Integer, String>();
+		for (Map.Entry<String, Contact> entry : contacts.entrySet()) {
+			int id = entry.getValue().getId();
+			if (id < 0) {
+				continue;
+			}
+			if (used.containsKey(id)) {
+				logger.error("node " + entry.getKey() + " and " + used.get(id)
+						+ " have the same ID " + id);
+				return false;
+			}
+			used.put(id, entry.getKey());
+		}
+		return true;
+	}
+
+	/**
+	 * Read the clock service type.
+	 *
+	 * @param service
+	 *            Value of the clockService item.
+	 */
+	private void clockServiceType(String service) {
+		if (service.equals(CLOCK_SERVICE_LOGICAL)) {
+			clockType = ClockService.ClockType.LOGICAL;
+		} else if (service.equals(CLOCK_SERVICE_VECTOR)) {
+			clockType = ClockService.ClockType.VECTOR;
+		} else {
+			logger.error("invalid clock service type");
+		}
+	}
+
+	/**
+	 * Read the reliable delivery options, they must be the same on all nodes.
+	 *
+	 * @param map
+	 *            An item of the configuration part.
+	 */
+	private void reliableConfiguration(HashMap<String, Object> map) {
+		if (map.containsKey(RELIABLE)) {
+			reliable = (Boolean) map.get(RELIABLE);
+		}
+		if (map.containsKey(RETRANSMIT_TIMEOUT)) {
+			retransmitTimeout = (Integer) map.get(RETRANSMIT_TIMEOUT);
+		}
+		if (map.containsKey(RETRANSMIT_BUFFER_SIZE)) {
+
+			// the receiver cannot tell duplicates beyond its window
+			retransmitBufferSize = Math.min(
+					(Integer) map.get(RETRANSMIT_BUFFER_SIZE),
+					DedupWindow.SIZE);
+		}
+	}
+
+	/**
+	 * Read the heartbeat interval and the suspicion threshold.
+	 *
+	 * @param map
+	 *            An item of the configuration part.
+	 */
+	private void failureDetectorConfiguration(HashMap<String, Object> map) {
+		if (map.containsKey(HEARTBEAT_INTERVAL)) {
+			heartbeatInterval = (Integer) map.get(HEARTBEAT_INTERVAL);
+		}
+		if (map.containsKey(PHI_THRESHOLD)) {
+			phiThreshold = ((Number) map.get(PHI_THRESHOLD)).doubleValue();
+		}
+	}
+
+	/**
+	 * Read the file and the size of the event journal. The configuration is
+	 * shared by all nodes, so "{name}" in the file name is replaced by the
+	 * local name.
+	 *
+	 * @param map
+	 *            An item of the configuration part.
+	 */
+	private void journalConfiguration(HashMap<String, Object> map) {
+		if (map.containsKey(JOURNAL)) {
+			journalFile = ((String) map.get(JOURNAL)).replace(JOURNAL_NAME,
+					localName);
+		}
+		if (map.containsKey(JOURNAL_SIZE)) {
+			journalSize = ((Number) map.get(JOURNAL_SIZE)).longValue();
+		}
+	}
+
+	/**
+	 * Read the transport, "tcp" (the default), "tls" or "memory". TLS takes
+	 * the key store of the node from the item, "{name}" in its path is
+	 * replaced by the name of the local node, and the trust store and its
+	 * password default to the key store and its password.
+	 *
+	 * @param map
+	 *            An item of the configuration part.
+	 * @return False if the transport is unknown or misses its key store.
+	 */
+	private boolean transportConfiguration(HashMap<String, Object> map) {
+		String name = (String) map.get(TRANSPORT);
+		if (TRANSPORT_TCP.equals(name)) {
+			sharedMemory = !Boolean.FALSE.equals(map.get(SHARED_MEMORY));
+		} else if (TRANSPORT_TLS.equals(name)) {
+			keyStore = (String) map.get(KEY_STORE);
+			keyStorePassword = (String) map.get(KEY_STORE_PASSWORD);
+			if (keyStore == null || keyStorePassword == null) {
+				logger.error("the tls transport needs " + KEY_STORE + " and "
+						+ KEY_STORE_PASSWORD);
+				return false;
+			}
+			keyStore = keyStore.replace(JOURNAL_NAME, localName);
+			trustStore = keyStore;
+			if (map.containsKey(TRUST_STORE)) {
+				trustStore = ((String) map.get(TRUST_STORE)).replace(
+						JOURNAL_NAME, localName);
+			}
+			trustStorePassword = keyStorePassword;
+			if (map.containsKey(TRUST_STORE_PASSWORD)) {
+				trustStorePassword = (String) map.get(TRUST_STORE_PASSWORD);
+			}
+		} else if (!TRANSPORT_MEMORY.equals(name)) {
+			logger.error("unknown transport " + name);
+			return false;
+		}
+		transport = name;
+		return true;
+	}
+
+	/**
+	 * Read the file to record the messages into, and the recording to replay
+	 * and its speed. "{name}" in the file names is replaced by the local
+	 * name.
+	 *
+	 * @param map
+	 *            An item of the configuration part.
+	 */
+	private void recordingConfiguration(HashMap<String, Object> map) {
+		if (map.containsKey(RECORD)) {
+			recordFile = ((String) map.get(RECORD)).replace(JOURNAL_NAME,
+					localName);
+		}
+		if (map.containsKey(REPLAY)) {
+			replayFile = ((String) map.get(REPLAY)).replace(JOURNAL_NAME,
+					localName);
+		}
+		if (map.containsKey(REPLAY_SPEED)) {
+			replaySpeed = ((Number) map.get(REPLAY_SPEED)).doubleValue();
+		}
+	}
+
+	/**
+	 * Read the message pool and whether every message is logged.
+	 *
+	 * @param map
+	 *            An item of the configuration part.
+	 */
+	private void messageConfiguration(HashMap<String, Object> map) {
+		if (map.containsKey(LOG_MESSAGES)) {
+			logMessages = (Boolean) map.get(LOG_MESSAGES);
+		}
+		if (map.containsKey(MESSAGE_BUFFER_SIZE)) {
+			messageBufferSize = (Integer) map.get(MESSAGE_BUFFER_SIZE);
+		}
+		if (map.containsKey(MESSAGE_POOL_SIZE)) {
+			messagePoolSize = (Integer) map.get(MESSAGE_POOL_SIZE);
+		}
+	}
+
+	/**
+	 * Read the groups part of the YAML file, a missing part means no groups.
+	 * Members that are not nodes are left out.
+	 *
+	 * @param groupRules
+	 *            The groups part parsed from the YAML file, may be null.
+	 */
+	@SuppressWarnings("unchecked")
+	private void groupConfiguration(
+			ArrayList<HashMap<String, Object>> groupRules) {
+		if (groupRules == null) {
+			return;
+		}
+		for (HashMap<String, Object> map : groupRules) {
+			String name = (String) map.get(GROUP_NAME);
+			List<String> members = (List<String>) map.get(GROUP_MEMBERS);
+			if (name == null || members == null) {
+				logger.error("group without name or members ignored");
+				continue;
+			}
+			if (contacts.containsKey(name)) {
+				logger.error("group " + name
+						+ " has the name of a node, ignored");
+				continue;
+			}
+			ArrayList<String> known = new ArrayList<String>();
+			for (String member : members) {
+				if (!contacts.containsKey(member)) {
+					logger.error("member " + member + " of group " + name
+							+ " does not exist, ignored");
+				} else if (!known.contains(member)) {
+					known.add(member);
+				}
+			}
+			groups.put(name, Collections.unmodifiableList(known));
+			if (Boolean.TRUE.equals(map.get(GROUP_ORDERED))) {
+				orderedGroups.add(name);
+			}
+		}
+	}
+
+	/**
+	 * Read the compression part of the YAML file, a missing part turns
+	 * compression off. An entry without a kind applies to the kinds not
+	 * listed.
+	 *
+	 * @param compressionRules
+	 *            The compression part parsed from the YAML file, may be null.
+	 */
+	private void compressionConfiguration(
+			ArrayList<HashMap<String, Object>> compressionRules) {
+		if (compressionRules == null) {
+			return;
+		}
+		for (HashMap<String, Object> map : compressionRules) {
+			String codec = (String) map.get(COMPRESSION_CODEC);
+			if (codec == null) {
+				codec = Compression.CODEC_DEFLATE;
+			}
+			if (!codec.equals(Compression.CODEC_NONE)
+					&& !codec.equals(Compression.CODEC_DEFLATE)) {
+				logger.error("unknown codec " + codec + ", ignored");
+				continue;
+			}
+			int level = Deflater.DEFAULT_COMPRESSION;
+			if (map.get(COMPRESSION_LEVEL) != null) {
+				level = (Integer) map.get(COMPRESSION_LEVEL);
+				if (level < Deflater.BEST_SPEED
+						|| level > Deflater.BEST_COMPRESSION) {
+					logger.error("invalid compression level " + level
+							+ ", using the default");
+					level = Deflater.DEFAULT_COMPRESSION;
+				}
+			}
+			int threshold = DEFAULT_COMPRESSION_THRESHOLD;
+			if (map.get(COMPRESSION_THRESHOLD) != null) {
+				threshold = (Integer) map.get(COMPRESSION_THRESHOLD);
+			}
+			Compression compression = new Compression(codec, level, threshold);
+			String kind = (String) map.get(COMPRESSION_KIND);
+			if (kind == null) {
+				defaultCompression = compression;
+				logger.info("compression: " + compression);
+			} else {
+				compressions.put(kind, compression);
+				logger.info("compression of " + kind + ": " + compression);
+			}
+		}
+	}
+
+	/**
+	 * Read the datagrams part of the YAML file: the kinds sent over UDP and
+	 * the largest datagram.
+	 *
+	 * @param datagramRules
+	 *            The datagrams part parsed from the YAML file, may be null.
+	 */
+	private void datagramConfiguration(
+			ArrayList<HashMap<String, Object>> datagramRules) {
+		datagramsConfigured = datagramRules != null;
+		if (datagramRules == null) {
+			return;
+		}
+		for (HashMap<String, Object> map : datagramRules) {
+			if (map.get(DATAGRAM_MTU) != null) {
+				datagramMtu = (Integer) map.get(DATAGRAM_MTU);
+			}
+			String kind = (String) map.get(DATAGRAM_KIND);
+			if (kind != null) {
+				datagramKinds.add(kind);
+			}
+		}
+	}
+
+	/**
+	 * Read the priorities part of the YAML file: the priority classes with
+	 * their weights and kinds, the size of the fragments large messages are
+	 * split into and the send buffer of new TCP connections. A missing part
+	 * makes the send buffer FIFO and sends messages whole.
+	 *
+	 * @param priorityRules
+	 *            The priorities part parsed from the YAML file, may be null.
+	 */
+	@SuppressWarnings("unchecked")
+	private void priorityConfiguration(
+			ArrayList<HashMap<String, Object>> priorityRules) {
+		prioritiesConfigured = priorityRules != null;
+		if (priorityRules == null) {
+			return;
+		}
+		fragmentSize = DEFAULT_FRAGMENT_SIZE;
+		sendBufferSize = DEFAULT_SEND_BUFFER_SIZE;
+		for (HashMap<String, Object> map : priorityRules) {
+			if (map.get(SEND_BUFFER_SIZE) != null) {
+				sendBufferSize = (Integer) map.get(SEND_BUFFER_SIZE);
+			}
+			if (map.get(FRAGMENT_SIZE) != null) {
+				fragmentSize = (Integer) map.get(FRAGMENT_SIZE);
+				if (fragmentSize != 0 && fragmentSize < MIN_FRAGMENT_SIZE) {
+					logger.error("fragment size " + fragmentSize
+							+ " too small, using " + MIN_FRAGMENT_SIZE);
+					fragmentSize = MIN_FRAGMENT_SIZE;
+				}
+			}
+			if (map.containsKey(FRAGMENT_SIZE)
+					|| map.containsKey(SEND_BUFFER_SIZE)) {
+				continue;
+			}
+			String name = (String) map.get(PRIORITY_CLASS);
+			if (name == null) {
+				logger.error("priority class without name ignored");
+				continue;
+			}
+			int weight = SendQueue.DEFAULT_WEIGHT;
+			if (map.get(PRIORITY_WEIGHT) != null) {
+				weight = (Integer) map.get(PRIORITY_WEIGHT);
+			}
+			if (weight <= 0) {
+				logger.error("invalid weight " + weight + " of priority class "
+						+ name + ", ignored");
+				continue;
+			}
+			priorityWeights.put(name, weight);
+			List<String> kinds = (List<String>) map.get(PRIORITY_KINDS);
+			if (kinds != null) {
+				for (String kind : kinds) {
+					priorityClasses.put(kind, name);
+				}
+			}
+			logger.info("priority class " + name + ": [weight] " + weight
+					+ " [kinds] " + kinds);
+		}
+	}
+
+	/**
+	 * @return The types of the values in the configuration file, by key.
+	 */
+	private static HashMap<String, Class<?>> valueTypes() {
+		HashMap<String, Class<?>> types = new HashMap<String, Class<?>>();
+		for (String key : new String[] { CLOCK_SERVICE_TYPE, CONTACT_NAME,
+				CONTACT_IP, COMPRESSION_KIND, COMPRESSION_CODEC,
+				PRIORITY_CLASS, JOURNAL, TRANSPORT, KEY_STORE,
+				KEY_STORE_PASSWORD, TRUST_STORE, TRUST_STORE_PASSWORD, RECORD,
+				REPLAY }) {
+			types.put(key, String.class);
+		}
+		for (String key : new String[] { CONTACT_PORT, CONTACT_ID,
+				COMPRESSION_LEVEL, COMPRESSION_THRESHOLD, DATAGRAM_MTU,
+				PRIORITY_WEIGHT, FRAGMENT_SIZE, SEND_BUFFER_SIZE,
+				RETRANSMIT_TIMEOUT, RETRANSMIT_BUFFER_SIZE, HEARTBEAT_INTERVAL,
+				MESSAGE_POOL_SIZE, MESSAGE_BUFFER_SIZE, METRICS_PORT }) {
+			types.put(key, Integer.class);
+		}
+		for (String key : new String[] { PHI_THRESHOLD, TRACE_SAMPLE_RATE,
+				JOURNAL_SIZE, REPLAY_SPEED }) {
+			types.put(key, Number.class);
+		}
+		for (String key : new String[] { GROUP_ORDERED, RELIABLE,
+				LOG_MESSAGES, SHARED_MEMORY }) {
+			types.put(key, Boolean.class);
+		}
+		types.put(GROUP_MEMBERS, List.class);
+		types.put(PRIORITY_KINDS, List.class);
+		return types;
+	}
+
+	/**
+	 * @return The nodes by name, copies with the IDs given in the file or -1,
+	 *         in the order of the file.
+	 */
+	public LinkedHashMap<String, Contact> getContacts() {
+		LinkedHashMap<String, Contact> copies = new LinkedHashMap<String, Contact>();
+		for (Map.Entry<String, Contact> entry : contacts.entrySet()) {
+			copies.put(entry.getKey(), entry.getValue().copy());
+		}
+		return copies;
+	}
+
+	public ClockService.ClockType getClockType() {
+		return clockType;
+	}
+
+	public boolean isReliable() {
+		return reliable;
+	}
+
+	public int getRetransmitTimeout() {
+		return retransmitTimeout;
+	}
+
+	public int getRetransmitBufferSize() {
+		return retransmitBufferSize;
+	}
+
+	public int getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	public double getPhiThreshold() {
+		return phiThreshold;
+	}
+
+	/**
+	 * @return Share of the messages traced, null if not in the file.
+	 */
+	public Double getTraceSampleRate() {
+		return traceSampleRate;
+	}
+
+	/**
+	 * @return Whether every message is logged, null if not in the file.
+	 */
+	public Boolean getLogMessages() {
+		return logMessages;
+	}
+
+	public String getJournalFile() {
+		return journalFile;
+	}
+
+	public long getJournalSize() {
+		return journalSize;
+	}
+
+	/**
+	 * @return TRANSPORT_TCP, TRANSPORT_TLS or TRANSPORT_MEMORY.
+	 */
+	public String getTransport() {
+		return transport;
+	}
+
+	/**
+	 * @return False if TCP must not go through shared memory to nodes on the
+	 *         same host.
+	 */
+	public boolean isSharedMemory() {
+		return sharedMemory;
+	}
+
+	public String getKeyStore() {
+		return keyStore;
+	}
+
+	public String getKeyStorePassword() {
+		return keyStorePassword;
+	}
+
+	public String getTrustStore() {
+		return trustStore;
+	}
+
+	public String getTrustStorePassword() {
+		return trustStorePassword;
+	}
+
+	public String getRecordFile() {
+		return recordFile;
+	}
+
+	public String getReplayFile() {
+		return replayFile;
+	}
+
+	public double getReplaySpeed() {
+		return replaySpeed;
+	}
+
+	/**
+	 * @return Port of the HTTP metrics endpoint, -1 for none.
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	public int getMessagePoolSize() {
+		return messagePoolSize;
+	}
+
+	public int getMessageBufferSize() {
+		return messageBufferSize;
+	}
+
+	public Rule[] getSendRules() {
+		return sendRules;
+	}
+
+	public Rule[] getReceiveRules() {
+		return receiveRules;
+	}
+
+	/**
+	 * @return Members of every group by group name.
+	 */
+	public Map<String, List<String>> getGroups() {
+		return groups;
+	}
+
+	/**
+	 * @return Names of the groups marked as ordered.
+	 */
+	public Set<String> getOrderedGroups() {
+		return orderedGroups;
+	}
+
+	/**
+	 * @return Compression by message kind.
+	 */
+	public Map<String, Compression> getCompressions() {
+		return compressions;
+	}
+
+	/**
+	 * @return Compression of the kinds not listed.
+	 */
+	public Compression getDefaultCompression() {
+		return defaultCompression;
+	}
+
+	/**
+	 * @return True if the file has a datagrams part.
+	 */
+	public boolean isDatagramsConfigured() {
+		return datagramsConfigured;
+	}
+
+	public Set<String> getDatagramKinds() {
+		return datagramKinds;
+	}
+
+	public int getDatagramMtu() {
+		return datagramMtu;
+	}
+
+	/**
+	 * @return True if the file has a priorities part.
+	 */
+	public boolean isPrioritiesConfigured() {
+		return prioritiesConfigured;
+	}
+
+	/**
+	 * @return Weights of the priority classes by class name, in the order of
+	 *         the file.
+	 */
+	public LinkedHashMap<String, Integer> getPriorityWeights() {
+		return priorityWeights;
+	}
+
+	/**
+	 * @return Priority class names by message kind.
+	 */
+	public HashMap<String, String> getPriorityClasses() {
+		return priorityClasses;
+	}
+
+	/**
+	 * @return Size of the fragments large messages are split into, 0 to send
+	 *         them whole.
+	 */
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	/**
+	 * @return Send buffer of new TCP connections, 0 to leave it as it is.
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+}
@@ -0,0 +1,77 @@
+package ipc;
+
+import java.io.IOException;
+
+/**
+ * An outgoing connection to a remote node, opened by a Transport. The first
+ * frame names the local node so that the remote side can tell who sends
+ * control frames. Several threads can write to the same connection.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public interface Connection {
+
+	/**
+	 * Write a control frame: an ack, or nothing at all as a heartbeat.
+	 * 
+	 * @param ack
+	 *            Ack to carry, null if none.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	void writeControl(Ack ack) throws IOException;
+
+	/**
+	 * Write a message with its sequence number, dupe flag and trace stamps.
+	 * 
+	 * @param message
+	 *            The message, it still belongs to the caller afterwards.
+	 * @param ack
+	 *            Ack to carry, null if none.
+	 * @param body
+	 *            The encoded message if the transport encodes messages, null
+	 *            otherwise.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	void writeMessage(Message message, Ack ack, byte[] body)
+			throws IOException;
+
+	/**
+	 * Write a fragment of the body of a message encoded by the caller, the
+	 * fragments of a message are written in order on the same connection.
+	 * The last one carries the trace stamps of the message.
+	 * 
+	 * @param message
+	 *            The message, it still belongs to the caller afterwards.
+	 * @param ack
+	 *            Ack to carry, null if none.
+	 * @param body
+	 *            The encoded message, followed by the payload of a bytes
+	 *            message.
+	 * @param offset
+	 *            Offset of the fragment in the body and payload.
+	 * @param length
+	 *            Length of the fragment.
+	 * @throws IOException
+	 *             If the frame cannot be written, or the transport does not
+	 *             split messages.
+	 */
+	void writeFragment(Message message, Ack ack, byte[] body, int offset,
+			int length) throws IOException;
+
+	/**
+	 * @return System.nanoTime() of the last frame written.
+	 */
+	long getLastWrite();
+
+	/**
+	 * Close the connection.
+	 * 
+	 * @param logger
+	 *            Logger of the calling method.
+	 */
+	void close(LogTool logger);
+}
@@ -0,0 +1,46 @@
+package ipc;
+
+/**
+ * Contact information of a node from the configuration file: where it listens
+ * and its index into the vector clock.
+ *
+ * @author Jason Xi
+ * @author Yinsu Chu
+ *
+ */
+public class Contact {
+	private String IP;
+	private int port;
+
+	// index into the vector clock, -1 until assigned
+	private int id;
+
+	public Contact(String IP, int port, int id) {
+		this.IP = IP;
+		this.port = port;
+		this.id = id;
+	}
+
+	/**
+	 * @return A copy to assign an ID to, leaving this one as it was read.
+	 */
+	public Contact copy() {
+		return new Contact(IP, port, id);
+	}
+
+	public String getIP() {
+		return IP;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+}
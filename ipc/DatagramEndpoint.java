@@ -0,0 +1,311 @@
+package ipc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The UDP socket of a node, for the kinds that are sent as datagrams. It is
+ * bound to the same address and port number as the node, and has no state
+ * per peer besides the datagram being filled for it. A datagram holds one
+ * or more frames as written by WireFormat, without acks: messages to the
+ * same node are appended until the next one would make it larger than the
+ * MTU, or until the sender flushes. A lost datagram loses its messages, and
+ * a datagram that cannot be decoded is dropped from the first bad frame on.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class DatagramEndpoint {
+
+	// largest datagram UDP can carry
+	private static final int MAX_DATAGRAM = 65507;
+
+	// kernel buffer asked for, so that a burst is not dropped on arrival
+	private static final int RECEIVE_BUFFER = 1024 * 1024;
+
+	private DatagramChannel channel;
+	private volatile int mtu;
+	private ConcurrentHashMap<String, Packet> packets;
+	private AtomicLong sent;
+	private AtomicLong received;
+	private LogTool logger;
+
+	/**
+	 * A byte array stream whose content can be sent without copying it.
+	 */
+	private static class PacketBytes extends ByteArrayOutputStream {
+		public ByteBuffer toBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	/**
+	 * The datagram being filled for one node. Writing to it is the same as
+	 * writing to a connection, except that nothing is sent before the
+	 * datagram is full or flushed.
+	 */
+	private class Packet implements Connection {
+		private InetSocketAddress address;
+		private PacketBytes bytes;
+		private DataOutputStream output;
+		private volatile long lastWrite;
+
+		public Packet(InetSocketAddress address) {
+			this.address = address;
+			this.bytes = new PacketBytes();
+			this.output = new DataOutputStream(bytes);
+			this.lastWrite = System.nanoTime();
+		}
+
+		public void writeControl(Ack ack) throws IOException {
+			throw new IOException("control frames are not sent as datagrams");
+		}
+
+		/**
+		 * Append a message, sending the datagram first if it has no room
+		 * left. The ack is not sent, the caller does not take one.
+		 */
+		public synchronized void writeMessage(Message message, Ack ack,
+				byte[] body) throws IOException {
+			ByteBuffer payload = null;
+			int length = body.length;
+			if (message instanceof BytesMessage) {
+				payload = ((BytesMessage) message).wireView();
+				length += payload.remaining();
+			}
+			int frameLength = WireFormat.frameLength(length, false,
+					message.getTrace() != null);
+			int limit = mtu;
+			if (frameLength > limit) {
+				throw new IOException("frame of " + frameLength
+						+ " bytes does not fit in a datagram of " + limit
+						+ " bytes");
+			}
+			if (bytes.size() + frameLength > limit) {
+				send();
+			}
+			WireFormat.writeFrame(output, message.getSequenceNumber(),
+					message.isDupe(), null, message.getTrace(), body,
+					payload == null ? 0 : payload.remaining());
+			if (payload != null) {
+				if (payload.hasArray()) {
+					output.write(payload.array(), payload.arrayOffset()
+							+ payload.position(), payload.remaining());
+				} else {
+					while (payload.hasRemaining()) {
+						output.write(payload.get());
+					}
+				}
+			}
+		}
+
+		public void writeFragment(Message message, Ack ack, byte[] body,
+				int offset, int length) throws IOException {
+			throw new IOException("messages are not split into datagrams");
+		}
+
+		/**
+		 * Send what the datagram holds, if anything.
+		 */
+		public synchronized void send() throws IOException {
+			if (bytes.size() == 0) {
+				return;
+			}
+			try {
+				channel.send(bytes.toBuffer(), address);
+			} finally {
+				bytes.reset();
+			}
+			sent.incrementAndGet();
+			lastWrite = System.nanoTime();
+		}
+
+		public long getLastWrite() {
+			return lastWrite;
+		}
+
+		/**
+		 * Nothing to close, the socket is shared by all nodes.
+		 */
+		public void close(LogTool logger) {
+		}
+	}
+
+	/**
+	 * Frames of the datagrams received, in the order they arrive.
+	 */
+	private class DatagramIncomingConnection implements IncomingConnection {
+		private ByteBuffer buffer;
+		private DataInputStream input;
+		private SocketAddress from;
+
+		public DatagramIncomingConnection() {
+			this.buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+			this.input = null;
+			this.from = null;
+		}
+
+		public Frame read(CompressionStats stats, MessagePool pool)
+				throws IOException {
+			while (true) {
+				if (input != null && input.available() > 0) {
+					try {
+						return WireFormat.readFrame(input, stats, pool);
+					} catch (Exception ex) {
+						logger.error("dropped the rest of a datagram from "
+								+ from + " - " + ex.getMessage());
+						input = null;
+						continue;
+					}
+				}
+				buffer.clear();
+				from = channel.receive(buffer);
+				buffer.flip();
+				received.incrementAndGet();
+				input = new DataInputStream(new ByteArrayInputStream(
+						buffer.array(), 0, buffer.limit()));
+			}
+		}
+
+		public String getRemoteAddress() {
+			return "datagrams to " + String.valueOf(getLocalAddress());
+		}
+
+		public void close(LogTool logger) {
+			DatagramEndpoint.this.close();
+		}
+	}
+
+	private DatagramEndpoint(DatagramChannel channel, int mtu, LogTool logger) {
+		this.channel = channel;
+		this.mtu = mtu;
+		this.packets = new ConcurrentHashMap<String, Packet>();
+		this.sent = new AtomicLong();
+		this.received = new AtomicLong();
+		this.logger = logger;
+	}
+
+	/**
+	 * Open the UDP socket of a node.
+	 * 
+	 * @param IP
+	 *            The address to bind.
+	 * @param port
+	 *            The port number to bind, the same as the node's.
+	 * @param mtu
+	 *            Largest datagram to send in bytes.
+	 * @param logger
+	 *            Logger of the node.
+	 * @return The endpoint, null on failure.
+	 */
+	public static DatagramEndpoint open(String IP, int port, int mtu,
+			LogTool logger) {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+			channel.bind(new InetSocketAddress(IP, port));
+		} catch (IOException ex) {
+			logger.error("failed to open datagram socket on " + IP + ":"
+					+ port + " - " + ex.getMessage());
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.error("failed to close datagram socket - "
+							+ e.getMessage());
+				}
+			}
+			return null;
+		}
+		return new DatagramEndpoint(channel, Math.min(mtu, MAX_DATAGRAM),
+				logger);
+	}
+
+	/**
+	 * @param mtu
+	 *            Largest datagram to send from now on, in bytes.
+	 */
+	public void setMtu(int mtu) {
+		this.mtu = Math.min(mtu, MAX_DATAGRAM);
+	}
+
+	/**
+	 * Get the datagram being filled for a node.
+	 * 
+	 * @param IP
+	 *            Address of the node.
+	 * @param port
+	 *            Port number of the node.
+	 * @return The connection to write its messages to.
+	 */
+	public Connection connect(String IP, int port) {
+		String key = IP + ":" + port;
+		Packet packet = packets.get(key);
+		if (packet == null) {
+			packet = new Packet(new InetSocketAddress(IP, port));
+			Packet existing = packets.putIfAbsent(key, packet);
+			if (existing != null) {
+				packet = existing;
+			}
+		}
+		return packet;
+	}
+
+	/**
+	 * Send the datagrams that hold any messages.
+	 */
+	public void flush() {
+		for (Packet packet : packets.values()) {
+			try {
+				packet.send();
+			} catch (IOException ex) {
+				logger.error("failed to send datagram to " + packet.address
+						+ " - " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return The datagrams received, read by one receiver worker.
+	 */
+	public IncomingConnection getIncoming() {
+		return new DatagramIncomingConnection();
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	private SocketAddress getLocalAddress() {
+		try {
+			return channel.getLocalAddress();
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			logger.error("failed to close datagram socket - "
+					+ ex.getMessage());
+		}
+	}
+}
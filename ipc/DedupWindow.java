@@ -0,0 +1,83 @@
+package ipc;
+
+/**
+ * Sliding window over the sequence numbers received from one source, used to
+ * suppress duplicates (e.g. retransmissions whose ack got lost) in O(1) per
+ * message. Sequence numbers of a link start at 1 and have no gaps.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class DedupWindow {
+
+	// number of sequence numbers tracked beyond the cumulative one
+	public static final int SIZE = 1024;
+
+	// bitmap indexed by sequence number modulo SIZE
+	private long[] bits;
+
+	// every sequence number up to and including this one has been received
+	private long cumulative;
+
+	public DedupWindow() {
+		this.bits = new long[SIZE / Long.SIZE];
+		this.cumulative = 0;
+	}
+
+	private boolean isSet(long seq) {
+		int slot = (int) (seq % SIZE);
+		return (bits[slot / Long.SIZE] & (1L << (slot % Long.SIZE))) != 0;
+	}
+
+	private void set(long seq) {
+		int slot = (int) (seq % SIZE);
+		bits[slot / Long.SIZE] |= 1L << (slot % Long.SIZE);
+	}
+
+	private void clear(long seq) {
+		int slot = (int) (seq % SIZE);
+		bits[slot / Long.SIZE] &= ~(1L << (slot % Long.SIZE));
+	}
+
+	/**
+	 * Record a received sequence number.
+	 * 
+	 * @param seq
+	 *            The sequence number of the message.
+	 * @return True if the message is new, false if it is a duplicate.
+	 */
+	public synchronized boolean accept(long seq) {
+		if (seq <= cumulative || (seq <= cumulative + SIZE && isSet(seq))) {
+			return false;
+		}
+
+		/*
+		 * the source gave up on the messages that fell out of its retransmit
+		 * buffer, so slide the window over them
+		 */
+		while (seq > cumulative + SIZE) {
+			cumulative++;
+			clear(cumulative);
+		}
+		set(seq);
+		while (isSet(cumulative + 1)) {
+			cumulative++;
+			clear(cumulative);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The acknowledgement describing the current window.
+	 */
+	public synchronized Ack toAck() {
+		long selective = 0;
+		for (int i = 0; i < Long.SIZE; i++) {
+			if (isSet(cumulative + 1 + i)) {
+				selective |= 1L << i;
+			}
+		}
+		return new Ack(cumulative, selective);
+	}
+}
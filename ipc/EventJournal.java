@@ -0,0 +1,551 @@
+package ipc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clock.TimeStamp;
+
+/**
+ * Binary journal of the events of one node, kept in a memory-mapped file of a
+ * fixed size like a flight recorder: once full, the oldest events are
+ * overwritten. Writing an event claims the next record with one atomic
+ * increment and fills it in place, with no lock, no system call and no
+ * allocation, so it can stay on in production. The pages belong to the
+ * operating system, so the events written before the process dies are still
+ * in the file.
+ * 
+ * The file starts with a header of HEADER_SIZE bytes: a magic number, the
+ * format version, the record size, the number of records, System.nanoTime()
+ * and the wall clock when the journal was opened, and the name of the node.
+ * Then come the records of RECORD_SIZE bytes each. A record starts with its
+ * number plus one, written last, so a record being written when the process
+ * died, or never written, is told apart from a complete one.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class EventJournal {
+
+	// a message written to a connection, peer is the destination
+	public static final byte SEND = 1;
+
+	// a message read from a connection, peer is the source
+	public static final byte RECEIVE = 2;
+
+	// a send (detail RULE_SEND) or receive (RULE_RECEIVE) rule fired
+	public static final byte RULE = 3;
+
+	// a connection to the peer opened (detail 0) or by the peer (detail 1)
+	public static final byte CONNECT = 4;
+
+	// a connection to the peer closed (detail 0) or by the peer (detail 1)
+	public static final byte DISCONNECT = 5;
+
+	// detail of a rule event: the side, plus the action
+	public static final int RULE_SEND = 0;
+	public static final int RULE_RECEIVE = 0x80;
+	private static final String[] ACTIONS = { Rule.ACTION_DROP,
+			Rule.ACTION_DUPLICATE, Rule.ACTION_DELAY, Rule.ACTION_THROTTLE,
+			Rule.ACTION_REORDER };
+
+	// detail of a send or receive event
+	public static final int DUPE = 1;
+
+	private static final int MAGIC = 0x49504a31;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 128;
+	private static final int RECORD_SIZE = 160;
+	private static final int MAX_NAME_BYTES = 31;
+	private static final int MAX_NAME_LENGTH = 63;
+	private static final int MAX_CLOCK = 14;
+	private static final int PAGE_SIZE = 4096;
+
+	// offsets in the header
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_RECORD_SIZE = 8;
+	private static final int HEADER_RECORDS = 12;
+	private static final int HEADER_NANOS = 16;
+	private static final int HEADER_MILLIS = 24;
+	private static final int HEADER_NAME = 32;
+
+	// offsets in a record
+	private static final int COMMIT = 0;
+	private static final int NANOS = 8;
+	private static final int SEQUENCE_NUMBER = 16;
+	private static final int TYPE = 24;
+	private static final int DETAIL = 25;
+	private static final int CLOCK_STORED = 26;
+	private static final int CLOCK_DIMENSION = 28;
+	private static final int SIZE = 32;
+	private static final int PEER = 40;
+	private static final int KIND = 72;
+	private static final int CLOCK = 104;
+
+	// names are encoded once, up to this many of them
+	private static final int NAME_CACHE_SIZE = 1024;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int records;
+
+	// records claimed so far
+	private AtomicLong next;
+
+	private ConcurrentHashMap<String, byte[]> names;
+
+	/**
+	 * An event read back from a journal file.
+	 */
+	public static class Event {
+		private long number;
+		private long nanos;
+		private byte type;
+		private int detail;
+		private String peer;
+		private String kind;
+		private long sequenceNumber;
+		private int size;
+		private int[] clock;
+		private int clockDimension;
+
+		public long getNumber() {
+			return number;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public byte getType() {
+			return type;
+		}
+
+		public int getDetail() {
+			return detail;
+		}
+
+		public String getPeer() {
+			return peer;
+		}
+
+		public String getKind() {
+			return kind;
+		}
+
+		public long getSequenceNumber() {
+			return sequenceNumber;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return The clock values recorded, at most MAX_CLOCK of them.
+		 */
+		public int[] getClock() {
+			return clock;
+		}
+
+		/**
+		 * @return Number of clock values of the time stamp, more than
+		 *         getClock() holds if it was cut.
+		 */
+		public int getClockDimension() {
+			return clockDimension;
+		}
+
+		/**
+		 * @return The action of a rule event.
+		 */
+		public String getAction() {
+			int action = detail & ~RULE_RECEIVE;
+			return action < ACTIONS.length ? ACTIONS[action] : "unknown";
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(typeName(type)).append(" [peer] ").append(peer);
+			if (type == SEND || type == RECEIVE || type == RULE) {
+				sb.append(" [kind] ").append(kind).append(" [seq] ")
+						.append(sequenceNumber);
+			}
+			if (type == RULE) {
+				sb.append(" [rule] ")
+						.append((detail & RULE_RECEIVE) != 0 ? "receive "
+								: "send ").append(getAction());
+			} else if ((type == SEND || type == RECEIVE)
+					&& (detail & DUPE) != 0) {
+				sb.append(" [dup] true");
+			} else if (type == CONNECT || type == DISCONNECT) {
+				sb.append(detail == 0 ? " [outgoing]" : " [incoming]");
+			}
+			if (size > 0) {
+				sb.append(" [size] ").append(size);
+			}
+			if (clock.length > 0) {
+				sb.append(" [time] ");
+				if (clock.length == 1 && clockDimension == 1) {
+					sb.append(clock[0]);
+				} else {
+					sb.append('[');
+					for (int i = 0; i < clock.length; i++) {
+						sb.append(i == 0 ? "" : ", ").append(clock[i]);
+					}
+					sb.append(clockDimension > clock.length ? ", ...]" : "]");
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The header and the events of a journal file.
+	 */
+	public static class Contents {
+		private String node;
+		private long startNanos;
+		private long startMillis;
+		private List<Event> events;
+
+		public String getNode() {
+			return node;
+		}
+
+		/**
+		 * @return System.nanoTime() when the journal was opened.
+		 */
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		/**
+		 * @return Wall clock in milliseconds when the journal was opened.
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * @return The events still in the file, oldest first.
+		 */
+		public List<Event> getEvents() {
+			return events;
+		}
+
+		/**
+		 * @param event
+		 *            An event of this journal.
+		 * @return Wall clock of the event in milliseconds, as precise as the
+		 *         two clocks agreed when the journal was opened.
+		 */
+		public double toMillis(Event event) {
+			return startMillis + (event.nanos - startNanos) / 1e6;
+		}
+	}
+
+	private EventJournal(RandomAccessFile file, MappedByteBuffer buffer,
+			int records) {
+		this.file = file;
+		this.buffer = buffer;
+		this.records = records;
+		this.next = new AtomicLong();
+		this.names = new ConcurrentHashMap<String, byte[]>();
+	}
+
+	/**
+	 * Create a journal, replacing the file if it exists. The whole file is
+	 * allocated and touched now, so writing events never waits for the disk.
+	 * 
+	 * @param fileName
+	 *            Path of the file.
+	 * @param size
+	 *            Size of the file in bytes, at least one record.
+	 * @param node
+	 *            Name of the local node.
+	 * @param logger
+	 *            Logger of the calling method.
+	 * @return The journal, null on failure.
+	 */
+	public static EventJournal open(String fileName, long size, String node,
+			LogTool logger) {
+		long records = Math.max((Math.min(size, Integer.MAX_VALUE) - HEADER_SIZE)
+				/ RECORD_SIZE, 1);
+		long length = HEADER_SIZE + records * RECORD_SIZE;
+		RandomAccessFile file = null;
+		MappedByteBuffer buffer = null;
+		try {
+			file = new RandomAccessFile(fileName, "rw");
+			file.setLength(0);
+			file.setLength(length);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} catch (IOException ex) {
+			logger.error("failed to open journal " + fileName + " - "
+					+ ex.getMessage());
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					logger.error("failed to close journal - " + e.getMessage());
+				}
+			}
+			return null;
+		}
+		for (int i = 0; i < length; i += PAGE_SIZE) {
+			buffer.put(i, (byte) 0);
+		}
+		buffer.putInt(HEADER_VERSION, VERSION);
+		buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+		buffer.putInt(HEADER_RECORDS, (int) records);
+		buffer.putLong(HEADER_NANOS, System.nanoTime());
+		buffer.putLong(HEADER_MILLIS, System.currentTimeMillis());
+		byte[] name = node.getBytes(StandardCharsets.UTF_8);
+		int nameLength = Math.min(name.length, MAX_NAME_LENGTH);
+		buffer.put(HEADER_NAME, (byte) nameLength);
+		for (int i = 0; i < nameLength; i++) {
+			buffer.put(HEADER_NAME + 1 + i, name[i]);
+		}
+		buffer.putInt(HEADER_MAGIC, MAGIC);
+		return new EventJournal(file, buffer, (int) records);
+	}
+
+	/**
+	 * Record an event. Names longer than MAX_NAME_BYTES bytes and clocks with
+	 * more than MAX_CLOCK values are cut.
+	 * 
+	 * @param type
+	 *            Type of the event.
+	 * @param detail
+	 *            Detail of the event, see the types.
+	 * @param peer
+	 *            Name of the remote node.
+	 * @param kind
+	 *            Kind of the message, null if none.
+	 * @param sequenceNumber
+	 *            Sequence number of the message on its link, 0 if none.
+	 * @param size
+	 *            Size of the frame in bytes, 0 if none.
+	 * @param timeStamp
+	 *            Time stamp of the message, null if none.
+	 */
+	public void record(byte type, int detail, String peer, String kind,
+			long sequenceNumber, int size, TimeStamp timeStamp) {
+		long number = next.getAndIncrement();
+		int offset = HEADER_SIZE + (int) (number % records) * RECORD_SIZE;
+
+		// the record may be overwritten, it is not valid until committed
+		buffer.putLong(offset + COMMIT, 0);
+		buffer.putLong(offset + NANOS, System.nanoTime());
+		buffer.putLong(offset + SEQUENCE_NUMBER, sequenceNumber);
+		buffer.put(offset + TYPE, type);
+		buffer.put(offset + DETAIL, (byte) detail);
+		buffer.putInt(offset + SIZE, size);
+		putName(offset + PEER, peer);
+		putName(offset + KIND, kind);
+		int dimension = timeStamp == null ? 0 : timeStamp.size();
+		int stored = Math.min(dimension, MAX_CLOCK);
+		buffer.put(offset + CLOCK_STORED, (byte) stored);
+		buffer.putInt(offset + CLOCK_DIMENSION, dimension);
+		for (int i = 0; i < stored; i++) {
+			buffer.putInt(offset + CLOCK + 4 * i, timeStamp.getValue(i));
+		}
+		buffer.putLong(offset + COMMIT, number + 1);
+	}
+
+	/**
+	 * Record an event of a message.
+	 * 
+	 * @param type
+	 *            SEND or RECEIVE.
+	 * @param peer
+	 *            Name of the remote node.
+	 * @param message
+	 *            The message.
+	 * @param size
+	 *            Size of the frame in bytes.
+	 */
+	public void record(byte type, String peer, Message message, int size) {
+		TimeStamp timeStamp = null;
+		if (message instanceof TimeStampedMessage) {
+			timeStamp = ((TimeStampedMessage) message).getTimeStamp();
+		}
+		record(type, message.isDupe() ? DUPE : 0, peer, message.getKind(),
+				message.getSequenceNumber(), size, timeStamp);
+	}
+
+	/**
+	 * Record a rule that fired.
+	 * 
+	 * @param side
+	 *            RULE_SEND or RULE_RECEIVE.
+	 * @param action
+	 *            Action of the rule.
+	 * @param peer
+	 *            Destination or source of the message.
+	 * @param message
+	 *            The message.
+	 */
+	public void recordRule(int side, String action, String peer,
+			Message message) {
+		int code = 0;
+		while (code < ACTIONS.length && !ACTIONS[code].equals(action)) {
+			code++;
+		}
+		record(RULE, side | code, peer, message.getKind(),
+				message.getSequenceNumber(), 0, null);
+	}
+
+	/**
+	 * @return Number of events recorded so far, including the overwritten
+	 *         ones.
+	 */
+	public long getCount() {
+		return next.get();
+	}
+
+	/**
+	 * Write the file out and unmap it. Events recorded afterwards are lost.
+	 * 
+	 * @param logger
+	 *            Logger of the calling method.
+	 */
+	public void close(LogTool logger) {
+		buffer.force();
+		try {
+			file.close();
+		} catch (IOException ex) {
+			logger.error("failed to close journal - " + ex.getMessage());
+		}
+	}
+
+	private void putName(int offset, String name) {
+		if (name == null) {
+			buffer.put(offset, (byte) 0);
+			return;
+		}
+		byte[] bytes = names.get(name);
+		if (bytes == null) {
+			bytes = name.getBytes(StandardCharsets.UTF_8);
+			if (names.size() < NAME_CACHE_SIZE) {
+				names.putIfAbsent(name, bytes);
+			}
+		}
+		int length = Math.min(bytes.length, MAX_NAME_BYTES);
+		buffer.put(offset, (byte) length);
+		for (int i = 0; i < length; i++) {
+			buffer.put(offset + 1 + i, bytes[i]);
+		}
+	}
+
+	/**
+	 * Read a journal file.
+	 * 
+	 * @param fileName
+	 *            Path of the file.
+	 * @return The contents of the file.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a journal.
+	 */
+	public static Contents read(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			ByteBuffer buffer = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			if (buffer.capacity() < HEADER_SIZE
+					|| buffer.getInt(HEADER_MAGIC) != MAGIC) {
+				throw new IOException(fileName + " is not a journal");
+			}
+			if (buffer.getInt(HEADER_VERSION) != VERSION
+					|| buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+				throw new IOException("unknown journal version "
+						+ buffer.getInt(HEADER_VERSION));
+			}
+			int records = buffer.getInt(HEADER_RECORDS);
+			if (HEADER_SIZE + (long) records * RECORD_SIZE > buffer.capacity()) {
+				throw new IOException(fileName + " is truncated");
+			}
+			Contents contents = new Contents();
+			contents.startNanos = buffer.getLong(HEADER_NANOS);
+			contents.startMillis = buffer.getLong(HEADER_MILLIS);
+			contents.node = getName(buffer, HEADER_NAME);
+			contents.events = new ArrayList<Event>();
+			for (int i = 0; i < records; i++) {
+				int offset = HEADER_SIZE + i * RECORD_SIZE;
+				long commit = buffer.getLong(offset + COMMIT);
+				if (commit == 0 || (commit - 1) % records != i) {
+					continue;
+				}
+				Event event = new Event();
+				event.number = commit - 1;
+				event.nanos = buffer.getLong(offset + NANOS);
+				event.sequenceNumber = buffer.getLong(offset + SEQUENCE_NUMBER);
+				event.type = buffer.get(offset + TYPE);
+				event.detail = buffer.get(offset + DETAIL) & 0xff;
+				event.size = buffer.getInt(offset + SIZE);
+				event.peer = getName(buffer, offset + PEER);
+				event.kind = getName(buffer, offset + KIND);
+				int stored = Math.min(buffer.get(offset + CLOCK_STORED),
+						MAX_CLOCK);
+				event.clockDimension = buffer.getInt(offset + CLOCK_DIMENSION);
+				event.clock = new int[Math.max(stored, 0)];
+				for (int j = 0; j < event.clock.length; j++) {
+					event.clock[j] = buffer.getInt(offset + CLOCK + 4 * j);
+				}
+				contents.events.add(event);
+			}
+			Collections.sort(contents.events, new Comparator<Event>() {
+				public int compare(Event a, Event b) {
+					return Long.compare(a.number, b.number);
+				}
+			});
+			return contents;
+		} finally {
+			file.close();
+		}
+	}
+
+	private static String getName(ByteBuffer buffer, int offset) {
+		int length = buffer.get(offset) & 0xff;
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + 1 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param type
+	 *            Type of an event.
+	 * @return Its name.
+	 */
+	public static String typeName(byte type) {
+		switch (type) {
+		case SEND:
+			return "send";
+		case RECEIVE:
+			return "receive";
+		case RULE:
+			return "rule";
+		case CONNECT:
+			return "connect";
+		case DISCONNECT:
+			return "disconnect";
+		default:
+			return "unknown";
+		}
+	}
+}
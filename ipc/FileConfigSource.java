@@ -0,0 +1,144 @@
+package ipc;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration kept in a local file. Changes are picked up through a
+ * WatchService on the directory of the file, so a reload happens as soon as
+ * the file is written without any polling.
+ * 
+ * To avoid parsing a half-written file, the file should be updated by writing
+ * a new version next to it and renaming it over the old one, e.g. with
+ * HttpConfigSource.install(). Every file written in the directory wakes up
+ * the watching thread, so the file is best kept apart from the logs.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class FileConfigSource implements ConfigSource {
+
+	// wait for this long after an event for more events of the same update
+	private static final long SETTLE_TIME = 50;
+
+	private String fileName;
+	private Path file;
+	private WatchService watchService;
+	private LogTool logger;
+
+	public FileConfigSource(String fileName, LogTool logger) {
+		this.fileName = fileName;
+		this.file = Paths.get(fileName).toAbsolutePath();
+		this.logger = logger;
+		this.watchService = null;
+		try {
+			watchService = file.getFileSystem().newWatchService();
+			file.getParent().register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException ex) {
+			logger.error("failed to watch config file, changes will not be reloaded - "
+					+ ex.getMessage());
+			close();
+		}
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public boolean fetch() {
+		return file.toFile().isFile();
+	}
+
+	public boolean awaitChange(long timeout) throws InterruptedException {
+		if (watchService == null) {
+			Thread.sleep(timeout);
+			return false;
+		}
+		try {
+			if (!awaitEvent(timeout)) {
+				return false;
+			}
+
+			// swallow the rest of the events caused by the same update
+			while (awaitEvent(SETTLE_TIME)) {
+				continue;
+			}
+		} catch (ClosedWatchServiceException ex) {
+			return false;
+		}
+		logger.info("config file " + fileName + " changed");
+		return true;
+	}
+
+	/**
+	 * Wait for an event on the configuration file. Other files in the same
+	 * directory (e.g. logs) also cause events, they are passed over without
+	 * cutting the wait short.
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait in milliseconds.
+	 * @return True if the configuration file changed, false on timeout.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	private boolean awaitEvent(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (true) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			if (pollEvents(TimeUnit.NANOSECONDS.toMillis(remaining) + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Wait for events on the directory of the configuration file.
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait in milliseconds.
+	 * @return True if the configuration file is among the changed entries.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	private boolean pollEvents(long timeout) throws InterruptedException {
+		WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+		if (key == null) {
+			return false;
+		}
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					|| file.getFileName().equals(event.context())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	public void close() {
+		if (watchService == null) {
+			return;
+		}
+		try {
+			watchService.close();
+		} catch (IOException ex) {
+			logger.error("failed to close watch service - " + ex.getMessage());
+		}
+		watchService = null;
+	}
+}
@@ -0,0 +1,62 @@
+package ipc;
+
+/**
+ * What a frame read from a connection carries: a message, an ack of the
+ * messages sent the other way, or both. A frame with neither is a heartbeat.
+ * The first frame on a connection names the node that opened it and its
+ * incarnation, which changes every time the node starts.
+ * 
+ * @author Yinsu Chu
+ * 
+ */
+public class Frame {
+
+	/*
+	 * name and incarnation of the remote node in the first frame, the name is
+	 * null in the others
+	 */
+	private String hello;
+	private long incarnation;
+	private Ack ack;
+	private Message message;
+
+	// time spent decoding the message in nanoseconds
+	private long decodeNanos;
+
+	public Frame(String hello, long incarnation) {
+		this(hello, null, null);
+		this.incarnation = incarnation;
+	}
+
+	public Frame(String hello, Ack ack, Message message) {
+		this.hello = hello;
+		this.incarnation = 0;
+		this.ack = ack;
+		this.message = message;
+		this.decodeNanos = 0;
+	}
+
+	public String getHello() {
+		return hello;
+	}
+
+	public long getIncarnation() {
+		return incarnation;
+	}
+
+	public Ack getAck() {
+		return ack;
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+	public long getDecodeNanos() {
+		return decodeNanos;
+	}
+
+	void setDecodeNanos(long decodeNanos) {
+		this.decodeNanos = decodeNanos;
+	}
+}
@@ -0,0 +1,154 @@
+package ipc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. durations in nanoseconds.
+ * Values below 16 have a bucket each, larger ones fall into one of 16 buckets
+ * per power of two, so a percentile is off by at most 1/16 of its value.
+ * Recording is a few atomic increments and never blocks, so it can be done on
+ * the hot path by any number of threads.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Histogram {
+
+	// bits of a value below its highest one that pick the bucket
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private AtomicLongArray buckets;
+	private LongAdder sum;
+	private AtomicLong max;
+
+	public Histogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Copy constructor used to take a snapshot. Values recorded meanwhile may
+	 * be partly in it.
+	 * 
+	 * @param histogram
+	 *            The histogram to copy.
+	 */
+	private Histogram(Histogram histogram) {
+		this();
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets.set(i, histogram.buckets.get(i));
+		}
+		this.sum.add(histogram.sum.sum());
+		this.max.set(histogram.max.get());
+	}
+
+	/**
+	 * Record a value, negative ones count as 0.
+	 * 
+	 * @param value
+	 *            The value.
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+		buckets.incrementAndGet(indexOf(value));
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public Histogram snapshot() {
+		return new Histogram(this);
+	}
+
+	/**
+	 * @param percentile
+	 *            A percentile from 0 to 100.
+	 * @return The highest value of the bucket holding the percentile, 0 if
+	 *         nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(count * percentile / 100), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(lowestOf(i + 1) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The mean of the values, 0 if nothing has been recorded.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : getSum() / (double) count;
+	}
+
+	@Override
+	public String toString() {
+		Histogram snapshot = snapshot();
+		return "[count] " + snapshot.getCount() + " [mean] "
+				+ String.format("%.1f", snapshot.getMean()) + " [p50] "
+				+ snapshot.getPercentile(50) + " [p99] "
+				+ snapshot.getPercentile(99) + " [p99.9] "
+				+ snapshot.getPercentile(99.9) + " [max] "
+				+ snapshot.getMax();
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) | sub;
+	}
+
+	/**
+	 * @param index
+	 *            Index of a bucket, BUCKETS for the end of the last one.
+	 * @return The lowest value in the bucket.
+	 */
+	private static long lowestOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		if (index >= BUCKETS) {
+			return Long.MAX_VALUE;
+		}
+		int exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long sub = index & (SUB_BUCKETS - 1);
+		return (SUB_BUCKETS | sub) << (exponent - SUB_BUCKET_BITS);
+	}
+}
@@ -0,0 +1,160 @@
+package ipc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Configuration downloaded from a URL (e.g. a shared Dropbox link). The URL is
+ * polled with conditional GET requests so an unchanged file costs a 304
+ * response, and a new version replaces the local copy atomically.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class HttpConfigSource implements ConfigSource {
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 5000;
+
+	private String configurationFileURL;
+	private String fileName;
+	private String ETag;
+	private String lastModified;
+	private LogTool logger;
+
+	// the cached copy was used at startup and has not been refreshed yet
+	private boolean refreshPending;
+
+	public HttpConfigSource(String configurationFileURL, String fileName,
+			LogTool logger) {
+		this.configurationFileURL = configurationFileURL;
+		this.fileName = fileName;
+		this.ETag = null;
+		this.lastModified = null;
+		this.logger = logger;
+		this.refreshPending = false;
+	}
+
+	/**
+	 * Derive the name of the local copy from the last segment of the URL path.
+	 * 
+	 * @param configurationFileURL
+	 *            URL of the configuration file.
+	 * @return Name of the local file.
+	 */
+	public static String localFileName(String configurationFileURL) {
+		String path = configurationFileURL;
+		int query = path.indexOf('?');
+		if (query >= 0) {
+			path = path.substring(0, query);
+		}
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Replace a file with a new version in a single rename, readers see either
+	 * the old or the new file but never a partial one.
+	 * 
+	 * @param newFile
+	 *            The complete new version.
+	 * @param target
+	 *            The file to replace.
+	 * @throws IOException
+	 *             If the file cannot be moved.
+	 */
+	public static void install(Path newFile, Path target) throws IOException {
+		Files.move(newFile, target, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Use the local copy left by a previous run if there is one, it is
+	 * refreshed by the first awaitChange() without waiting for the poll
+	 * interval. Otherwise download the file before returning.
+	 * 
+	 * @see ipc.ConfigSource#fetch()
+	 */
+	public boolean fetch() {
+		if (Files.isRegularFile(Paths.get(fileName))) {
+			logger.info("using cached config file " + fileName
+					+ ", refreshing in background");
+			refreshPending = true;
+			return true;
+		}
+		downloadConfigurationFile();
+		return Files.isRegularFile(Paths.get(fileName));
+	}
+
+	public boolean awaitChange(long timeout) throws InterruptedException {
+		if (refreshPending) {
+			refreshPending = false;
+			return downloadConfigurationFile();
+		}
+		Thread.sleep(timeout);
+		return downloadConfigurationFile();
+	}
+
+	/**
+	 * Detect whether there is a new configuration file and download it.
+	 * 
+	 * @return True on new configuration file detected, false otherwise.
+	 */
+	private boolean downloadConfigurationFile() {
+		HttpURLConnection connection = null;
+		Path target = Paths.get(fileName).toAbsolutePath();
+		Path newFile = target.resolveSibling(target.getFileName() + ".new");
+		try {
+			URL url = new URL(configurationFileURL);
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+
+			// we use ETag and Last-Modified to see whether the file has changed
+			if (ETag != null) {
+				connection.setRequestProperty("If-None-Match", ETag);
+			}
+			if (lastModified != null) {
+				connection.setRequestProperty("If-Modified-Since",
+						lastModified);
+			}
+
+			int responseCode = connection.getResponseCode();
+			if (responseCode == HttpURLConnection.HTTP_OK) {
+				logger.info("new config file detected");
+				InputStream is = connection.getInputStream();
+				try {
+					Files.copy(is, newFile, StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					is.close();
+				}
+				install(newFile, target);
+				ETag = connection.getHeaderField("ETag");
+				lastModified = connection.getHeaderField("Last-Modified");
+				return true;
+			} else if (responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+				logger.error("unexpected HTTP responce code - " + responseCode
+						+ ", failed to download config file");
+			}
+		} catch (Exception ex) {
+			logger.error("failed to download config file - " + ex.getMessage());
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+		return false;
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,43 @@
+package ipc;
+
+import java.io.IOException;
+
+/**
+ * A connection opened by a remote node, accepted by a Transport. It is read
+ * by one receiver worker.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public interface IncomingConnection {
+
+	/**
+	 * Block until the next frame arrives.
+	 * 
+	 * @param stats
+	 *            Where to record decompression, null if not needed.
+	 * @param pool
+	 *            Pool to take bytes messages from, null to allocate them.
+	 * @return The frame.
+	 * @throws IOException
+	 *             If the connection is closed or broken.
+	 * @throws ClassNotFoundException
+	 *             If a message of an unknown class arrives.
+	 */
+	Frame read(CompressionStats stats, MessagePool pool) throws IOException,
+			ClassNotFoundException;
+
+	/**
+	 * @return Where the connection comes from, for the log.
+	 */
+	String getRemoteAddress();
+
+	/**
+	 * Close the connection, a read blocked on it fails.
+	 * 
+	 * @param logger
+	 *            Logger of the calling method.
+	 */
+	void close(LogTool logger);
+}
@@ -0,0 +1,96 @@
+package ipc;
+
+/**
+ * Sequence number statistics of the messages received from one source. The
+ * source numbers the messages of every link from 1 without gaps, so a jump
+ * means messages were lost (or delayed) and a number below the highest one
+ * seen means a message arrived out of order.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class LinkStats {
+	private long received;
+	private long highest;
+
+	// sequence numbers skipped when a higher one arrived
+	private long gaps;
+
+	// messages that arrived after a higher sequence number
+	private long reordered;
+
+	// messages with the same sequence number as the previous one
+	private long duplicates;
+
+	public LinkStats() {
+		this.received = 0;
+		this.highest = 0;
+		this.gaps = 0;
+		this.reordered = 0;
+		this.duplicates = 0;
+	}
+
+	/**
+	 * Copy constructor used to take a consistent snapshot.
+	 * 
+	 * @param stats
+	 *            The statistics to copy.
+	 */
+	private LinkStats(LinkStats stats) {
+		this.received = stats.received;
+		this.highest = stats.highest;
+		this.gaps = stats.gaps;
+		this.reordered = stats.reordered;
+		this.duplicates = stats.duplicates;
+	}
+
+	/**
+	 * Record a received sequence number.
+	 * 
+	 * @param seq
+	 *            The sequence number of the message.
+	 */
+	public synchronized void record(long seq) {
+		received++;
+		if (seq > highest) {
+			gaps += seq - highest - 1;
+			highest = seq;
+		} else if (seq == highest) {
+			duplicates++;
+		} else {
+			reordered++;
+		}
+	}
+
+	public synchronized LinkStats snapshot() {
+		return new LinkStats(this);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "[received] " + received + " [highest] " + highest + " [gaps] "
+				+ gaps + " [reordered] " + reordered + " [duplicates] "
+				+ duplicates;
+	}
+
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	public synchronized long getHighest() {
+		return highest;
+	}
+
+	public synchronized long getGaps() {
+		return gaps;
+	}
+
+	public synchronized long getReordered() {
+		return reordered;
+	}
+
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+}
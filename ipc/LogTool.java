@@ -6,7 +6,8 @@ import java.text.SimpleDateFormat;
 
 /**
  * This class is used by the communication infrastructure internally, logging
- * local events to facilitate debugging.
+ * local events to facilitate debugging. It is shared by the threads of a
+ * node, lines logged after close() are dropped.
  * 
  * @author Jason Xi
  * @author Yinsu Chu
@@ -16,6 +17,7 @@ public class LogTool {
 	private String className;
 	private PrintWriter output;
 	private SimpleDateFormat datetime;
+	private boolean closed;
 
 	public LogTool(String logFileName, String className) {
 		this.className = className;
@@ -27,6 +29,7 @@ public class LogTool {
 			this.output = null;
 		}
 		this.datetime = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss");
+		this.closed = false;
 	}
 
 	private String getLogItem(String message, String type) {
@@ -34,7 +37,10 @@ public class LogTool {
 				+ className + "][" + type + "] " + message;
 	}
 
-	private void logToFile(String message, String type) {
+	private synchronized void logToFile(String message, String type) {
+		if (closed) {
+			return;
+		}
 		String item = getLogItem(message, type);
 		if (output != null) {
 			output.println(item);
@@ -52,4 +58,11 @@ public class LogTool {
 		logToFile(message, "ERROR");
 		System.out.println("error: " + message);
 	}
+
+	public synchronized void close() {
+		closed = true;
+		if (output != null) {
+			output.close();
+		}
+	}
 }
@@ -0,0 +1,223 @@
+package ipc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport between nodes running in the same JVM, e.g. a simulated cluster
+ * in a test or a benchmark. A bound node registers the address of its
+ * contact in a table shared by the JVM, and a connection is a bounded queue
+ * of frames: a message is handed over to the receiver worker as an object,
+ * without encoding and without a system call. The receiver gets a shallow
+ * copy of the message, so the data must not be changed once sent. The
+ * payload of a bytes message is copied.
+ * 
+ * Nothing travels over the wire, so the sizes counted for object messages
+ * are 0 and a bytes message counts its payload.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class MemoryTransport implements Transport {
+
+	// frames a connection holds before the writer blocks
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+
+	// how often a blocked reader or writer checks if the other end closed
+	private static final long CLOSE_CHECK_INTERVAL = 100;
+
+	// bound nodes of the JVM by address
+	private static final ConcurrentHashMap<String, MemoryTransport> BOUND = new ConcurrentHashMap<String, MemoryTransport>();
+
+	private String address;
+	private LinkedBlockingQueue<Pipe> pending;
+	private volatile boolean closed;
+	private LogTool logger;
+
+	/**
+	 * The queue of frames between two nodes and whether either end closed
+	 * it.
+	 */
+	private static class Pipe implements Connection, IncomingConnection {
+		private String localName;
+		private LinkedBlockingQueue<Frame> frames;
+		private volatile boolean closed;
+		private volatile long lastWrite;
+
+		public Pipe(String localName, long incarnation) {
+			this.localName = localName;
+			this.frames = new LinkedBlockingQueue<Frame>(QUEUE_CAPACITY);
+			this.closed = false;
+			this.lastWrite = System.nanoTime();
+			frames.add(new Frame(localName, incarnation));
+		}
+
+		public void writeControl(Ack ack) throws IOException {
+			put(new Frame(null, ack, null));
+		}
+
+		public void writeMessage(Message message, Ack ack, byte[] body)
+				throws IOException {
+			Message copy = null;
+			if (message instanceof BytesMessage) {
+				ByteBuffer payload = ((BytesMessage) message).wireView();
+				ByteBuffer bytes = ByteBuffer.allocate(payload.remaining());
+				bytes.put(payload);
+				bytes.flip();
+				copy = new BytesMessage(message.getDest(), message.getKind(),
+						bytes);
+				copy.setSource(message.getSource());
+				copy.setSequenceNumber(message.getSequenceNumber());
+				copy.setDupe(message.isDupe());
+				copy.setWireSize(bytes.remaining());
+				if (message.getTrace() != null) {
+					copy.setTrace(message.getTrace().copy());
+				}
+			} else {
+				copy = message.copy();
+				copy.setEncoded(null);
+				copy.setWireSize(0);
+			}
+
+			// the members of a group get it as sent to the group
+			if (message.getGroup() != null) {
+				copy.setDest(message.getGroup());
+				copy.setGroup(null);
+			}
+			if (copy.getTrace() != null) {
+				copy.getTrace().stamp(Trace.WRITE);
+			}
+			put(new Frame(null, ack, copy));
+		}
+
+		public void writeFragment(Message message, Ack ack, byte[] body,
+				int offset, int length) throws IOException {
+			throw new IOException("messages are not split in process");
+		}
+
+		private void put(Frame frame) throws IOException {
+			try {
+				while (!frames.offer(frame, CLOSE_CHECK_INTERVAL,
+						TimeUnit.MILLISECONDS)) {
+					if (closed) {
+						break;
+					}
+				}
+			} catch (InterruptedException ex) {
+				throw new IOException("interrupted when writing");
+			}
+			if (closed) {
+				throw new IOException("connection closed");
+			}
+			lastWrite = System.nanoTime();
+		}
+
+		public long getLastWrite() {
+			return lastWrite;
+		}
+
+		/**
+		 * The frames written before the connection was closed are still read.
+		 */
+		public Frame read(CompressionStats stats, MessagePool pool)
+				throws IOException {
+			try {
+				while (true) {
+					Frame frame = frames.poll(CLOSE_CHECK_INTERVAL,
+							TimeUnit.MILLISECONDS);
+					if (frame != null) {
+						Message message = frame.getMessage();
+						if (message != null && message.getTrace() != null) {
+							long now = System.nanoTime();
+							message.getTrace().set(Trace.READ, now);
+							message.getTrace().set(Trace.DECODE, now);
+						}
+						return frame;
+					}
+					if (closed) {
+						throw new EOFException("connection closed");
+					}
+				}
+			} catch (InterruptedException ex) {
+				throw new IOException("interrupted when reading");
+			}
+		}
+
+		public String getRemoteAddress() {
+			return "in-memory connection from " + localName;
+		}
+
+		public void close(LogTool logger) {
+			closed = true;
+		}
+	}
+
+	public MemoryTransport(LogTool logger) {
+		this.address = null;
+		this.pending = new LinkedBlockingQueue<Pipe>();
+		this.closed = false;
+		this.logger = logger;
+	}
+
+	public boolean bind(String IP, int port) {
+		String key = IP + ":" + port;
+		if (BOUND.putIfAbsent(key, this) != null) {
+			logger.error("failed to bind in-memory transport on " + key
+					+ " - address already in use");
+			return false;
+		}
+		address = key;
+		return true;
+	}
+
+	public IncomingConnection accept() throws IOException {
+		try {
+			while (!closed) {
+				Pipe pipe = pending.poll(CLOSE_CHECK_INTERVAL,
+						TimeUnit.MILLISECONDS);
+				if (pipe != null) {
+					return pipe;
+				}
+			}
+		} catch (InterruptedException ex) {
+			throw new IOException("interrupted when accepting");
+		}
+		throw new IOException("transport closed");
+	}
+
+	/**
+	 * The timeout is not needed, a node is either bound in this JVM or not.
+	 */
+	public Connection connect(String IP, int port, int timeout,
+			String localName, long incarnation) throws IOException {
+		MemoryTransport remote = BOUND.get(IP + ":" + port);
+		if (remote == null || remote.closed) {
+			throw new IOException("connection refused by " + IP + ":" + port);
+		}
+		Pipe pipe = new Pipe(localName, incarnation);
+		remote.pending.add(pipe);
+		return pipe;
+	}
+
+	/**
+	 * Nothing is held back, every frame is flushed as it is written.
+	 */
+	public void flush() {
+	}
+
+	public boolean isInProcess() {
+		return true;
+	}
+
+	public void close() {
+		closed = true;
+		if (address != null) {
+			BOUND.remove(address, this);
+		}
+	}
+}
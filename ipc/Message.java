@@ -11,15 +11,27 @@ import java.io.Serializable;
  * @author Yinsu Chu
  * 
  */
-public class Message implements Serializable {
-	private static final long serialVersionUID = -7606425083609686258L;
+public class Message implements Serializable, Cloneable {
+	private static final long serialVersionUID = 2135469013563404386L;
 	private String dest;
 	private String kind;
 	private Object data;
 	private String source;
-	private int sequenceNumber;
+	private long sequenceNumber;
 	private boolean dupe;
 
+	// serialized form, shared by the copies sent to the members of a group
+	private transient byte[] encoded;
+
+	// group the copy of a member was sent to, null if sent to a node
+	private transient String group;
+
+	// size of the frame body a received message came in
+	private transient int wireSize;
+
+	// trace stamps if the message is sampled, null otherwise
+	private transient Trace trace;
+
 	public Message(String dest, String kind, Object data) {
 		this.dest = dest;
 		this.kind = kind;
@@ -65,11 +77,11 @@ public class Message implements Serializable {
 		this.source = source;
 	}
 
-	public int getSequenceNumber() {
+	public long getSequenceNumber() {
 		return sequenceNumber;
 	}
 
-	public void setSequenceNumber(int sequenceNumber) {
+	public void setSequenceNumber(long sequenceNumber) {
 		this.sequenceNumber = sequenceNumber;
 	}
 
@@ -81,4 +93,70 @@ public class Message implements Serializable {
 		this.dupe = dupe;
 	}
 
+	byte[] getEncoded() {
+		return encoded;
+	}
+
+	void setEncoded(byte[] encoded) {
+		this.encoded = encoded;
+	}
+
+	String getGroup() {
+		return group;
+	}
+
+	void setGroup(String group) {
+		this.group = group;
+	}
+
+	int getWireSize() {
+		return wireSize;
+	}
+
+	void setWireSize(int wireSize) {
+		this.wireSize = wireSize;
+	}
+
+	/**
+	 * @return Trace stamps of the message, null if it was not sampled.
+	 */
+	public Trace getTrace() {
+		return trace;
+	}
+
+	void setTrace(Trace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Take a reference to a pooled message, nothing for other messages.
+	 */
+	void retain() {
+	}
+
+	/**
+	 * Drop a reference to a pooled message, nothing for other messages.
+	 */
+	void release() {
+	}
+
+	/**
+	 * Make a shallow copy, the data, the time stamp and the serialized form
+	 * are shared with the original. The copy has trace stamps of its own.
+	 * 
+	 * @return The copy.
+	 */
+	Message copy() {
+		Message copy = null;
+		try {
+			copy = (Message) clone();
+		} catch (CloneNotSupportedException ex) {
+			throw new AssertionError(ex);
+		}
+		if (trace != null) {
+			copy.trace = trace.copy();
+		}
+		return copy;
+	}
+
 }
@@ -1,28 +1,31 @@
 package ipc;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.yaml.snakeyaml.Yaml;
-
 import clock.ClockService;
 import clock.TimeStamp;
 
@@ -35,78 +38,344 @@ import clock.TimeStamp;
  * @author Yinsu Chu
  * 
  */
-public class MessagePasser {
+public class MessagePasser implements AutoCloseable {
+	// also the interval of the health check and of polling a remote config
 	private static final int CONFIG_CHANGE_CHECK_INTERVAL = 10000;
+	private static final long DEFAULT_CLOSE_TIMEOUT = 5000;
+	private static final int CONNECT_TIMEOUT = 2000;
+	private static final int MAX_WARM_UP_THREADS = 16;
+
+	// every node logs into a file of its own, named after it
+	private static final String LOG_FILE_PREFIX = "ipc-";
+	private static final String LOG_FILE_SUFFIX = ".log";
+
+	private static final String PHASE_FETCH = "fetch";
+	private static final String PHASE_PARSE = "parse";
+	private static final String PHASE_BIND = "bind";
+	private static final String PHASE_WARM_UP = "warm-up";
+
+	// put into the buffers on close to wake up the threads blocked on them
+	private static final Message STOP = new Message(null, null, null);
+
+	// suffix of the link name counting the datagrams from or to a node
+	private static final String DATAGRAM_LINK = "/datagram";
+
+	// names of the metrics, see the README for what they count
+	private static final String METRIC_SENT = "sent_messages";
+	private static final String METRIC_SENT_BY_KIND = "sent_messages_by_kind";
+	private static final String METRIC_SENT_BYTES = "sent_bytes";
+	private static final String METRIC_RECEIVED = "received_messages";
+	private static final String METRIC_RECEIVED_BY_KIND = "received_messages_by_kind";
+	private static final String METRIC_RECEIVED_BYTES = "received_bytes";
+	private static final String METRIC_SEND_RULE_ACTIONS = "send_rule_actions";
+	private static final String METRIC_RECEIVE_RULE_ACTIONS = "receive_rule_actions";
+	private static final String METRIC_ENCODE_TIME = "encode_nanos";
+	private static final String METRIC_DECODE_TIME = "decode_nanos";
+	private static final String METRIC_CONNECT_TIME = "connect_nanos";
+	private static final String METRIC_CLOCK_MERGE_TIME = "clock_merge_nanos";
+	private static final String METRIC_TRACE_PREFIX = "trace_";
+	private static final String METRIC_TRACE_TOTAL = "trace_total_nanos";
+	private static final String METRIC_RECORDED = "recorded_messages";
+	private static final String METRIC_REPLAYED = "replayed_messages";
+	private static final String LABEL_PEER = "peer";
+	private static final String LABEL_KIND = "kind";
+	private static final String LABEL_ACTION = "action";
+
+	// a node that refused a connection is not tried again for this long
+	private static final int RECONNECT_INTERVAL = 1000;
+
+	/*
+	 * without reliable delivery, a gap in the messages of a member of an
+	 * ordered group is skipped after this many milliseconds
+	 */
+	private static final int ORDER_GAP_TIMEOUT = 5000;
 
-	private static final String ITEM_CONFIGURATION = "configuration";
-	private static final String ITEM_SEND_RULES = "sendRules";
-	private static final String ITEM_RECEIVE_RULES = "receiveRules";
-	private static final String CLOCK_SERVICE_TYPE = "clockService";
-	private static final String CLOCK_SERVICE_LOGICAL = "logical";
-	private static final String CLOCK_SERVICE_VECTOR = "vector";
-	private static final String CONTACT_NAME = "name";
-	private static final String CONTACT_IP = "ip";
-	private static final String CONTACT_PORT = "port";
-	private static final String RULE_ACTION = "action";
-	private static final String RULE_SRC = "src";
-	private static final String RULE_DST = "dest";
-	private static final String RULE_KIND = "kind";
-	private static final String RULE_SEQ_NUM = "seqNum";
-	private static final String RULE_DUP = "dupe";
-	private static final String ACTION_DROP = "drop";
-	private static final String ACTION_DUPLICATE = "duplicate";
-	private static final String ACTION_DELAY = "delay";
+	// resolution of delays in milliseconds, and slots of the timing wheels
+	private static final int DELAY_TICK = 1;
+	private static final int DELAY_WHEEL_SLOTS = 1024;
 
 	private String configurationFileName;
 	private String localName;
 
+	// where the configuration file comes from and how changes are detected
+	private ConfigSource configSource;
+
+	private String logFileName;
 	private LogTool logger;
 
-	private LinkedBlockingQueue<Message> sendBuffer;
+	private SendQueue sendBuffer;
 	private LinkedBlockingQueue<Message> receiveBuffer;
 
-	// maps from remote node names to sockets
-	private HashMap<String, Socket> socketMap;
+	// maps from remote node names to connections
+	private ConcurrentHashMap<String, Connection> socketMap;
+
+	// connections accepted by the receiver and the threads serving them
+	private Set<IncomingConnection> workerConnections;
+	private List<Thread> workerThreads;
+
+	/*
+	 * maps from remote node names to the last sequence number sent to them,
+	 * every link numbers its messages from 1 so that the destination can
+	 * detect gaps and reordering
+	 */
+	private ConcurrentHashMap<String, AtomicLong> sequenceNumbers;
+
+	// maps from remote node names to statistics of the messages from them
+	private ConcurrentHashMap<String, LinkStats> linkStats;
+
+	/*
+	 * a random number chosen on every start, sent with the local name on
+	 * every connection opened, and the last one of each remote node
+	 */
+	private long incarnation;
+	private ConcurrentHashMap<String, Long> incarnations;
+
+	/*
+	 * remote nodes that restarted, the sender numbers its messages to them
+	 * from 1 again before it sends anything else
+	 */
+	private Set<String> restartedPeers;
+
+	/*
+	 * reliable mode: the source keeps unacknowledged messages for
+	 * retransmission and the destination drops duplicates and sends back acks
+	 */
+	private ReliableDelivery reliability;
+
+	/*
+	 * a connection without any frame for this long gets a heartbeat, 0 turns
+	 * heartbeats off
+	 */
+	private int heartbeatInterval;
+
+	// maps from remote node names to failure detectors fed by their frames
+	private ConcurrentHashMap<String, PhiAccrualDetector> detectors;
+
+	// a node whose phi reaches this level is suspected
+	private double phiThreshold;
 
-	// a global sequence number
-	private int seqNum;
+	/*
+	 * UNKNOWN - nothing heard from the node yet
+	 * ALIVE - frames from the node arrive as expected
+	 * SUSPECTED - the node is late or refused a connection, no new connection
+	 * is opened to it until it is heard from again
+	 */
+	public enum PeerState {
+		UNKNOWN, ALIVE, SUSPECTED
+	}
+
+	// last state of every remote node reported in the log
+	private HashMap<String, PeerState> reportedStates;
+
+	// frames without a message, and acks carried by messages instead
+	private AtomicLong controlFrames;
+	private AtomicLong piggybackedAcks;
 
 	// maps from remote node names to their contact information (IP and port)
-	private HashMap<String, Contact> contactMap;
+	private ConcurrentHashMap<String, Contact> contactMap;
+
+	// maps from group names to member names, replaced on each reload
+	private volatile Map<String, List<String>> groupMap;
+
+	// hold-back queues of the groups delivering in total order
+	private TotalOrder totalOrder;
+
+	/*
+	 * compression settings by message kind and for the other kinds, replaced
+	 * on each reload
+	 */
+	private volatile Map<String, Compression> compressionMap;
+	private volatile Compression defaultCompression;
+	private CompressionStats compressionStats;
+
+	/*
+	 * kinds sent as datagrams, replaced on each reload, and the UDP socket
+	 * they go through, opened at startup if the datagrams part is there
+	 */
+	private volatile Set<String> datagramKinds;
+	private volatile int datagramMtu;
+	private boolean datagramsConfigured;
+	private DatagramEndpoint datagrams;
+
+	// messages larger than this are sent in fragments, 0 to send them whole
+	private volatile int fragmentSize;
+	private AtomicLong fragmentsSent;
+
+	/*
+	 * bytes messages handed out by obtain() and read from the network come
+	 * from this pool, null if pooling is off
+	 */
+	private MessagePool messagePool;
+	private int messageBufferSize;
+
+	// false to leave the message sent and received lines out of the log
+	private volatile boolean logMessages;
+
+	/*
+	 * counters, gauges and latency histograms of the node, exposed over JMX
+	 * and, if a metrics port is configured, over HTTP
+	 */
+	private Metrics metrics;
+	private MetricsBean metricsBean;
+	private volatile MetricsEndpoint metricsEndpoint;
+	private int metricsPort;
+	private LongAdder sentBytes;
+	private LongAdder receivedBytes;
+	private Histogram encodeTime;
+	private Histogram decodeTime;
+	private Histogram connectTime;
+	private Histogram clockMergeTime;
+
+	/*
+	 * share of the messages sent with trace stamps, and the time their stages
+	 * took by stage, see Trace
+	 */
+	private volatile double traceSampleRate;
+	private Histogram[] traceStages;
+	private Histogram traceTotal;
+
+	// binary journal of the events of the node, null if it is off
+	private volatile EventJournal journal;
+	private String journalFile;
+	private long journalSize;
+
+	// recording of the messages sent and delivered, null if it is off
+	private volatile MessageRecording recording;
+	private String recordFile;
+
+	/*
+	 * recording fed to receive() instead of the network, null if the node is
+	 * not replaying; speed 2 replays twice as fast, 0 as fast as possible
+	 */
+	private MessageRecording.Reader replay;
+	private String replayFile;
+	private double replaySpeed;
+	private LongAdder replayed;
+
+	/*
+	 * time stamps are taken and messages put into the send buffer under this
+	 * lock, so that the time stamps sent on a link never decrease
+	 */
+	private ReentrantLock sendLock;
+
+	// acks of ordered groups waiting in the send buffer, under the send lock
+	private OrderAcks orderAcks;
 
 	private ClockService.ClockType type;
-	private int localNodeId;
+	private volatile int localNodeId;
+
+	// clock service of this node, null until ready or without one
+	private volatile ClockService clock;
+
+	// number of entries in the vector clock (the largest node ID plus one)
+	private volatile int clockDimension;
+
+	// node IDs below this one have been handed out and are never reused
+	private int nextNodeId;
 
+	/*
+	 * rules are compiled on each load and replaced as a whole, so the sender
+	 * and receiver threads match messages without taking the lock
+	 */
 	private ReentrantLock rulesLock;
-	private ArrayList<HashMap<String, Object>> sendRules;
-	private ArrayList<HashMap<String, Object>> receiveRules;
+	private volatile Rule[] sendRules;
+	private volatile Rule[] receiveRules;
 
 	private Watcher watcher;
 	private Sender sender;
 	private Receiver receiver;
+	private DelayTimer delayTimer;
 
 	private Thread watcherThread;
 	private Thread senderThread;
 	private Thread receiverThread;
+	private Thread delayTimerThread;
+
+	// TCP unless the configuration says otherwise, set at startup
+	private Transport transport;
+
+	/*
+	 * CONFIGURING - the configuration file is being loaded
+	 * READY - configuration parsed, waiting for initialize() to be called
+	 * RUNNING - sender and receiver threads are working
+	 * STOPPED - configuration failed or the message passer has been stopped
+	 */
+	public enum State {
+		CONFIGURING, READY, RUNNING, STOPPED
+	}
+
+	private volatile State state;
+	private boolean closed;
 
-	private ServerSocket serverSocket;
+	// released once the configuration has been parsed (or failed to)
+	private CountDownLatch readyLatch;
 
+	// released once initialize() is called, sender and receiver wait on it
+	private CountDownLatch runningLatch;
+
+	// true once initialize() is called, even if the node is closed since
 	private volatile boolean initialized;
 
+	// used to measure the time from construction to READY
+	private long startTime;
+	private volatile long timeToReady;
+
+	// per-phase breakdown of the startup
+	private PhaseTimer startupTimer;
+
+	/**
+	 * The rest of a message sent in fragments, put back into the send buffer
+	 * after each fragment. The fragments all go on the connection the first
+	 * one went on.
+	 * 
+	 * @author Jason Xi
+	 * @author Yinsu Chu
+	 * 
+	 */
+	private static class FragmentedMessage extends Message {
+		private static final long serialVersionUID = -5208641306815839122L;
+		private transient Message message;
+		private transient Connection connection;
+		private int length;
+		private int fragmentSize;
+
+		// bytes of the body written so far
+		private int offset;
+
+		public FragmentedMessage(Message message, Connection connection,
+				int length, int fragmentSize) {
+			super(message.getDest(), message.getKind(), message);
+			this.message = message;
+			this.connection = connection;
+			this.length = length;
+			this.fragmentSize = fragmentSize;
+			this.offset = 0;
+		}
+
+		/**
+		 * @return Length of the next fragment.
+		 */
+		private int next() {
+			return Math.min(fragmentSize, length - offset);
+		}
+	}
+
 	/**
-	 * A private class to store remote node information.
+	 * A message whose send delay is over, put back into the send buffer by
+	 * the delay timer. It has been numbered and matched against the send
+	 * rules already, the sender only writes it.
 	 * 
 	 * @author Jason Xi
 	 * @author Yinsu Chu
 	 * 
 	 */
-	private class Contact {
-		private String IP;
-		private int port;
+	private static class DelayedMessage extends Message {
+		private static final long serialVersionUID = 3868316457205237711L;
+		private transient Message message;
 
-		public Contact(String IP, int port) {
-			this.IP = IP;
-			this.port = port;
+		public DelayedMessage(Message message) {
+			super(message.getDest(), message.getKind(), message);
+			this.message = message;
 		}
 	}
 
@@ -119,34 +388,30 @@ public class MessagePasser {
 	 * 
 	 */
 	private class Watcher implements Runnable {
-		private volatile boolean configurationParsed;
-		private String ETag;
-		private String configurationFileURL;
-		private String configurationFileNameNew;
-		private HttpURLConnection connection;
-
-		public Watcher() {
-			this.configurationParsed = false;
-			this.ETag = "initial";
-			this.configurationFileURL = "https://dl.dropboxusercontent.com/s/cxk7aexjpnq2aor/"
-					+ configurationFileName + "?dl=1";
-			this.configurationFileNameNew = configurationFileName + ".new";
-			this.connection = null;
-			downloadConfigurationFile();
-			yamlExtraction(configurationFileNameNew, true);
-		}
 
 		public void run() {
 			logger.info("watcher thread started");
-			while (true) {
+			loadConfiguration();
+			if (state != State.STOPPED && replay == null) {
+				warmUpConnections(contactMap.keySet());
+				logger.info("startup: " + startupTimer);
+			}
+			while (state != State.STOPPED) {
 				try {
-					Thread.sleep(CONFIG_CHANGE_CHECK_INTERVAL);
+					if (configSource.awaitChange(CONFIG_CHANGE_CHECK_INTERVAL)) {
+						updateRules();
+					}
 				} catch (InterruptedException ex) {
+					if (state == State.STOPPED) {
+						break;
+					}
 					logger.error("interrupted when waiting to check config change - "
 							+ ex.getMessage());
 				}
-				if (downloadConfigurationFile()) {
-					updateRules();
+
+				// the other threads stop on their own once closed
+				if (state == State.STOPPED) {
+					break;
 				}
 				if (!senderThread.isAlive()) {
 					logger.error("health check: sender thread died");
@@ -154,450 +419,1993 @@ public class MessagePasser {
 				if (!receiverThread.isAlive()) {
 					logger.error("health check: receiver thread died");
 				}
+				if (replay == null) {
+					checkPeers();
+				}
 			}
+			logger.info("watcher thread stopped");
 		}
 
 		/**
-		 * Detect whether there is a new configuration file and download it.
-		 * 
-		 * @return True on new configuration file detected, false otherwise.
+		 * Report the remote nodes whose state changed, and try to connect to
+		 * the suspected ones from here so that the sender never blocks on
+		 * them.
 		 */
-		private boolean downloadConfigurationFile() {
-			BufferedInputStream bis = null;
-			BufferedOutputStream bos = null;
-			boolean configChanged = false;
-			try {
-				URL url = new URL(configurationFileURL);
-				connection = (HttpURLConnection) url.openConnection();
-
-				// we use ETag to see whether the configuration file has changed
-				connection.setRequestProperty("If-None-Match", ETag);
-
-				int responseCode = connection.getResponseCode();
-				if (responseCode == HttpURLConnection.HTTP_OK) {
-					String display = "new config file detected";
-					System.out.println(display);
-					logger.info(display);
-					InputStream is = connection.getInputStream();
-					bis = new BufferedInputStream(is);
-					FileOutputStream fos = new FileOutputStream(
-							configurationFileNameNew);
-					bos = new BufferedOutputStream(fos);
-					int input = 0;
-					while ((input = bis.read()) != -1) {
-						bos.write(input);
-					}
-					bos.flush();
-					ETag = connection.getHeaderField("ETag");
-					configChanged = true;
-				} else if (responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
-					logger.error("unexpected HTTP responce code - "
-							+ responseCode + ", failed to download config file");
-				}
-			} catch (Exception ex) {
-				logger.error("failed to download config file - "
-						+ ex.getMessage());
-			} finally {
-				if (bos != null) {
-					try {
-						bos.close();
-					} catch (IOException ex) {
-						logger.error("failed to close input - "
-								+ ex.getMessage());
-					}
-				}
-				if (bis != null) {
-					try {
-						bis.close();
-					} catch (IOException ex) {
-						logger.error("failed to close output - "
-								+ ex.getMessage());
-					}
+		private void checkPeers() {
+			ArrayList<String> suspected = new ArrayList<String>();
+			for (Map.Entry<String, PeerState> entry : getPeerStates()
+					.entrySet()) {
+				String name = entry.getKey();
+				PeerState peerState = entry.getValue();
+				if (peerState != reportedStates.put(name, peerState)) {
+					logger.info("health check: " + name + " is "
+							+ peerState.toString().toLowerCase() + " (phi "
+							+ String.format("%.1f", getPhi(name)) + ")");
 				}
-				if (connection != null) {
-					connection.disconnect();
-					connection = null;
+				if (peerState == PeerState.SUSPECTED
+						&& !socketMap.containsKey(name)) {
+					suspected.add(name);
 				}
 			}
-			return configChanged;
+			reportedStates.keySet().retainAll(contactMap.keySet());
+			if (!suspected.isEmpty()) {
+				warmUpConnections(suspected);
+			}
 		}
 
 		/**
-		 * Delete the old configuration file and use the new one.
+		 * Load the configuration for the first time. A cached copy is used if
+		 * the source has one, the source refreshes it in the background.
 		 */
-		private void updateRules() {
-			logger.info("deleting old config file");
-			File oldConfigFile = new File(configurationFileName);
-			if (!oldConfigFile.delete()) {
-				logger.error("failed to delete old config file");
+		private void loadConfiguration() {
+			startupTimer.begin(PHASE_FETCH);
+			if (!configSource.fetch()) {
+				logger.error("config file " + configurationFileName
+						+ " is not available");
 			}
-			logger.info("renaming new config file");
-			File newConfigFile = new File(configurationFileNameNew);
-			if (!newConfigFile.renameTo(oldConfigFile)) {
-				logger.error("failed to rename config file");
+			startupTimer.end(PHASE_FETCH);
+			startupTimer.begin(PHASE_PARSE);
+			boolean parsed = yamlExtraction(configurationFileName, true);
+			startupTimer.end(PHASE_PARSE);
+
+			/*
+			 * Under the close lock, so that a node closed meanwhile neither
+			 * binds nor becomes ready, and close() waits for a node becoming
+			 * ready to have everything it has to close.
+			 */
+			synchronized (MessagePasser.this) {
+				if (closed) {
+					return;
+				}
+				if (parsed && contactMap.containsKey(localName)
+						&& (replayFile == null ? bind() : openReplay())) {
+					startMetricsEndpoint();
+					openJournal();
+					openRecording();
+					markReady();
+				} else {
+					markFailed();
+				}
 			}
-			yamlExtraction(configurationFileName, false);
 		}
 
 		/**
-		 * Load information from YAML configuration file.
+		 * Open the recording to replay instead of binding the server socket,
+		 * a node replaying a recording does not use the network.
 		 * 
-		 * @param configurationFile
-		 *            The name of the configuration file.
-		 * @param loadContacts
-		 *            True on loading remote node information, false otherwise.
-		 */
-		@SuppressWarnings("unchecked")
-		private void yamlExtraction(String configurationFile,
-				boolean loadContacts) {
-			Yaml yaml = new Yaml();
-			InputStream is = null;
+		 * @return True on success, false otherwise.
+		 */
+		private boolean openReplay() {
 			try {
-				is = new FileInputStream(configurationFile);
+				replay = MessageRecording.open(replayFile);
 			} catch (IOException ex) {
-				logger.error("failed to open config file - " + ex.getMessage());
+				logger.error("cannot open recording " + replayFile + " - "
+						+ ex.getMessage());
+				return false;
+			}
+			if (!replay.getNode().equals(localName)) {
+				logger.info("replaying the recording of " + replay.getNode()
+						+ " as " + localName);
 			}
-			HashMap<String, ArrayList<HashMap<String, Object>>> yamlMap = (HashMap<String, ArrayList<HashMap<String, Object>>>) (yaml
-					.load(is));
+			return true;
+		}
 
-			/*
-			 * send and receive rules might be used by sender and receiver
-			 * threads so we need a lock to protect them
-			 */
-			rulesLock.lock();
+		/**
+		 * Bind the server socket before the node is ready, so that remote
+		 * nodes can connect as soon as the application learns it is ready.
+		 * 
+		 * @return True on success, false otherwise.
+		 */
+		private boolean bind() {
+			startupTimer.begin(PHASE_BIND);
+			Contact self = contactMap.get(localName);
 
-			for (Map.Entry<String, ArrayList<HashMap<String, Object>>> entry : yamlMap
-					.entrySet()) {
-				if (entry.getKey().equals(ITEM_CONFIGURATION) && loadContacts) {
-					localConfiguration(entry.getValue());
-				} else if (entry.getKey().equals(ITEM_SEND_RULES)) {
-					sendRules = entry.getValue();
-				} else if (entry.getKey().equals(ITEM_RECEIVE_RULES)) {
-					receiveRules = entry.getValue();
-				}
+			// failure on binding is a fatal error
+			if (!transport.bind(self.getIP(), self.getPort())) {
+				logger.error("cannot create server socket on " + self.getIP() + ":"
+						+ self.getPort());
+				return false;
 			}
-			rulesLock.unlock();
-			try {
-				is.close();
-			} catch (IOException ex) {
-				logger.error("failed to close config file - " + ex.getMessage());
+
+			// without the socket the datagram kinds go through the transport
+			if (datagramsConfigured && transport instanceof TlsTransport) {
+				logger.error("datagrams part ignored, the tls transport"
+						+ " sends every kind encrypted");
+			} else if (datagramsConfigured && !transport.isInProcess()) {
+				datagrams = DatagramEndpoint.open(self.getIP(), self.getPort(),
+						datagramMtu, logger);
 			}
+			startupTimer.end(PHASE_BIND);
+			return true;
 		}
 
 		/**
-		 * Load the configuration part of the YAML file, will be called only
-		 * once upon starting.
-		 * 
-		 * @param configRules
-		 *            The configuration part parsed from the YAML file.
+		 * Serve the metrics over HTTP if a port is configured. The node works
+		 * without it, so a failure is only logged.
 		 */
-		private void localConfiguration(
-				ArrayList<HashMap<String, Object>> configRules) {
-			for (HashMap<String, Object> map : configRules) {
-				if (map.containsKey(CLOCK_SERVICE_TYPE)) {
-					String service = (String) map.get(CLOCK_SERVICE_TYPE);
-					if (service.equals(CLOCK_SERVICE_LOGICAL)) {
-						type = ClockService.ClockType.LOGICAL;
-						logger.info("clock service: logical");
-					} else if (service.equals(CLOCK_SERVICE_VECTOR)) {
-						type = ClockService.ClockType.VECTOR;
-						logger.info("clock service: vector");
-					} else {
-						logger.error("invalid clock service type");
-					}
-				} else {
-					String name = (String) map.get(CONTACT_NAME);
-					String IP = (String) map.get(CONTACT_IP);
-					Integer port = (Integer) map.get(CONTACT_PORT);
-					Contact contact = new Contact(IP, (int) port);
-					contactMap.put(name, contact);
-				}
-			}
-			if (!contactMap.containsKey(localName)) {
-				logger.error("local name " + localName
-						+ " does not exist in the config file");
-				configurationParsed = true;
+		private void startMetricsEndpoint() {
+			if (metricsPort < 0) {
 				return;
 			}
-			PriorityQueue<String> heap = new PriorityQueue<String>();
-			for (String s : contactMap.keySet()) {
-				heap.add(s);
-			}
-			while (!heap.isEmpty()) {
-				String name = heap.poll();
-				if (name.equals(localName)) {
-					break;
-				} else {
-					localNodeId++;
-				}
+			metricsEndpoint = MetricsEndpoint.start(metrics, metricsPort,
+					logger);
+			if (metricsEndpoint != null) {
+				logger.info("metrics served at http://127.0.0.1:"
+						+ metricsEndpoint.getPort() + "/metrics");
 			}
-			configurationParsed = true;
-			logger.info("local node ID: " + localNodeId);
-			logger.info("total number of nodes: " + contactMap.size());
 		}
-	}
-
-	/**
-	 * This thread keeps taking messages from the send buffer and send them.
-	 * 
-	 * @author Jason Xi
-	 * @author Yinsu Chu
-	 * 
-	 */
-	private class Sender implements Runnable {
-		private LinkedBlockingQueue<Message> delayBuffer;
 
-		public Sender() {
-			this.delayBuffer = new LinkedBlockingQueue<Message>();
+		/**
+		 * Start recording the messages if a file is configured. The node
+		 * works without it, so a failure is only logged.
+		 */
+		private void openRecording() {
+			if (recordFile == null) {
+				return;
+			}
+			recording = MessageRecording.create(recordFile, localName, logger);
+			if (recording != null) {
+				logger.info("recording messages into " + recordFile);
+			}
 		}
 
-		public void run() {
-			while (!initialized) {
-				continue;
-			}
-			logger.info("sender thread started");
-			if (!contactMap.containsKey(localName)) {
+		/**
+		 * Open the event journal if a file is configured. The node works
+		 * without it, so a failure is only logged.
+		 */
+		private void openJournal() {
+			if (journalFile == null) {
 				return;
 			}
-			while (true) {
-				try {
-					Message message = sendBuffer.take();
-					Socket clientSocket = null;
-					String dest = message.getDest();
-
-					// cannot send if receiver does not exist
-					if (!contactMap.containsKey(dest)) {
-						logger.error("process with name " + dest
-								+ " dose not exist");
-						continue;
-					}
-
-					// if the socket does not exist, create one before sending
-					if (!socketMap.containsKey(dest)) {
-						Contact contact = contactMap.get(dest);
-						clientSocket = NetTool.createSocket(contact.IP,
-								contact.port, logger);
-						if (clientSocket == null) {
-							logger.error("problem in creating socket when sending message");
-							continue;
-						}
-						socketMap.put(dest, clientSocket);
-					} else {
-						clientSocket = socketMap.get(dest);
-					}
-
-					message.setSource(localName);
-					message.setSequenceNumber(seqNum++);
-					message.setDupe(false);
-
-					// match rules before sending
-					String action = checkRules(message, sendRules);
-					if (action == null) {
-						if (!sendMessage(clientSocket, message)) {
-							logger.error("failed to send message - "
-									+ message.toString());
-							socketMap.remove(dest);
-						} else {
-							logger.info("message sent - " + message.toString());
-						}
-						clearDelayBuffer(clientSocket);
-					} else if (action.equals(ACTION_DROP)) {
-						logger.info("match drop rule when sending, message "
-								+ message.toString() + "dropped");
-						continue;
-					} else if (action.equals(ACTION_DELAY)) {
-						logger.info("match delay rule when sending, message "
-								+ message.toString() + "delayed");
-						delayBuffer.put(message);
-					} else if (action.equals(ACTION_DUPLICATE)) {
-						logger.info("match duplicate rule when sending, message "
-								+ message.toString() + "duped");
-						Message dup = new TimeStampedMessage(null, null, null);
-						dup.setDest(dest);
-						dup.setKind(message.getKind());
-						dup.setData(message.getData());
-						dup.setSource(message.getSource());
-						dup.setSequenceNumber(message.getSequenceNumber());
-						dup.setDupe(true);
-						if (!sendMessage(clientSocket, message)) {
-							logger.error("failed to send message - "
-									+ message.toString());
-							socketMap.remove(dest);
-						} else {
-							logger.info("message sent - " + message.toString());
-						}
-						if (!sendMessage(clientSocket, dup)) {
-							logger.error("failed to send message - "
-									+ message.toString());
-							socketMap.remove(dest);
-						} else {
-							logger.info("message sent - " + message.toString());
-						}
-						clearDelayBuffer(clientSocket);
-					}
-				} catch (InterruptedException ex) {
-					logger.error("interrupted when sending message: "
-							+ ex.getMessage());
-				}
+			journal = EventJournal.open(journalFile, journalSize, localName,
+					logger);
+			if (journal != null) {
+				logger.info("event journal: " + journalFile + " ("
+						+ journalSize + " bytes)");
 			}
 		}
 
 		/**
-		 * Upon each sending, clear delay buffer.
+		 * Connect to remote nodes in parallel so that the first message to
+		 * each of them does not pay for the connection. Nodes that are not up
+		 * yet are connected lazily on the first send as before.
+		 * Connections within the JVM cost nothing to open and are left to the
+		 * first send.
 		 * 
-		 * @param clientSocket
-		 *            The socket to the remote side.
+		 * @param names
+		 *            Names of the nodes to connect to.
 		 */
-		private void clearDelayBuffer(Socket clientSocket) {
-			while (!delayBuffer.isEmpty()) {
-				try {
-					Message message = delayBuffer.take();
-					if (!sendMessage(clientSocket, message)) {
-						logger.error("failed to send message - "
-								+ message.toString());
-						socketMap.remove(message.getDest());
-					} else {
-						logger.info("message sent - " + message.toString());
+		private void warmUpConnections(Collection<String> names) {
+			if (transport.isInProcess()) {
+				return;
+			}
+			ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+			for (final String name : names) {
+				final Contact contact = contactMap.get(name);
+				if (name.equals(localName) || contact == null) {
+					continue;
+				}
+				tasks.add(new Callable<Boolean>() {
+					public Boolean call() {
+						return warmUpConnection(name, contact);
+					}
+				});
+			}
+			if (tasks.isEmpty()) {
+				return;
+			}
+			startupTimer.begin(PHASE_WARM_UP);
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+					tasks.size(), MAX_WARM_UP_THREADS));
+			int connected = 0;
+			try {
+				for (Future<Boolean> result : pool.invokeAll(tasks)) {
+					if (result.get()) {
+						connected++;
 					}
-				} catch (InterruptedException e) {
-					logger.error("interrutped when clearing delay buffer: "
-							+ e.getMessage());
 				}
+			} catch (InterruptedException ex) {
+				logger.info("connection warm-up interrupted");
+			} catch (ExecutionException ex) {
+				logger.error("connection warm-up failed - " + ex.getMessage());
+			} finally {
+				pool.shutdownNow();
 			}
+			startupTimer.end(PHASE_WARM_UP);
+			logger.info("warmed up connections to " + connected + " of "
+					+ tasks.size() + " remote nodes");
 		}
 
 		/**
-		 * Send a message from the given socket.
+		 * Open the socket to a remote node unless the sender already has one.
 		 * 
-		 * @param socket
-		 *            The socket to send the message.
-		 * @param message
-		 *            The message to send.
-		 * @return True on success, false otherwise.
+		 * @param name
+		 *            Name of the remote node.
+		 * @param contact
+		 *            Contact information of the remote node.
+		 * @return True if a socket to the node is available.
 		 */
-		private boolean sendMessage(Socket socket, Message message) {
-			OutputStream output = null;
-			ObjectOutputStream objectOutput = null;
-			try {
-				output = socket.getOutputStream();
-			} catch (Exception ex) {
-				logger.error("failed to get output stream - " + ex.getMessage());
-				return false;
+		private boolean warmUpConnection(String name, Contact contact) {
+			if (socketMap.containsKey(name)) {
+				return true;
 			}
+			Connection connection = null;
+			long start = System.nanoTime();
 			try {
-				objectOutput = new ObjectOutputStream(output);
-			} catch (Exception ex) {
-				logger.error("failed to create object output stream - "
-						+ ex.getMessage());
-				if (objectOutput != null) {
-					try {
-						objectOutput.close();
-					} catch (Exception nestedEx) {
-						logger.error("failed to close object output stream - "
-								+ nestedEx);
-					}
+				connection = transport.connect(contact.getIP(), contact.getPort(),
+						CONNECT_TIMEOUT, localName, incarnation);
+				connectTime.record(System.nanoTime() - start);
+				if (journal != null) {
+					journal.record(EventJournal.CONNECT, 0, name, null, 0, 0,
+							null);
 				}
+			} catch (IOException ex) {
+				logger.info("warm-up: " + name + " not reachable yet - "
+						+ ex.getMessage());
 				return false;
 			}
-			try {
-				objectOutput.writeObject(message);
-			} catch (Exception ex) {
-				logger.error("failed to send message - " + ex.getMessage());
-				if (objectOutput != null) {
-					try {
-						objectOutput.close();
-					} catch (Exception nestedEx) {
-						logger.error("failed to close object output stream - "
-								+ nestedEx);
-					}
-				}
-				return false;
+			if (state == State.STOPPED
+					|| socketMap.putIfAbsent(name, connection) != null) {
+				connection.close(logger);
 			}
 			return true;
 		}
-	}
-
-	/**
-	 * This thread listens on the local server socket and spanws a worker thread
-	 * if a remote node tries to send messages.
-	 * 
-	 * @author Jason Xi
-	 * @author Yinsu Chu
-	 * 
-	 */
-	private class Receiver implements Runnable {
-		private ReentrantLock delayBufferLock;
-		private LinkedBlockingQueue<Message> delayBuffer;
 
-		public Receiver() {
-			this.delayBufferLock = new ReentrantLock();
-			this.delayBuffer = new LinkedBlockingQueue<Message>();
+		/**
+		 * Reload the rules from the updated configuration file.
+		 */
+		private void updateRules() {
+			if (!yamlExtraction(configurationFileName, false)) {
+				logger.error("failed to reload config file, keeping the old rules");
+			}
 		}
 
 		/**
-		 * This thread is created if a remote host tries to send messages to the
-		 * local node. Once created, it will continue to run to receive any
-		 * future messages.
-		 * 
-		 * @author Jason Xi
-		 * @author Yinsu Chu
+		 * Load the configuration file and apply it. The whole file is read
+		 * and checked first, a file with any error is rejected and the node
+		 * keeps its previous configuration.
+		 * 
+		 * @param configurationFile
+		 *            The name of the configuration file.
+		 * @param startup
+		 *            True on the first load upon starting, false on reload.
+		 * @return True on success, false otherwise.
+		 */
+		private boolean yamlExtraction(String configurationFile,
+				boolean startup) {
+			Configuration config = Configuration.load(configurationFile,
+					localName, logger);
+			if (config == null) {
+				return false;
+			}
+			if (startup && !startupConfiguration(config)) {
+				return false;
+			}
+			HashMap<String, Contact> contacts = config.getContacts();
+			assignNodeIds(contacts);
+			if (!startup && contacts.get(localName).getId() != localNodeId) {
+				logger.error("local node ID cannot change from " + localNodeId
+						+ " to " + contacts.get(localName).getId()
+						+ " without a restart");
+				return false;
+			}
+
+			/*
+			 * send and receive rules might be used by sender and receiver
+			 * threads so we need a lock to protect them
+			 */
+			ArrayList<String> added = null;
+			rulesLock.lock();
+			try {
+				if (config.getTraceSampleRate() != null) {
+					traceSampleRate = config.getTraceSampleRate();
+					logger.info("trace sample rate: " + traceSampleRate);
+				}
+				if (config.getLogMessages() != null) {
+					logMessages = config.getLogMessages();
+				}
+				added = membershipConfiguration(contacts, startup);
+				Rule.carryOver(sendRules, config.getSendRules());
+				Rule.carryOver(receiveRules, config.getReceiveRules());
+				sendRules = config.getSendRules();
+				receiveRules = config.getReceiveRules();
+
+				// groups refer to nodes, so they are set after the membership
+				groupConfiguration(config);
+				compressionConfiguration(config);
+				datagramConfiguration(config, startup);
+
+				// whether the node is in an ordered group is known by now
+				priorityConfiguration(config);
+			} finally {
+				rulesLock.unlock();
+			}
+
+			// connect to new nodes outside the lock, the rules are in use
+			if (!startup && !added.isEmpty()) {
+				warmUpConnections(added);
+			}
+			return true;
+		}
+
+		/**
+		 * Apply the settings that are only read upon starting: the clock
+		 * service type, reliable delivery, the failure detector, the journal,
+		 * the recording, the metrics port, the message pool and the
+		 * transport.
+		 * 
+		 * @param config
+		 *            The configuration loaded upon starting.
+		 * @return False if the transport cannot be set up.
+		 */
+		private boolean startupConfiguration(Configuration config) {
+			type = config.getClockType();
+			if (type != ClockService.ClockType.DEFAULT) {
+				logger.info("clock service: " + type.toString().toLowerCase());
+			}
+			reliability.configure(config.isReliable(),
+					config.getRetransmitTimeout(),
+					config.getRetransmitBufferSize());
+			logger.info("reliable delivery: " + reliability.isEnabled());
+			heartbeatInterval = config.getHeartbeatInterval();
+			phiThreshold = config.getPhiThreshold();
+			logger.info("heartbeat interval: " + heartbeatInterval
+					+ " ms, phi threshold: " + phiThreshold);
+			journalFile = config.getJournalFile();
+			journalSize = config.getJournalSize();
+			recordFile = config.getRecordFile();
+			replayFile = config.getReplayFile();
+			replaySpeed = config.getReplaySpeed();
+			metricsPort = config.getMetricsPort();
+			messageBufferSize = config.getMessageBufferSize();
+			if (config.getMessagePoolSize() > 0) {
+				messagePool = new MessagePool(config.getMessagePoolSize(),
+						messageBufferSize);
+				logger.info("message pool: " + config.getMessagePoolSize()
+						+ " messages of " + messageBufferSize + " bytes");
+			}
+			return transportConfiguration(config);
+		}
+
+		/**
+		 * Set up the transport, TCP going through shared memory to nodes on
+		 * the same host unless the configuration turns that off.
+		 * 
+		 * @param config
+		 *            The configuration loaded upon starting.
+		 * @return False if the transport cannot be set up.
+		 */
+		private boolean transportConfiguration(Configuration config) {
+			String name = config.getTransport();
+			if (Configuration.TRANSPORT_TCP.equals(name)) {
+				transport = new TcpTransport(logger, config.isSharedMemory());
+				logger.info("shared memory to local nodes: "
+						+ config.isSharedMemory());
+			} else if (Configuration.TRANSPORT_TLS.equals(name)) {
+				TlsTransport tls = TlsTransport.create(config.getKeyStore(),
+						config.getKeyStorePassword(), config.getTrustStore(),
+						config.getTrustStorePassword(), logger);
+				if (tls == null) {
+					return false;
+				}
+				transport = tls;
+				logger.info("key store: " + config.getKeyStore()
+						+ ", trust store: " + config.getTrustStore());
+			} else {
+				transport = new MemoryTransport(logger);
+			}
+			logger.info("transport: " + name);
+			return true;
+		}
+
+		/**
+		 * Apply the nodes of the configuration: upon starting they are just
+		 * taken, later nodes added, removed or moved take effect without a
+		 * restart.
+		 * 
+		 * @param contacts
+		 *            The nodes of the configuration with their IDs assigned.
+		 * @param startup
+		 *            True on the first load upon starting.
+		 * @return Names of the nodes added.
+		 */
+		private ArrayList<String> membershipConfiguration(
+				HashMap<String, Contact> contacts, boolean startup) {
+
+			// drop connections to nodes that left or moved
+			for (Map.Entry<String, Contact> entry : contactMap.entrySet()) {
+				String name = entry.getKey();
+				Contact old = entry.getValue();
+				Contact contact = contacts.get(name);
+				if (contact == null) {
+					contactMap.remove(name);
+					closeSocket(name);
+					reliability.forget(name);
+					sequenceNumbers.remove(name);
+					sequenceNumbers.remove(name + DATAGRAM_LINK);
+					linkStats.remove(name);
+					linkStats.remove(name + DATAGRAM_LINK);
+					totalOrder.forget(name);
+					incarnations.remove(name);
+					restartedPeers.remove(name);
+					detectors.remove(name);
+					metrics.forget(LABEL_PEER, name);
+					logger.info("node " + name + " left");
+				} else if (!contact.getIP().equals(old.getIP())
+						|| contact.getPort() != old.getPort()) {
+					closeSocket(name);
+					logger.info("node " + name + " moved to "
+							+ contact.getIP() + ":" + contact.getPort());
+				}
+			}
+			ArrayList<String> added = new ArrayList<String>();
+			int dimension = 0;
+			for (Map.Entry<String, Contact> entry : contacts.entrySet()) {
+				if (contactMap.put(entry.getKey(), entry.getValue()) == null
+						&& !entry.getKey().equals(localName)) {
+					added.add(entry.getKey());
+				}
+				dimension = Math.max(dimension, entry.getValue().getId() + 1);
+			}
+
+			localNodeId = contacts.get(localName).getId();
+			if (dimension != clockDimension) {
+				clockDimension = dimension;
+				if (!startup && type == ClockService.ClockType.VECTOR
+						&& clock != null) {
+					clock.resize(dimension);
+					logger.info("vector clock resized to " + dimension);
+				}
+			}
+			if (startup) {
+				logger.info("local node ID: " + localNodeId);
+				logger.info("total number of nodes: " + contactMap.size());
+			} else if (!added.isEmpty()) {
+				logger.info("nodes joined: " + added);
+			}
+			return added;
+		}
+
+		/**
+		 * Apply the groups of the configuration. Groups marked as ordered
+		 * need the logical clock service.
+		 * 
+		 * @param config
+		 *            The configuration being applied.
+		 */
+		private void groupConfiguration(Configuration config) {
+			HashMap<String, List<String>> ordered = new HashMap<String, List<String>>();
+			for (String name : config.getOrderedGroups()) {
+				if (type != ClockService.ClockType.LOGICAL) {
+					logger.error("group " + name
+							+ " needs the logical clock service to be ordered");
+				} else {
+					ordered.put(name, config.getGroups().get(name));
+				}
+			}
+			HashMap<String, Integer> ids = new HashMap<String, Integer>();
+			for (Map.Entry<String, Contact> entry : contactMap.entrySet()) {
+				ids.put(entry.getKey(), entry.getValue().getId());
+			}
+			HashMap<String, Long> received = new HashMap<String, Long>();
+			for (Map.Entry<String, LinkStats> entry : linkStats.entrySet()) {
+				received.put(entry.getKey(), entry.getValue().getHighest());
+			}
+			totalOrder.configure(ordered, ids, received,
+					reliability.isEnabled() ? 0
+					: ORDER_GAP_TIMEOUT);
+			groupMap = config.getGroups();
+		}
+
+		/**
+		 * Apply the compression settings of the configuration.
+		 * 
+		 * @param config
+		 *            The configuration being applied.
+		 */
+		private void compressionConfiguration(Configuration config) {
+			compressionMap = config.getCompressions();
+			defaultCompression = config.getDefaultCompression();
+		}
+
+		/**
+		 * Apply the datagram settings of the configuration. The UDP socket is
+		 * opened only if the datagrams part is there at startup, later the
+		 * kinds and the MTU can change.
+		 * 
+		 * @param config
+		 *            The configuration being applied.
+		 * @param startup
+		 *            True on the first load upon starting.
+		 */
+		private void datagramConfiguration(Configuration config,
+				boolean startup) {
+			if (startup) {
+				datagramsConfigured = config.isDatagramsConfigured();
+			} else if (config.isDatagramsConfigured() && !datagramsConfigured) {
+				logger.error("datagrams need a restart, kinds sent as before");
+				return;
+			}
+			Set<String> kinds = config.getDatagramKinds();
+			int mtu = config.getDatagramMtu();
+			if (!kinds.isEmpty()) {
+				logger.info("datagram kinds: " + kinds + " [mtu] " + mtu);
+			}
+			datagramKinds = kinds;
+			datagramMtu = mtu;
+			DatagramEndpoint endpoint = datagrams;
+			if (endpoint != null) {
+				endpoint.setMtu(mtu);
+			}
+		}
+
+		/**
+		 * Apply the priority classes of the configuration, the size of the
+		 * fragments and the send buffer of new TCP connections. A missing
+		 * priorities part makes the send buffer FIFO, sends messages whole
+		 * and leaves the TCP connections as they are. A member of an ordered
+		 * group keeps the send buffer FIFO, as a message overtaking an
+		 * earlier one would let the other members deliver out of order.
+		 * 
+		 * @param config
+		 *            The configuration being applied.
+		 */
+		private void priorityConfiguration(Configuration config) {
+			LinkedHashMap<String, Integer> weights = config
+					.getPriorityWeights();
+			HashMap<String, String> classes = config.getPriorityClasses();
+			if (!weights.isEmpty() && totalOrder.isTracked(localName)) {
+				logger.error("priority classes ignored, a member of an ordered"
+						+ " group sends in order");
+				weights = new LinkedHashMap<String, Integer>();
+				classes = new HashMap<String, String>();
+			}
+			sendBuffer.configure(weights, classes);
+			fragmentSize = config.getFragmentSize();
+			int socketBuffer = config.getSendBufferSize();
+			if (transport instanceof TcpTransport) {
+				((TcpTransport) transport).setSendBufferSize(socketBuffer);
+				((TcpTransport) transport).setTcpNoDelay(config
+						.isPrioritiesConfigured());
+			} else if (transport instanceof TlsTransport) {
+				((TlsTransport) transport).setSendBufferSize(socketBuffer);
+			}
+		}
+
+		/**
+		 * Give every contact a node ID, which is its index into the vector
+		 * clock. IDs given in the config file are used as they are. Otherwise
+		 * a node keeps the ID it already has, and a new node gets an ID never
+		 * used before in this run so that adding or removing a node does not
+		 * shift anybody else. Upon starting without any explicit ID the ID is
+		 * the rank of the name among all names, as before. The configuration
+		 * has already checked that no two nodes claim the same ID.
+		 * 
+		 * @param contacts
+		 *            The contacts read from the config file.
+		 */
+		private void assignNodeIds(HashMap<String, Contact> contacts) {
+			HashSet<Integer> used = new HashSet<Integer>();
+			ArrayList<String> unassigned = new ArrayList<String>();
+			for (Map.Entry<String, Contact> entry : contacts.entrySet()) {
+				int id = entry.getValue().getId();
+				if (id < 0) {
+					unassigned.add(entry.getKey());
+				} else {
+					used.add(id);
+					nextNodeId = Math.max(nextNodeId, id + 1);
+				}
+			}
+			Collections.sort(unassigned);
+			if (contactMap.isEmpty() && used.isEmpty()) {
+				for (int i = 0; i < unassigned.size(); i++) {
+					contacts.get(unassigned.get(i)).setId(i);
+				}
+				nextNodeId = unassigned.size();
+				return;
+			}
+			for (String name : unassigned) {
+				Contact old = contactMap.get(name);
+				int id = -1;
+				if (old != null && !used.contains(old.getId())) {
+					id = old.getId();
+				} else {
+					while (used.contains(nextNodeId)) {
+						nextNodeId++;
+					}
+					id = nextNodeId++;
+					if (!contactMap.isEmpty()) {
+						logger.info("node " + name + " got ID " + id
+								+ ", give it an explicit id in the config file so that nodes started later agree");
+					}
+				}
+				contacts.get(name).setId(id);
+				used.add(id);
+			}
+		}
+	}
+
+	/**
+	 * This thread keeps taking messages from the send buffer and send them.
+	 * 
+	 * @author Jason Xi
+	 * @author Yinsu Chu
+	 * 
+	 */
+	private class Sender implements Runnable {
+
+		// messages delayed for a number of messages sent after them
+		private TimingWheel<Message> delayWheel;
+
+		// writes to the members of a group in parallel, created on first use
+		private volatile ExecutorService fanOutPool;
+
+		// messages to write for the message being sent, reused every time
+		private ArrayList<Message> outgoing;
+
+		public Sender() {
+			this.delayWheel = new TimingWheel<Message>(DELAY_WHEEL_SLOTS);
+			this.fanOutPool = null;
+			this.outgoing = new ArrayList<Message>();
+		}
+
+		/**
+		 * Wait for the threads writing to group members to exit, once the
+		 * sender has shut them down.
+		 * 
+		 * @param deadline
+		 *            Value of System.nanoTime() to give up at.
+		 */
+		public void awaitFanOut(long deadline) {
+			ExecutorService pool = fanOutPool;
+			if (pool == null) {
+				return;
+			}
+			pool.shutdownNow();
+			try {
+				pool.awaitTermination(
+						Math.max(0, deadline - System.nanoTime()),
+						TimeUnit.NANOSECONDS);
+			} catch (InterruptedException ex) {
+				logger.error("interrupted when waiting for writes - "
+						+ ex.getMessage());
+			}
+		}
+
+		/**
+		 * @return Number of messages delayed for a number of messages sent,
+		 *         read without synchronization so it may be a bit stale.
+		 */
+		public int getDelayedCount() {
+			return delayWheel.size();
+		}
+
+		public void run() {
+
+			// closed before it got here, it still drains what was sent
+			if (!awaitRunning() && !initialized) {
+				return;
+			}
+			logger.info("sender thread started");
+			boolean reliable = reliability.isEnabled();
+			long retransmitInterval = reliability.getTimeout() / 2;
+			long heartbeat = TimeUnit.MILLISECONDS.toNanos(heartbeatInterval);
+			long gapCheck = TimeUnit.MILLISECONDS.toNanos(ORDER_GAP_TIMEOUT) / 2;
+
+			// how long to wait for a message before the periodic work
+			long tick = Long.MAX_VALUE;
+			if (reliable) {
+				tick = retransmitInterval;
+			} else {
+				tick = gapCheck;
+			}
+			if (heartbeat > 0) {
+				tick = Math.min(tick, heartbeat / 2);
+			}
+			long lastRetransmit = System.nanoTime();
+			long lastHeartbeat = System.nanoTime();
+			long lastGapCheck = System.nanoTime();
+			while (true) {
+				try {
+
+					/*
+					 * datagrams and TLS records are filled as long as more
+					 * messages are queued
+					 */
+					if (sendBuffer.isEmpty()) {
+						if (datagrams != null) {
+							datagrams.flush();
+						}
+						transport.flush();
+					}
+					Message message = null;
+					if (tick == Long.MAX_VALUE) {
+						message = sendBuffer.take();
+					} else {
+						message = sendBuffer.poll(tick, TimeUnit.NANOSECONDS);
+						long now = System.nanoTime();
+						if (reliable && now - lastRetransmit >= retransmitInterval) {
+							retransmit();
+							lastRetransmit = now;
+						}
+						if (heartbeat > 0 && now - lastHeartbeat >= heartbeat / 2) {
+							sendHeartbeats(heartbeat);
+							lastHeartbeat = now;
+						}
+						if (!reliable && now - lastGapCheck >= gapCheck) {
+							totalOrder.expire();
+							lastGapCheck = now;
+						}
+						if (message == null) {
+							continue;
+						}
+					}
+					if (message == STOP && !sendBuffer.isEmpty()) {
+
+						// messages of other classes may still be queued
+						sendBuffer.add(STOP);
+						continue;
+					}
+					if (message == STOP) {
+						flushDelayBuffer();
+						if (datagrams != null) {
+							datagrams.flush();
+						}
+						transport.flush();
+						if (reliable) {
+							reliability.logUnacknowledged();
+						}
+						if (fanOutPool != null) {
+							fanOutPool.shutdownNow();
+						}
+						logger.info("sender thread stopped");
+						return;
+					}
+					if (message instanceof FragmentedMessage) {
+						sendRest((FragmentedMessage) message);
+						continue;
+					}
+					if (message instanceof DelayedMessage) {
+						Message delayed = ((DelayedMessage) message).message;
+						if (charge(delayed)) {
+							writeLink(Collections.singletonList(delayed));
+						} else {
+							delayed.release();
+						}
+						continue;
+					}
+					if (message.getTrace() != null) {
+						message.getTrace().stamp(Trace.DEQUEUE);
+					}
+					String dest = message.getDest();
+
+					// a group name stands for all its members
+					List<String> members = null;
+					if (contactMap.containsKey(dest)) {
+						members = Collections.singletonList(dest);
+					} else {
+						members = groupMap.get(dest);
+					}
+
+					// cannot send if receiver does not exist
+					if (members == null) {
+						logger.error("process with name " + dest
+								+ " dose not exist");
+						message.release();
+						continue;
+					}
+					if (ReliableDelivery.KIND_ACK.equals(message.getKind())) {
+						sendAck(message);
+						continue;
+					}
+					if (totalOrder.isOrdered(dest)) {
+						members = orderedMembers(message, members);
+						if (members.isEmpty()) {
+							continue;
+						}
+					}
+
+					message.setSource(localName);
+					boolean group = !members.contains(dest);
+
+					// every member gets a copy sharing the same encoding
+					if (!charge(message)) {
+						message.release();
+						continue;
+					}
+					outgoing.clear();
+					for (String member : members) {
+						Message copy = message;
+						if (group) {
+							copy = message.copy();
+							copy.setGroup(dest);
+							copy.setDest(member);
+						}
+						route(copy, outgoing);
+					}
+
+					// every member holds its own copy
+					if (group) {
+						message.release();
+					}
+
+					// every message sent counts for the delayed ones
+					if (!outgoing.isEmpty()) {
+						delayWheel.advance(delayWheel.getTick() + 1, outgoing);
+					}
+					writeAll(outgoing);
+				} catch (InterruptedException ex) {
+					if (state == State.STOPPED) {
+						logger.error("sender thread stopped before the send buffer was drained");
+						if (fanOutPool != null) {
+							fanOutPool.shutdownNow();
+						}
+						return;
+					}
+					logger.error("interrupted when sending message: "
+							+ ex.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Charge the priority class of the message just taken from the send
+		 * buffer with its real size, encoding it now if it was not. The
+		 * in-process transport does not encode messages, their classes keep
+		 * the size counted when they were put in.
+		 * 
+		 * @param message
+		 *            The message taken.
+		 * @return False if the message cannot be encoded.
+		 */
+		private boolean charge(Message message) {
+			if (transport.isInProcess()) {
+				return true;
+			}
+			try {
+				sendBuffer.settle(wireSize(message));
+			} catch (IOException ex) {
+				logger.error("failed to encode message - " + ex.getMessage());
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Find the members an ordered message goes to. The local copy has
+		 * been held back already. An ack is not needed by the members the
+		 * next message in the send buffer goes to, its time stamp is at least
+		 * as late.
+		 * 
+		 * @param message
+		 *            A message or an ack to an ordered group.
+		 * @param members
+		 *            Members of the group.
+		 * @return Members to send the message to.
+		 */
+		private List<String> orderedMembers(Message message,
+				List<String> members) {
+			ArrayList<String> remote = new ArrayList<String>(members);
+			remote.remove(localName);
+			if (!TotalOrder.KIND_ACK.equals(message.getKind())) {
+				return remote;
+			}
+
+			// from now on the ack is not updated by new arrivals
+			sendLock.lock();
+			orderAcks.taken(message);
+			sendLock.unlock();
+			Message next = sendBuffer.peek();
+			if (next instanceof TimeStampedMessage
+					&& ((TimeStampedMessage) next).getTimeStamp() != null
+					&& !datagramKinds.contains(next.getKind())) {
+				if (contactMap.containsKey(next.getDest())) {
+					remote.remove(next.getDest());
+				} else if (groupMap.containsKey(next.getDest())) {
+					remote.removeAll(groupMap.get(next.getDest()));
+				}
+			}
+			return remote;
+		}
+
+		/**
+		 * Number a message for its destination and apply the send rules to
+		 * it. The reference of the caller to a pooled message goes with it
+		 * into the outgoing list, or is released if it is not written now.
+		 * 
+		 * @param message
+		 *            The message, its destination is a node.
+		 * @param outgoing
+		 *            Messages to write now, in order.
+		 * @throws InterruptedException
+		 *             If the sender is interrupted.
+		 */
+		private void route(Message message, List<Message> outgoing)
+				throws InterruptedException {
+			restartLinks();
+			String dest = message.getDest();
+			boolean datagram = isDatagram(message);
+
+			// if the connection does not exist, create one before sending
+			Connection connection = null;
+			if (!datagram) {
+				connection = getConnection(dest);
+			}
+			boolean reliable = reliability.isEnabled();
+			if (connection == null && !reliable && !datagram) {
+				if (getPeerState(dest) == PeerState.SUSPECTED) {
+					logger.error(dest + " is suspected, message not sent - "
+							+ message.toString());
+				} else {
+					logger.error("problem in creating socket when sending message");
+				}
+				message.release();
+				return;
+			}
+
+			message.setSequenceNumber(nextSequenceNumber(datagram ? dest
+					+ DATAGRAM_LINK : dest));
+			message.setDupe(false);
+
+			/*
+			 * in reliable mode the message is kept until acknowledged, even if
+			 * it cannot be sent now or a rule drops it
+			 */
+			if (reliable && !datagram) {
+				keepForRetransmission(message);
+				if (connection == null) {
+					logger.info("no connection to " + dest
+							+ ", message will be retransmitted - "
+							+ message.toString());
+					message.release();
+					return;
+				}
+			}
+
+			// match rules before sending
+			Rule rule = Rule.match(sendRules, message);
+			String action = rule == null ? null : rule.getAction();
+			if (action != null) {
+				metrics.counter(METRIC_SEND_RULE_ACTIONS, LABEL_ACTION, action)
+						.increment();
+				if (journal != null) {
+					journal.recordRule(EventJournal.RULE_SEND, action, dest,
+							message);
+				}
+			}
+			if (action == null) {
+				outgoing.add(message);
+			} else if (action.equals(Rule.ACTION_DROP)) {
+				if (logMessages) {
+					logger.info("match drop rule when sending, message "
+							+ message.toString() + "dropped");
+				}
+				message.release();
+			} else if (action.equals(Rule.ACTION_DELAY)) {
+				if (logMessages) {
+					logger.info("match delay rule when sending, message "
+							+ message.toString() + "delayed");
+				}
+				if (rule.isTimed()) {
+					delayTimer.schedule(message, true, rule.sampleDelay());
+				} else {
+					delayWheel.schedule(message, rule.getCount());
+				}
+			} else if (action.equals(Rule.ACTION_DUPLICATE)) {
+				if (logMessages) {
+					logger.info("match duplicate rule when sending, message "
+							+ message.toString() + "duped");
+				}
+				Message dup = message.copy();
+				dup.setDupe(true);
+				outgoing.add(message);
+				outgoing.add(dup);
+			} else if (action.equals(Rule.ACTION_THROTTLE)) {
+				long wait = 0;
+				try {
+					wait = rule.reserve(wireSize(message), System.nanoTime());
+				} catch (IOException ex) {
+					logger.error("failed to encode message - "
+							+ ex.getMessage());
+				}
+				if (wait == 0) {
+					outgoing.add(message);
+				} else {
+					delayTimer.schedule(message, true, toDelay(wait));
+				}
+			} else if (action.equals(Rule.ACTION_REORDER)) {
+				long holdBack = rule.sampleHoldBack();
+				if (holdBack == 0) {
+					outgoing.add(message);
+				} else {
+					delayWheel.schedule(message, holdBack);
+				}
+			}
+		}
+
+		/**
+		 * @param message
+		 *            A message to send.
+		 * @return Size of its frame body, it is encoded now if it was not.
+		 * @throws IOException
+		 *             If the message cannot be serialized.
+		 */
+		private int wireSize(Message message) throws IOException {
+			byte[] body = message.getEncoded();
+			if (body == null) {
+				body = encode(message);
+				message.setEncoded(body);
+			}
+			if (message instanceof BytesMessage) {
+				return body.length
+						+ ((BytesMessage) message).wireView().remaining();
+			}
+			return body.length;
+		}
+
+		/**
+		 * Write messages to their destinations. Messages to the same node are
+		 * written in order, different nodes are written in parallel and this
+		 * method returns once all of them are done.
+		 * 
+		 * @param outgoing
+		 *            Messages to write.
+		 */
+		private void writeAll(List<Message> outgoing) {
+			if (outgoing.isEmpty()) {
+				return;
+			}
+			if (sameDest(outgoing)) {
+				writeLink(outgoing);
+				return;
+			}
+			final LinkedHashMap<String, List<Message>> links = new LinkedHashMap<String, List<Message>>();
+			for (Message message : outgoing) {
+				List<Message> link = links.get(message.getDest());
+				if (link == null) {
+					link = new ArrayList<Message>();
+					links.put(message.getDest(), link);
+				}
+				link.add(message);
+			}
+			if (links.size() <= 1) {
+				for (List<Message> link : links.values()) {
+					writeLink(link);
+				}
+				return;
+			}
+			if (fanOutPool == null) {
+				fanOutPool = Executors.newCachedThreadPool(new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "fan-out");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			ArrayList<Future<?>> writes = new ArrayList<Future<?>>();
+			for (final List<Message> link : links.values()) {
+				writes.add(fanOutPool.submit(new Runnable() {
+					public void run() {
+						writeLink(link);
+					}
+				}));
+			}
+			for (Future<?> write : writes) {
+				try {
+					write.get();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					logger.error("interrupted when waiting for writes - "
+							+ ex.getMessage());
+					return;
+				} catch (ExecutionException ex) {
+					logger.error("failed to write messages - "
+							+ ex.getMessage());
+				}
+			}
+		}
+
+		private boolean sameDest(List<Message> outgoing) {
+			String dest = outgoing.get(0).getDest();
+			for (int i = 1; i < outgoing.size(); i++) {
+				if (!dest.equals(outgoing.get(i).getDest())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Write messages to the same node in order, the ones after a failure
+		 * are given up. Messages of the datagram kinds go into the datagram
+		 * to the node instead. Every message is released once written or
+		 * given up.
+		 * 
+		 * @param link
+		 *            Messages to the same node.
+		 */
+		private void writeLink(List<Message> link) {
+			String dest = link.get(0).getDest();
+			Connection connection = null;
+			boolean failed = false;
+			for (int i = 0; i < link.size(); i++) {
+				Message message = link.get(i);
+				if (isDatagram(message)) {
+					sendDatagram(message);
+					message.release();
+					continue;
+				}
+				if (connection == null && !failed) {
+					connection = getConnection(dest);
+				}
+				if (connection == null || !sendSplit(connection, message)) {
+					logger.error("failed to send message - "
+							+ message.toString());
+					closeSocket(dest);
+					connection = null;
+					failed = true;
+				} else if (logMessages) {
+					logger.info("message sent - " + message.toString());
+				}
+				message.release();
+			}
+		}
+
+		/**
+		 * Send a message on the given connection, in fragments if it is
+		 * larger than the fragment size. The first fragment is written now
+		 * and the rest of the message is put back into the send buffer, to be
+		 * written between the messages of the other priority classes.
+		 * 
+		 * @param connection
+		 *            The connection to send the message.
+		 * @param message
+		 *            The message to send.
+		 * @return True on success, false otherwise.
+		 */
+		private boolean sendSplit(Connection connection, Message message) {
+			int split = fragmentSize;
+			if (split == 0 || transport.isInProcess()) {
+				return sendMessage(connection, message);
+			}
+			int length = 0;
+			try {
+				length = wireSize(message);
+			} catch (IOException ex) {
+				logger.error("failed to encode message - " + ex.getMessage());
+				return false;
+			}
+			if (length <= split) {
+				return sendMessage(connection, message);
+			}
+
+			// the rest holds a reference until the last fragment is written
+			message.retain();
+			return sendFragment(new FragmentedMessage(message, connection,
+					length, split));
+		}
+
+		/**
+		 * Send the next fragment of a message taken from the send buffer, on
+		 * the connection the first one went on. If that connection has been
+		 * closed the rest is given up, a reliable link sends the message again
+		 * whole.
+		 * 
+		 * @param rest
+		 *            The rest of the message.
+		 */
+		private void sendRest(FragmentedMessage rest) {
+			String dest = rest.getDest();
+			if (socketMap.get(dest) != rest.connection) {
+				logger.error("connection to " + dest
+						+ " closed while sending in fragments, message not sent - "
+						+ rest.message.toString());
+				rest.message.release();
+				return;
+			}
+			if (!sendFragment(rest)) {
+				logger.error("failed to send message - "
+						+ rest.message.toString());
+				closeSocket(dest);
+			}
+		}
+
+		/**
+		 * Write the next fragment of a message, then put the rest back at the
+		 * head of its class or, after the last fragment, count the message as
+		 * sent and drop the reference of the rest.
+		 * 
+		 * @param rest
+		 *            The rest of the message.
+		 * @return True on success, false if the reference has been dropped
+		 *         because the fragment could not be written.
+		 */
+		private boolean sendFragment(FragmentedMessage rest) {
+			Message message = rest.message;
+			int length = rest.next();
+			boolean last = rest.offset + length == rest.length;
+			boolean traced = last && message.getTrace() != null;
+			try {
+				Ack ack = reliability.takeAck(message.getDest());
+				rest.connection.writeFragment(message, ack,
+						message.getEncoded(), rest.offset, length);
+				if (ack != null) {
+					piggybackedAcks.incrementAndGet();
+				}
+				sentBytes.add(WireFormat.fragmentFrameLength(length,
+						ack != null, traced));
+			} catch (IOException ex) {
+				logger.error("failed to send fragment - " + ex.getMessage());
+				message.release();
+				return false;
+			}
+			fragmentsSent.incrementAndGet();
+			rest.offset += length;
+			if (!last) {
+				sendBuffer.addFirst(rest, rest.next());
+				return true;
+			}
+			recordSent(message, WireFormat.frameLength(rest.length, false,
+					message.getTrace() != null));
+			message.release();
+			return true;
+		}
+
+		/**
+		 * Tell if a message goes as a datagram: its kind is one of the
+		 * datagram kinds, the UDP socket is open and the message is not to an
+		 * ordered group, whose order a lost message would stall.
+		 * 
+		 * @param message
+		 *            A message to send.
+		 * @return True if it goes as a datagram.
+		 */
+		private boolean isDatagram(Message message) {
+			if (datagrams == null
+					|| !datagramKinds.contains(message.getKind())) {
+				return false;
+			}
+			String group = message.getGroup();
+			return group == null || !totalOrder.isOrdered(group);
+		}
+
+		/**
+		 * Put a message into the datagram to its destination. A message too
+		 * large for a datagram is dropped, like a lost one.
+		 * 
+		 * @param message
+		 *            A message of a datagram kind.
+		 */
+		private void sendDatagram(Message message) {
+			Contact contact = contactMap.get(message.getDest());
+			if (contact == null) {
+				logger.error("process with name " + message.getDest()
+						+ " dose not exist");
+				return;
+			}
+			Connection packet = datagrams.connect(contact.getIP(), contact.getPort());
+			if (!sendMessage(packet, message, true)) {
+				logger.error("failed to send message as datagram - "
+						+ message.toString());
+			} else if (logMessages) {
+				logger.info("message sent as datagram - " + message.toString());
+			}
+		}
+
+		/**
+		 * Get the connection to a remote node, create one if it does not
+		 * exist. No connection is attempted to a suspected node.
+		 * 
+		 * @param dest
+		 *            Name of the remote node.
+		 * @return The connection, null on failure.
+		 */
+		private Connection getConnection(String dest) {
+			Connection connection = socketMap.get(dest);
+			if (connection != null) {
+				return connection;
+			}
+			Contact contact = contactMap.get(dest);
+			if (contact == null) {
+				return null;
+			}
+
+			// do not block on connecting to a node that is probably down
+			if (getPeerState(dest) == PeerState.SUSPECTED) {
+				return null;
+			}
+			long start = System.nanoTime();
+			try {
+				connection = transport.connect(contact.getIP(), contact.getPort(),
+						CONNECT_TIMEOUT, localName, incarnation);
+			} catch (IOException ex) {
+				logger.error("failed to connect to " + dest + " at "
+						+ contact.getIP() + ":" + contact.getPort() + " - "
+						+ ex.getMessage());
+				detector(dest).unreachable(System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(RECONNECT_INTERVAL));
+				return null;
+			}
+			connectTime.record(System.nanoTime() - start);
+			if (journal != null) {
+				journal.record(EventJournal.CONNECT, 0, dest, null, 0, 0, null);
+			}
+			Connection existing = socketMap.putIfAbsent(dest, connection);
+			if (existing != null) {
+				connection.close(logger);
+				connection = existing;
+			}
+			return connection;
+		}
+
+		/**
+		 * Put a message into the retransmit buffer of its destination, waiting
+		 * for acks if the buffer is full.
+		 * 
+		 * @param message
+		 *            The numbered message.
+		 * @throws InterruptedException
+		 *             If the sender is interrupted while waiting.
+		 */
+		private void keepForRetransmission(Message message)
+				throws InterruptedException {
+
+			// keep retransmitting while waiting, the missing ack may need it
+			while (!reliability.awaitSpace(message.getDest())) {
+				retransmit();
+			}
+			reliability.keep(message);
+		}
+
+		/**
+		 * Start the links to the remote nodes that restarted anew: messages
+		 * to them are numbered from 1 again, and the ones their previous
+		 * incarnation did not acknowledge are given up. The connection opened
+		 * before the restart is closed. Called before numbering, acknowledging
+		 * or retransmitting anything.
+		 */
+		private void restartLinks() {
+			if (restartedPeers.isEmpty()) {
+				return;
+			}
+			for (String peer : restartedPeers) {
+				restartedPeers.remove(peer);
+				sequenceNumbers.remove(peer);
+				sequenceNumbers.remove(peer + DATAGRAM_LINK);
+				reliability.restartDest(peer);
+				closeSocket(peer);
+			}
+		}
+
+		/**
+		 * Send again the messages not acknowledged in time.
+		 */
+		private void retransmit() {
+			restartLinks();
+			for (Map.Entry<String, ArrayList<Message>> entry : reliability
+					.takeDue().entrySet()) {
+				String dest = entry.getKey();
+				Connection connection = getConnection(dest);
+				for (Message message : entry.getValue()) {
+					if (connection == null) {
+						message.release();
+						continue;
+					}
+					if (!sendMessage(connection, message)) {
+						logger.error("failed to retransmit message - "
+								+ message.toString());
+						closeSocket(dest);
+						connection = null;
+					} else {
+						reliability.retransmitted();
+						if (logMessages) {
+							logger.info("message retransmitted - "
+									+ message.toString());
+						}
+					}
+					message.release();
+				}
+			}
+		}
+
+		/**
+		 * Send the ack due to a source in a control frame, unless a message
+		 * carried it already. If the next message in the send buffer goes to
+		 * the source, the marker is put back to let that message carry it.
+		 * 
+		 * @param marker
+		 *            The marker put into the send buffer when the ack became
+		 *            due.
+		 */
+		private void sendAck(Message marker) {
+			String dest = marker.getDest();
+			if (!reliability.isAckDue(dest)) {
+				return;
+			}
+			if (goesTo(sendBuffer.peek(), dest)) {
+				sendBuffer.add(marker);
+				return;
+			}
+			restartLinks();
+			Connection connection = getConnection(dest);
+			Ack ack = reliability.takeAck(dest);
+			if (connection == null || ack == null) {
+				return;
+			}
+			try {
+				connection.writeControl(ack);
+				controlFrames.incrementAndGet();
+			} catch (IOException ex) {
+				logger.error("failed to send ack to " + dest + " - "
+						+ ex.getMessage());
+				closeSocket(dest);
+			}
+		}
+
+		/**
+		 * Send a heartbeat on every connection idle for the given time. A
+		 * heartbeat also carries the ack due to the remote node, if any.
+		 * 
+		 * @param idle
+		 *            Idle time in nanoseconds.
+		 */
+		private void sendHeartbeats(long idle) {
+			long now = System.nanoTime();
+			for (Map.Entry<String, Connection> entry : socketMap.entrySet()) {
+				Connection connection = entry.getValue();
+				if (now - connection.getLastWrite() < idle) {
+					continue;
+				}
+				Ack ack = reliability.takeAck(entry.getKey());
+				try {
+					connection.writeControl(ack);
+					controlFrames.incrementAndGet();
+				} catch (IOException ex) {
+					logger.error("failed to send heartbeat to "
+							+ entry.getKey() + " - " + ex.getMessage());
+					closeSocket(entry.getKey());
+				}
+			}
+		}
+
+		/**
+		 * Check if a message in the send buffer goes to a node.
+		 * 
+		 * @param message
+		 *            The message, may be null.
+		 * @param dest
+		 *            Name of the node.
+		 * @return True if the node is the destination or a member of it.
+		 */
+		private boolean goesTo(Message message, String dest) {
+			if (message == null || message == STOP
+					|| ReliableDelivery.KIND_ACK.equals(message.getKind())) {
+				return false;
+			}
+			if (dest.equals(message.getDest())) {
+				return true;
+			}
+			List<String> members = groupMap.get(message.getDest());
+			return members != null && members.contains(dest);
+		}
+
+		/**
+		 * On shutdown, send every delayed message to its own destination if a
+		 * connection to it is still open.
+		 */
+		private void flushDelayBuffer() {
+			ArrayList<Message> delayed = new ArrayList<Message>();
+			delayWheel.drain(delayed);
+			delayTimer.drainSends(delayed);
+			for (Message message : delayed) {
+				Connection connection = socketMap.get(message.getDest());
+				if (connection == null || !sendMessage(connection, message)) {
+					logger.error("failed to flush delayed message - "
+							+ message.toString());
+				} else if (logMessages) {
+					logger.info("message sent - " + message.toString());
+				}
+				message.release();
+			}
+		}
+
+		/**
+		 * Serialize a message, compressed as configured for its kind.
+		 * 
+		 * @param message
+		 *            The message to serialize.
+		 * @return The body of the message.
+		 * @throws IOException
+		 *             If the message cannot be serialized.
+		 */
+		private byte[] encode(Message message) throws IOException {
+			Compression compression = compressionMap.get(message.getKind());
+			if (compression == null) {
+				compression = defaultCompression;
+			}
+			long start = System.nanoTime();
+			byte[] body = WireFormat.encode(message, compression,
+					compressionStats);
+			encodeTime.record(System.nanoTime() - start);
+			if (message.getTrace() != null) {
+				message.getTrace().stamp(Trace.ENCODE);
+			}
+			return body;
+		}
+
+		/**
+		 * Send a message on the given connection. The message is serialized
+		 * only once, retransmissions and the copies sent to the other members
+		 * of a group reuse the encoding. The payload of a bytes message is
+		 * written from its own buffer. The ack due to the destination, if
+		 * any, goes in the header.
+		 * 
+		 * @param connection
+		 *            The connection to send the message.
+		 * @param message
+		 *            The message to send.
+		 * @return True on success, false otherwise.
+		 */
+		private boolean sendMessage(Connection connection, Message message) {
+			return sendMessage(connection, message, false);
+		}
+
+		/**
+		 * Send a message on the given connection or datagram.
+		 * 
+		 * @param connection
+		 *            The connection or the datagram to send the message.
+		 * @param message
+		 *            The message to send.
+		 * @param datagram
+		 *            True if the message goes into a datagram, which carries
+		 *            no acks.
+		 * @return True on success, false otherwise.
+		 */
+		private boolean sendMessage(Connection connection, Message message,
+				boolean datagram) {
+			byte[] body = null;
+			try {
+				int length = 0;
+				if (transport.isInProcess()) {
+					if (message.getTrace() != null) {
+						message.getTrace().stamp(Trace.ENCODE);
+					}
+				} else {
+					body = message.getEncoded();
+					if (body == null) {
+						body = encode(message);
+						message.setEncoded(body);
+					}
+					length = body.length;
+				}
+				if (message instanceof BytesMessage) {
+					length += ((BytesMessage) message).wireView().remaining();
+				}
+				Ack ack = datagram ? null : reliability.takeAck(message
+						.getDest());
+				connection.writeMessage(message, ack, body);
+				if (ack != null) {
+					piggybackedAcks.incrementAndGet();
+				}
+				int frameLength = transport.isInProcess() ? length
+						: WireFormat.frameLength(length, ack != null,
+								message.getTrace() != null);
+				sentBytes.add(frameLength);
+				recordSent(message, frameLength);
+			} catch (Exception ex) {
+				logger.error("failed to send message - " + ex.getMessage());
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Count a message as sent and put it into the journal.
+		 * 
+		 * @param message
+		 *            The message written.
+		 * @param frameLength
+		 *            Size of its frame.
+		 */
+		private void recordSent(Message message, int frameLength) {
+			metrics.counter(METRIC_SENT, LABEL_PEER, message.getDest())
+					.increment();
+			metrics.counter(METRIC_SENT_BY_KIND, LABEL_KIND, message.getKind())
+					.increment();
+			if (journal != null) {
+				journal.record(EventJournal.SEND, message.getDest(), message,
+						frameLength);
+			}
+		}
+	}
+
+	/**
+	 * This thread releases the messages delayed for some time. Both the sent
+	 * and the received ones wait on timing wheels ticking every DELAY_TICK
+	 * milliseconds. The thread sleeps until the next message is due, or for
+	 * good while there are none. The sent ones are handed back to the sender,
+	 * which writes every message.
+	 * 
+	 * @author Jason Xi
+	 * @author Yinsu Chu
+	 * 
+	 */
+	private class DelayTimer implements Runnable {
+		private TimingWheel<Message> sends;
+		private TimingWheel<Message> receives;
+
+		// System.nanoTime() of tick 0
+		private long start;
+
+		public DelayTimer() {
+			this.sends = new TimingWheel<Message>(DELAY_WHEEL_SLOTS);
+			this.receives = new TimingWheel<Message>(DELAY_WHEEL_SLOTS);
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Hold a message for some time.
+		 * 
+		 * @param message
+		 *            The delayed message.
+		 * @param send
+		 *            True if it is written to its destination afterwards,
+		 *            false if it is delivered locally.
+		 * @param duration
+		 *            Delay in milliseconds.
+		 */
+		public synchronized void schedule(Message message, boolean send,
+				long duration) {
+			TimingWheel<Message> wheel = send ? sends : receives;
+
+			// the wheel lags behind the clock while the thread sleeps
+			wheel.schedule(message, currentTick() - wheel.getTick()
+					+ (duration + DELAY_TICK - 1) / DELAY_TICK);
+			notifyAll();
+		}
+
+		/**
+		 * Take the delayed messages that have not been sent yet.
+		 * 
+		 * @param delayed
+		 *            Where to add them, in the order they are due.
+		 */
+		public synchronized void drainSends(List<Message> delayed) {
+			sends.drain(delayed);
+		}
+
+		/**
+		 * @param send
+		 *            True for the messages to send, false for the ones to
+		 *            deliver.
+		 * @return Number of messages waiting.
+		 */
+		public synchronized int size(boolean send) {
+			return send ? sends.size() : receives.size();
+		}
+
+		private long currentTick() {
+			return elapsed() / DELAY_TICK;
+		}
+
+		/**
+		 * @return Milliseconds since tick 0.
+		 */
+		private long elapsed() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		}
+
+		public void run() {
+			ArrayList<Message> sent = new ArrayList<Message>();
+			ArrayList<Message> received = new ArrayList<Message>();
+			while (true) {
+				synchronized (this) {
+					try {
+
+						// woken up early when a message is scheduled
+						long due = Math.min(sends.nextDeadline(),
+								receives.nextDeadline());
+						if (due == Long.MAX_VALUE) {
+							wait();
+						} else {
+							long remaining = due * DELAY_TICK - elapsed();
+							if (remaining > 0) {
+								wait(remaining);
+							}
+						}
+					} catch (InterruptedException ex) {
+						return;
+					}
+					long tick = currentTick();
+					sends.advance(tick, sent);
+					receives.advance(tick, received);
+				}
+				for (Message message : sent) {
+					sendBuffer.add(new DelayedMessage(message));
+				}
+				sent.clear();
+				if (!received.isEmpty()) {
+					receiveBuffer.addAll(received);
+					received.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * This thread listens on the local server socket and spanws a worker thread
+	 * if a remote node tries to send messages.
+	 * 
+	 * @author Jason Xi
+	 * @author Yinsu Chu
+	 * 
+	 */
+	private class Receiver implements Runnable {
+
+		/*
+		 * messages delayed for a number of messages delivered after them, by
+		 * any worker
+		 */
+		private ReentrantLock delayBufferLock;
+		private TimingWheel<Message> delayWheel;
+
+		public Receiver() {
+			this.delayBufferLock = new ReentrantLock();
+			this.delayWheel = new TimingWheel<Message>(DELAY_WHEEL_SLOTS);
+		}
+
+		/**
+		 * @return Number of messages delayed for a number of deliveries.
+		 */
+		public int getDelayedCount() {
+			delayBufferLock.lock();
+			try {
+				return delayWheel.size();
+			} finally {
+				delayBufferLock.unlock();
+			}
+		}
+
+		/**
+		 * This thread is created if a remote host tries to send messages to the
+		 * local node. Once created, it will continue to run to receive any
+		 * future messages.
+		 * 
+		 * @author Jason Xi
+		 * @author Yinsu Chu
 		 * 
 		 */
 		private class ReceiverWorker implements Runnable {
-			private Socket clientSocket;
+			private IncomingConnection connection;
+
+			// true for the worker reading the datagrams
+			private boolean datagram;
+
+			// incarnation of the node on the other end, from its hello
+			private long incarnation;
+
+			// counters of the link, looked up once rather than per message
+			private String countedSource;
+			private LongAdder receivedFrom;
+			private HashMap<String, LongAdder> receivedKinds;
+
+			public ReceiverWorker(IncomingConnection connection,
+					boolean datagram) {
+				this.connection = connection;
+				this.datagram = datagram;
+				this.incarnation = 0;
+				this.countedSource = null;
+				this.receivedFrom = null;
+				this.receivedKinds = new HashMap<String, LongAdder>();
+			}
+
+			/**
+			 * @param message
+			 *            A message received on the link.
+			 * @return Counter of the messages received from its source.
+			 */
+			private LongAdder receivedFrom(Message message) {
+				String source = message.getSource();
+				if (receivedFrom == null || !source.equals(countedSource)) {
+					receivedFrom = metrics.counter(METRIC_RECEIVED, LABEL_PEER,
+							source);
+					countedSource = source;
+				}
+				return receivedFrom;
+			}
 
-			public ReceiverWorker(Socket clientSocket) {
-				this.clientSocket = clientSocket;
+			/**
+			 * @param message
+			 *            A message received on the link.
+			 * @return Counter of the messages of its kind.
+			 */
+			private LongAdder receivedKind(Message message) {
+				LongAdder counter = receivedKinds.get(message.getKind());
+				if (counter == null) {
+					counter = metrics.counter(METRIC_RECEIVED_BY_KIND,
+							LABEL_KIND, message.getKind());
+					receivedKinds.put(message.getKind(), counter);
+				}
+				return counter;
 			}
 
 			public void run() {
 				logger.info("receiver worker for "
-						+ clientSocket.getRemoteSocketAddress().toString()
-						+ " started");
+						+ connection.getRemoteAddress() + " started");
+
+				// name of the node on the other end, known from the first frame
+				String peer = null;
 				while (true) {
-					Message message = receiveMessage(clientSocket);
+					Frame frame = receiveFrame(connection);
 
 					/*
 					 * if failed to receive messages from the socket, it is
 					 * probably the case the the socket has failed
 					 */
-					if (message == null) {
-						logger.error("failed to receive message from socket");
-						NetTool.destroySocket(clientSocket, logger);
+					if (frame == null) {
+						if (state == State.STOPPED) {
+							logger.info("receiver worker stopped");
+						} else {
+							logger.error("failed to receive message from socket");
+						}
+						connection.close(logger);
+						workerConnections.remove(connection);
+						workerThreads.remove(Thread.currentThread());
+						if (journal != null && peer != null) {
+							journal.record(EventJournal.DISCONNECT, 1, peer,
+									null, 0, 0, null);
+						}
 						return;
-					} else {
+					}
+					if (frame.getHello() != null) {
+						peer = frame.getHello();
+						logger.info("receiver worker for "
+								+ connection.getRemoteAddress() + " serves "
+								+ peer);
+						if (journal != null) {
+							journal.record(EventJournal.CONNECT, 1, peer, null,
+									0, 0, null);
+						}
+						incarnation = frame.getIncarnation();
+						checkIncarnation(peer, incarnation);
+					}
+
+					/*
+					 * frames still on a connection of a node that restarted
+					 * meanwhile belong to links that are gone, their acks and
+					 * sequence numbers would be taken for those of the new one
+					 */
+					if (peer != null && isStale(peer)) {
+						if (frame.getMessage() != null) {
+							frame.getMessage().release();
+						}
+						continue;
+					}
+					if (peer != null) {
+						detector(peer).heartbeat(System.nanoTime());
+						if (frame.getAck() != null) {
+							reliability.acknowledge(peer, frame.getAck());
+						}
+					}
+					Message message = frame.getMessage();
+					if (message == null) {
+						continue;
+					}
+					if (logMessages) {
 						logger.info("message received - " + message.toString());
 					}
+					decodeTime.record(frame.getDecodeNanos());
+					receivedFrom(message).increment();
+					receivedKind(message).increment();
+					int frameLength = transport.isInProcess() ? message
+							.getWireSize() : WireFormat.frameLength(
+							message.getWireSize(), frame.getAck() != null,
+							message.getTrace() != null);
+					receivedBytes.add(frameLength);
+					if (journal != null) {
+						journal.record(EventJournal.RECEIVE,
+								message.getSource(), message, frameLength);
+					}
+
+					/*
+					 * datagrams are numbered on a link of their own, and are
+					 * neither acknowledged nor ordered
+					 */
+					recordReceived(message, datagram ? message.getSource()
+							+ DATAGRAM_LINK : message.getSource());
+					if (reliability.isEnabled() && !datagram
+							&& !acceptReliable(message)) {
+						message.release();
+						continue;
+					}
+					if (!datagram
+							&& (totalOrder.isOrdered(message.getDest()) || totalOrder
+									.isTracked(message.getSource()))
+							&& !acceptOrdered(message)) {
+						continue;
+					}
 
-					String action = checkRules(message, receiveRules);
+					Rule rule = Rule.match(receiveRules, message);
+					String action = rule == null ? null : rule.getAction();
+					if (action != null) {
+						metrics.counter(METRIC_RECEIVE_RULE_ACTIONS,
+								LABEL_ACTION, action).increment();
+						if (journal != null) {
+							journal.recordRule(EventJournal.RULE_RECEIVE,
+									action, message.getSource(), message);
+						}
+					}
 					try {
 						if (action == null) {
 							receiveBuffer.put(message);
 							clearDelayBuffer();
-						} else if (action.equals(ACTION_DROP)) {
-							logger.info("match drop rule when receiving, message "
-									+ message.toString() + "dropped");
+						} else if (action.equals(Rule.ACTION_DROP)) {
+							if (logMessages) {
+								logger.info("match drop rule when receiving, message "
+										+ message.toString() + "dropped");
+							}
+							message.release();
 							continue;
-						} else if (action.equals(ACTION_DELAY)) {
-							logger.info("match delay rule when receiving, message "
-									+ message.toString() + "delayed");
-							delayBufferLock.lock();
-							delayBuffer.put(message);
-							delayBufferLock.unlock();
-						} else if (action.equals(ACTION_DUPLICATE)) {
-							logger.info("match duplicate rule when receiving, message "
-									+ message.toString() + "duped");
-							Message dup = new TimeStampedMessage(null, null,
-									null);
-							dup.setDest(new String(message.getDest()));
-							dup.setKind(new String(message.getKind()));
-							dup.setData(message.getData());
-							dup.setSource(new String(message.getSource()));
-							dup.setSequenceNumber(message.getSequenceNumber());
-							dup.setDupe(message.isDupe());
+						} else if (action.equals(Rule.ACTION_DELAY)) {
+							if (logMessages) {
+								logger.info("match delay rule when receiving, message "
+										+ message.toString() + "delayed");
+							}
+							if (rule.isTimed()) {
+								delayTimer.schedule(message, false,
+										rule.sampleDelay());
+							} else {
+								holdBack(message, rule.getCount());
+							}
+						} else if (action.equals(Rule.ACTION_DUPLICATE)) {
+							if (logMessages) {
+								logger.info("match duplicate rule when receiving, message "
+										+ message.toString() + "duped");
+							}
+							Message dup = message.copy();
 							receiveBuffer.put(message);
 							receiveBuffer.put(dup);
 							clearDelayBuffer();
+						} else if (action.equals(Rule.ACTION_THROTTLE)) {
+							long wait = rule.reserve(message.getWireSize(),
+									System.nanoTime());
+							if (wait == 0) {
+								receiveBuffer.put(message);
+								clearDelayBuffer();
+							} else {
+								delayTimer.schedule(message, false,
+										toDelay(wait));
+							}
+						} else if (action.equals(Rule.ACTION_REORDER)) {
+							long holdBack = rule.sampleHoldBack();
+							if (holdBack == 0) {
+								receiveBuffer.put(message);
+								clearDelayBuffer();
+							} else {
+								holdBack(message, holdBack);
+							}
 						}
 					} catch (InterruptedException ex) {
 						logger.error("interrupted when waiting for empty slots in receive buffers - "
@@ -606,184 +2414,749 @@ public class MessagePasser {
 				}
 			}
 
+			/**
+			 * Remember the incarnation a remote node sent in its first frame.
+			 * A new one means the node restarted and numbers its messages
+			 * from 1 again, so everything known about its links is dropped
+			 * and the sender starts its own link to the node anew.
+			 * 
+			 * @param peer
+			 *            Name of the remote node.
+			 * @param incarnation
+			 *            Incarnation it sent.
+			 */
+			private void checkIncarnation(String peer, long incarnation) {
+				Long previous = incarnations.put(peer, incarnation);
+				if (previous == null || previous == incarnation) {
+					return;
+				}
+				logger.info("node " + peer
+						+ " restarted, its links start anew");
+				reliability.restartSource(peer);
+				linkStats.remove(peer);
+				linkStats.remove(peer + DATAGRAM_LINK);
+				totalOrder.restart(peer);
+				restartedPeers.add(peer);
+			}
+
+			/**
+			 * @param peer
+			 *            Name of the node on the other end.
+			 * @return True if the node has connected as another incarnation
+			 *         since this connection was opened.
+			 */
+			private boolean isStale(String peer) {
+				Long current = incarnations.get(peer);
+				return current != null && current.longValue() != incarnation;
+			}
+
+			/**
+			 * Record a reliable message in the window of its source and have an
+			 * ack sent back.
+			 * 
+			 * @param message
+			 *            The received message.
+			 * @return True if the message is new, false if it is a duplicate.
+			 */
+			private boolean acceptReliable(Message message) {
+				if (reliability.accept(message)) {
+					return true;
+				}
+				if (logMessages) {
+					logger.info("duplicate dropped - " + message.toString());
+				}
+				return false;
+			}
+
+			/**
+			 * Pass a message from a member of an ordered group to the
+			 * hold-back queues. A message to an ordered group advances the
+			 * local clock right away and has an ack sent to the group.
+			 * 
+			 * @param message
+			 *            The received message.
+			 * @return True if the message is delivered as usual, false if the
+			 *         hold-back queues deliver it.
+			 */
+			private boolean acceptOrdered(Message message) {
+				if (!totalOrder.admit(message)) {
+					return false;
+				}
+				String dest = message.getDest();
+				boolean ordered = totalOrder.isOrdered(dest);
+				if (ordered && !TotalOrder.KIND_ACK.equals(message.getKind())) {
+
+					// the clock service is ready once the node is running
+					if (!awaitRunning()) {
+						return false;
+					}
+					requestOrderAck(dest,
+							((TimeStampedMessage) message).getTimeStamp());
+				}
+				totalOrder.arrive(message);
+				return !ordered;
+			}
+
+			/**
+			 * Advance the local clock past a received time stamp and have the
+			 * new value sent to the group.
+			 * 
+			 * @param group
+			 *            Name of the ordered group.
+			 * @param timeStamp
+			 *            Time stamp of the received message.
+			 */
+			private void requestOrderAck(String group, TimeStamp timeStamp) {
+				sendLock.lock();
+				try {
+					long start = System.nanoTime();
+					TimeStamp now = clock.updateLocalTime(timeStamp);
+					clockMergeTime.record(System.nanoTime() - start);
+					orderAcks.request(group, now);
+				} finally {
+					sendLock.unlock();
+				}
+			}
+
+			/**
+			 * Hold a message until some more messages are delivered.
+			 * 
+			 * @param message
+			 *            The message.
+			 * @param count
+			 *            Number of messages delivered before it.
+			 */
+			private void holdBack(Message message, long count) {
+				delayBufferLock.lock();
+				delayWheel.schedule(message, count);
+				delayBufferLock.unlock();
+			}
+
 			/*
-			 * Upon each receiving, clear delay buffer.
+			 * Upon each receiving, deliver the delayed messages whose count
+			 * is reached.
 			 */
 			private void clearDelayBuffer() {
+				ArrayList<Message> expired = new ArrayList<Message>();
+				delayBufferLock.lock();
+				delayWheel.advance(delayWheel.getTick() + 1, expired);
+				delayBufferLock.unlock();
+				receiveBuffer.addAll(expired);
+			}
+
+			/**
+			 * Receive a frame from the given connection.
+			 * 
+			 * @param connection
+			 *            The connection to receive the frame.
+			 * @return The received frame, null on failure.
+			 */
+			private Frame receiveFrame(IncomingConnection connection) {
+				try {
+					return connection.read(compressionStats, messagePool);
+				} catch (Exception ex) {
+					logger.error("failed to get incoming message - "
+							+ ex.getMessage());
+					return null;
+				}
+			}
+		}
+
+		public void run() {
+
+			/*
+			 * the transport is bound by the watcher before the node is ready,
+			 * connections are accepted while the application is still
+			 * initializing
+			 */
+			if (!awaitConfigured()) {
+				return;
+			}
+			logger.info("receiver thread started");
+			if (state == State.STOPPED) {
+				transport.close();
+				return;
+			}
+			if (replay != null) {
+				replay();
+				return;
+			}
+			if (datagrams != null) {
+				IncomingConnection incoming = datagrams.getIncoming();
+				workerConnections.add(incoming);
+				Thread datagramThread = new Thread(new ReceiverWorker(
+						incoming, true));
+				workerThreads.add(datagramThread);
+				datagramThread.start();
+			}
+
+			while (true) {
+				IncomingConnection connection = null;
 				try {
-					delayBufferLock.lock();
-					while (!delayBuffer.isEmpty()) {
-						receiveBuffer.put(delayBuffer.take());
+					connection = transport.accept();
+				} catch (IOException ex) {
+					if (state == State.STOPPED) {
+						logger.info("receiver thread stopped");
+						return;
 					}
-					delayBufferLock.unlock();
-				} catch (InterruptedException ex) {
-					logger.error("interrupted when clearing delay buffer - "
+					logger.error("failed to accept incoming request - "
+							+ ex.getMessage());
+					continue;
+				}
+
+				// spawn a worker thread
+				workerConnections.add(connection);
+				if (state == State.STOPPED) {
+					connection.close(logger);
+					workerConnections.remove(connection);
+					continue;
+				}
+				ReceiverWorker rw = new ReceiverWorker(connection, false);
+				Thread rwThread = new Thread(rw);
+				workerThreads.add(rwThread);
+				rwThread.start();
+			}
+		}
+
+		/**
+		 * Feed the delivered messages of the recording to receive() once the
+		 * application is initialized, at the pace they were delivered divided
+		 * by the replay speed. They have gone through the rules and the
+		 * ordering already, so they go straight into the receive buffer.
+		 */
+		private void replay() {
+			if (!awaitRunning()) {
+				replay.close();
+				return;
+			}
+			logger.info("replaying " + replayFile + " at "
+					+ (replaySpeed > 0 ? replaySpeed + "x" : "full speed"));
+			long start = System.nanoTime();
+			long first = -1;
+			long count = 0;
+			try {
+				MessageRecording.Entry entry = null;
+				while (state != State.STOPPED && (entry = replay.next()) != null) {
+					if (entry.getType() != MessageRecording.DELIVERED) {
+						continue;
+					}
+					if (first < 0) {
+						first = entry.getNanos();
+					}
+					if (replaySpeed > 0) {
+						long wait = start
+								+ (long) ((entry.getNanos() - first) / replaySpeed)
+								- System.nanoTime();
+						if (wait > 0) {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						}
+					}
+					receiveBuffer.put(entry.getMessage());
+					replayed.increment();
+					count++;
+				}
+			} catch (IOException ex) {
+				logger.error("failed to read recording " + replayFile + " - "
+						+ ex.getMessage());
+			} catch (InterruptedException ex) {
+				if (state != State.STOPPED) {
+					logger.error("interrupted when replaying - "
 							+ ex.getMessage());
 				}
+			} finally {
+				replay.close();
+			}
+			logger.info("replayed " + count + " messages in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+					+ " ms");
+		}
+	}
+
+	/**
+	 * Start a message passer.
+	 * 
+	 * @param configurationFileName
+	 *            Path of a local configuration file, or an http(s) URL to
+	 *            download it from (the local copy is saved in the current
+	 *            directory under the last segment of the URL path).
+	 * @param localName
+	 *            Name of the local node.
+	 */
+	public MessagePasser(String configurationFileName, String localName) {
+		this.state = State.CONFIGURING;
+		this.closed = false;
+		this.readyLatch = new CountDownLatch(1);
+		this.runningLatch = new CountDownLatch(1);
+		this.initialized = false;
+		this.startTime = System.nanoTime();
+		this.startupTimer = new PhaseTimer();
+		this.timeToReady = -1;
+		this.localName = localName;
+		this.logFileName = LOG_FILE_PREFIX + localName + LOG_FILE_SUFFIX;
+		this.logger = new LogTool(logFileName, MessagePasser.class.getName());
+		if (configurationFileName.startsWith("http://")
+				|| configurationFileName.startsWith("https://")) {
+			this.configSource = new HttpConfigSource(configurationFileName,
+					HttpConfigSource.localFileName(configurationFileName),
+					logger);
+		} else {
+			this.configSource = new FileConfigSource(configurationFileName,
+					logger);
+		}
+		this.configurationFileName = configSource.getFileName();
+		this.transport = new TcpTransport(logger, true);
+		this.sendBuffer = new SendQueue();
+		this.receiveBuffer = new LinkedBlockingQueue<Message>();
+		this.socketMap = new ConcurrentHashMap<String, Connection>();
+		this.workerConnections = Collections
+				.newSetFromMap(new ConcurrentHashMap<IncomingConnection, Boolean>());
+		this.workerThreads = Collections
+				.synchronizedList(new ArrayList<Thread>());
+		this.sequenceNumbers = new ConcurrentHashMap<String, AtomicLong>();
+		this.linkStats = new ConcurrentHashMap<String, LinkStats>();
+		this.incarnation = ThreadLocalRandom.current().nextLong();
+		this.incarnations = new ConcurrentHashMap<String, Long>();
+		this.restartedPeers = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.reliability = new ReliableDelivery(sendBuffer, logger);
+		this.heartbeatInterval = Configuration.DEFAULT_HEARTBEAT_INTERVAL;
+		this.detectors = new ConcurrentHashMap<String, PhiAccrualDetector>();
+		this.phiThreshold = Configuration.DEFAULT_PHI_THRESHOLD;
+		this.reportedStates = new HashMap<String, PeerState>();
+		this.controlFrames = new AtomicLong();
+		this.piggybackedAcks = new AtomicLong();
+		this.contactMap = new ConcurrentHashMap<String, Contact>();
+		this.groupMap = Collections.emptyMap();
+		this.totalOrder = new TotalOrder(localName, receiveBuffer, logger);
+		this.compressionMap = Collections.emptyMap();
+		this.defaultCompression = Compression.NONE;
+		this.datagramKinds = Collections.emptySet();
+		this.datagramMtu = Configuration.DEFAULT_DATAGRAM_MTU;
+		this.datagramsConfigured = false;
+		this.datagrams = null;
+		this.fragmentSize = 0;
+		this.fragmentsSent = new AtomicLong();
+		this.compressionStats = new CompressionStats();
+		this.messagePool = null;
+		this.messageBufferSize = Configuration.DEFAULT_MESSAGE_BUFFER_SIZE;
+		this.logMessages = true;
+		this.metrics = new Metrics();
+		this.metricsEndpoint = null;
+		this.metricsPort = -1;
+		this.sentBytes = metrics.counter(METRIC_SENT_BYTES);
+		this.receivedBytes = metrics.counter(METRIC_RECEIVED_BYTES);
+		this.encodeTime = metrics.histogram(METRIC_ENCODE_TIME);
+		this.decodeTime = metrics.histogram(METRIC_DECODE_TIME);
+		this.connectTime = metrics.histogram(METRIC_CONNECT_TIME);
+		this.clockMergeTime = metrics.histogram(METRIC_CLOCK_MERGE_TIME);
+		this.traceSampleRate = 0;
+		this.traceStages = new Histogram[Trace.STAGES.length];
+		for (int i = 0; i < Trace.STAGES.length; i++) {
+			traceStages[i] = metrics.histogram(METRIC_TRACE_PREFIX
+					+ Trace.STAGES[i] + "_nanos");
+		}
+		this.traceTotal = metrics.histogram(METRIC_TRACE_TOTAL);
+		this.journal = null;
+		this.journalFile = null;
+		this.journalSize = Configuration.DEFAULT_JOURNAL_SIZE;
+		this.recording = null;
+		this.recordFile = null;
+		this.replay = null;
+		this.replayFile = null;
+		this.replaySpeed = Configuration.DEFAULT_REPLAY_SPEED;
+		this.replayed = metrics.counter(METRIC_REPLAYED);
+		this.sendLock = new ReentrantLock();
+		this.orderAcks = new OrderAcks(sendBuffer);
+		this.type = ClockService.ClockType.DEFAULT;
+		this.localNodeId = 0;
+		this.clock = null;
+		this.clockDimension = 0;
+		this.nextNodeId = 0;
+		this.rulesLock = new ReentrantLock();
+		this.sendRules = new Rule[0];
+		this.receiveRules = new Rule[0];
+		this.watcher = new Watcher();
+		this.sender = new Sender();
+		this.receiver = new Receiver();
+		this.delayTimer = new DelayTimer();
+		registerGauges();
+		this.metricsBean = new MetricsBean(metrics);
+		metricsBean.register(localName, logger);
+		this.watcherThread = new Thread(watcher);
+		this.senderThread = new Thread(sender);
+		this.receiverThread = new Thread(receiver);
+		this.delayTimerThread = new Thread(delayTimer, "delay timer");
+		this.delayTimerThread.setDaemon(true);
+		this.senderThread.start();
+		this.receiverThread.start();
+		this.watcherThread.start();
+		this.delayTimerThread.start();
+	}
+
+	/**
+	 * Export the sizes of the queues and the counters kept elsewhere as
+	 * gauges, they are read only when the metrics are.
+	 */
+	private void registerGauges() {
+		metrics.gauge("send_queue", new Metrics.Gauge() {
+			public long getValue() {
+				return sendBuffer.size();
+			}
+		});
+		metrics.gauge("receive_queue", new Metrics.Gauge() {
+			public long getValue() {
+				return receiveBuffer.size();
+			}
+		});
+		metrics.gauge("send_delayed", new Metrics.Gauge() {
+			public long getValue() {
+				return sender.getDelayedCount() + delayTimer.size(true);
+			}
+		});
+		metrics.gauge("receive_delayed", new Metrics.Gauge() {
+			public long getValue() {
+				return receiver.getDelayedCount() + delayTimer.size(false);
+			}
+		});
+		metrics.gauge("hold_back", new Metrics.Gauge() {
+			public long getValue() {
+				return totalOrder.size();
+			}
+		});
+		metrics.gauge("unacknowledged", new Metrics.Gauge() {
+			public long getValue() {
+				return reliability.getUnacknowledged();
+			}
+		});
+		metrics.gauge("retransmissions", new Metrics.Gauge() {
+			public long getValue() {
+				return reliability.getRetransmissions();
+			}
+		});
+		metrics.gauge("duplicates_dropped", new Metrics.Gauge() {
+			public long getValue() {
+				return reliability.getDuplicatesDropped();
+			}
+		});
+		metrics.gauge("control_frames", new Metrics.Gauge() {
+			public long getValue() {
+				return controlFrames.get();
+			}
+		});
+		metrics.gauge("piggybacked_acks", new Metrics.Gauge() {
+			public long getValue() {
+				return piggybackedAcks.get();
 			}
+		});
+		metrics.gauge("pool_free", new Metrics.Gauge() {
+			public long getValue() {
+				MessagePool pool = messagePool;
+				return pool == null ? 0 : pool.getFreeCount();
+			}
+		});
+		metrics.gauge("fragments_sent", new Metrics.Gauge() {
+			public long getValue() {
+				return fragmentsSent.get();
+			}
+		});
+		metrics.gauge("datagrams_sent", new Metrics.Gauge() {
+			public long getValue() {
+				DatagramEndpoint endpoint = datagrams;
+				return endpoint == null ? 0 : endpoint.getSentCount();
+			}
+		});
+		metrics.gauge("datagrams_received", new Metrics.Gauge() {
+			public long getValue() {
+				DatagramEndpoint endpoint = datagrams;
+				return endpoint == null ? 0 : endpoint.getReceivedCount();
+			}
+		});
+		metrics.gauge("tls_handshakes", new Metrics.Gauge() {
+			public long getValue() {
+				Transport current = transport;
+				return current instanceof TlsTransport ? ((TlsTransport) current)
+						.getHandshakeCount() : 0;
+			}
+		});
+		metrics.gauge("tls_resumed", new Metrics.Gauge() {
+			public long getValue() {
+				Transport current = transport;
+				return current instanceof TlsTransport ? ((TlsTransport) current)
+						.getResumedCount() : 0;
+			}
+		});
+		metrics.gauge(METRIC_RECORDED, new Metrics.Gauge() {
+			public long getValue() {
+				MessageRecording current = recording;
+				return current == null ? 0 : current.getCount();
+			}
+		});
+	}
+
+	/**
+	 * Configuration has been parsed successfully, create the clock service
+	 * and move to READY. Messages may be sent from then on. Called with the
+	 * close lock held.
+	 */
+	private void markReady() {
+		clock = ClockService.create(clockDimension, type, localNodeId);
+		timeToReady = System.nanoTime() - startTime;
+		state = State.READY;
+		logger.info("ready in "
+				+ TimeUnit.NANOSECONDS.toMillis(timeToReady) + " ms");
+		readyLatch.countDown();
+	}
+
+	/**
+	 * Configuration cannot be used, move to STOPPED and release everyone
+	 * waiting on the latches so that they can exit. Called with the close
+	 * lock held.
+	 */
+	private void markFailed() {
+		state = State.STOPPED;
+		logger.error("failed to load configuration, message passer stopped");
+		readyLatch.countDown();
+		runningLatch.countDown();
+	}
+
+	/**
+	 * Block the calling thread until the configuration has been parsed.
+	 * 
+	 * @return True if the configuration is usable, false if the message passer
+	 *         is stopped or the thread is interrupted.
+	 */
+	private boolean awaitConfigured() {
+		try {
+			readyLatch.await();
+		} catch (InterruptedException ex) {
+			logger.error("interrupted when waiting for configuration - "
+					+ ex.getMessage());
+			return false;
+		}
+		return state != State.STOPPED;
+	}
+
+	/**
+	 * Block the calling thread until initialize() is called.
+	 * 
+	 * @return True if the message passer is running, false if it is stopped
+	 *         or the thread is interrupted.
+	 */
+	private boolean awaitRunning() {
+		try {
+			runningLatch.await();
+		} catch (InterruptedException ex) {
+			logger.error("interrupted when waiting for initialization - "
+					+ ex.getMessage());
+			return false;
+		}
+		return state == State.RUNNING;
+	}
 
-			/**
-			 * Receive a message from the given socket.
-			 * 
-			 * @param socket
-			 *            The socket to receive the message.
-			 * @return The received message, null on failure.
-			 */
-			private Message receiveMessage(Socket socket) {
-				InputStream input = null;
-				ObjectInputStream objectInput = null;
-				try {
-					input = socket.getInputStream();
-				} catch (Exception ex) {
-					logger.error("failed to get input stream - "
-							+ ex.getMessage());
-					return null;
-				}
-				try {
-					objectInput = new ObjectInputStream(input);
-				} catch (Exception ex) {
-					logger.error("failed to get object input stream - "
-							+ ex.getMessage());
-					if (objectInput != null) {
-						try {
-							objectInput.close();
-						} catch (Exception nestedEx) {
-							logger.error("failed to close object input stream - "
-									+ nestedEx);
-						}
-					}
-					return null;
-				}
-				Message incomingMessage = null;
-				try {
-					incomingMessage = (Message) objectInput.readObject();
-				} catch (Exception ex) {
-					logger.error("failed to get incoming message - "
-							+ ex.getMessage());
-					if (objectInput != null) {
-						try {
-							objectInput.close();
-						} catch (Exception nestedEx) {
-							logger.error("failed to close object input stream - "
-									+ nestedEx);
-						}
-					}
-					return null;
-				}
-				return incomingMessage;
+	/**
+	 * Take the next sequence number of the link to a remote node. Each link
+	 * has its own counter so concurrent senders only contend per link.
+	 * 
+	 * @param dest
+	 *            Name of the remote node.
+	 * @return The sequence number of the next message to dest, starting at 1.
+	 */
+	private long nextSequenceNumber(String dest) {
+		AtomicLong counter = sequenceNumbers.get(dest);
+		if (counter == null) {
+			counter = new AtomicLong();
+			AtomicLong existing = sequenceNumbers.putIfAbsent(dest, counter);
+			if (existing != null) {
+				counter = existing;
 			}
 		}
+		return counter.incrementAndGet();
+	}
 
-		public void run() {
-			while (!initialized) {
-				continue;
+	/**
+	 * Update the statistics of the link a message came from.
+	 * 
+	 * @param message
+	 *            The received message.
+	 * @param link
+	 *            Name of the link, the source or the source followed by
+	 *            DATAGRAM_LINK.
+	 */
+	private void recordReceived(Message message, String link) {
+		LinkStats stats = linkStats.get(link);
+		if (stats == null) {
+			stats = new LinkStats();
+			LinkStats existing = linkStats.putIfAbsent(link, stats);
+			if (existing != null) {
+				stats = existing;
 			}
-			logger.info("receiver thread started");
+		}
+		stats.record(message.getSequenceNumber());
+	}
 
-			if (!contactMap.containsKey(localName)) {
-				return;
+	/**
+	 * Get the failure detector of a remote node, create one if it does not
+	 * exist.
+	 * 
+	 * @param name
+	 *            Name of the remote node.
+	 * @return The failure detector.
+	 */
+	private PhiAccrualDetector detector(String name) {
+		PhiAccrualDetector detector = detectors.get(name);
+		if (detector == null) {
+			detector = new PhiAccrualDetector(heartbeatInterval);
+			PhiAccrualDetector existing = detectors.putIfAbsent(name, detector);
+			if (existing != null) {
+				detector = existing;
 			}
+		}
+		return detector;
+	}
 
-			Contact self = contactMap.get(localName);
-			serverSocket = NetTool.createServerSocket(self.IP, self.port,
-					logger);
-
-			// failure on creating server socket is a fatal error
-			if (serverSocket == null) {
-				logger.error("cannot create server socket on " + self.IP + ":"
-						+ self.port);
-				return;
+	/**
+	 * Remove the connection to the given node and close it.
+	 * 
+	 * @param dest
+	 *            Name of the remote node.
+	 */
+	private void closeSocket(String dest) {
+		Connection connection = socketMap.remove(dest);
+		if (connection != null) {
+			connection.close(logger);
+			if (journal != null) {
+				journal.record(EventJournal.DISCONNECT, 0, dest, null, 0, 0,
+						null);
 			}
+		}
+	}
 
-			while (true) {
-				Socket clientSocket = null;
-				try {
-					clientSocket = serverSocket.accept();
-				} catch (IOException ex) {
-					logger.error("failed to accept incoming request - "
-							+ ex.getMessage());
-					continue;
-				}
-
-				// spawn a worker thread
-				ReceiverWorker rw = new ReceiverWorker(clientSocket);
-				Thread rwThread = new Thread(rw);
-				rwThread.start();
+	/**
+	 * Wait for a thread to exit until the deadline passes.
+	 * 
+	 * @param thread
+	 *            The thread to join.
+	 * @param deadline
+	 *            Deadline in System.nanoTime().
+	 * @return True if the thread has exited.
+	 */
+	private boolean joinUntil(Thread thread, long deadline) {
+		long remaining = deadline - System.nanoTime();
+		try {
+			if (remaining > 0) {
+				TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
 			}
+		} catch (InterruptedException ex) {
+			logger.error("interrupted when waiting for thread to exit - "
+					+ ex.getMessage());
 		}
+		return !thread.isAlive();
 	}
 
-	public MessagePasser(String configurationFileName, String localName) {
-		this.initialized = false;
-		this.configurationFileName = configurationFileName;
-		this.localName = localName;
-		this.logger = new LogTool("ipc.log", MessagePasser.class.getName());
-		this.sendBuffer = new LinkedBlockingQueue<Message>();
-		this.receiveBuffer = new LinkedBlockingQueue<Message>();
-		this.socketMap = new HashMap<String, Socket>();
-		this.seqNum = 1;
-		this.contactMap = new HashMap<String, Contact>();
-		this.type = ClockService.ClockType.DEFAULT;
-		this.localNodeId = 0;
-		this.rulesLock = new ReentrantLock();
-		this.watcher = new Watcher();
-		this.sender = new Sender();
-		this.receiver = new Receiver();
-		this.watcherThread = new Thread(watcher);
-		this.senderThread = new Thread(sender);
-		this.receiverThread = new Thread(receiver);
-		this.watcherThread.start();
-		this.senderThread.start();
-		this.receiverThread.start();
+	/**
+	 * Stop the message passer with the default timeout.
+	 * 
+	 * @see #close(long)
+	 */
+	public void close() {
+		close(DEFAULT_CLOSE_TIMEOUT);
 	}
 
 	/**
-	 * Match a message against rules.
+	 * Stop the message passer. Messages already in the send buffer (including
+	 * delayed ones) are sent before the deadline if possible, then all
+	 * connections are closed and all threads are stopped. Calling this method
+	 * more than once has no effect.
 	 * 
-	 * @param message
-	 *            The message to check.
-	 * @param rules
-	 *            The rules (send or receive) to match.
-	 * @return ACTION_DROP, ACTION_DELAY or ACTION_DUPLICATE, null on no match.
-	 */
-	private String checkRules(Message message,
-			ArrayList<HashMap<String, Object>> rules) {
-		rulesLock.lock();
-		for (HashMap<String, Object> rule : rules) {
-			boolean match = true;
-			if (match && rule.containsKey(RULE_SRC)
-					&& (!rule.get(RULE_SRC).equals(message.getSource()))) {
-				match = false;
-			}
-			if (match && rule.containsKey(RULE_DST)
-					&& (!rule.get(RULE_DST).equals(message.getDest()))) {
-				match = false;
-			}
-			if (match && rule.containsKey(RULE_KIND)
-					&& (!rule.get(RULE_KIND).equals(message.getKind()))) {
-				match = false;
-			}
-			if (match
-					&& rule.containsKey(RULE_SEQ_NUM)
-					&& ((Integer) rule.get(RULE_SEQ_NUM)) != message
-							.getSequenceNumber()) {
-				match = false;
-			}
-			if (match && rule.containsKey(RULE_DUP)
-					&& ((Boolean) rule.get(RULE_DUP) != message.isDupe())) {
-				match = false;
-			}
-			if (match) {
-				rulesLock.unlock();
-				return (String) rule.get(RULE_ACTION);
+	 * @param timeout
+	 *            Time in milliseconds allowed to drain the send buffer.
+	 */
+	public void close(long timeout) {
+		synchronized (this) {
+			if (closed) {
+				return;
 			}
+			closed = true;
+			state = State.STOPPED;
+		}
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+		logger.info("closing message passer");
+		readyLatch.countDown();
+		runningLatch.countDown();
+
+		// the sender drains everything queued before the stop marker
+		sendBuffer.add(STOP);
+		if (!joinUntil(senderThread, deadline)) {
+			logger.error(sendBuffer.size()
+					+ " messages still in send buffer after " + timeout
+					+ " ms, giving up");
+			senderThread.interrupt();
+		}
+
+		watcherThread.interrupt();
+		delayTimerThread.interrupt();
+		configSource.close();
+		transport.close();
+		if (datagrams != null) {
+			datagrams.close();
 		}
-		rulesLock.unlock();
-		return null;
+		for (String dest : socketMap.keySet()) {
+			closeSocket(dest);
+		}
+		for (IncomingConnection connection : workerConnections) {
+			connection.close(logger);
+		}
+		workerConnections.clear();
+
+		// stop a replay waiting for the next message
+		if (replay != null) {
+			receiverThread.interrupt();
+		}
+
+		// wake up the application threads blocked in receive()
+		receiveBuffer.add(STOP);
+
+		// everything that may still log stops before the log is closed
+		joinUntil(senderThread, deadline);
+		sender.awaitFanOut(deadline);
+		joinUntil(watcherThread, deadline);
+		joinUntil(delayTimerThread, deadline);
+		joinUntil(receiverThread, deadline);
+		ArrayList<Thread> workers = null;
+		synchronized (workerThreads) {
+			workers = new ArrayList<Thread>(workerThreads);
+		}
+		for (Thread thread : workers) {
+			joinUntil(thread, deadline);
+		}
+		if (metricsEndpoint != null) {
+			metricsEndpoint.stop();
+		}
+		metricsBean.unregister(logger);
+		if (journal != null) {
+			journal.close(logger);
+		}
+		if (recording != null) {
+			recording.close();
+		}
+		logger.info("message passer closed");
+		logger.close();
+	}
+
+	/**
+	 * @param nanos
+	 *            A wait in nanoseconds.
+	 * @return The wait in whole milliseconds, rounded up.
+	 */
+	private static long toDelay(long nanos) {
+		return (nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1)
+				/ TimeUnit.MILLISECONDS.toNanos(1);
 	}
 
 	/**
-	 * Put a message into the send buffer.
+	 * Put a message into the send buffer. A pooled message belongs to the
+	 * message passer from now on.
 	 * 
 	 * @param message
 	 *            The message to send.
@@ -791,34 +3164,162 @@ public class MessagePasser {
 	 */
 	public TimeStamp send(Message message) {
 		TimeStamp ts = null;
+		if (state == State.STOPPED) {
+			logger.error("cannot send after the message passer is closed - "
+					+ message.toString());
+			message.release();
+			return null;
+		}
+		if (state == State.CONFIGURING) {
+			logger.error("cannot send before the configuration is ready - "
+					+ message.toString());
+			message.release();
+			return null;
+		}
+		if (message instanceof BytesMessage) {
+			((BytesMessage) message).seal();
+		}
+		Trace trace = null;
+		if (traceSampleRate > 0
+				&& ThreadLocalRandom.current().nextDouble() < traceSampleRate) {
+			trace = new Trace();
+			trace.stamp(Trace.ENQUEUE);
+		}
+		message.setTrace(trace);
+		sendLock.lock();
 		try {
 			if (type != ClockService.ClockType.DEFAULT
 					&& message instanceof TimeStampedMessage) {
-				ts = ClockService.getInstance().updateLocalTime();
+				ts = clock.updateLocalTime();
 				((TimeStampedMessage) message).setTimeStamp(ts);
+				orderAcks.stamped((TimeStampedMessage) message);
 			}
-			sendBuffer.put(message);
-		} catch (InterruptedException ex) {
-			logger.info("interrupted when sending message - " + ex.getMessage());
+
+			if (recording != null) {
+				recording.record(MessageRecording.SENT, message);
+			}
+
+			// nothing leaves a node replaying a recording
+			if (replay != null) {
+				message.release();
+				return ts;
+			}
+
+			// the message may have been sent before and changed since
+			message.setEncoded(null);
+			if (totalOrder.isOrdered(message.getDest())
+					&& !holdLocalCopy(message)) {
+				message.release();
+				return null;
+			}
+			sendBuffer.add(message);
+		} finally {
+			sendLock.unlock();
 		}
 		return ts;
 	}
 
+	/**
+	 * Put the local copy of a message to an ordered group into its hold-back
+	 * queue, it is delivered in the same order as on the other members.
+	 * 
+	 * @param message
+	 *            The time stamped message.
+	 * @return False if the message cannot be sent to the group.
+	 */
+	private boolean holdLocalCopy(Message message) {
+		if (!groupMap.get(message.getDest()).contains(localName)) {
+			logger.error("only members can send to ordered group "
+					+ message.getDest());
+			return false;
+		}
+		if (!(message instanceof TimeStampedMessage)) {
+			logger.error("messages to ordered group " + message.getDest()
+					+ " need a time stamp");
+			return false;
+		}
+		message.setSource(localName);
+		totalOrder.hold((TimeStampedMessage) message.copy());
+		return true;
+	}
+
+	/**
+	 * Send a message to every member of a group defined in the configuration
+	 * file. This is a single event to the clock: all members get the same time
+	 * stamp and the message is serialized once for all of them. Members
+	 * receive the message with the group name as its destination. If the
+	 * group is ordered, all members (the sender included) receive the
+	 * messages to it in the same order.
+	 * 
+	 * @param group
+	 *            Name of the group.
+	 * @param kind
+	 *            Kind of the message.
+	 * @param data
+	 *            Data of the message.
+	 * @return The updated local time stamp due to this sending event, null if
+	 *         the group does not exist.
+	 */
+	public TimeStamp multicast(String group, String kind, Object data) {
+		if (!groupMap.containsKey(group)) {
+			logger.error("group with name " + group + " does not exist");
+			return null;
+		}
+		return send(new TimeStampedMessage(group, kind, data));
+	}
+
+	/**
+	 * Take a bytes message to fill and send, from the message pool if there
+	 * is one. Its payload buffer holds messageBufferSize bytes.
+	 * 
+	 * @param dest
+	 *            Destination of the message.
+	 * @param kind
+	 *            Kind of the message.
+	 * @return The message, see BytesMessage for who releases it.
+	 */
+	public BytesMessage obtain(String dest, String kind) {
+		if (messagePool == null) {
+			return new BytesMessage(dest, kind,
+					ByteBuffer.allocate(messageBufferSize));
+		}
+		return messagePool.obtain(dest, kind);
+	}
+
 	/**
 	 * Take the next message from the receive buffer.
 	 * 
-	 * @return The next message in the receive buffer.
+	 * @return The next message in the receive buffer, null if the message
+	 *         passer is closed.
 	 */
 	public Message receive() {
 		Message message = null;
 		try {
 			message = receiveBuffer.take();
+			if (message == STOP) {
+				// leave the marker for other threads blocked in receive()
+				receiveBuffer.add(STOP);
+				return null;
+			}
+			Trace trace = message.getTrace();
+			if (trace != null) {
+				trace.stamp(Trace.DELIVER);
+			}
+			if (recording != null) {
+				recording.record(MessageRecording.DELIVERED, message);
+			}
 			if (type != ClockService.ClockType.DEFAULT
 					&& message instanceof TimeStampedMessage) {
-				TimeStamp ts = ClockService.getInstance().updateLocalTime(
+				long start = System.nanoTime();
+				TimeStamp ts = clock.updateLocalTime(
 						((TimeStampedMessage) message).getTimeStamp());
+				clockMergeTime.record(System.nanoTime() - start);
 				((TimeStampedMessage) message).setTimeStamp(ts);
 			}
+			if (trace != null) {
+				trace.stamp(Trace.MERGE);
+				recordTrace(trace);
+			}
 		} catch (InterruptedException ex) {
 			logger.info("interrupted when receiving message - "
 					+ ex.getMessage());
@@ -826,16 +3327,245 @@ public class MessagePasser {
 		return message;
 	}
 
+	/**
+	 * Add the stages of a delivered message to the trace histograms.
+	 * 
+	 * @param trace
+	 *            Trace stamps of the message.
+	 */
+	private void recordTrace(Trace trace) {
+		for (int i = 0; i < traceStages.length; i++) {
+			long nanos = trace.getStage(i);
+			if (nanos >= 0) {
+				traceStages[i].record(nanos);
+			}
+		}
+		long total = trace.getTotal();
+		if (total >= 0) {
+			traceTotal.record(total);
+		}
+	}
+
 	public int getNumOfNodes() {
 		return contactMap.size();
 	}
 
+	/**
+	 * @return Number of entries the vector clock needs, which may be larger
+	 *         than the number of nodes when node IDs are given explicitly.
+	 */
+	public int getClockDimension() {
+		return clockDimension;
+	}
+
 	public boolean parseConfigurationFinished() {
-		return watcher.configurationParsed;
+		return readyLatch.getCount() == 0;
+	}
+
+	/**
+	 * Wait until the configuration has been parsed.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait in milliseconds.
+	 * @return True if the message passer is ready to be initialized, false on
+	 *         configuration failure, timeout or interruption.
+	 */
+	public boolean awaitReady(long timeout) {
+		try {
+			if (!readyLatch.await(timeout, TimeUnit.MILLISECONDS)) {
+				logger.error("configuration not ready after " + timeout
+						+ " ms");
+				return false;
+			}
+		} catch (InterruptedException ex) {
+			logger.error("interrupted when waiting for configuration - "
+					+ ex.getMessage());
+			return false;
+		}
+		return state == State.READY || state == State.RUNNING;
 	}
 
+	/**
+	 * Start the sender and receiver threads, must be called after the
+	 * configuration is ready.
+	 */
 	public void initialize() {
-		this.initialized = true;
+		if (state != State.READY) {
+			logger.error("cannot initialize in state " + state);
+			return;
+		}
+		initialized = true;
+		state = State.RUNNING;
+		runningLatch.countDown();
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return Name of the file the node logs into.
+	 */
+	public String getLogFileName() {
+		return logFileName;
+	}
+
+	/**
+	 * @return Time from construction to READY in nanoseconds, -1 if not ready
+	 *         yet.
+	 */
+	public long getTimeToReady() {
+		return timeToReady;
+	}
+
+	/**
+	 * @return A snapshot of the statistics of every link to the local node,
+	 *         keyed by the name of the source.
+	 */
+	public Map<String, LinkStats> getLinkStats() {
+		HashMap<String, LinkStats> snapshot = new HashMap<String, LinkStats>();
+		for (Map.Entry<String, LinkStats> entry : linkStats.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return Number of reliable messages sent again after a timeout.
+	 */
+	public long getRetransmissionCount() {
+		return reliability.getRetransmissions();
+	}
+
+	/**
+	 * @return Number of reliable messages dropped as duplicates.
+	 */
+	public long getDuplicateCount() {
+		return reliability.getDuplicatesDropped();
+	}
+
+	/**
+	 * @return Duration of each startup phase (fetch, parse, bind, warm-up).
+	 */
+	public String getStartupReport() {
+		return startupTimer.toString();
+	}
+
+	/**
+	 * @return Members of every group, by group name.
+	 */
+	public Map<String, List<String>> getGroups() {
+		return groupMap;
+	}
+
+	/**
+	 * @param name
+	 *            Name of a remote node.
+	 * @return Milliseconds since the last frame from the node, -1 if none has
+	 *         been received.
+	 */
+	public long getIdleTime(String name) {
+		PhiAccrualDetector detector = detectors.get(name);
+		long last = detector == null ? -1 : detector.getLastHeartbeat();
+		if (last < 0) {
+			return -1;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+	}
+
+	/**
+	 * @param name
+	 *            Name of a remote node.
+	 * @return Suspicion level of the node, 0 if nothing has been heard from
+	 *         it.
+	 */
+	public double getPhi(String name) {
+		PhiAccrualDetector detector = detectors.get(name);
+		return detector == null ? 0 : detector.phi(System.nanoTime());
+	}
+
+	/**
+	 * @param name
+	 *            Name of a remote node.
+	 * @return State of the node.
+	 */
+	public PeerState getPeerState(String name) {
+		PhiAccrualDetector detector = detectors.get(name);
+		if (detector == null) {
+			return PeerState.UNKNOWN;
+		}
+		if (detector.phi(System.nanoTime()) >= phiThreshold) {
+			return PeerState.SUSPECTED;
+		}
+		return detector.getLastHeartbeat() < 0 ? PeerState.UNKNOWN
+				: PeerState.ALIVE;
+	}
+
+	/**
+	 * @return State of every remote node, by node name.
+	 */
+	public Map<String, PeerState> getPeerStates() {
+		HashMap<String, PeerState> states = new HashMap<String, PeerState>();
+		for (String name : contactMap.keySet()) {
+			if (!name.equals(localName)) {
+				states.put(name, getPeerState(name));
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * @return Number of frames sent without a message (heartbeats and acks
+	 *         with no message to ride on).
+	 */
+	public long getControlFrameCount() {
+		return controlFrames.get();
+	}
+
+	/**
+	 * @return Number of acks carried in the header of a message.
+	 */
+	public long getPiggybackedAckCount() {
+		return piggybackedAcks.get();
+	}
+
+	/**
+	 * @return A snapshot of the compression statistics, sent and received
+	 *         messages together.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats.snapshot();
+	}
+
+	/**
+	 * @return The metrics of the node, also exposed over JMX as
+	 *         ipc:type=MessagePasser,name=&lt;local name&gt;.
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return Port of the HTTP metrics endpoint, -1 if it is not running.
+	 */
+	public int getMetricsPort() {
+		MetricsEndpoint endpoint = metricsEndpoint;
+		return endpoint == null ? -1 : endpoint.getPort();
+	}
+
+	/**
+	 * @return The message pool, null if pooling is off.
+	 */
+	public MessagePool getMessagePool() {
+		return messagePool;
+	}
+
+	/**
+	 * @return Number of messages to ordered groups received but not delivered
+	 *         yet.
+	 */
+	public int getHoldBackSize() {
+		return totalOrder.size();
 	}
 
 	public ClockService.ClockType getClockServiceType() {
@@ -845,4 +3575,12 @@ public class MessagePasser {
 	public int getLocalNodeId() {
 		return localNodeId;
 	}
+
+	/**
+	 * @return Clock service of the node, for local events. Null before the
+	 *         node is ready or without a clock service.
+	 */
+	public ClockService getClock() {
+		return clock;
+	}
 }
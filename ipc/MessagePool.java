@@ -0,0 +1,86 @@
+package ipc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of bytes messages with payload buffers of a fixed capacity, so that a
+ * node sending and receiving them in a steady state does not allocate any. A
+ * message is taken with {@link #obtain(String, String)} and comes back when
+ * released, see {@link BytesMessage} for who releases it. When the pool is
+ * empty a new message is created, when it is full a released message is left
+ * to the garbage collector.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class MessagePool {
+	private ArrayBlockingQueue<BytesMessage> free;
+	private int bufferSize;
+
+	// messages created because the pool was empty
+	private AtomicLong created;
+
+	/**
+	 * @param size
+	 *            Largest number of free messages kept.
+	 * @param bufferSize
+	 *            Capacity of the payload buffers in bytes.
+	 */
+	public MessagePool(int size, int bufferSize) {
+		this.free = new ArrayBlockingQueue<BytesMessage>(Math.max(size, 1));
+		this.bufferSize = bufferSize;
+		this.created = new AtomicLong();
+	}
+
+	/**
+	 * Take a message, its payload buffer is cleared.
+	 * 
+	 * @param dest
+	 *            Destination of the message.
+	 * @param kind
+	 *            Kind of the message.
+	 * @return The message, owned by the caller until it is sent or released.
+	 */
+	public BytesMessage obtain(String dest, String kind) {
+		BytesMessage message = free.poll();
+		if (message == null) {
+			message = new BytesMessage(this, bufferSize);
+			created.incrementAndGet();
+		}
+		message.reset(dest, kind);
+		return message;
+	}
+
+	/**
+	 * Put a message released by everyone back.
+	 * 
+	 * @param message
+	 *            A message of this pool.
+	 */
+	void recycle(BytesMessage message) {
+		free.offer(message);
+	}
+
+	/**
+	 * @return Capacity of the payload buffers in bytes.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return Number of messages created since the pool was made.
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * @return Number of free messages in the pool.
+	 */
+	public int getFreeCount() {
+		return free.size();
+	}
+}
@@ -0,0 +1,519 @@
+package ipc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import clock.ClockService;
+import clock.TimeStamp;
+
+/**
+ * Recording of the message stream of one node: every message passed to
+ * send() and every message delivered by receive(), with the time since the
+ * previous one, so that the stream can be replayed at its original pace. A
+ * message passer configured to replay a recording feeds the delivered
+ * messages back to receive() without any network.
+ * 
+ * The file holds a header (a magic number, the format version, the name of
+ * the node and the wall clock when the recording started) and then one entry
+ * per message. Numbers are written as variable-length integers and names are
+ * written once and referred to by index afterwards, so an entry for a short
+ * message takes a few dozen bytes. Strings, integers and the payloads of
+ * bytes messages are written directly, other data is serialized.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class MessageRecording {
+
+	// a message passed to send()
+	public static final byte SENT = 1;
+
+	// a message delivered by receive(), before the clock merge
+	public static final byte DELIVERED = 2;
+
+	private static final int MAGIC = 0x49505231;
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// flags of an entry, after the type in its first byte
+	private static final int TYPE_MASK = 3;
+	private static final int FLAG_DUPE = 4;
+	private static final int FLAG_STAMPED = 8;
+
+	// how the data of a message is written
+	private static final byte DATA_NULL = 0;
+	private static final byte DATA_STRING = 1;
+	private static final byte DATA_INTEGER = 2;
+	private static final byte DATA_BYTES = 3;
+	private static final byte DATA_OBJECT = 4;
+
+	// a name is null, or follows, or is the (index - NAME_FIRST)th one seen
+	private static final int NAME_NULL = 0;
+	private static final int NAME_NEW = 1;
+	private static final int NAME_FIRST = 2;
+
+	// names are given an index, up to this many of them
+	private static final int NAME_TABLE_SIZE = 4096;
+
+	// a time stamp of an unknown type, or none
+	private static final byte CLOCK_NONE = -1;
+
+	// largest string or data accepted, anything bigger means a corrupt file
+	private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	private DataOutputStream output;
+	private HashMap<String, Integer> names;
+	private long lastNanos;
+	private long count;
+	private boolean failed;
+	private LogTool logger;
+
+	/**
+	 * A message read back from a recording.
+	 */
+	public static class Entry {
+		private byte type;
+		private long nanos;
+		private Message message;
+
+		public byte getType() {
+			return type;
+		}
+
+		/**
+		 * @return System.nanoTime() when the message was recorded, relative to
+		 *         the start of the recording.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		public Message getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Sequential reader of a recording file.
+	 */
+	public static class Reader {
+		private DataInputStream input;
+		private ArrayList<String> names;
+		private String node;
+		private long startMillis;
+		private long nanos;
+
+		private Reader(String fileName) throws IOException {
+			this.input = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(fileName), BUFFER_SIZE));
+			this.names = new ArrayList<String>();
+			this.nanos = 0;
+			try {
+				if (input.readInt() != MAGIC) {
+					throw new IOException(fileName + " is not a recording");
+				}
+				int version = input.readByte();
+				if (version != VERSION) {
+					throw new IOException("unknown recording version "
+							+ version);
+				}
+				this.node = input.readUTF();
+				this.startMillis = input.readLong();
+			} catch (IOException ex) {
+				input.close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * @return Name of the node that made the recording.
+		 */
+		public String getNode() {
+			return node;
+		}
+
+		/**
+		 * @return System.currentTimeMillis() when the recording started.
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * Read the next message.
+		 * 
+		 * @return The entry, null at the end of the recording.
+		 * @throws IOException
+		 *             If the file cannot be read or is corrupt.
+		 */
+		public Entry next() throws IOException {
+			int first = input.read();
+			if (first < 0) {
+				return null;
+			}
+			try {
+				Entry entry = new Entry();
+				entry.type = (byte) (first & TYPE_MASK);
+				nanos += readVarLong(input);
+				entry.nanos = nanos;
+				String source = readName();
+				String dest = readName();
+				String kind = readName();
+				long sequenceNumber = readVarLong(input);
+				TimeStamp timeStamp = null;
+				if ((first & FLAG_STAMPED) != 0) {
+					timeStamp = readTimeStamp();
+				}
+				Message message = readData(dest, kind,
+						(first & FLAG_STAMPED) != 0);
+				if (message instanceof TimeStampedMessage) {
+					((TimeStampedMessage) message).setTimeStamp(timeStamp);
+				}
+				message.setSource(source);
+				message.setSequenceNumber(sequenceNumber);
+				message.setDupe((first & FLAG_DUPE) != 0);
+				entry.message = message;
+				return entry;
+			} catch (EOFException ex) {
+				throw new IOException("recording is truncated");
+			}
+		}
+
+		public void close() {
+			try {
+				input.close();
+			} catch (IOException ex) {
+				// nothing was written
+			}
+		}
+
+		private String readName() throws IOException {
+			int index = (int) readVarLong(input);
+			if (index == NAME_NULL) {
+				return null;
+			}
+			if (index == NAME_NEW) {
+				String name = input.readUTF();
+				if (names.size() < NAME_TABLE_SIZE) {
+					names.add(name);
+				}
+				return name;
+			}
+			if (index - NAME_FIRST >= names.size()) {
+				throw new IOException("unknown name " + index);
+			}
+			return names.get(index - NAME_FIRST);
+		}
+
+		private TimeStamp readTimeStamp() throws IOException {
+			byte type = input.readByte();
+			if (type == CLOCK_NONE) {
+				return null;
+			}
+			if (type < 0 || type >= ClockService.ClockType.values().length) {
+				throw new IOException("unknown clock type " + type);
+			}
+			int size = (int) readVarLong(input);
+			if (size < 0 || size > MAX_LENGTH) {
+				throw new IOException("invalid clock size " + size);
+			}
+			int[] values = new int[size];
+			for (int i = 0; i < size; i++) {
+				values[i] = (int) readVarLong(input);
+			}
+			return TimeStamp.restore(ClockService.ClockType.values()[type],
+					values);
+		}
+
+		private Message readData(String dest, String kind, boolean stamped)
+				throws IOException {
+			byte tag = input.readByte();
+			if (tag == DATA_BYTES) {
+				byte[] payload = new byte[readLength()];
+				input.readFully(payload);
+				return new BytesMessage(dest, kind, ByteBuffer.wrap(payload));
+			}
+			Object data = null;
+			if (tag == DATA_STRING) {
+				byte[] bytes = new byte[readLength()];
+				input.readFully(bytes);
+				data = new String(bytes, StandardCharsets.UTF_8);
+			} else if (tag == DATA_INTEGER) {
+				data = Integer.valueOf(input.readInt());
+			} else if (tag == DATA_OBJECT) {
+				byte[] bytes = new byte[readLength()];
+				input.readFully(bytes);
+				try {
+					data = new ObjectInputStream(new ByteArrayInputStream(
+							bytes)).readObject();
+				} catch (ClassNotFoundException ex) {
+					throw new IOException("unknown data class - "
+							+ ex.getMessage());
+				}
+			} else if (tag != DATA_NULL) {
+				throw new IOException("unknown data tag " + tag);
+			}
+			if (stamped) {
+				return new TimeStampedMessage(dest, kind, data);
+			}
+			return new Message(dest, kind, data);
+		}
+
+		private int readLength() throws IOException {
+			long length = readVarLong(input);
+			if (length < 0 || length > MAX_LENGTH) {
+				throw new IOException("invalid length " + length);
+			}
+			return (int) length;
+		}
+	}
+
+	private MessageRecording(DataOutputStream output, LogTool logger) {
+		this.output = output;
+		this.names = new HashMap<String, Integer>();
+		this.lastNanos = System.nanoTime();
+		this.count = 0;
+		this.failed = false;
+		this.logger = logger;
+	}
+
+	/**
+	 * Start a recording, an existing file is replaced.
+	 * 
+	 * @param fileName
+	 *            Path of the file.
+	 * @param node
+	 *            Name of the local node, kept in the header.
+	 * @param logger
+	 *            Where errors are logged.
+	 * @return The recording, null on failure.
+	 */
+	public static MessageRecording create(String fileName, String node,
+			LogTool logger) {
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(fileName), BUFFER_SIZE));
+			output.writeInt(MAGIC);
+			output.writeByte(VERSION);
+			output.writeUTF(node);
+			output.writeLong(System.currentTimeMillis());
+		} catch (IOException ex) {
+			logger.error("failed to create recording " + fileName + " - "
+					+ ex.getMessage());
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException closeEx) {
+					// already failed
+				}
+			}
+			return null;
+		}
+		return new MessageRecording(output, logger);
+	}
+
+	/**
+	 * Open a recording to replay or inspect.
+	 * 
+	 * @param fileName
+	 *            Path of the file.
+	 * @return The reader, positioned at the first message.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a recording.
+	 */
+	public static Reader open(String fileName) throws IOException {
+		return new Reader(fileName);
+	}
+
+	/**
+	 * Append a message. A message whose data cannot be serialized is left
+	 * out, the first failure to write is logged and the recording stops
+	 * there.
+	 * 
+	 * @param type
+	 *            SENT or DELIVERED.
+	 * @param message
+	 *            The message, it is not changed.
+	 */
+	public synchronized void record(byte type, Message message) {
+		if (failed) {
+			return;
+		}
+		byte[] serialized = null;
+		Object data = message.getData();
+		if (!(message instanceof BytesMessage) && data != null
+				&& !(data instanceof String) && !(data instanceof Integer)) {
+			try {
+				serialized = serialize(data);
+			} catch (IOException ex) {
+				logger.error("failed to record message - " + ex.getMessage());
+				return;
+			}
+		}
+		try {
+			int first = type;
+			if (message.isDupe()) {
+				first |= FLAG_DUPE;
+			}
+			if (message instanceof TimeStampedMessage) {
+				first |= FLAG_STAMPED;
+			}
+			long now = System.nanoTime();
+			output.writeByte(first);
+			writeVarLong(output, Math.max(now - lastNanos, 0));
+			lastNanos = now;
+			writeName(message.getSource());
+			writeName(message.getDest());
+			writeName(message.getKind());
+			writeVarLong(output, message.getSequenceNumber());
+			if (message instanceof TimeStampedMessage) {
+				writeTimeStamp(((TimeStampedMessage) message).getTimeStamp());
+			}
+			writeData(message, serialized);
+			count++;
+		} catch (IOException ex) {
+			failed = true;
+			logger.error("failed to record message, recording stopped - "
+					+ ex.getMessage());
+		}
+	}
+
+	/**
+	 * @return Number of messages recorded.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Write out what is buffered and close the file.
+	 */
+	public synchronized void close() {
+		try {
+			output.close();
+		} catch (IOException ex) {
+			logger.error("failed to close recording - " + ex.getMessage());
+		}
+		failed = true;
+	}
+
+	private void writeName(String name) throws IOException {
+		if (name == null) {
+			writeVarLong(output, NAME_NULL);
+			return;
+		}
+		Integer index = names.get(name);
+		if (index != null) {
+			writeVarLong(output, index);
+			return;
+		}
+		writeVarLong(output, NAME_NEW);
+		output.writeUTF(name);
+		if (names.size() < NAME_TABLE_SIZE) {
+			names.put(name, names.size() + NAME_FIRST);
+		}
+	}
+
+	private void writeTimeStamp(TimeStamp timeStamp) throws IOException {
+		if (timeStamp == null
+				|| timeStamp.getType() == ClockService.ClockType.DEFAULT) {
+			output.writeByte(CLOCK_NONE);
+			return;
+		}
+		output.writeByte(timeStamp.getType().ordinal());
+		writeVarLong(output, timeStamp.size());
+		for (int i = 0; i < timeStamp.size(); i++) {
+			writeVarLong(output, timeStamp.getValue(i));
+		}
+	}
+
+	/**
+	 * @param message
+	 *            The message.
+	 * @param serialized
+	 *            Its data if it is neither bytes, a string nor an integer.
+	 */
+	private void writeData(Message message, byte[] serialized)
+			throws IOException {
+		if (message instanceof BytesMessage) {
+			ByteBuffer payload = ((BytesMessage) message).wireView();
+			output.writeByte(DATA_BYTES);
+			writeVarLong(output, payload.remaining());
+			if (payload.hasArray()) {
+				output.write(payload.array(),
+						payload.arrayOffset() + payload.position(),
+						payload.remaining());
+			} else {
+				byte[] bytes = new byte[payload.remaining()];
+				payload.get(bytes);
+				output.write(bytes);
+			}
+			return;
+		}
+		Object data = message.getData();
+		if (serialized != null) {
+			output.writeByte(DATA_OBJECT);
+			writeVarLong(output, serialized.length);
+			output.write(serialized);
+		} else if (data instanceof String) {
+			byte[] bytes = ((String) data).getBytes(StandardCharsets.UTF_8);
+			output.writeByte(DATA_STRING);
+			writeVarLong(output, bytes.length);
+			output.write(bytes);
+		} else if (data instanceof Integer) {
+			output.writeByte(DATA_INTEGER);
+			output.writeInt((Integer) data);
+		} else {
+			output.writeByte(DATA_NULL);
+		}
+	}
+
+	private static byte[] serialize(Object data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+		objectOutput.writeObject(data);
+		objectOutput.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write a number in 7-bit groups, lowest first, with the high bit set on
+	 * all groups but the last. Negative numbers take ten bytes.
+	 */
+	private static void writeVarLong(DataOutputStream output, long value)
+			throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			output.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream input) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = input.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("invalid number");
+	}
+}
@@ -0,0 +1,255 @@
+package ipc;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the metrics of one node: counters, gauges read when exported,
+ * and histograms. Counters may come in families with one label, e.g. the
+ * messages sent by destination, whose members are created on first use.
+ * Counters are LongAdders and histograms are lock-free, so updating them from
+ * the sender, the receiver workers and the application threads does not
+ * contend. Names use underscores so they can be exported as they are.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Metrics {
+
+	// percentiles exported for every histogram, with their names
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99",
+			"p999" };
+	private static final String[] QUANTILES = { "0.5", "0.9", "0.99",
+			"0.999" };
+
+	/**
+	 * A value read when the metrics are exported, e.g. the size of a queue.
+	 */
+	public interface Gauge {
+		public long getValue();
+	}
+
+	private static class Family {
+		private String label;
+		private ConcurrentHashMap<String, LongAdder> counters;
+
+		public Family(String label) {
+			this.label = label;
+			this.counters = new ConcurrentHashMap<String, LongAdder>();
+		}
+	}
+
+	private ConcurrentHashMap<String, LongAdder> counters;
+	private ConcurrentHashMap<String, Family> families;
+	private ConcurrentHashMap<String, Gauge> gauges;
+	private ConcurrentHashMap<String, Histogram> histograms;
+
+	public Metrics() {
+		this.counters = new ConcurrentHashMap<String, LongAdder>();
+		this.families = new ConcurrentHashMap<String, Family>();
+		this.gauges = new ConcurrentHashMap<String, Gauge>();
+		this.histograms = new ConcurrentHashMap<String, Histogram>();
+	}
+
+	/**
+	 * Get a counter, create it if it does not exist.
+	 * 
+	 * @param name
+	 *            Name of the counter.
+	 * @return The counter.
+	 */
+	public LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counter = new LongAdder();
+			LongAdder existing = counters.putIfAbsent(name, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Get the member of a counter family, create it if it does not exist.
+	 * The family takes the label of its first use.
+	 * 
+	 * @param name
+	 *            Name of the family.
+	 * @param label
+	 *            What the members are told apart by, e.g. "peer".
+	 * @param value
+	 *            Value of the label, null counts as the empty string.
+	 * @return The counter.
+	 */
+	public LongAdder counter(String name, String label, String value) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(label);
+			Family existing = families.putIfAbsent(name, family);
+			if (existing != null) {
+				family = existing;
+			}
+		}
+		if (value == null) {
+			value = "";
+		}
+		LongAdder counter = family.counters.get(value);
+		if (counter == null) {
+			counter = new LongAdder();
+			LongAdder existing = family.counters.putIfAbsent(value, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Register a gauge, replacing the one with the same name.
+	 * 
+	 * @param name
+	 *            Name of the gauge.
+	 * @param gauge
+	 *            Where the value is read from.
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Get a histogram, create it if it does not exist.
+	 * 
+	 * @param name
+	 *            Name of the histogram.
+	 * @return The histogram.
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = histograms.putIfAbsent(name, histogram);
+			if (existing != null) {
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Remove the members of every family with the given label value, e.g.
+	 * those of a node that left.
+	 * 
+	 * @param label
+	 *            The label.
+	 * @param value
+	 *            Its value.
+	 */
+	public void forget(String label, String value) {
+		for (Family family : families.values()) {
+			if (family.label.equals(label)) {
+				family.counters.remove(value);
+			}
+		}
+	}
+
+	/**
+	 * Read every metric as a flat list of numbers. A family member is named
+	 * family.value, and a histogram gives name.count, name.sum, name.max and
+	 * name.p50, name.p90, name.p99 and name.p999.
+	 * 
+	 * @return The values sorted by name.
+	 */
+	public TreeMap<String, Long> getValues() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().sum());
+		}
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			for (Map.Entry<String, LongAdder> member : entry.getValue().counters
+					.entrySet()) {
+				values.put(entry.getKey() + "." + member.getKey(), member
+						.getValue().sum());
+			}
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getValue());
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue().snapshot();
+			String name = entry.getKey();
+			values.put(name + ".count", histogram.getCount());
+			values.put(name + ".sum", histogram.getSum());
+			values.put(name + ".max", histogram.getMax());
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				values.put(name + "." + PERCENTILE_NAMES[i],
+						histogram.getPercentile(PERCENTILES[i]));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Write every metric in the Prometheus text format. Histograms are
+	 * exported as summaries.
+	 * 
+	 * @param prefix
+	 *            Put before every name, e.g. "ipc_".
+	 * @return The text.
+	 */
+	public String toText(String prefix) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(
+				counters).entrySet()) {
+			String name = prefix + entry.getKey();
+			sb.append("# TYPE ").append(name).append(" counter\n");
+			sb.append(name).append(' ').append(entry.getValue().sum())
+					.append('\n');
+		}
+		for (Map.Entry<String, Family> entry : new TreeMap<String, Family>(
+				families).entrySet()) {
+			String name = prefix + entry.getKey();
+			Family family = entry.getValue();
+			sb.append("# TYPE ").append(name).append(" counter\n");
+			for (Map.Entry<String, LongAdder> member : new TreeMap<String, LongAdder>(
+					family.counters).entrySet()) {
+				sb.append(name).append('{').append(family.label).append("=\"")
+						.append(escape(member.getKey())).append("\"} ")
+						.append(member.getValue().sum()).append('\n');
+			}
+		}
+		for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(
+				gauges).entrySet()) {
+			String name = prefix + entry.getKey();
+			sb.append("# TYPE ").append(name).append(" gauge\n");
+			sb.append(name).append(' ').append(entry.getValue().getValue())
+					.append('\n');
+		}
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(
+				histograms).entrySet()) {
+			String name = prefix + entry.getKey();
+			Histogram histogram = entry.getValue().snapshot();
+			sb.append("# TYPE ").append(name).append(" summary\n");
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				sb.append(name).append("{quantile=\"").append(QUANTILES[i])
+						.append("\"} ")
+						.append(histogram.getPercentile(PERCENTILES[i]))
+						.append('\n');
+			}
+			sb.append(name).append("_sum ").append(histogram.getSum())
+					.append('\n');
+			sb.append(name).append("_count ").append(histogram.getCount())
+					.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,129 @@
+package ipc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the metrics of a node over JMX as read-only attributes, one per
+ * entry of {@link Metrics#getValues()}. Attributes appear as the counters
+ * behind them are created, so the bean describes itself anew on every call.
+ * It is registered as ipc:type=MessagePasser,name=&lt;local name&gt;.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class MetricsBean implements DynamicMBean {
+	private Metrics metrics;
+	private ObjectName objectName;
+
+	public MetricsBean(Metrics metrics) {
+		this.metrics = metrics;
+		this.objectName = null;
+	}
+
+	/**
+	 * Register the bean with the platform MBean server.
+	 * 
+	 * @param localName
+	 *            Name of the local node.
+	 * @param logger
+	 *            Logger of the calling method.
+	 * @return True on success, false otherwise.
+	 */
+	public boolean register(String localName, LogTool logger) {
+		try {
+			ObjectName name = new ObjectName("ipc:type=MessagePasser,name="
+					+ ObjectName.quote(localName));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					name);
+			objectName = name;
+		} catch (JMException ex) {
+			logger.error("failed to register metrics bean - "
+					+ ex.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Unregister the bean, if it was registered.
+	 * 
+	 * @param logger
+	 *            Logger of the calling method.
+	 */
+	public void unregister(LogTool logger) {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException ex) {
+			logger.error("failed to unregister metrics bean - "
+					+ ex.getMessage());
+		}
+		objectName = null;
+	}
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Long value = metrics.getValues().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		TreeMap<String, Long> values = metrics.getValues();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("metrics are read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params,
+			String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName),
+				"metrics have no operations");
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Long> entry : metrics.getValues().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), "long",
+					entry.getKey(), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "message passer metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+	}
+}
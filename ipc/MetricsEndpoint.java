@@ -0,0 +1,85 @@
+package ipc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP endpoint serving the metrics of a node in the Prometheus text
+ * format at /metrics. It binds to the loopback address only, put a proxy or
+ * an agent on the same host in front of it to scrape it from elsewhere.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class MetricsEndpoint {
+	private static final String PATH = "/metrics";
+	private static final String PREFIX = "ipc_";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private HttpServer server;
+
+	private MetricsEndpoint(HttpServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Start serving the metrics.
+	 * 
+	 * @param metrics
+	 *            Metrics of the node.
+	 * @param port
+	 *            Port to listen on, 0 to pick a free one.
+	 * @param logger
+	 *            Logger of the calling method.
+	 * @return The endpoint, null on failure.
+	 */
+	public static MetricsEndpoint start(final Metrics metrics, int port,
+			LogTool logger) {
+		HttpServer server = null;
+		try {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1",
+					port), 0);
+		} catch (IOException ex) {
+			logger.error("failed to start metrics endpoint on port " + port
+					+ " - " + ex.getMessage());
+			return null;
+		}
+		server.createContext(PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					exchange.close();
+					return;
+				}
+				byte[] body = metrics.toText(PREFIX).getBytes(
+						StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type",
+						CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream output = exchange.getResponseBody();
+				output.write(body);
+				output.close();
+			}
+		});
+		server.start();
+		return new MetricsEndpoint(server);
+	}
+
+	/**
+	 * @return Port the endpoint listens on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+}
@@ -1,12 +1,19 @@
 package ipc;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * Helper methods to create and destroy sockets and server sockets. They are
  * modified from Yinsu Chu and Ming Zhong's project of 15-440/640 in Fall 2013.
+ * Sockets are opened through channels, in blocking mode, so that connections
+ * can use gathering writes as well as streams.
  * 
  * @author Ming Zhong
  * @author Yinsu Chu
@@ -30,7 +37,10 @@ public class NetTool {
 		ServerSocket socket = null;
 		InetSocketAddress address = new InetSocketAddress(IP, port);
 		try {
-			socket = new ServerSocket();
+			socket = ServerSocketChannel.open().socket();
+
+			// allow a restarted node to bind while old connections linger
+			socket.setReuseAddress(true);
 			socket.bind(address);
 		} catch (Exception ex) {
 			logger.error("failed to create server socket on " + IP + ":" + port
@@ -60,25 +70,80 @@ public class NetTool {
 	 * @return The socket to the remote host, null on failure.
 	 */
 	public static Socket createSocket(String IP, int port, LogTool logger) {
-		Socket socket = null;
+		return createSocket(IP, port, 0, logger);
+	}
+
+	/**
+	 * Create socket with remote host, giving up after the timeout.
+	 * 
+	 * @param IP
+	 *            IP address of the remote host.
+	 * @param port
+	 *            Port number to create the socket to.
+	 * @param timeout
+	 *            Connect timeout in milliseconds, 0 for no timeout.
+	 * @param logger
+	 *            Logger of the calling method.
+	 * @return The socket to the remote host, null on failure.
+	 */
+	public static Socket createSocket(String IP, int port, int timeout,
+			LogTool logger) {
 		try {
-			socket = new Socket(IP, port);
+			return connect(IP, port, timeout);
 		} catch (Exception ex) {
 			logger.error("failed to create socket to " + IP + ":" + port
 					+ " - " + ex.getMessage());
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (Exception nestedEx) {
-					logger.error("failed to close socket to " + IP + ":" + port
-							+ " - " + nestedEx.getMessage());
-				}
-			}
 			return null;
 		}
+	}
+
+	/**
+	 * Connect to a remote host, the caller decides how to report failures.
+	 * 
+	 * @param IP
+	 *            IP address of the remote host.
+	 * @param port
+	 *            Port number to create the socket to.
+	 * @param timeout
+	 *            Connect timeout in milliseconds, 0 for no timeout.
+	 * @return The socket to the remote host.
+	 * @throws IOException
+	 *             If the connection cannot be established.
+	 */
+	public static Socket connect(String IP, int port, int timeout)
+			throws IOException {
+		Socket socket = SocketChannel.open().socket();
+		try {
+			socket.connect(new InetSocketAddress(IP, port), timeout);
+		} catch (IOException ex) {
+			try {
+				socket.close();
+			} catch (IOException nestedEx) {
+				// nothing more can be done with a socket that never connected
+			}
+			throw ex;
+		}
 		return socket;
 	}
 
+	/**
+	 * Tell if an address belongs to this host: a loopback address, the
+	 * wildcard address or the address of a local interface.
+	 * 
+	 * @param IP
+	 *            The address, or a host name to resolve.
+	 * @return True if it is local, false if not or if it cannot be resolved.
+	 */
+	public static boolean isLocalAddress(String IP) {
+		try {
+			InetAddress address = InetAddress.getByName(IP);
+			return address.isLoopbackAddress() || address.isAnyLocalAddress()
+					|| NetworkInterface.getByInetAddress(address) != null;
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
 	/**
 	 * Destroy the server socket.
 	 * 
@@ -0,0 +1,83 @@
+package ipc;
+
+import java.util.HashMap;
+
+import clock.TimeStamp;
+
+/**
+ * Acks a node sends to its totally ordered groups. A member receiving a
+ * message to such a group advances its clock past it and sends the new value
+ * to the group, so that the other members know nothing earlier can come from
+ * it. One ack waiting in the send buffer covers all the messages received
+ * meanwhile, as long as the node stamped nothing after it: the ack takes the
+ * new time stamp instead of another one being queued.
+ * 
+ * All methods are called with the send lock of the message passer held, the
+ * lock under which messages are stamped and queued, so that the time stamps
+ * sent on a link never decrease.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class OrderAcks {
+
+	private SendQueue sendBuffer;
+
+	// acks waiting in the send buffer, by group name
+	private HashMap<String, TimeStampedMessage> pending;
+
+	// the message stamped last, no ack queued before it may be updated
+	private TimeStampedMessage lastStamped;
+
+	public OrderAcks(SendQueue sendBuffer) {
+		this.sendBuffer = sendBuffer;
+		this.pending = new HashMap<String, TimeStampedMessage>();
+		this.lastStamped = null;
+	}
+
+	/**
+	 * Note a message stamped by the local node, it goes into the send buffer
+	 * after the acks pending so far.
+	 * 
+	 * @param message
+	 *            The stamped message.
+	 */
+	public void stamped(TimeStampedMessage message) {
+		lastStamped = message;
+	}
+
+	/**
+	 * Have the local clock value sent to a group, updating the ack waiting
+	 * for it if nothing was stamped since, or queueing a new one.
+	 * 
+	 * @param group
+	 *            Name of the ordered group.
+	 * @param now
+	 *            The local time stamp after the received message.
+	 */
+	public void request(String group, TimeStamp now) {
+		TimeStampedMessage ack = pending.get(group);
+		if (ack != null && ack == lastStamped) {
+			ack.setTimeStamp(now);
+			return;
+		}
+		ack = new TimeStampedMessage(group, TotalOrder.KIND_ACK, group);
+		ack.setTimeStamp(now);
+		pending.put(group, ack);
+		lastStamped = ack;
+		sendBuffer.add(ack);
+	}
+
+	/**
+	 * Stop updating an ack, it has been taken from the send buffer.
+	 * 
+	 * @param ack
+	 *            The ack.
+	 */
+	public void taken(Message ack) {
+		if (pending.get(ack.getDest()) == ack) {
+			pending.remove(ack.getDest());
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package ipc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of a multi-step procedure (e.g. startup) takes.
+ * Phases may run on different threads and overlap.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class PhaseTimer {
+	private long origin;
+
+	// phase name to {start, end} in System.nanoTime()
+	private LinkedHashMap<String, long[]> phases;
+
+	public PhaseTimer() {
+		this.origin = System.nanoTime();
+		this.phases = new LinkedHashMap<String, long[]>();
+	}
+
+	public synchronized void begin(String phase) {
+		phases.put(phase, new long[] { System.nanoTime(), -1 });
+	}
+
+	public synchronized void end(String phase) {
+		long[] times = phases.get(phase);
+		if (times != null) {
+			times[1] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @param phase
+	 *            Name of the phase.
+	 * @return Duration of the phase in nanoseconds, -1 if it has not finished.
+	 */
+	public synchronized long getDuration(String phase) {
+		long[] times = phases.get(phase);
+		if (times == null || times[1] < 0) {
+			return -1;
+		}
+		return times[1] - times[0];
+	}
+
+	/**
+	 * @return One entry per phase with its duration and the offset at which it
+	 *         finished, all in milliseconds.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+			long[] times = entry.getValue();
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(entry.getKey()).append(' ');
+			if (times[1] < 0) {
+				sb.append("unfinished");
+			} else {
+				sb.append(toMillis(times[1] - times[0])).append(" ms (done at ")
+						.append(toMillis(times[1] - origin)).append(" ms)");
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String toMillis(long nanos) {
+		return String.format("%.3f", nanos
+				/ (double) TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
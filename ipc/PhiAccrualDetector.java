@@ -0,0 +1,136 @@
+package ipc;
+
+/**
+ * Phi accrual failure detector for one remote node (Hayashibara et al.). It
+ * learns the distribution of the intervals between frames from the node and
+ * turns the time since the last one into a suspicion level phi: phi = 1 means
+ * a 10% chance that the node is still alive and the next frame is late, phi = 2
+ * a 1% chance, and so on. The application picks the threshold instead of a
+ * fixed timeout.
+ * 
+ * Frames arrive in bursts under load and only every heartbeat interval when
+ * idle, so one heartbeat interval is added to the mean as an acceptable pause
+ * and the standard deviation is never taken below half of it.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class PhiAccrualDetector {
+
+	// number of intervals the distribution is estimated from
+	private static final int WINDOW_SIZE = 1000;
+
+	// intervals in milliseconds, a ring of the latest WINDOW_SIZE ones
+	private double[] intervals;
+	private int count;
+	private int next;
+	private double sum;
+	private double squareSum;
+
+	// System.nanoTime() of the last frame, -1 if none yet
+	private long lastHeartbeat;
+
+	// set by a failed connect, until System.nanoTime() reaches the deadline
+	private boolean unreachable;
+	private long unreachableUntil;
+
+	private double acceptablePause;
+	private double minStdDeviation;
+
+	/**
+	 * @param heartbeatInterval
+	 *            Heartbeat interval of the remote node in milliseconds.
+	 */
+	public PhiAccrualDetector(long heartbeatInterval) {
+		this.intervals = new double[WINDOW_SIZE];
+		this.count = 0;
+		this.next = 0;
+		this.sum = 0;
+		this.squareSum = 0;
+		this.lastHeartbeat = -1;
+		this.unreachable = false;
+		this.unreachableUntil = 0;
+		this.acceptablePause = heartbeatInterval;
+		this.minStdDeviation = heartbeatInterval / 2.0;
+	}
+
+	/**
+	 * Record a frame from the node.
+	 * 
+	 * @param now
+	 *            System.nanoTime() of the arrival.
+	 */
+	public synchronized void heartbeat(long now) {
+		if (lastHeartbeat >= 0) {
+			double interval = (now - lastHeartbeat) / 1e6;
+			if (count == WINDOW_SIZE) {
+				sum -= intervals[next];
+				squareSum -= intervals[next] * intervals[next];
+			} else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % WINDOW_SIZE;
+			sum += interval;
+			squareSum += interval * interval;
+		}
+		lastHeartbeat = now;
+		unreachable = false;
+	}
+
+	/**
+	 * Record a failed attempt to connect to the node, it is suspected until
+	 * the given time or until a frame arrives.
+	 * 
+	 * @param until
+	 *            System.nanoTime() until which the node is suspected.
+	 */
+	public synchronized void unreachable(long until) {
+		unreachable = true;
+		unreachableUntil = until;
+	}
+
+	/**
+	 * @param now
+	 *            System.nanoTime() of now.
+	 * @return The suspicion level, 0 if nothing has been heard from the node
+	 *         or heartbeats are off, and infinity if it could not be reached
+	 *         recently.
+	 */
+	public synchronized double phi(long now) {
+		if (unreachable && now - unreachableUntil < 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		// without heartbeats silence says nothing
+		if (lastHeartbeat < 0 || acceptablePause == 0) {
+			return 0;
+		}
+		double mean = acceptablePause;
+		double variance = 0;
+		if (count > 0) {
+			mean += sum / count;
+			variance = squareSum / count - (sum / count) * (sum / count);
+		}
+		double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)),
+				minStdDeviation);
+		double elapsed = (now - lastHeartbeat) / 1e6;
+
+		// logistic approximation of the normal distribution
+		double y = (elapsed - mean) / stdDeviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		} else {
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+
+	/**
+	 * @return System.nanoTime() of the last frame, -1 if none yet.
+	 */
+	public synchronized long getLastHeartbeat() {
+		return lastHeartbeat;
+	}
+}
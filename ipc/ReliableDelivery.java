@@ -0,0 +1,311 @@
+package ipc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reliable delivery on both ends of the links of a node. As a source it keeps
+ * the messages sent to every destination until they are acknowledged and
+ * hands out the ones due again; as a destination it drops duplicates and
+ * remembers the sources owed an ack. The sender thread of the message passer
+ * does the writing, this class only keeps track of what is to be written.
+ * 
+ * An ack becoming due puts a marker of kind KIND_ACK into the send buffer,
+ * one per source until the ack is taken. The ack itself is built when it is
+ * taken, by the next frame written to the source or by the marker.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class ReliableDelivery {
+
+	/*
+	 * kind of the markers put into the send buffer when an ack is due, the ack
+	 * itself is carried in the header of a frame
+	 */
+	public static final String KIND_ACK = "__ack";
+
+	private boolean enabled;
+
+	// lower bound of the retransmission timeout in nanoseconds
+	private long timeout;
+	private int bufferSize;
+
+	private SendQueue sendBuffer;
+	private LogTool logger;
+
+	// unacknowledged messages by destination, duplicates windows by source
+	private ConcurrentHashMap<String, RetransmitBuffer> retransmitBuffers;
+	private ConcurrentHashMap<String, DedupWindow> dedupWindows;
+
+	// sources owed an ack, each has a marker waiting in the send buffer
+	private Set<String> pendingAcks;
+
+	private AtomicLong retransmissions;
+	private AtomicLong duplicatesDropped;
+
+	public ReliableDelivery(SendQueue sendBuffer, LogTool logger) {
+		this.enabled = false;
+		this.timeout = TimeUnit.MILLISECONDS
+				.toNanos(Configuration.DEFAULT_RETRANSMIT_TIMEOUT);
+		this.bufferSize = Configuration.DEFAULT_RETRANSMIT_BUFFER_SIZE;
+		this.sendBuffer = sendBuffer;
+		this.logger = logger;
+		this.retransmitBuffers = new ConcurrentHashMap<String, RetransmitBuffer>();
+		this.dedupWindows = new ConcurrentHashMap<String, DedupWindow>();
+		this.pendingAcks = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.retransmissions = new AtomicLong();
+		this.duplicatesDropped = new AtomicLong();
+	}
+
+	/**
+	 * Set up reliable delivery, called once at startup before the sender and
+	 * receiver threads run.
+	 * 
+	 * @param enabled
+	 *            True to deliver reliably.
+	 * @param retransmitTimeout
+	 *            Lower bound of the retransmission timeout in milliseconds.
+	 * @param retransmitBufferSize
+	 *            Most messages kept unacknowledged per destination.
+	 */
+	public void configure(boolean enabled, int retransmitTimeout,
+			int retransmitBufferSize) {
+		this.enabled = enabled;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(retransmitTimeout);
+		this.bufferSize = retransmitBufferSize;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return Lower bound of the retransmission timeout in nanoseconds.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Wait a while for room in the retransmit buffer of a destination.
+	 * 
+	 * @param dest
+	 *            Name of the destination.
+	 * @return True if a message can be kept now, false if the caller should
+	 *         retransmit and wait again.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public boolean awaitSpace(String dest) throws InterruptedException {
+		RetransmitBuffer buffer = buffer(dest);
+
+		// a destination that stopped acknowledging does not hold the sender
+		return buffer.awaitSpace(timeout / 2) || buffer.isStalled(timeout);
+	}
+
+	/**
+	 * Keep a numbered message until it is acknowledged. If the buffer of its
+	 * destination is full, the oldest message is given up.
+	 * 
+	 * @param message
+	 *            The message, it is retained by the buffer.
+	 */
+	public void keep(Message message) {
+		Message evicted = buffer(message.getDest()).add(message);
+		if (evicted != null) {
+			logger.error("retransmit buffer to " + message.getDest()
+					+ " full, giving up on message " + evicted.toString());
+			evicted.release();
+		}
+	}
+
+	private RetransmitBuffer buffer(String dest) {
+		RetransmitBuffer buffer = retransmitBuffers.get(dest);
+		if (buffer == null) {
+			buffer = new RetransmitBuffer(bufferSize);
+			RetransmitBuffer existing = retransmitBuffers.putIfAbsent(dest,
+					buffer);
+			if (existing != null) {
+				buffer = existing;
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Release the messages to a destination covered by an ack from it.
+	 * 
+	 * @param peer
+	 *            Name of the destination.
+	 * @param ack
+	 *            The ack it sent.
+	 */
+	public void acknowledge(String peer, Ack ack) {
+		RetransmitBuffer buffer = retransmitBuffers.get(peer);
+		if (buffer != null) {
+			buffer.acknowledge(ack);
+		}
+	}
+
+	/**
+	 * Take the messages not acknowledged in time.
+	 * 
+	 * @return The messages by destination, each retained for the caller.
+	 */
+	public Map<String, ArrayList<Message>> takeDue() {
+		HashMap<String, ArrayList<Message>> due = new HashMap<String, ArrayList<Message>>();
+		long now = System.nanoTime();
+		for (Map.Entry<String, RetransmitBuffer> entry : retransmitBuffers
+				.entrySet()) {
+			ArrayList<Message> messages = entry.getValue().takeDue(now,
+					timeout);
+			if (!messages.isEmpty()) {
+				due.put(entry.getKey(), messages);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Count a message written again after a timeout.
+	 */
+	public void retransmitted() {
+		retransmissions.incrementAndGet();
+	}
+
+	/**
+	 * Give up the messages to a destination that restarted, its new
+	 * incarnation numbers its link from 1.
+	 * 
+	 * @param peer
+	 *            Name of the destination.
+	 */
+	public void restartDest(String peer) {
+		RetransmitBuffer buffer = retransmitBuffers.remove(peer);
+		if (buffer != null && buffer.size() > 0) {
+			logger.error(buffer.size() + " messages to " + peer
+					+ " not acknowledged before it restarted, given up");
+		}
+	}
+
+	/**
+	 * Forget the duplicates seen from a source that restarted.
+	 * 
+	 * @param peer
+	 *            Name of the source.
+	 */
+	public void restartSource(String peer) {
+		dedupWindows.remove(peer);
+	}
+
+	/**
+	 * Forget everything about a node that left.
+	 * 
+	 * @param peer
+	 *            Name of the node.
+	 */
+	public void forget(String peer) {
+		retransmitBuffers.remove(peer);
+		dedupWindows.remove(peer);
+	}
+
+	/**
+	 * Record a message in the window of its source and have an ack sent back.
+	 * 
+	 * @param message
+	 *            The received message.
+	 * @return True if the message is new, false if it is a duplicate.
+	 */
+	public boolean accept(Message message) {
+		String source = message.getSource();
+		DedupWindow window = dedupWindows.get(source);
+		if (window == null) {
+			window = new DedupWindow();
+			DedupWindow existing = dedupWindows.putIfAbsent(source, window);
+			if (existing != null) {
+				window = existing;
+			}
+		}
+		boolean accepted = window.accept(message.getSequenceNumber());
+
+		/*
+		 * one marker per source is enough, the ack is built when a frame to
+		 * the source is written
+		 */
+		if (pendingAcks.add(source)) {
+			sendBuffer.add(new Message(source, KIND_ACK, null));
+		}
+		if (!accepted) {
+			duplicatesDropped.incrementAndGet();
+		}
+		return accepted;
+	}
+
+	/**
+	 * @param source
+	 *            Name of a source.
+	 * @return True if an ack to the source has not been taken yet.
+	 */
+	public boolean isAckDue(String source) {
+		return pendingAcks.contains(source);
+	}
+
+	/**
+	 * Take the ack due to a source, a message arriving afterwards makes
+	 * another one due.
+	 * 
+	 * @param source
+	 *            Name of the source.
+	 * @return The ack, null if none is due.
+	 */
+	public Ack takeAck(String source) {
+		if (!enabled || !pendingAcks.remove(source)) {
+			return null;
+		}
+		DedupWindow window = dedupWindows.get(source);
+		return window == null ? null : window.toAck();
+	}
+
+	/**
+	 * Report the messages that will never be acknowledged because the
+	 * sender stops.
+	 */
+	public void logUnacknowledged() {
+		for (Map.Entry<String, RetransmitBuffer> entry : retransmitBuffers
+				.entrySet()) {
+			int size = entry.getValue().size();
+			if (size > 0) {
+				logger.error(size + " messages to " + entry.getKey()
+						+ " not acknowledged on stop");
+			}
+		}
+	}
+
+	/**
+	 * @return Number of messages kept for all destinations.
+	 */
+	public long getUnacknowledged() {
+		long size = 0;
+		for (RetransmitBuffer buffer : retransmitBuffers.values()) {
+			size += buffer.size();
+		}
+		return size;
+	}
+
+	public long getRetransmissions() {
+		return retransmissions.get();
+	}
+
+	public long getDuplicatesDropped() {
+		return duplicatesDropped.get();
+	}
+}
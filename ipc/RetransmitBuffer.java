@@ -0,0 +1,239 @@
+package ipc;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded buffer of reliable messages sent to one destination and not
+ * acknowledged yet. Sequence numbers of a link start at 1 and have no gaps,
+ * so the messages are kept in a ring indexed by sequence number. The
+ * retransmission timeout follows the measured round trip time as in TCP
+ * (RFC 6298), the configured timeout is its lower bound.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class RetransmitBuffer {
+
+	// the timeout doubles on every expiry up to this many times
+	private static final int MAX_BACKOFF = 6;
+
+	private Message[] messages;
+
+	// System.nanoTime() of the last transmission of each message
+	private long[] sentTimes;
+
+	// number of retransmissions of each message
+	private int[] attempts;
+
+	// lowest sequence number that may still be unacknowledged
+	private long base;
+
+	// sequence number of the next message to be added
+	private long next;
+
+	// smoothed round trip time and its variation in nanoseconds, -1 if none
+	private long smoothedRtt;
+	private long rttVariation;
+
+	// System.nanoTime() of the last ack that released a message
+	private long lastProgress;
+
+	// the timeout is doubled this many times until a new round trip sample
+	private int backoff;
+
+	public RetransmitBuffer(int capacity) {
+		this.messages = new Message[capacity];
+		this.sentTimes = new long[capacity];
+		this.attempts = new int[capacity];
+		this.base = 1;
+		this.next = 1;
+		this.smoothedRtt = -1;
+		this.rttVariation = 0;
+		this.lastProgress = System.nanoTime();
+		this.backoff = 0;
+	}
+
+	private int slot(long seq) {
+		return (int) (seq % messages.length);
+	}
+
+	/**
+	 * Wait until there is room for another message, which gives flow control
+	 * when the destination is slower than the source.
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait in nanoseconds.
+	 * @return True if there is room, false on timeout.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public synchronized boolean awaitSpace(long timeout)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + timeout;
+		while (next - base == messages.length) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * @param minTimeout
+	 *            Lower bound of the retransmission timeout in nanoseconds.
+	 * @return True if nothing has been acknowledged for as long as the
+	 *         longest backoff, i.e. the destination is probably gone.
+	 */
+	public synchronized boolean isStalled(long minTimeout) {
+		long timeout = retransmitTimeout(minTimeout) << (MAX_BACKOFF - backoff);
+		return System.nanoTime() - lastProgress > timeout;
+	}
+
+	/**
+	 * Keep a message for retransmission, retaining it until acknowledged.
+	 * When the buffer is full the oldest message is given up to make room.
+	 * 
+	 * @param message
+	 *            The message, its sequence number must follow the previous one.
+	 * @return The message given up, null if there was room. The caller
+	 *         releases it.
+	 */
+	public synchronized Message add(Message message) {
+		Message evicted = null;
+		if (next - base == messages.length) {
+			evicted = messages[slot(base)];
+			messages[slot(base)] = null;
+			base++;
+			advanceBase();
+		}
+		next = message.getSequenceNumber() + 1;
+		message.retain();
+		messages[slot(message.getSequenceNumber())] = message;
+		sentTimes[slot(message.getSequenceNumber())] = System.nanoTime();
+		attempts[slot(message.getSequenceNumber())] = 0;
+		return evicted;
+	}
+
+	/**
+	 * Forget the messages covered by an acknowledgement.
+	 * 
+	 * @param ack
+	 *            The acknowledgement from the destination.
+	 */
+	public synchronized void acknowledge(Ack ack) {
+		long now = System.nanoTime();
+		long oldBase = base;
+		while (base <= ack.getCumulative() && base < next) {
+			release(base, now);
+			base++;
+		}
+		for (int i = 0; i < Long.SIZE; i++) {
+			long seq = ack.getCumulative() + 1 + i;
+			if ((ack.getSelective() & (1L << i)) != 0 && seq >= base
+					&& seq < next) {
+				release(seq, now);
+			}
+		}
+		advanceBase();
+		if (base != oldBase) {
+			lastProgress = now;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Forget an acknowledged message, its round trip time is sampled unless
+	 * it has been retransmitted (the ack may be for any of the copies).
+	 * 
+	 * @param seq
+	 *            Sequence number of the message.
+	 * @param now
+	 *            Current System.nanoTime().
+	 */
+	private void release(long seq, long now) {
+		int slot = slot(seq);
+		if (messages[slot] == null) {
+			return;
+		}
+		if (attempts[slot] == 0) {
+			long rtt = now - sentTimes[slot];
+			if (smoothedRtt < 0) {
+				smoothedRtt = rtt;
+				rttVariation = rtt / 2;
+			} else {
+				rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+				smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+			}
+			backoff = 0;
+		}
+		messages[slot].release();
+		messages[slot] = null;
+	}
+
+	/**
+	 * @param minTimeout
+	 *            Lower bound in nanoseconds.
+	 * @return The current retransmission timeout in nanoseconds.
+	 */
+	private long retransmitTimeout(long minTimeout) {
+		long timeout = minTimeout;
+		if (smoothedRtt >= 0) {
+			timeout = Math.max(minTimeout, smoothedRtt + 4 * rttVariation);
+		}
+		return timeout << backoff;
+	}
+
+	private void advanceBase() {
+		while (base < next && messages[slot(base)] == null) {
+			base++;
+		}
+	}
+
+	/**
+	 * Collect the messages not acknowledged within the timeout, they are
+	 * considered sent again from now on. The timeout doubles each time it
+	 * expires (until an ack gives a new round trip sample) so that a slow
+	 * receiver is not flooded.
+	 * 
+	 * @param now
+	 *            Current System.nanoTime().
+	 * @param minTimeout
+	 *            Lower bound of the retransmission timeout in nanoseconds.
+	 * @return Messages to send again, in sequence number order. Each one is
+	 *         retained for the caller, which releases it once sent.
+	 */
+	public synchronized ArrayList<Message> takeDue(long now, long minTimeout) {
+		ArrayList<Message> due = new ArrayList<Message>();
+		long timeout = retransmitTimeout(minTimeout);
+		for (long seq = base; seq < next; seq++) {
+			int slot = slot(seq);
+			if (messages[slot] != null && now - sentTimes[slot] >= timeout) {
+				messages[slot].retain();
+				due.add(messages[slot]);
+				sentTimes[slot] = now;
+				attempts[slot]++;
+			}
+		}
+		if (!due.isEmpty()) {
+			backoff = Math.min(backoff + 1, MAX_BACKOFF);
+		}
+		return due;
+	}
+
+	/**
+	 * @return Number of messages waiting for acknowledgement.
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (long seq = base; seq < next; seq++) {
+			if (messages[slot(seq)] != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,384 @@
+package ipc;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A send or receive rule compiled from the configuration file. The fields a
+ * message is matched against are unpacked once, so matching a message costs
+ * a few comparisons and, for rules that fire with a probability, one draw
+ * from the thread-local random generator.
+ * 
+ * Besides dropping, delaying and duplicating the matched messages, a rule can
+ * throttle them to a bandwidth (a token bucket in virtual time, messages over
+ * the rate are delayed) or reorder them (each one is held back for a random
+ * number of the messages after it, up to the window). Delays can be fixed or
+ * drawn from a distribution.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Rule {
+	public static final String ACTION_DROP = "drop";
+	public static final String ACTION_DUPLICATE = "duplicate";
+	public static final String ACTION_DELAY = "delay";
+	public static final String ACTION_THROTTLE = "throttle";
+	public static final String ACTION_REORDER = "reorder";
+
+	private static final String RULE_ACTION = "action";
+	private static final String RULE_SRC = "src";
+	private static final String RULE_DST = "dest";
+	private static final String RULE_KIND = "kind";
+	private static final String RULE_SEQ_NUM = "seqNum";
+	private static final String RULE_DUP = "dupe";
+	private static final String RULE_PROBABILITY = "probability";
+	private static final String RULE_DURATION = "duration";
+	private static final String RULE_DISTRIBUTION = "distribution";
+	private static final String RULE_JITTER = "jitter";
+	private static final String RULE_COUNT = "count";
+	private static final String RULE_RATE = "rate";
+	private static final String RULE_BURST = "burst";
+	private static final String RULE_WINDOW = "window";
+
+	private static final String DISTRIBUTION_CONSTANT = "constant";
+	private static final String DISTRIBUTION_UNIFORM = "uniform";
+	private static final String DISTRIBUTION_NORMAL = "normal";
+	private static final String DISTRIBUTION_EXPONENTIAL = "exponential";
+
+	private String action;
+
+	// null (or -1, for the sequence number) matches anything
+	private String source;
+	private String dest;
+	private String kind;
+	private long sequenceNumber;
+	private Boolean dupe;
+
+	// chance that a matching message is acted on, otherwise the next rule
+	private double probability;
+
+	// delay: milliseconds (-1 for a count) spread by the distribution
+	private long duration;
+	private String distribution;
+	private double jitter;
+	private long count;
+
+	// throttle: bytes per second and bytes that may go at once
+	private double rate;
+	private double burst;
+
+	// System.nanoTime() at which the bucket is empty again
+	private long theoreticalArrival;
+
+	// reorder: largest number of messages a message is held back for
+	private int window;
+
+	private Rule() {
+		this.sequenceNumber = -1;
+		this.probability = 1;
+		this.duration = -1;
+		this.distribution = DISTRIBUTION_CONSTANT;
+		this.jitter = 0;
+		this.count = 1;
+		this.rate = 0;
+		this.burst = 0;
+		this.theoreticalArrival = 0;
+		this.window = 1;
+	}
+
+	/**
+	 * Compile a rule of the configuration file.
+	 * 
+	 * @param map
+	 *            The rule parsed from the YAML file.
+	 * @param logger
+	 *            Logger of the calling method.
+	 * @return The rule, null if it is invalid.
+	 */
+	public static Rule compile(HashMap<String, Object> map, LogTool logger) {
+		Rule rule = new Rule();
+		try {
+			rule.action = (String) map.get(RULE_ACTION);
+			rule.source = (String) map.get(RULE_SRC);
+			rule.dest = (String) map.get(RULE_DST);
+			rule.kind = (String) map.get(RULE_KIND);
+			if (map.containsKey(RULE_SEQ_NUM)) {
+				rule.sequenceNumber = ((Number) map.get(RULE_SEQ_NUM))
+						.longValue();
+			}
+			rule.dupe = (Boolean) map.get(RULE_DUP);
+			if (map.containsKey(RULE_PROBABILITY)) {
+				rule.probability = ((Number) map.get(RULE_PROBABILITY))
+						.doubleValue();
+			}
+			if (map.containsKey(RULE_DURATION)) {
+				rule.duration = ((Number) map.get(RULE_DURATION)).longValue();
+				if (rule.duration < 0) {
+					logger.error("rule with negative duration " + rule.duration
+							+ " ignored");
+					return null;
+				}
+			}
+			if (map.containsKey(RULE_DISTRIBUTION)) {
+				rule.distribution = (String) map.get(RULE_DISTRIBUTION);
+			}
+			if (map.containsKey(RULE_JITTER)) {
+				rule.jitter = ((Number) map.get(RULE_JITTER)).doubleValue();
+			}
+			if (map.containsKey(RULE_COUNT)) {
+				rule.count = Math.max(
+						((Number) map.get(RULE_COUNT)).longValue(), 1);
+			}
+			if (map.containsKey(RULE_RATE)) {
+				rule.rate = ((Number) map.get(RULE_RATE)).doubleValue();
+			}
+			if (map.containsKey(RULE_BURST)) {
+				rule.burst = ((Number) map.get(RULE_BURST)).doubleValue();
+			}
+			if (map.containsKey(RULE_WINDOW)) {
+				rule.window = ((Number) map.get(RULE_WINDOW)).intValue();
+			}
+		} catch (ClassCastException ex) {
+			logger.error("invalid rule " + map + " ignored - "
+					+ ex.getMessage());
+			return null;
+		}
+		if (!ACTION_DROP.equals(rule.action)
+				&& !ACTION_DUPLICATE.equals(rule.action)
+				&& !ACTION_DELAY.equals(rule.action)
+				&& !ACTION_THROTTLE.equals(rule.action)
+				&& !ACTION_REORDER.equals(rule.action)) {
+			logger.error("rule with unknown action " + rule.action
+					+ " ignored");
+			return null;
+		}
+		if (!DISTRIBUTION_CONSTANT.equals(rule.distribution)
+				&& !DISTRIBUTION_UNIFORM.equals(rule.distribution)
+				&& !DISTRIBUTION_NORMAL.equals(rule.distribution)
+				&& !DISTRIBUTION_EXPONENTIAL.equals(rule.distribution)) {
+			logger.error("rule with unknown distribution "
+					+ rule.distribution + " ignored");
+			return null;
+		}
+		if (ACTION_THROTTLE.equals(rule.action) && rule.rate <= 0) {
+			logger.error("throttle rule without a positive rate ignored");
+			return null;
+		}
+		if (ACTION_REORDER.equals(rule.action) && rule.window < 1) {
+			logger.error("reorder rule with window " + rule.window
+					+ " ignored, it must be at least 1");
+			return null;
+		}
+
+		// a distribution spreads a duration, a count cannot be drawn
+		if (!DISTRIBUTION_CONSTANT.equals(rule.distribution)
+				&& rule.duration <= 0) {
+			logger.error("rule with distribution " + rule.distribution
+					+ " but without a positive duration ignored");
+			return null;
+		}
+		if (rule.jitter < 0) {
+			logger.error("rule with negative jitter " + rule.jitter
+					+ " ignored");
+			return null;
+		}
+		if (DISTRIBUTION_EXPONENTIAL.equals(rule.distribution)
+				&& map.containsKey(RULE_JITTER)) {
+			logger.error("rule with exponential distribution and jitter ignored,"
+					+ " the duration is its mean and there is nothing to spread");
+			return null;
+		}
+		if (!map.containsKey(RULE_BURST)) {
+			rule.burst = rule.rate;
+		}
+		return rule;
+	}
+
+	/**
+	 * Compile the rules of a part of the configuration file, skipping the
+	 * invalid ones.
+	 * 
+	 * @param maps
+	 *            The rules parsed from the YAML file, may be null.
+	 * @param logger
+	 *            Logger of the calling method.
+	 * @return The rules in order.
+	 */
+	public static Rule[] compileAll(List<HashMap<String, Object>> maps,
+			LogTool logger) {
+		if (maps == null) {
+			return new Rule[0];
+		}
+		Rule[] rules = new Rule[maps.size()];
+		int size = 0;
+		for (HashMap<String, Object> map : maps) {
+			Rule rule = compile(map, logger);
+			if (rule != null) {
+				rules[size++] = rule;
+			}
+		}
+		if (size < rules.length) {
+			Rule[] valid = new Rule[size];
+			System.arraycopy(rules, 0, valid, 0, size);
+			return valid;
+		}
+		return rules;
+	}
+
+	/**
+	 * Hand the token buckets of the old rules over to the reloaded rules that
+	 * are the same, so that reloading the file does not let a new burst of
+	 * throttled messages through. A changed rule starts with a full bucket.
+	 * 
+	 * @param previous
+	 *            Rules in use until now.
+	 * @param rules
+	 *            Rules reloaded from the file, not in use yet.
+	 */
+	public static void carryOver(Rule[] previous, Rule[] rules) {
+		boolean[] taken = new boolean[previous.length];
+		for (Rule rule : rules) {
+			for (int i = 0; i < previous.length; i++) {
+				if (!taken[i] && rule.sameAs(previous[i])) {
+					taken[i] = true;
+					rule.theoreticalArrival = previous[i].getTheoreticalArrival();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param other
+	 *            Another rule.
+	 * @return True if both rules were compiled from the same settings.
+	 */
+	private boolean sameAs(Rule other) {
+		return action.equals(other.action) && equal(source, other.source)
+				&& equal(dest, other.dest) && equal(kind, other.kind)
+				&& sequenceNumber == other.sequenceNumber
+				&& equal(dupe, other.dupe) && probability == other.probability
+				&& duration == other.duration
+				&& distribution.equals(other.distribution)
+				&& jitter == other.jitter && count == other.count
+				&& rate == other.rate && burst == other.burst
+				&& window == other.window;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private synchronized long getTheoreticalArrival() {
+		return theoreticalArrival;
+	}
+
+	/**
+	 * Find the rule acting on a message.
+	 * 
+	 * @param rules
+	 *            Rules in order.
+	 * @param message
+	 *            The message.
+	 * @return The first rule that matches the message and fires, null if none.
+	 */
+	public static Rule match(Rule[] rules, Message message) {
+		for (int i = 0; i < rules.length; i++) {
+			Rule rule = rules[i];
+			if (rule.matches(message) && rule.fires()) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	private boolean matches(Message message) {
+		return (source == null || source.equals(message.getSource()))
+				&& (dest == null || dest.equals(message.getDest()))
+				&& (kind == null || kind.equals(message.getKind()))
+				&& (sequenceNumber < 0 || sequenceNumber == message
+						.getSequenceNumber())
+				&& (dupe == null || dupe.booleanValue() == message.isDupe());
+	}
+
+	private boolean fires() {
+		return probability >= 1
+				|| ThreadLocalRandom.current().nextDouble() < probability;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * @return True if a delay is a duration, false if it is a count of
+	 *         messages.
+	 */
+	public boolean isTimed() {
+		return duration >= 0;
+	}
+
+	/**
+	 * @return Number of messages a delayed message waits for.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Draw the delay of a message from the distribution of the rule.
+	 * 
+	 * @return Delay in milliseconds.
+	 */
+	public long sampleDelay() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double delay = duration;
+		if (DISTRIBUTION_UNIFORM.equals(distribution)) {
+			delay += (2 * random.nextDouble() - 1) * jitter;
+		} else if (DISTRIBUTION_NORMAL.equals(distribution)) {
+			delay += random.nextGaussian() * jitter;
+		} else if (DISTRIBUTION_EXPONENTIAL.equals(distribution)) {
+			delay = -Math.log(1 - random.nextDouble()) * duration;
+		}
+		return Math.max(Math.round(delay), 0);
+	}
+
+	/**
+	 * Draw the number of later messages a reordered message waits for.
+	 * 
+	 * @return A number below the window, 0 to let the message through.
+	 */
+	public long sampleHoldBack() {
+		return window <= 1 ? 0 : ThreadLocalRandom.current().nextInt(window);
+	}
+
+	/**
+	 * Take a message of the given size out of the token bucket. Messages
+	 * beyond the burst wait until the rate allows them.
+	 * 
+	 * @param bytes
+	 *            Size of the message.
+	 * @param now
+	 *            System.nanoTime() of now.
+	 * @return How long the message must wait in nanoseconds, 0 if none.
+	 */
+	public synchronized long reserve(int bytes, long now) {
+		long cost = (long) (bytes * 1e9 / rate);
+		long tolerance = (long) (burst * 1e9 / rate);
+		if (theoreticalArrival - now < 0) {
+			theoreticalArrival = now;
+		}
+		long wait = theoreticalArrival - tolerance - now;
+		theoreticalArrival += cost;
+		return Math.max(wait, 0);
+	}
+
+	@Override
+	public String toString() {
+		return action + " [src] " + source + " [dst] " + dest + " [kind] "
+				+ kind + " [seq] " + sequenceNumber + " [dup] " + dupe
+				+ " [probability] " + probability;
+	}
+}
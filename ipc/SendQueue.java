@@ -0,0 +1,331 @@
+package ipc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The send buffer of a node: one queue per priority class, served by weighted
+ * fair queueing. Every class has a virtual finish time, which grows by the
+ * size of each message taken from the class divided by its weight, and the
+ * next message comes from the class with the earliest one. A class that was
+ * idle starts from the current virtual time, so it gets no credit for the
+ * time it had nothing to send. Messages of one class come out in the order
+ * they were put in.
+ * 
+ * The size of a message is its encoded size if it is known when it is put in,
+ * the payload of a bytes message, or a nominal size otherwise. Messages are
+ * usually encoded only once they are taken out, so the sender settles the
+ * charge of the class with the real size then. A large message
+ * sent in fragments is put back at the head of its class after each one, with
+ * the size of the next fragment, so that a bulk class shares the connection
+ * with the others fragment by fragment.
+ * 
+ * Without classes it is a plain FIFO queue.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class SendQueue {
+
+	// class of the kinds not listed in any class
+	public static final String DEFAULT_CLASS = "default";
+	public static final int DEFAULT_WEIGHT = 1;
+
+	// size counted for a message whose size is not known yet
+	private static final int NOMINAL_SIZE = 256;
+
+	// virtual time units per byte at weight 1, keeps small weights precise
+	private static final long SCALE = 1024;
+
+	private ReentrantLock lock;
+	private Condition notEmpty;
+
+	// classes in the order configured, and the class of each listed kind
+	private Lane[] lanes;
+	private HashMap<String, Lane> kindLanes;
+	private Lane defaultLane;
+
+	private long virtualTime;
+	private int size;
+
+	// class and charge of the message taken last, until it is settled
+	private Lane taken;
+	private int takenCost;
+
+	private static class Entry {
+		private Message message;
+		private int cost;
+
+		public Entry(Message message, int cost) {
+			this.message = message;
+			this.cost = cost;
+		}
+	}
+
+	/**
+	 * The queue of one priority class.
+	 */
+	private static class Lane {
+		private String name;
+		private int weight;
+		private ArrayDeque<Entry> entries;
+		private long finish;
+
+		public Lane(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+			this.entries = new ArrayDeque<Entry>();
+			this.finish = 0;
+		}
+	}
+
+	public SendQueue() {
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+		this.defaultLane = new Lane(DEFAULT_CLASS, DEFAULT_WEIGHT);
+		this.lanes = new Lane[] { defaultLane };
+		this.kindLanes = new HashMap<String, Lane>();
+		this.virtualTime = 0;
+		this.size = 0;
+		this.taken = null;
+		this.takenCost = 0;
+	}
+
+	/**
+	 * Set the priority classes. The messages queued are moved to their new
+	 * classes, each class keeping their order.
+	 * 
+	 * @param weights
+	 *            Weight of every class by name, in the order the classes are
+	 *            preferred on a tie. The default class has DEFAULT_WEIGHT
+	 *            unless it is listed. Empty for a FIFO queue.
+	 * @param classes
+	 *            Class of every listed kind, the others are in the default
+	 *            class.
+	 */
+	public void configure(LinkedHashMap<String, Integer> weights,
+			Map<String, String> classes) {
+		HashMap<String, Lane> named = new HashMap<String, Lane>();
+		ArrayList<Lane> configured = new ArrayList<Lane>();
+		for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+			Lane lane = new Lane(entry.getKey(), entry.getValue());
+			named.put(lane.name, lane);
+			configured.add(lane);
+		}
+		Lane fallback = named.get(DEFAULT_CLASS);
+		if (fallback == null) {
+			fallback = new Lane(DEFAULT_CLASS, DEFAULT_WEIGHT);
+			configured.add(fallback);
+		}
+		HashMap<String, Lane> kinds = new HashMap<String, Lane>();
+		for (Map.Entry<String, String> entry : classes.entrySet()) {
+			Lane lane = named.get(entry.getValue());
+			if (lane != null) {
+				kinds.put(entry.getKey(), lane);
+			}
+		}
+		lock.lock();
+		try {
+			Lane[] old = lanes;
+			lanes = configured.toArray(new Lane[configured.size()]);
+			kindLanes = kinds;
+			defaultLane = fallback;
+			virtualTime = 0;
+			for (Lane lane : old) {
+				for (Entry entry : lane.entries) {
+					laneOf(entry.message).entries.addLast(entry);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Put a message at the tail of its class.
+	 * 
+	 * @param message
+	 *            The message.
+	 */
+	public void add(Message message) {
+		Entry entry = new Entry(message, sizeOf(message));
+		lock.lock();
+		try {
+			laneOf(message).entries.addLast(entry);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Put a message back at the head of its class, it is the next one the
+	 * class sends.
+	 * 
+	 * @param message
+	 *            The message.
+	 * @param bytes
+	 *            Number of bytes it sends next.
+	 */
+	public void addFirst(Message message, int bytes) {
+		Entry entry = new Entry(message, bytes);
+		lock.lock();
+		try {
+			laneOf(message).entries.addFirst(entry);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next message, waiting if there is none.
+	 * 
+	 * @return The message.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public Message take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (size == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next message, waiting up to the given time if there is none.
+	 * 
+	 * @param timeout
+	 *            How long to wait.
+	 * @param unit
+	 *            Unit of the timeout.
+	 * @return The message, null if none came in time.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public Message poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (size == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The message take() would return now, null if there is none.
+	 */
+	public Message peek() {
+		lock.lock();
+		try {
+			Lane lane = next();
+			return lane == null ? null : lane.entries.peekFirst().message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Charge the class of the message taken last with its real size instead
+	 * of the size counted when it was put in. Nothing happens if another
+	 * message has been taken since or the charge is settled already.
+	 * 
+	 * @param bytes
+	 *            Size of the message.
+	 */
+	public void settle(int bytes) {
+		lock.lock();
+		try {
+			if (taken != null) {
+				taken.finish += (long) (bytes - takenCost) * SCALE
+						/ taken.weight;
+				taken = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Lane laneOf(Message message) {
+		Lane lane = kindLanes.get(message.getKind());
+		return lane == null ? defaultLane : lane;
+	}
+
+	/**
+	 * @return The class with the earliest virtual start time, null if all are
+	 *         empty.
+	 */
+	private Lane next() {
+		Lane best = null;
+		long bestStart = 0;
+		for (Lane lane : lanes) {
+			if (lane.entries.isEmpty()) {
+				continue;
+			}
+			long start = Math.max(lane.finish, virtualTime);
+			if (best == null || start < bestStart) {
+				best = lane;
+				bestStart = start;
+			}
+		}
+		return best;
+	}
+
+	private Message dequeue() {
+		Lane lane = next();
+		Entry entry = lane.entries.pollFirst();
+		virtualTime = Math.max(lane.finish, virtualTime);
+		lane.finish = virtualTime + entry.cost * SCALE / lane.weight;
+		taken = lane;
+		takenCost = entry.cost;
+		size--;
+		return entry.message;
+	}
+
+	private static int sizeOf(Message message) {
+		int size = 0;
+		byte[] encoded = message.getEncoded();
+		if (encoded != null) {
+			size = encoded.length;
+		}
+		if (message instanceof BytesMessage) {
+			size += ((BytesMessage) message).getPayloadLength();
+		}
+		return size == 0 ? NOMINAL_SIZE : size;
+	}
+}
@@ -0,0 +1,366 @@
+package ipc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one-way byte stream between two processes on the same host, kept in a
+ * memory-mapped file: a ring buffer with one writer and one reader. The
+ * writer moves the tail and the reader the head, each with a release store
+ * seen by the other with an acquire load, so no lock is taken and no system
+ * call is made while the reader keeps up.
+ * 
+ * A socket between the two processes stays open beside the ring. A reader
+ * that found the ring empty for a while says so in the header and blocks on
+ * the socket, and the writer sends it a byte to wake it up. The socket also
+ * tells either end when the other one is gone.
+ * 
+ * The ordered loads and stores need VarHandle, and the spinning uses
+ * Thread.onSpinWait(), so this class needs Java 9 or later.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class SharedMemoryRing {
+
+	// bytes the ring holds, a power of two
+	public static final int CAPACITY = 1 << 20;
+
+	// the writer and the reader fields of the header are on cache lines of
+	// their own
+	private static final int TAIL = 0;
+	private static final int HEAD = 64;
+	private static final int WAITING = 128;
+	private static final int DATA = 192;
+
+	/*
+	 * how long either end spins before blocking, spinning on a single
+	 * processor only keeps the other end from running
+	 */
+	private static final long SPIN_NANOS = Runtime.getRuntime()
+			.availableProcessors() > 1 ? 50 * 1000 : 0;
+
+	/*
+	 * how long a writer waiting for room parks at a time, and how often it
+	 * checks on the socket that the reader is still there
+	 */
+	private static final long FULL_PARK_NANOS = 50 * 1000;
+	private static final long FULL_CHECK_NANOS = 100 * 1000 * 1000;
+	private static final int FULL_CHECK_TIMEOUT = 1;
+
+	// tmpfs where there is one, so the pages are never written back to disk
+	private static final String SHM_DIRECTORY = "/dev/shm";
+
+	private static final VarHandle LONG = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INT = MethodHandles
+			.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private File file;
+	private MappedByteBuffer buffer;
+
+	/**
+	 * The writing end. It is not thread-safe, the caller writes a frame at a
+	 * time.
+	 */
+	private class RingOutputStream extends OutputStream {
+		private Socket socket;
+		private ByteBuffer data;
+		private long tail;
+		private byte[] single;
+
+		// bytes the writer lets the ring hold
+		private int limit;
+
+		public RingOutputStream(Socket socket, int limit) throws IOException {
+			this.socket = socket;
+			this.limit = limit;
+			this.data = buffer.duplicate();
+			this.tail = (long) LONG.getVolatile(buffer, TAIL);
+			this.single = new byte[1];
+			socket.setSoTimeout(FULL_CHECK_TIMEOUT);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				long head = (long) LONG.getAcquire(buffer, HEAD);
+				int room = (int) (limit - (tail - head));
+				if (room <= 0) {
+					awaitRoom();
+					continue;
+				}
+				int n = Math.min(room, len);
+				int index = (int) (tail & (CAPACITY - 1));
+				int first = Math.min(n, CAPACITY - index);
+				data.position(DATA + index);
+				data.put(b, off, first);
+				if (first < n) {
+					data.position(DATA);
+					data.put(b, off + first, n - first);
+				}
+				tail += n;
+				LONG.setRelease(buffer, TAIL, tail);
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Wake the reader if it is blocked on the socket.
+		 */
+		@Override
+		public void flush() throws IOException {
+			VarHandle.fullFence();
+			if ((int) INT.getVolatile(buffer, WAITING) != 0) {
+				socket.getOutputStream().write(0);
+			}
+		}
+
+		/**
+		 * Wait until the reader makes room, or throw if it is gone.
+		 */
+		private void awaitRoom() throws IOException {
+			flush();
+			long start = System.nanoTime();
+			long checked = start;
+			while (limit - (tail - (long) LONG.getAcquire(buffer, HEAD)) <= 0) {
+				long now = System.nanoTime();
+				if (now - start < SPIN_NANOS) {
+					Thread.onSpinWait();
+					continue;
+				}
+				if (now - checked < FULL_CHECK_NANOS) {
+					LockSupport.parkNanos(FULL_PARK_NANOS);
+					continue;
+				}
+				try {
+					if (socket.getInputStream().read() < 0) {
+						throw new IOException("connection closed");
+					}
+				} catch (SocketTimeoutException ex) {
+					// the reader is still there
+				}
+				checked = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * The reading end, for one thread.
+	 */
+	private class RingInputStream extends InputStream {
+		private InputStream doorbell;
+		private ByteBuffer data;
+		private long head;
+		private byte[] single;
+
+		public RingInputStream(InputStream doorbell) {
+			this.doorbell = doorbell;
+			this.data = buffer.duplicate();
+			this.head = (long) LONG.getVolatile(buffer, HEAD);
+			this.single = new byte[1];
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		/**
+		 * Read what the ring holds, up to len bytes. It blocks only if the
+		 * ring is empty.
+		 * 
+		 * @return Bytes read, -1 once the writer is gone and the ring is
+		 *         empty.
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			long tail = (long) LONG.getAcquire(buffer, TAIL);
+			if (tail == head) {
+				tail = awaitData();
+				if (tail == head) {
+					return -1;
+				}
+			}
+			int n = (int) Math.min(len, tail - head);
+			int index = (int) (head & (CAPACITY - 1));
+			int first = Math.min(n, CAPACITY - index);
+			data.position(DATA + index);
+			data.get(b, off, first);
+			if (first < n) {
+				data.position(DATA);
+				data.get(b, off + first, n - first);
+			}
+			head += n;
+			LONG.setRelease(buffer, HEAD, head);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) ((long) LONG.getAcquire(buffer, TAIL) - head);
+		}
+
+		/**
+		 * Spin for a while, then block on the socket until the writer rings.
+		 * 
+		 * @return The tail, the same as the head if the writer is gone.
+		 */
+		private long awaitData() throws IOException {
+			long start = System.nanoTime();
+			while (true) {
+				long tail = (long) LONG.getAcquire(buffer, TAIL);
+				if (tail != head) {
+					return tail;
+				}
+				if (System.nanoTime() - start < SPIN_NANOS) {
+					Thread.onSpinWait();
+					continue;
+				}
+
+				// the writer checks the flag after moving the tail
+				INT.setVolatile(buffer, WAITING, 1);
+				boolean gone = false;
+				if ((long) LONG.getVolatile(buffer, TAIL) == head) {
+					gone = doorbell.read() < 0;
+				}
+				INT.setVolatile(buffer, WAITING, 0);
+				if (gone) {
+					return (long) LONG.getVolatile(buffer, TAIL);
+				}
+				start = System.nanoTime();
+			}
+		}
+	}
+
+	private SharedMemoryRing(File file, MappedByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Create a ring in a new file, under /dev/shm if the host has it and
+	 * under the temporary directory otherwise.
+	 * 
+	 * @return The ring.
+	 * @throws IOException
+	 *             If the file cannot be created or mapped.
+	 */
+	public static SharedMemoryRing create() throws IOException {
+		File directory = new File(SHM_DIRECTORY);
+		if (!directory.isDirectory() || !directory.canWrite()) {
+			directory = null;
+		}
+		File file = File.createTempFile("ipc-ring-", ".shm", directory);
+		file.deleteOnExit();
+		try {
+			return new SharedMemoryRing(file, map(file, DATA + CAPACITY));
+		} catch (IOException ex) {
+			file.delete();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Map a ring created by the other process.
+	 * 
+	 * @param path
+	 *            Path of its file.
+	 * @return The ring.
+	 * @throws IOException
+	 *             If the file cannot be mapped, e.g. the other process does
+	 *             not share the file system.
+	 */
+	public static SharedMemoryRing open(String path) throws IOException {
+		File file = new File(path);
+		if (file.length() != DATA + CAPACITY) {
+			throw new IOException("no ring at " + path);
+		}
+		return new SharedMemoryRing(file, map(file, DATA + CAPACITY));
+	}
+
+	private static MappedByteBuffer map(File file, int length)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public String getPath() {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Remove the file once both processes have mapped it, the mappings stay
+	 * valid.
+	 */
+	public void delete() {
+		file.delete();
+	}
+
+	/**
+	 * @param socket
+	 *            Socket to the reader, used to wake it up and to notice when
+	 *            it is gone.
+	 * @return The writing end.
+	 * @throws IOException
+	 *             If the socket cannot be set up.
+	 */
+	public OutputStream getOutputStream(Socket socket) throws IOException {
+		return getOutputStream(socket, CAPACITY);
+	}
+
+	/**
+	 * @param socket
+	 *            Socket to the reader, used to wake it up and to notice when
+	 *            it is gone.
+	 * @param limit
+	 *            Most bytes the writer lets the ring hold, up to CAPACITY.
+	 * @return The writing end.
+	 * @throws IOException
+	 *             If the socket cannot be set up.
+	 */
+	public OutputStream getOutputStream(Socket socket, int limit)
+			throws IOException {
+		return new RingOutputStream(socket, Math.min(limit, CAPACITY));
+	}
+
+	/**
+	 * @param doorbell
+	 *            Input of the socket from the writer, a byte arrives when the
+	 *            reader is to wake up and the end of the stream when the
+	 *            writer is gone.
+	 * @return The reading end.
+	 */
+	public InputStream getInputStream(InputStream doorbell) {
+		return new RingInputStream(doorbell);
+	}
+}
@@ -0,0 +1,255 @@
+package ipc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An outgoing TCP connection to a remote node. Frames are buffered and written
+ * whole, so several threads can write to the same connection. The first frame
+ * names the local node so that the remote side can tell who sends control
+ * frames. The payload of a bytes message is not copied: it goes out with the
+ * rest of the frame in one gathering write on the channel of the socket.
+ * 
+ * To a node on the same host the frames may go through a shared memory ring
+ * instead, the socket then only wakes the reader up. With the TLS transport
+ * they go to a TLS session, which encrypts them when the transport flushes.
+ * 
+ * A large message may be written in fragments, with other frames in between.
+ * 
+ * @author Yinsu Chu
+ * 
+ */
+public class TcpConnection implements Connection {
+	private static final int BUFFER_SIZE = 8192;
+
+	private Socket socket;
+	private DataOutputStream output;
+
+	// null if the socket was not opened through a channel or the frames go
+	// elsewhere
+	private SocketChannel channel;
+
+	// frames followed by a payload are put together here
+	private FrameBytes headerBytes;
+	private DataOutputStream headerOutput;
+	private ByteBuffer[] buffers;
+
+	/**
+	 * A byte array stream whose content can be written to a channel without
+	 * copying it.
+	 */
+	private static class FrameBytes extends ByteArrayOutputStream {
+		private ByteBuffer wrapped;
+
+		public ByteBuffer toBuffer() {
+			if (wrapped == null || wrapped.array() != buf) {
+				wrapped = ByteBuffer.wrap(buf);
+			}
+			wrapped.clear();
+			wrapped.limit(count);
+			return wrapped;
+		}
+	}
+
+	// System.nanoTime() of the last frame written
+	private volatile long lastWrite;
+
+	public TcpConnection(Socket socket, String localName, long incarnation)
+			throws IOException {
+		this(socket, socket.getOutputStream(), socket.getChannel(), localName,
+				incarnation);
+	}
+
+	/**
+	 * A connection whose frames go to the given stream instead of the socket,
+	 * e.g. a shared memory ring or a TLS session.
+	 * 
+	 * @param socket
+	 *            The socket, closed with the connection.
+	 * @param stream
+	 *            Where frames are written.
+	 * @param localName
+	 *            Name of the local node.
+	 * @param incarnation
+	 *            Incarnation of the local node.
+	 * @throws IOException
+	 *             If the first frame cannot be written.
+	 */
+	TcpConnection(Socket socket, OutputStream stream, String localName,
+			long incarnation) throws IOException {
+		this(socket, stream, null, localName, incarnation);
+	}
+
+	private TcpConnection(Socket socket, OutputStream stream,
+			SocketChannel channel, String localName, long incarnation)
+			throws IOException {
+		this.socket = socket;
+		this.output = new DataOutputStream(new BufferedOutputStream(stream,
+				BUFFER_SIZE));
+		this.channel = channel;
+		this.headerBytes = new FrameBytes();
+		this.headerOutput = new DataOutputStream(headerBytes);
+		this.buffers = new ByteBuffer[2];
+		WireFormat.writeHello(output, localName, incarnation);
+		output.flush();
+		this.lastWrite = System.nanoTime();
+	}
+
+	/**
+	 * Write a frame and flush it.
+	 * 
+	 * @param sequenceNumber
+	 *            Sequence number of the message on this link.
+	 * @param dupe
+	 *            True if the frame is a duplicate made by a rule.
+	 * @param ack
+	 *            Ack to carry, null if none.
+	 * @param trace
+	 *            Trace stamps of the message to carry, null if not sampled.
+	 * @param body
+	 *            The serialized message, null for a control frame.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	public synchronized void write(long sequenceNumber, boolean dupe, Ack ack,
+			Trace trace, byte[] body) throws IOException {
+		WireFormat.writeFrame(output, sequenceNumber, dupe, ack, trace, body,
+				0);
+		output.flush();
+		lastWrite = System.nanoTime();
+	}
+
+	/**
+	 * Write a frame ending with a payload and flush it.
+	 * 
+	 * @param sequenceNumber
+	 *            Sequence number of the message on this link.
+	 * @param dupe
+	 *            True if the frame is a duplicate made by a rule.
+	 * @param ack
+	 *            Ack to carry, null if none.
+	 * @param trace
+	 *            Trace stamps of the message to carry, null if not sampled.
+	 * @param body
+	 *            Start of the body.
+	 * @param payload
+	 *            Rest of the body, from its position to its limit. The
+	 *            position of the buffer is moved.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	public synchronized void write(long sequenceNumber, boolean dupe, Ack ack,
+			Trace trace, byte[] body, ByteBuffer payload) throws IOException {
+		if (channel == null) {
+			WireFormat.writeFrame(output, sequenceNumber, dupe, ack, trace,
+					body, payload.remaining());
+			if (payload.hasArray()) {
+				output.write(payload.array(), payload.arrayOffset()
+						+ payload.position(), payload.remaining());
+				payload.position(payload.limit());
+			} else {
+				byte[] chunk = new byte[Math.min(BUFFER_SIZE,
+						payload.remaining())];
+				while (payload.hasRemaining()) {
+					int n = Math.min(chunk.length, payload.remaining());
+					payload.get(chunk, 0, n);
+					output.write(chunk, 0, n);
+				}
+			}
+			output.flush();
+		} else {
+			headerBytes.reset();
+			WireFormat.writeFrame(headerOutput, sequenceNumber, dupe, ack,
+					trace, body, payload.remaining());
+			ByteBuffer header = headerBytes.toBuffer();
+			buffers[0] = header;
+			buffers[1] = payload;
+			while (header.hasRemaining() || payload.hasRemaining()) {
+				channel.write(buffers);
+			}
+			buffers[1] = null;
+		}
+		lastWrite = System.nanoTime();
+	}
+
+	public void writeControl(Ack ack) throws IOException {
+		write(0, false, ack, null, null);
+	}
+
+	/**
+	 * Write a message encoded by the caller. The payload of a bytes message
+	 * follows the body in the same write.
+	 */
+	public void writeMessage(Message message, Ack ack, byte[] body)
+			throws IOException {
+		if (message instanceof BytesMessage) {
+			write(message.getSequenceNumber(), message.isDupe(), ack,
+					message.getTrace(), body,
+					((BytesMessage) message).wireView());
+		} else {
+			write(message.getSequenceNumber(), message.isDupe(), ack,
+					message.getTrace(), body);
+		}
+	}
+
+	/**
+	 * Write a fragment of the body of a message and flush it. The fragment is
+	 * copied from the body and the payload into the buffered stream, it is
+	 * at most the size of a fragment.
+	 */
+	public synchronized void writeFragment(Message message, Ack ack,
+			byte[] body, int offset, int length) throws IOException {
+		ByteBuffer payload = null;
+		int total = body.length;
+		if (message instanceof BytesMessage) {
+			payload = ((BytesMessage) message).wireView();
+			total += payload.remaining();
+		}
+		boolean last = offset + length == total;
+		WireFormat.writeFragment(output, message.getSequenceNumber(),
+				message.isDupe(), ack, last ? message.getTrace() : null,
+				offset, length, total);
+		int end = offset + length;
+		if (offset < body.length) {
+			int n = Math.min(end, body.length) - offset;
+			output.write(body, offset, n);
+			offset += n;
+		}
+		if (offset < end) {
+			payload.position(payload.position() + offset - body.length);
+			payload.limit(payload.position() + end - offset);
+			if (payload.hasArray()) {
+				output.write(payload.array(), payload.arrayOffset()
+						+ payload.position(), payload.remaining());
+			} else {
+				byte[] chunk = new byte[Math.min(BUFFER_SIZE,
+						payload.remaining())];
+				while (payload.hasRemaining()) {
+					int n = Math.min(chunk.length, payload.remaining());
+					payload.get(chunk, 0, n);
+					output.write(chunk, 0, n);
+				}
+			}
+		}
+		output.flush();
+		lastWrite = System.nanoTime();
+	}
+
+	public long getLastWrite() {
+		return lastWrite;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public void close(LogTool logger) {
+		NetTool.destroySocket(socket, logger);
+	}
+}
@@ -0,0 +1,270 @@
+package ipc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ClosedByInterruptException;
+
+/**
+ * The default transport: a TCP connection each way between two nodes, with
+ * messages encoded by WireFormat. Sockets are opened by NetTool.
+ * 
+ * When both nodes are on the same host, the connecting side offers a shared
+ * memory ring in place of the stream: it creates the ring and sends its path
+ * before anything else, and the accepting side answers whether it could map
+ * it. Frames then go through the ring, and the socket stays open to wake the
+ * reader up and to tell either end when the other one is gone. Either side
+ * can turn this off, the connection then stays a plain TCP one.
+ * 
+ * The offer is the int RING_OFFER followed by the path, written before the
+ * hello frame. A frame starts with its length, which is never negative, so
+ * the accepting side tells an offer from a frame by the first int alone. A
+ * node that does not know about rings would take the offer for a corrupt
+ * frame and drop the connection, so a cluster mixing such nodes turns shared
+ * memory off.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class TcpTransport implements Transport {
+
+	/*
+	 * first int of a connection offering a ring, a frame starts with its
+	 * length instead, which is never negative
+	 */
+	private static final int RING_OFFER = 0xfffe5248;
+	private static final int RING_ACCEPTED = 1;
+	private static final int RING_REFUSED = 0;
+
+	private ServerSocket serverSocket;
+	private boolean sharedMemory;
+
+	// settings of the sockets connected from now on
+	private volatile int sendBufferSize;
+	private volatile boolean noDelay;
+
+	// true if the local node is bound to an address of this host
+	private boolean localBound;
+
+	private LogTool logger;
+
+	/**
+	 * A TCP connection accepted from a remote node.
+	 */
+	private class TcpIncomingConnection implements IncomingConnection {
+		private Socket socket;
+		private DataInputStream input;
+		private WireFormat.Reassembly reassembly;
+
+		public TcpIncomingConnection(Socket socket) {
+			this.socket = socket;
+			this.input = null;
+			this.reassembly = new WireFormat.Reassembly();
+		}
+
+		public Frame read(CompressionStats stats, MessagePool pool)
+				throws IOException, ClassNotFoundException {
+			if (input == null) {
+				input = new DataInputStream(new BufferedInputStream(
+						socket.getInputStream()));
+				input.mark(4);
+				if (input.readInt() == RING_OFFER) {
+					input = acceptRing(input);
+				} else {
+					input.reset();
+				}
+			}
+			return WireFormat.readFrame(input, stats, pool, reassembly);
+		}
+
+		/**
+		 * Map the ring offered by the remote node and answer.
+		 * 
+		 * @param socketInput
+		 *            Input of the socket, past the offer.
+		 * @return The stream to read frames from, the ring if it is mapped
+		 *         and the socket otherwise.
+		 * @throws IOException
+		 *             If the offer cannot be read or answered.
+		 */
+		private DataInputStream acceptRing(DataInputStream socketInput)
+				throws IOException {
+			String path = socketInput.readUTF();
+			SharedMemoryRing ring = null;
+			if (sharedMemory) {
+				try {
+					ring = SharedMemoryRing.open(path);
+				} catch (IOException ex) {
+					logger.error("failed to map shared memory ring " + path
+							+ ", staying on TCP - " + ex.getMessage());
+				}
+			}
+			socket.getOutputStream().write(
+					ring == null ? RING_REFUSED : RING_ACCEPTED);
+			if (ring == null) {
+				return socketInput;
+			}
+			return new DataInputStream(new BufferedInputStream(
+					ring.getInputStream(socketInput)));
+		}
+
+		public String getRemoteAddress() {
+			return String.valueOf(socket.getRemoteSocketAddress());
+		}
+
+		public void close(LogTool logger) {
+			NetTool.destroySocket(socket, logger);
+		}
+	}
+
+	/**
+	 * @param logger
+	 *            Logger of the node.
+	 * @param sharedMemory
+	 *            True to use shared memory rings between nodes on the same
+	 *            host.
+	 */
+	public TcpTransport(LogTool logger, boolean sharedMemory) {
+		this.serverSocket = null;
+		this.sharedMemory = sharedMemory;
+		this.sendBufferSize = 0;
+		this.noDelay = false;
+		this.localBound = false;
+		this.logger = logger;
+	}
+
+	/**
+	 * Set the size of the send buffer of the sockets connected from now on,
+	 * and the most a shared memory ring holds. A small buffer keeps few bytes
+	 * queued ahead of an urgent message, at the cost of the throughput of a
+	 * link with a long round trip.
+	 * 
+	 * @param sendBufferSize
+	 *            Size in bytes, 0 to leave it to the kernel.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @param noDelay
+	 *            True to turn Nagle's algorithm off on the sockets connected
+	 *            from now on, so that a small frame is not held until the
+	 *            frames before it are acknowledged.
+	 */
+	public void setTcpNoDelay(boolean noDelay) {
+		this.noDelay = noDelay;
+	}
+
+	public boolean bind(String IP, int port) {
+		serverSocket = NetTool.createServerSocket(IP, port, logger);
+		localBound = NetTool.isLocalAddress(IP);
+		return serverSocket != null;
+	}
+
+	public IncomingConnection accept() throws IOException {
+		if (serverSocket == null) {
+			throw new IOException("transport is not bound");
+		}
+		return new TcpIncomingConnection(serverSocket.accept());
+	}
+
+	public Connection connect(String IP, int port, int timeout,
+			String localName, long incarnation) throws IOException {
+		Socket socket = NetTool.connect(IP, port, timeout);
+		try {
+			int size = sendBufferSize;
+			if (size > 0) {
+				socket.setSendBufferSize(size);
+			}
+			socket.setTcpNoDelay(noDelay);
+			if (sharedMemory && localBound && NetTool.isLocalAddress(IP)) {
+				Connection connection = connectRing(socket, timeout,
+						localName, incarnation);
+				if (connection != null) {
+					return connection;
+				}
+			}
+			return new TcpConnection(socket, localName, incarnation);
+		} catch (IOException ex) {
+			NetTool.destroySocket(socket, logger);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Offer a shared memory ring on a new connection to a node on this host.
+	 * 
+	 * @param socket
+	 *            The new connection.
+	 * @param timeout
+	 *            How long to wait for the answer in milliseconds, 0 for no
+	 *            timeout.
+	 * @param localName
+	 *            Name of the local node.
+	 * @param incarnation
+	 *            Incarnation of the local node.
+	 * @return The connection over the ring, null if the remote node did not
+	 *         take it and the socket is to be used as it is.
+	 * @throws IOException
+	 *             If the socket fails.
+	 */
+	private Connection connectRing(Socket socket, int timeout,
+			String localName, long incarnation) throws IOException {
+		SharedMemoryRing ring = null;
+		try {
+			ring = SharedMemoryRing.create();
+		} catch (ClosedByInterruptException ex) {
+
+			// the node is closing, there is no connection to fall back to
+			throw ex;
+		} catch (IOException ex) {
+			logger.error("failed to create shared memory ring, staying on TCP - "
+					+ ex.getMessage());
+			return null;
+		}
+		try {
+			DataOutputStream output = new DataOutputStream(
+					socket.getOutputStream());
+			output.writeInt(RING_OFFER);
+			output.writeUTF(ring.getPath());
+			output.flush();
+			socket.setSoTimeout(timeout);
+			int answer = socket.getInputStream().read();
+			socket.setSoTimeout(0);
+			if (answer < 0) {
+				throw new EOFException("connection closed");
+			}
+			if (answer != RING_ACCEPTED) {
+				return null;
+			}
+			int limit = sendBufferSize;
+			return new TcpConnection(socket, ring.getOutputStream(socket,
+					limit > 0 ? limit : SharedMemoryRing.CAPACITY), localName,
+					incarnation);
+		} finally {
+
+			// both ends have mapped it, or it is not used
+			ring.delete();
+		}
+	}
+
+	/**
+	 * Nothing is held back, every frame is flushed as it is written.
+	 */
+	public void flush() {
+	}
+
+	public boolean isInProcess() {
+		return false;
+	}
+
+	public void close() {
+		NetTool.destroyServerSocket(serverSocket, logger);
+	}
+}
@@ -0,0 +1,180 @@
+package ipc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel (Varghese and Lauck) holding items until a deadline. A
+ * tick is whatever the owner advances the wheel by: a millisecond for the
+ * delay timer, one message for delays counted in messages. Scheduling is O(1)
+ * and so is advancing by one tick, plus the items that expire: an item lands
+ * in the slot of its deadline modulo the wheel size and is only looked at
+ * when the wheel passes that slot. Items expire in deadline order, those with
+ * the same deadline in the order they were scheduled. Not thread safe, the
+ * owner holds a lock around it.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class TimingWheel<T> {
+	private Entry<T>[] heads;
+	private Entry<T>[] tails;
+	private int mask;
+
+	// ticks passed so far
+	private long tick;
+	private int size;
+
+	private static class Entry<T> {
+		private T item;
+		private long deadline;
+		private Entry<T> next;
+
+		public Entry(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+			this.next = null;
+		}
+	}
+
+	/**
+	 * @param slots
+	 *            Number of slots, rounded up to a power of two. Deadlines
+	 *            further than that come around the wheel several times.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimingWheel(int slots) {
+		int size = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+		this.heads = new Entry[size];
+		this.tails = new Entry[size];
+		this.mask = size - 1;
+		this.tick = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Hold an item for some ticks.
+	 * 
+	 * @param item
+	 *            The item.
+	 * @param ticks
+	 *            Number of ticks from now, at least 1.
+	 */
+	public void schedule(T item, long ticks) {
+		Entry<T> entry = new Entry<T>(item, tick + Math.max(ticks, 1));
+		int slot = (int) (entry.deadline & mask);
+		if (tails[slot] == null) {
+			heads[slot] = entry;
+		} else {
+			tails[slot].next = entry;
+		}
+		tails[slot] = entry;
+		size++;
+	}
+
+	/**
+	 * Move the wheel forward, collecting the items whose deadline is passed.
+	 * 
+	 * @param to
+	 *            Tick to move to, nothing happens if it is not ahead.
+	 * @param expired
+	 *            Where the expired items are added, in deadline order.
+	 */
+	public void advance(long to, List<? super T> expired) {
+		while (tick < to) {
+			if (size == 0) {
+				tick = to;
+				return;
+			}
+			tick++;
+			int slot = (int) (tick & mask);
+			Entry<T> previous = null;
+			Entry<T> entry = heads[slot];
+			while (entry != null) {
+				if (entry.deadline <= tick) {
+					expired.add(entry.item);
+					size--;
+					if (previous == null) {
+						heads[slot] = entry.next;
+					} else {
+						previous.next = entry.next;
+					}
+					if (tails[slot] == entry) {
+						tails[slot] = previous;
+					}
+				} else {
+					previous = entry;
+				}
+				entry = entry.next;
+			}
+		}
+	}
+
+	/**
+	 * Find the tick at which the next item expires, looking at one slot after
+	 * the other from the current tick. A slot holding only items of later
+	 * rounds is passed, after a whole round the earliest of those is taken.
+	 * 
+	 * @return Earliest deadline of the items held, Long.MAX_VALUE if none.
+	 */
+	public long nextDeadline() {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+		long earliest = Long.MAX_VALUE;
+		for (long at = tick + 1; at <= tick + heads.length; at++) {
+			for (Entry<T> entry = heads[(int) (at & mask)]; entry != null; entry = entry.next) {
+				if (entry.deadline <= at) {
+					return at;
+				}
+				earliest = Math.min(earliest, entry.deadline);
+			}
+		}
+		return earliest;
+	}
+
+	/**
+	 * Take every item out of the wheel.
+	 * 
+	 * @param items
+	 *            Where the items are added, in deadline order.
+	 */
+	public void drain(List<? super T> items) {
+		ArrayList<Entry<T>> entries = new ArrayList<Entry<T>>(size);
+		for (int slot = 0; slot < heads.length; slot++) {
+			for (Entry<T> entry = heads[slot]; entry != null; entry = entry.next) {
+				entries.add(entry);
+			}
+			heads[slot] = null;
+			tails[slot] = null;
+		}
+		size = 0;
+
+		// the sort is stable, so equal deadlines keep their slot order
+		Collections.sort(entries, new Comparator<Entry<T>>() {
+			public int compare(Entry<T> a, Entry<T> b) {
+				return Long.compare(a.deadline, b.deadline);
+			}
+		});
+		for (Entry<T> entry : entries) {
+			items.add(entry.item);
+		}
+	}
+
+	/**
+	 * @return Ticks passed so far.
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * @return Number of items held.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,627 @@
+package ipc;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A transport that encrypts the TCP connections between nodes with TLS. Every
+ * connection runs an SSLEngine over the channel of its socket, and frames are
+ * encoded by WireFormat as on a plain TCP connection. Both nodes present the
+ * certificate of their key store and check the other one against their trust
+ * store.
+ * 
+ * The engines of a node come from one SSLContext, whose session cache lets a
+ * node reconnecting to a node it already talked to resume the session instead
+ * of running a full handshake. Frames written to a connection are held in a
+ * buffer and encrypted in records as large as TLS allows, when the buffer is
+ * full or when the sender flushes the transport after its send buffer runs
+ * empty, so a burst of small messages costs a few records and system calls
+ * instead of one per message.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class TlsTransport implements Transport {
+
+	// records filled before the encrypted bytes are written to the socket
+	private static final int RECORDS_PER_WRITE = 4;
+
+	// how long a new connection waits for the session ticket of the server
+	private static final int TICKET_TIMEOUT = 1000;
+
+	private static final String TLS_13 = "TLSv1.3";
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private SSLContext context;
+	private ServerSocket serverSocket;
+
+	// size of the send buffer of the sockets connected from now on
+	private volatile int sendBufferSize;
+
+	// writing ends of the outgoing connections, flushed by the sender
+	private Set<RecordOutputStream> outputs;
+
+	private AtomicLong handshakes;
+	private AtomicLong resumed;
+
+	private LogTool logger;
+
+	/**
+	 * The TLS session of one socket. Handshake and post-handshake messages
+	 * may have to be written by the reading thread, so every write to the
+	 * socket goes through write().
+	 */
+	private class SecureChannel {
+		private Socket socket;
+		private SocketChannel channel;
+		private InputStream socketInput;
+		private SSLEngine engine;
+
+		// encrypted bytes read, in write mode
+		private ByteBuffer netIn;
+
+		// encrypted bytes to write
+		private ByteBuffer netOut;
+
+		// decrypted bytes not read yet, in read mode
+		private ByteBuffer appIn;
+
+		public SecureChannel(Socket socket, SSLEngine engine)
+				throws IOException {
+			this.socket = socket;
+			this.channel = socket.getChannel();
+
+			// the stream of the socket honors its timeout, its channel does not
+			this.socketInput = socket.getInputStream();
+			this.engine = engine;
+			SSLSession session = engine.getSession();
+			this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			this.netOut = ByteBuffer.allocate(session.getPacketBufferSize()
+					* RECORDS_PER_WRITE);
+			this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+			this.appIn.flip();
+		}
+
+		/**
+		 * Run the handshake to the end.
+		 * 
+		 * @throws IOException
+		 *             If the handshake fails or the connection is closed.
+		 */
+		public void handshake() throws IOException {
+			long start = System.currentTimeMillis();
+			engine.beginHandshake();
+			try {
+				finishHandshake();
+			} catch (SSLException ex) {
+
+				// tell the other end why, the engine has the alert ready
+				engine.closeOutbound();
+				try {
+					write(EMPTY);
+				} catch (IOException nestedEx) {
+					// the socket is closed with the connection anyway
+				}
+				throw ex;
+			}
+			handshakes.incrementAndGet();
+
+			// a session taken from the cache was created before the handshake
+			if (engine.getSession().getCreationTime() < start) {
+				resumed.incrementAndGet();
+			}
+		}
+
+		private void finishHandshake() throws IOException {
+			while (true) {
+				switch (engine.getHandshakeStatus()) {
+				case NEED_WRAP:
+					write(EMPTY);
+					break;
+				case NEED_UNWRAP:
+					if (!unwrap()) {
+						throw new EOFException("connection closed in handshake");
+					}
+					break;
+				case NEED_TASK:
+					runTasks();
+					break;
+				default:
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Run the work of the handshake the engine hands out, e.g. checking
+		 * certificates, in the calling thread.
+		 */
+		private void runTasks() {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+		}
+
+		/**
+		 * Decrypt the next record into appIn, reading the socket as needed.
+		 * Handshake messages sent after the handshake, such as session
+		 * tickets, are handled on the way.
+		 * 
+		 * @return False once the other end closed the session or the socket.
+		 * @throws IOException
+		 *             If the socket fails or a record cannot be decrypted.
+		 */
+		private boolean unwrap() throws IOException {
+			while (true) {
+				netIn.flip();
+				appIn.compact();
+				SSLEngineResult result;
+				try {
+					result = engine.unwrap(netIn, appIn);
+				} finally {
+					appIn.flip();
+					netIn.compact();
+				}
+				switch (result.getStatus()) {
+				case OK:
+					if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+							|| result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+						finishHandshake();
+					}
+					return true;
+				case BUFFER_UNDERFLOW:
+					if (!netIn.hasRemaining()) {
+						netIn = grow(netIn, engine.getSession()
+								.getPacketBufferSize());
+					}
+					if (!fill()) {
+						return false;
+					}
+					break;
+				case BUFFER_OVERFLOW:
+					throw new SSLException("record larger than "
+							+ appIn.capacity() + " bytes");
+				default:
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * Read what the socket has into netIn, blocking until at least a
+		 * byte arrives.
+		 * 
+		 * @return False at the end of the stream.
+		 */
+		private boolean fill() throws IOException {
+			int n = socketInput.read(netIn.array(), netIn.arrayOffset()
+					+ netIn.position(), netIn.remaining());
+			if (n < 0) {
+				return false;
+			}
+			netIn.position(netIn.position() + n);
+			return true;
+		}
+
+		/**
+		 * Encrypt bytes and write the records to the socket, several at a
+		 * time. With an empty buffer, write what the handshake needs.
+		 * 
+		 * @param plain
+		 *            Bytes to encrypt, from its position to its limit.
+		 * @throws IOException
+		 *             If the socket fails or the session is closed.
+		 */
+		public synchronized void write(ByteBuffer plain) throws IOException {
+			do {
+				netOut.clear();
+				int packet = engine.getSession().getPacketBufferSize();
+				do {
+					if (netOut.remaining() < packet) {
+						if (netOut.position() > 0) {
+							break;
+						}
+						netOut = grow(netOut, packet);
+					}
+					SSLEngineResult result = engine.wrap(plain, netOut);
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						if (result.bytesProduced() == 0) {
+							throw new SSLException("session closed");
+						}
+						break;
+					}
+					if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+						runTasks();
+					}
+				} while (plain.hasRemaining());
+				netOut.flip();
+				while (netOut.hasRemaining()) {
+					channel.write(netOut);
+				}
+			} while (plain.hasRemaining());
+		}
+
+		/**
+		 * Handle what the other end sent without waiting for more, e.g. a
+		 * session ticket or the end of the session.
+		 * 
+		 * @throws IOException
+		 *             If the socket fails or a record cannot be decrypted.
+		 */
+		public void drain() throws IOException {
+			while (socketInput.available() > 0) {
+				if (!unwrap()) {
+					return;
+				}
+				appIn.position(appIn.limit());
+			}
+		}
+
+		/**
+		 * Wait a while for a record from the other end, e.g. the session
+		 * ticket a TLS 1.3 server sends after the handshake.
+		 * 
+		 * @param timeout
+		 *            How long to wait in milliseconds.
+		 * @throws IOException
+		 *             If the socket fails or a record cannot be decrypted.
+		 */
+		public void await(int timeout) throws IOException {
+			socket.setSoTimeout(timeout);
+			try {
+				unwrap();
+				appIn.position(appIn.limit());
+			} catch (SocketTimeoutException ex) {
+				// nothing came, the session just cannot be resumed
+			} finally {
+				socket.setSoTimeout(0);
+			}
+		}
+	}
+
+	/**
+	 * Plain frames of an outgoing connection. They are held until the
+	 * records are full or the sender flushes the transport, flush() itself
+	 * does nothing so that TcpConnection can flush after every frame.
+	 */
+	private class RecordOutputStream extends OutputStream {
+		private SecureChannel secure;
+		private ByteBuffer pending;
+		private byte[] single;
+
+		public RecordOutputStream(SecureChannel secure) {
+			this.secure = secure;
+			this.pending = ByteBuffer.allocate(secure.engine.getSession()
+					.getApplicationBufferSize() * RECORDS_PER_WRITE);
+			this.single = new byte[1];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+				throws IOException {
+			if (isClosed()) {
+				throw new IOException("connection closed");
+			}
+			while (len > 0) {
+				if (!pending.hasRemaining()) {
+					send();
+				}
+				int n = Math.min(len, pending.remaining());
+				pending.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		/**
+		 * Encrypt and write the frames held.
+		 * 
+		 * @throws IOException
+		 *             If the socket fails.
+		 */
+		public synchronized void send() throws IOException {
+			secure.drain();
+			if (pending.position() == 0) {
+				return;
+			}
+			pending.flip();
+			try {
+				secure.write(pending);
+			} finally {
+				pending.clear();
+			}
+		}
+
+		public boolean isClosed() {
+			return secure.socket.isClosed();
+		}
+	}
+
+	/**
+	 * Decrypted bytes of an incoming connection.
+	 */
+	private class RecordInputStream extends InputStream {
+		private SecureChannel secure;
+
+		public RecordInputStream(SecureChannel secure) {
+			this.secure = secure;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (!secure.appIn.hasRemaining()) {
+				if (!secure.unwrap()) {
+					return -1;
+				}
+			}
+			return secure.appIn.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (!secure.appIn.hasRemaining()) {
+				if (!secure.unwrap()) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, secure.appIn.remaining());
+			secure.appIn.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return secure.appIn.remaining();
+		}
+	}
+
+	/**
+	 * A TLS connection accepted from a remote node. The handshake runs on the
+	 * first read, in the receiver worker.
+	 */
+	private class TlsIncomingConnection implements IncomingConnection {
+		private Socket socket;
+		private DataInputStream input;
+		private WireFormat.Reassembly reassembly;
+
+		public TlsIncomingConnection(Socket socket) {
+			this.socket = socket;
+			this.input = null;
+			this.reassembly = new WireFormat.Reassembly();
+		}
+
+		public Frame read(CompressionStats stats, MessagePool pool)
+				throws IOException, ClassNotFoundException {
+			if (input == null) {
+				SSLEngine engine = context.createSSLEngine();
+				engine.setUseClientMode(false);
+				engine.setNeedClientAuth(true);
+				SecureChannel secure = new SecureChannel(socket, engine);
+				secure.handshake();
+				input = new DataInputStream(new RecordInputStream(secure));
+			}
+			return WireFormat.readFrame(input, stats, pool, reassembly);
+		}
+
+		public String getRemoteAddress() {
+			return String.valueOf(socket.getRemoteSocketAddress());
+		}
+
+		public void close(LogTool logger) {
+			NetTool.destroySocket(socket, logger);
+		}
+	}
+
+	private TlsTransport(SSLContext context, LogTool logger) {
+		this.context = context;
+		this.serverSocket = null;
+		this.sendBufferSize = 0;
+		this.outputs = Collections
+				.newSetFromMap(new ConcurrentHashMap<RecordOutputStream, Boolean>());
+		this.handshakes = new AtomicLong();
+		this.resumed = new AtomicLong();
+		this.logger = logger;
+	}
+
+	/**
+	 * Load the key store and the trust store of a node.
+	 * 
+	 * @param keyStore
+	 *            Path of the key store, with the private key and the
+	 *            certificate chain of the node.
+	 * @param keyStorePassword
+	 *            Password of the key store and of the key.
+	 * @param trustStore
+	 *            Path of the store of the certificates the other nodes are
+	 *            checked against.
+	 * @param trustStorePassword
+	 *            Password of the trust store.
+	 * @param logger
+	 *            Logger of the node.
+	 * @return The transport, null on failure.
+	 */
+	public static TlsTransport create(String keyStore,
+			String keyStorePassword, String trustStore,
+			String trustStorePassword, LogTool logger) {
+		try {
+			KeyManagerFactory keys = KeyManagerFactory
+					.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(load(keyStore, keyStorePassword),
+					keyStorePassword.toCharArray());
+			TrustManagerFactory trust = TrustManagerFactory
+					.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trust.init(load(trustStore, trustStorePassword));
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+			return new TlsTransport(context, logger);
+		} catch (Exception ex) {
+			logger.error("failed to set up TLS with key store " + keyStore
+					+ " and trust store " + trustStore + " - "
+					+ ex.getMessage());
+			return null;
+		}
+	}
+
+	private static KeyStore load(String path, String password)
+			throws Exception {
+		KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+		FileInputStream input = new FileInputStream(path);
+		try {
+			store.load(input, password.toCharArray());
+		} finally {
+			input.close();
+		}
+		return store;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(size,
+				buffer.capacity() * 2));
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	/**
+	 * Set the size of the send buffer of the sockets connected from now on.
+	 * 
+	 * @param sendBufferSize
+	 *            Size in bytes, 0 to leave it to the kernel.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public boolean bind(String IP, int port) {
+		serverSocket = NetTool.createServerSocket(IP, port, logger);
+		return serverSocket != null;
+	}
+
+	public IncomingConnection accept() throws IOException {
+		if (serverSocket == null) {
+			throw new IOException("transport is not bound");
+		}
+		return new TlsIncomingConnection(serverSocket.accept());
+	}
+
+	/**
+	 * Open a connection and run the handshake, resuming the session of an
+	 * earlier connection to the same node if the cache still has it.
+	 */
+	public Connection connect(String IP, int port, int timeout,
+			String localName, long incarnation) throws IOException {
+		Socket socket = NetTool.connect(IP, port, timeout);
+		try {
+			int size = sendBufferSize;
+			if (size > 0) {
+				socket.setSendBufferSize(size);
+			}
+
+			// records are put together here, the kernel need not wait
+			socket.setTcpNoDelay(true);
+			SSLEngine engine = context.createSSLEngine(IP, port);
+			engine.setUseClientMode(true);
+			SecureChannel secure = new SecureChannel(socket, engine);
+			socket.setSoTimeout(timeout);
+			secure.handshake();
+			socket.setSoTimeout(0);
+
+			// a TLS 1.3 session can be resumed only with the ticket sent next
+			if (TLS_13.equals(engine.getSession().getProtocol())) {
+				secure.await(timeout > 0 ? Math.min(timeout, TICKET_TIMEOUT)
+						: TICKET_TIMEOUT);
+			}
+			RecordOutputStream output = new RecordOutputStream(secure);
+			Connection connection = new TcpConnection(socket, output,
+					localName, incarnation);
+			output.send();
+			outputs.add(output);
+			return connection;
+		} catch (IOException ex) {
+			NetTool.destroySocket(socket, logger);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Encrypt and write the frames held by every connection. A connection
+	 * that fails is closed, the next message written to it fails too.
+	 */
+	public void flush() {
+		for (RecordOutputStream output : outputs) {
+			if (output.isClosed()) {
+				outputs.remove(output);
+				continue;
+			}
+			try {
+				output.send();
+			} catch (IOException ex) {
+				logger.error("failed to write TLS records to "
+						+ output.secure.socket.getRemoteSocketAddress()
+						+ " - " + ex.getMessage());
+				outputs.remove(output);
+				NetTool.destroySocket(output.secure.socket, logger);
+			}
+		}
+	}
+
+	public boolean isInProcess() {
+		return false;
+	}
+
+	public void close() {
+		NetTool.destroyServerSocket(serverSocket, logger);
+	}
+
+	/**
+	 * @return Number of handshakes run, on connections opened and accepted.
+	 */
+	public long getHandshakeCount() {
+		return handshakes.get();
+	}
+
+	/**
+	 * @return Number of handshakes that resumed a session.
+	 */
+	public long getResumedCount() {
+		return resumed.get();
+	}
+}
@@ -0,0 +1,401 @@
+package ipc;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import clock.TimeStamp;
+
+/**
+ * Hold-back queues of the totally ordered groups. Messages to such a group
+ * carry logical time stamps and are delivered by (time stamp, node ID) order.
+ * A message is delivered once every other member has sent something with a
+ * later time stamp, so nothing that should come before it can still arrive.
+ * 
+ * Time stamps sent on a link never decrease, so the messages of each source
+ * are taken in sequence number order here, waiting for retransmissions or
+ * delayed messages to fill the gaps. The clock value of a source is its latest
+ * time stamp seen, carried by data messages to any destination or by acks.
+ * A source that restarted is followed from its first message again.
+ * 
+ * A gap that can no longer be filled is skipped with an error: one wider
+ * than the retransmit window, whose messages the source gave up on, and
+ * without reliable delivery one left open for the gap timeout, e.g. after a
+ * drop rule.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class TotalOrder {
+
+	// kind of the acks, they only carry the clock value of their source
+	public static final String KIND_ACK = "__order_ack";
+
+	private String localName;
+
+	// delivered messages go there in total order
+	private LinkedBlockingQueue<Message> receiveBuffer;
+
+	// members of every ordered group and the IDs breaking ties
+	private Map<String, List<String>> groups;
+	private Map<String, Integer> ids;
+
+	// messages of each source in sequence number order
+	private HashMap<String, Link> links;
+
+	private HashMap<String, PriorityQueue<TimeStampedMessage>> holdBack;
+
+	// how long a gap may stay open in nanoseconds, 0 for as long as it takes
+	private long gapTimeout;
+
+	private LogTool logger;
+
+	private class Link {
+
+		// sequence number expected next, messages after a gap wait in early
+		private long next;
+		private TreeMap<Long, Message> early;
+
+		// System.nanoTime() when the current gap opened
+		private long gapSince;
+
+		// latest time stamp of the source, null if none yet
+		private TimeStamp latest;
+
+		public Link() {
+			this.next = 1;
+			this.early = new TreeMap<Long, Message>();
+			this.gapSince = 0;
+			this.latest = null;
+		}
+	}
+
+	public TotalOrder(String localName,
+			LinkedBlockingQueue<Message> receiveBuffer, LogTool logger) {
+		this.localName = localName;
+		this.receiveBuffer = receiveBuffer;
+		this.groups = Collections.emptyMap();
+		this.ids = Collections.emptyMap();
+		this.links = new HashMap<String, Link>();
+		this.holdBack = new HashMap<String, PriorityQueue<TimeStampedMessage>>();
+		this.gapTimeout = 0;
+		this.logger = logger;
+	}
+
+	/**
+	 * Set the ordered groups, called on every configuration load. Members
+	 * tracked for the first time are followed from their next message on.
+	 * 
+	 * @param groups
+	 *            Members of every ordered group.
+	 * @param ids
+	 *            Node IDs by node name.
+	 * @param received
+	 *            Highest sequence number received from each node so far.
+	 * @param gapTimeout
+	 *            How long a gap may stay open in milliseconds, 0 to wait as
+	 *            long as the source may still retransmit.
+	 */
+	public synchronized void configure(Map<String, List<String>> groups,
+			Map<String, Integer> ids, Map<String, Long> received,
+			long gapTimeout) {
+		this.groups = groups;
+		this.ids = ids;
+		this.gapTimeout = TimeUnit.MILLISECONDS.toNanos(gapTimeout);
+		for (List<String> members : groups.values()) {
+			for (String member : members) {
+				if (!links.containsKey(member)) {
+					Link link = new Link();
+					Long highest = received.get(member);
+					if (highest != null) {
+						link.next = highest + 1;
+					}
+					links.put(member, link);
+				}
+			}
+		}
+		for (String group : groups.keySet()) {
+			if (!holdBack.containsKey(group)) {
+				holdBack.put(group, new PriorityQueue<TimeStampedMessage>(11,
+						new Comparator<TimeStampedMessage>() {
+							public int compare(TimeStampedMessage a,
+									TimeStampedMessage b) {
+								int result = a.getTimeStamp().compareTo(
+										b.getTimeStamp());
+								if (result != 0) {
+									return result;
+								}
+								return idOf(a.getSource())
+										- idOf(b.getSource());
+							}
+						}));
+			}
+		}
+		release();
+	}
+
+	/**
+	 * @param group
+	 *            Name of a group or of a node.
+	 * @return True if the name is an ordered group.
+	 */
+	public synchronized boolean isOrdered(String group) {
+		return groups.containsKey(group);
+	}
+
+	/**
+	 * @param source
+	 *            Name of a node.
+	 * @return True if the node is a member of an ordered group, its messages
+	 *         must then be passed to {@link #arrive(Message)}.
+	 */
+	public synchronized boolean isTracked(String source) {
+		for (List<String> members : groups.values()) {
+			if (members.contains(source)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check a received message before it is passed to
+	 * {@link #arrive(Message)}: its source must be a member of an ordered
+	 * group, and a message to an ordered group must carry a time stamp.
+	 * 
+	 * @param message
+	 *            A message from a tracked source or to an ordered group.
+	 * @return False if the message is dropped, with an error.
+	 */
+	public synchronized boolean admit(Message message) {
+		if (!isTracked(message.getSource())) {
+			logger.error("message to ordered group from non-member dropped - "
+					+ message.toString());
+			return false;
+		}
+		if (isOrdered(message.getDest())
+				&& !KIND_ACK.equals(message.getKind())
+				&& (!(message instanceof TimeStampedMessage) || ((TimeStampedMessage) message)
+						.getTimeStamp() == null)) {
+			logger.error("message to ordered group without time stamp dropped - "
+					+ message.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hold a message multicast by the local node, it is ordered like the ones
+	 * from other nodes.
+	 * 
+	 * @param message
+	 *            Local copy of the message, stamped and with its source set.
+	 */
+	public synchronized void hold(TimeStampedMessage message) {
+		PriorityQueue<TimeStampedMessage> queue = holdBack.get(message
+				.getDest());
+		if (queue != null) {
+			queue.add(message);
+			release();
+		}
+	}
+
+	/**
+	 * Take a message from a tracked source. Messages to an ordered group are
+	 * held back, others only update the clock value of the source.
+	 * 
+	 * @param message
+	 *            A message received from the source.
+	 */
+	public synchronized void arrive(Message message) {
+		long seq = message.getSequenceNumber();
+		Link link = links.get(message.getSource());
+		if (link == null) {
+			link = new Link();
+			links.put(message.getSource(), link);
+		}
+		if (seq < link.next) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (link.early.isEmpty()) {
+			link.gapSince = now;
+		}
+		link.early.put(seq, message);
+		take(link, now);
+		skipGaps(message.getSource(), link, now);
+		release();
+	}
+
+	/**
+	 * Skip the gaps left open for longer than the gap timeout, for the
+	 * sources that have not sent anything since.
+	 */
+	public synchronized void expire() {
+		long now = System.nanoTime();
+		for (Map.Entry<String, Link> entry : links.entrySet()) {
+			skipGaps(entry.getKey(), entry.getValue(), now);
+		}
+		release();
+	}
+
+	/**
+	 * Follow a node that restarted from its first message on, as a new
+	 * source. Its messages waiting behind a gap are dropped, the gap can no
+	 * longer be filled.
+	 * 
+	 * @param source
+	 *            Name of the node.
+	 */
+	public synchronized void restart(String source) {
+		Link link = links.get(source);
+		if (link != null) {
+			if (!link.early.isEmpty()) {
+				logger.error(link.early.size() + " messages from " + source
+						+ " waiting for message " + link.next
+						+ " dropped, it restarted");
+			}
+			links.put(source, new Link());
+		}
+	}
+
+	/**
+	 * Forget the link from a node that left.
+	 * 
+	 * @param source
+	 *            Name of the node.
+	 */
+	public synchronized void forget(String source) {
+		links.remove(source);
+	}
+
+	/**
+	 * Move the messages that follow the last one taken from the link to the
+	 * hold-back queues.
+	 * 
+	 * @param link
+	 *            The link.
+	 * @param now
+	 *            System.nanoTime() now.
+	 */
+	private void take(Link link, long now) {
+		Message next = null;
+		boolean progress = false;
+		while ((next = link.early.remove(link.next)) != null) {
+			link.next++;
+			progress = true;
+			if (!(next instanceof TimeStampedMessage)) {
+				continue;
+			}
+			TimeStampedMessage stamped = (TimeStampedMessage) next;
+			if (stamped.getTimeStamp() != null) {
+				link.latest = stamped.getTimeStamp();
+			}
+			PriorityQueue<TimeStampedMessage> queue = holdBack.get(stamped
+					.getDest());
+			if (queue != null && !KIND_ACK.equals(stamped.getKind())) {
+				queue.add(stamped);
+			}
+		}
+
+		// a gap left behind the ones taken has just opened
+		if (progress) {
+			link.gapSince = now;
+		}
+	}
+
+	/**
+	 * Skip the gaps of a link that can no longer be filled: one wider than
+	 * the retransmit window, as the source gave up on the messages in it, or
+	 * one open for longer than the gap timeout.
+	 * 
+	 * @param source
+	 *            Name of the source of the link.
+	 * @param link
+	 *            The link.
+	 * @param now
+	 *            System.nanoTime() now.
+	 */
+	private void skipGaps(String source, Link link, long now) {
+		while (!link.early.isEmpty()) {
+			boolean wide = link.early.lastKey() - link.next >= DedupWindow.SIZE;
+			boolean late = gapTimeout > 0 && now - link.gapSince >= gapTimeout;
+			if (!wide && !late) {
+				return;
+			}
+			long first = link.early.firstKey();
+			logger.error("messages " + link.next + " to " + (first - 1)
+					+ " from " + source + " never arrived, skipped");
+			link.next = first;
+			take(link, now);
+		}
+	}
+
+	/**
+	 * @return Number of messages held back in all groups.
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (PriorityQueue<TimeStampedMessage> queue : holdBack.values()) {
+			size += queue.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Deliver the messages at the head of the hold-back queues that can no
+	 * longer be preceded by another one.
+	 */
+	private void release() {
+		for (Map.Entry<String, PriorityQueue<TimeStampedMessage>> entry : holdBack
+				.entrySet()) {
+			List<String> members = groups.get(entry.getKey());
+			PriorityQueue<TimeStampedMessage> queue = entry.getValue();
+			while (members != null && !queue.isEmpty()
+					&& isStable(queue.peek(), members)) {
+				receiveBuffer.add(queue.poll());
+			}
+		}
+	}
+
+	/**
+	 * Check if every member other than the source and the local node has
+	 * reached the time stamp of a message. Every message a member sends later
+	 * ticks its clock, so it orders after this one.
+	 * 
+	 * @param message
+	 *            Head of a hold-back queue.
+	 * @param members
+	 *            Members of its group.
+	 * @return True if the message can be delivered.
+	 */
+	private boolean isStable(TimeStampedMessage message, List<String> members) {
+		String source = message.getSource();
+		for (String member : members) {
+			if (member.equals(localName) || member.equals(source)) {
+				continue;
+			}
+			Link link = links.get(member);
+			if (link == null || link.latest == null) {
+				return false;
+			}
+			int result = link.latest.compareTo(message.getTimeStamp());
+			if (result < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int idOf(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+}
@@ -0,0 +1,119 @@
+package ipc;
+
+/**
+ * Trace stamps of one sampled message, taken with System.nanoTime() at each
+ * point of its way from send() to receive(). The stamps taken by the source
+ * travel in the frame header, the destination adds its own. The time between
+ * two points is the time spent in the stage between them, e.g. the time from
+ * ENQUEUE to DEQUEUE is the wait in the send buffer.
+ * 
+ * System.nanoTime() is only comparable within one host, so the WIRE stage
+ * (from the write on the source to the read on the destination) means
+ * something only when both nodes run on the same host. The other stages are
+ * measured on one side.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Trace {
+
+	// points in order, the first SENT_POINTS are taken by the source
+	public static final int ENQUEUE = 0;
+	public static final int DEQUEUE = 1;
+	public static final int ENCODE = 2;
+	public static final int WRITE = 3;
+	public static final int READ = 4;
+	public static final int DECODE = 5;
+	public static final int DELIVER = 6;
+	public static final int MERGE = 7;
+	static final int SENT_POINTS = 4;
+	private static final int POINTS = 8;
+
+	/*
+	 * the stage ending at each point after the first: rules and encoding,
+	 * waiting for the connection, the socket, decoding, the receive buffer
+	 * and the clock merge in receive()
+	 */
+	public static final String[] STAGES = { "send_queue", "encode", "write",
+			"wire", "decode", "receive_queue", "clock_merge" };
+
+	// 0 for the points not reached (yet)
+	private long[] stamps;
+
+	public Trace() {
+		this.stamps = new long[POINTS];
+	}
+
+	/**
+	 * Take the stamp of a point now.
+	 * 
+	 * @param point
+	 *            One of the points above.
+	 */
+	public void stamp(int point) {
+		stamps[point] = System.nanoTime();
+	}
+
+	/**
+	 * @param point
+	 *            One of the points above.
+	 * @return The stamp, 0 if the point has not been reached.
+	 */
+	public long get(int point) {
+		return stamps[point];
+	}
+
+	void set(int point, long stamp) {
+		stamps[point] = stamp;
+	}
+
+	/**
+	 * @param stage
+	 *            Index into STAGES, the stage ends at point stage + 1.
+	 * @return Time spent in the stage in nanoseconds, -1 if either end is
+	 *         missing.
+	 */
+	public long getStage(int stage) {
+		long from = stamps[stage];
+		long to = stamps[stage + 1];
+		if (from == 0 || to == 0) {
+			return -1;
+		}
+		return to - from;
+	}
+
+	/**
+	 * @return Time from ENQUEUE to MERGE in nanoseconds, -1 if either end is
+	 *         missing.
+	 */
+	public long getTotal() {
+		if (stamps[ENQUEUE] == 0 || stamps[MERGE] == 0) {
+			return -1;
+		}
+		return stamps[MERGE] - stamps[ENQUEUE];
+	}
+
+	Trace copy() {
+		Trace copy = new Trace();
+		System.arraycopy(stamps, 0, copy.stamps, 0, POINTS);
+		return copy;
+	}
+
+	/**
+	 * @return Time spent in every stage in microseconds.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < STAGES.length; i++) {
+			long nanos = getStage(i);
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append('[').append(STAGES[i]).append("] ");
+			sb.append(nanos < 0 ? "-" : Long.toString(nanos / 1000));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,75 @@
+package ipc;
+
+import java.io.IOException;
+
+/**
+ * How frames get from one node to another. A node binds the address of its
+ * contact, accepts the connections opened by remote nodes and opens its own
+ * connections to them. Which transport a node uses is set by "transport" in
+ * the configuration, all the nodes talking to each other must use the same.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public interface Transport {
+
+	/**
+	 * Start accepting connections at the address of the local node.
+	 * 
+	 * @param IP
+	 *            The address to bind.
+	 * @param port
+	 *            The port to bind.
+	 * @return True on success, false otherwise (the error is logged).
+	 */
+	boolean bind(String IP, int port);
+
+	/**
+	 * Block until a remote node opens a connection.
+	 * 
+	 * @return The connection.
+	 * @throws IOException
+	 *             If the transport is closed or cannot accept.
+	 */
+	IncomingConnection accept() throws IOException;
+
+	/**
+	 * Open a connection to a remote node.
+	 * 
+	 * @param IP
+	 *            Address of the remote node.
+	 * @param port
+	 *            Port of the remote node.
+	 * @param timeout
+	 *            Connect timeout in milliseconds, 0 for no timeout.
+	 * @param localName
+	 *            Name of the local node, sent in the first frame.
+	 * @param incarnation
+	 *            Incarnation of the local node, sent in the first frame so
+	 *            that the remote node can tell it restarted.
+	 * @return The connection.
+	 * @throws IOException
+	 *             If the connection cannot be opened.
+	 */
+	Connection connect(String IP, int port, int timeout, String localName,
+			long incarnation) throws IOException;
+
+	/**
+	 * @return True if messages are handed over as objects within the JVM: they
+	 *         are not encoded, and opening a connection costs so little that
+	 *         connections are not opened ahead of time.
+	 */
+	boolean isInProcess();
+
+	/**
+	 * Write out what the connections hold back to put frames together. The
+	 * sender calls it whenever its send buffer runs empty.
+	 */
+	void flush();
+
+	/**
+	 * Stop accepting connections, a blocked accept() fails.
+	 */
+	void close();
+}
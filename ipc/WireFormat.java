@@ -0,0 +1,729 @@
+package ipc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Helper methods to put messages on the wire. A message is serialized once
+ * into a body and sent as a frame: the body length, the sequence number, a
+ * flags byte and optionally an ack, then the body. The per-link fields live in
+ * the header so that the same body can be sent to several nodes, and acks ride
+ * on the messages going the other way. A frame without a body is a control
+ * frame, sent only when there is no message to carry its ack or to show that
+ * the node is alive.
+ * 
+ * A body starts with a codec byte. A compressed body then holds the length of
+ * the serialized message and its Deflate stream, so a message is compressed
+ * once however many nodes and retransmissions it goes to. The body of a
+ * BytesMessage holds its header fields written directly and then the
+ * payload, which is written from the buffer of the application and read back
+ * as a slice of the frame.
+ * 
+ * A large body may be sent in fragments, each in a frame of its own with the
+ * sequence number of the message, its offset in the body and the length of
+ * the body. Frames of other messages can go between them, and the receiving
+ * side puts the body back together before decoding it. The last fragment
+ * carries the trace stamps.
+ * 
+ * Every thread has its own scratch space for encoding and decoding, and the
+ * names seen in the headers of bytes messages are decoded once per thread, so
+ * pooled bytes messages go through without allocation.
+ * 
+ * @author Yinsu Chu
+ * 
+ */
+public class WireFormat {
+	private static final byte FLAG_DUPE = 1;
+	private static final byte FLAG_ACK = 2;
+	private static final byte FLAG_HELLO = 4;
+	private static final byte FLAG_TRACE = 8;
+	private static final byte FLAG_FRAGMENT = 16;
+
+	private static final byte CODEC_NONE = 0;
+	private static final byte CODEC_DEFLATE = 1;
+	private static final byte CODEC_RAW = 2;
+
+	// length, sequence number and flags, then the ack and trace stamps if any
+	private static final int HEADER_LENGTH = 13;
+	private static final int ACK_LENGTH = 16;
+	private static final int TRACE_LENGTH = 8 * Trace.SENT_POINTS;
+
+	// offset of a fragment in the body and length of the body
+	private static final int FRAGMENT_HEADER_LENGTH = 8;
+
+	// largest body accepted, anything bigger means the stream is corrupt
+	private static final int MAX_BODY_LENGTH = 64 * 1024 * 1024;
+
+	// number of names remembered by each thread
+	private static final int NAME_CACHE_SIZE = 16;
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Buffers of one thread, reused for every message.
+	 */
+	private static class Scratch {
+		private ByteArrayOutputStream bytes;
+		private DataOutputStream output;
+
+		/*
+		 * serializes into bytes, its stream header is written once and put
+		 * in front of every body, null until needed or after a failure
+		 */
+		private ObjectOutputStream objectOutput;
+		private byte[] streamHeader;
+
+		// where decoding a header is
+		private int position;
+
+		// names decoded lately and their encoded form, replaced in turn
+		private byte[][] names;
+		private String[] values;
+		private int next;
+
+		public Scratch() {
+			this.bytes = new ByteArrayOutputStream(1024);
+			this.output = new DataOutputStream(bytes);
+			this.objectOutput = null;
+			this.streamHeader = null;
+			this.position = 0;
+			this.names = new byte[NAME_CACHE_SIZE][];
+			this.values = new String[NAME_CACHE_SIZE];
+			this.next = 0;
+		}
+	}
+
+	/**
+	 * Bodies being received in fragments on one connection, by sequence
+	 * number and dupe flag: a duplicate made by a rule has the sequence
+	 * number of the message and their fragments can interleave. It is used
+	 * by the thread reading the connection only.
+	 */
+	public static class Reassembly {
+		private HashMap<Long, Partial> bodies;
+
+		private static class Partial {
+			private byte[] body;
+			private int filled;
+
+			public Partial(int length) {
+				this.body = new byte[length];
+				this.filled = 0;
+			}
+		}
+
+		public Reassembly() {
+			this.bodies = new HashMap<Long, Partial>();
+		}
+
+		/**
+		 * Read a fragment into the body it belongs to.
+		 * 
+		 * @param input
+		 *            Stream of the connection, past the frame header.
+		 * @param sequenceNumber
+		 *            Sequence number of the message.
+		 * @param dupe
+		 *            True if the message is a duplicate made by a rule.
+		 * @param length
+		 *            Length of the frame body.
+		 * @return The whole body once its last fragment is read, null
+		 *         before.
+		 * @throws IOException
+		 *             If the fragment cannot be read or does not fit.
+		 */
+		public byte[] add(DataInputStream input, long sequenceNumber,
+				boolean dupe, int length) throws IOException {
+			int offset = input.readInt();
+			int total = input.readInt();
+			int piece = length - FRAGMENT_HEADER_LENGTH;
+			if (piece <= 0 || total <= 0 || total > MAX_BODY_LENGTH
+					|| offset < 0 || offset > total - piece) {
+				throw new IOException("invalid fragment of " + piece
+						+ " bytes at " + offset + " of " + total);
+			}
+			Long key = sequenceNumber * 2 + (dupe ? 1 : 0);
+			Partial partial = bodies.get(key);
+			if (offset == 0) {
+				partial = new Partial(total);
+				bodies.put(key, partial);
+			} else if (partial == null || partial.filled != offset
+					|| partial.body.length != total) {
+				throw new IOException("fragment at " + offset + " of message "
+						+ sequenceNumber + " out of place");
+			}
+			input.readFully(partial.body, offset, piece);
+			partial.filled += piece;
+			if (partial.filled < total) {
+				return null;
+			}
+			bodies.remove(key);
+			return partial.body;
+		}
+	}
+
+
+	/**
+	 * Serialize a message without compression.
+	 * 
+	 * @param message
+	 *            The message to serialize.
+	 * @return The body of the message.
+	 * @throws IOException
+	 *             If the message cannot be serialized.
+	 */
+	public static byte[] encode(Message message) throws IOException {
+		return encode(message, Compression.NONE, null);
+	}
+
+	/**
+	 * Serialize a message and compress it if the setting of its kind says so.
+	 * 
+	 * @param message
+	 *            The message to serialize.
+	 * @param compression
+	 *            Compression setting of the kind of the message.
+	 * @param stats
+	 *            Where to record the compression, null if not needed.
+	 * @return The body of the message.
+	 * @throws IOException
+	 *             If the message cannot be serialized.
+	 */
+	public static byte[] encode(Message message, Compression compression,
+			CompressionStats stats) throws IOException {
+		if (message instanceof BytesMessage) {
+			return encodeHeader((BytesMessage) message);
+		}
+		byte[] body = serialize(SCRATCH.get(), message);
+		int length = body.length - 1;
+		if (length < compression.getThreshold()) {
+			return body;
+		}
+		long start = System.nanoTime();
+		byte[] compressed = compression.compress(body, 1, length);
+		if (stats != null) {
+			stats.recordCompress(length, compressed == null ? -1
+					: compressed.length, System.nanoTime() - start);
+		}
+		if (compressed == null) {
+			return body;
+		}
+		ByteArrayOutputStream packed = new ByteArrayOutputStream(
+				compressed.length + 5);
+		DataOutputStream packedOutput = new DataOutputStream(packed);
+		packedOutput.writeByte(CODEC_DEFLATE);
+		packedOutput.writeInt(length);
+		packedOutput.write(compressed);
+		packedOutput.close();
+		return packed.toByteArray();
+	}
+
+	/**
+	 * Serialize a message into a body of its own, with the object stream of
+	 * the thread. The stream forgets the objects of the message before, so
+	 * every body starts with the stream header and is read by a new
+	 * ObjectInputStream as before.
+	 * 
+	 * @param scratch
+	 *            Buffers of the calling thread.
+	 * @param message
+	 *            The message to serialize.
+	 * @return The body of the message, not compressed.
+	 * @throws IOException
+	 *             If the message cannot be serialized.
+	 */
+	private static byte[] serialize(Scratch scratch, Message message)
+			throws IOException {
+		ByteArrayOutputStream bytes = scratch.bytes;
+		if (scratch.objectOutput == null) {
+			bytes.reset();
+			scratch.objectOutput = new ObjectOutputStream(bytes);
+			scratch.objectOutput.flush();
+			scratch.streamHeader = bytes.toByteArray();
+		} else {
+
+			// the reset marker goes to the bytes dropped below
+			scratch.objectOutput.reset();
+			scratch.objectOutput.flush();
+		}
+		bytes.reset();
+		bytes.write(CODEC_NONE);
+		bytes.write(scratch.streamHeader);
+		boolean written = false;
+		try {
+			scratch.objectOutput.writeObject(message);
+			scratch.objectOutput.flush();
+			written = true;
+		} finally {
+
+			// a stream that failed halfway is not used again
+			if (!written) {
+				scratch.objectOutput = null;
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write the fields of a bytes message that come before its payload. A
+	 * message sent again with the same fields, such as a pooled one, keeps
+	 * its header.
+	 * 
+	 * @param message
+	 *            The message to encode.
+	 * @return The start of the body, the payload follows it on the wire.
+	 * @throws IOException
+	 *             If the message is too large.
+	 */
+	private static byte[] encodeHeader(BytesMessage message)
+			throws IOException {
+		byte[] header = message.getHeader();
+		if (header == null) {
+			Scratch scratch = SCRATCH.get();
+			scratch.bytes.reset();
+			scratch.output.writeByte(CODEC_RAW);
+			writeString(scratch.output, message.getDest());
+			writeString(scratch.output, message.getKind());
+			writeString(scratch.output, message.getSource());
+			scratch.output.flush();
+			header = scratch.bytes.toByteArray();
+			message.setHeader(header);
+		}
+		if ((long) header.length + message.wireView().remaining() > MAX_BODY_LENGTH) {
+			throw new IOException("message of "
+					+ message.wireView().remaining() + " bytes is too large");
+		}
+		return header;
+	}
+
+	private static void writeString(DataOutputStream output, String value)
+			throws IOException {
+		output.writeBoolean(value != null);
+		if (value != null) {
+			output.writeUTF(value);
+		}
+	}
+
+	/**
+	 * Decode a name written by writeString from a header, the scratch space
+	 * tells where it starts and is moved past it.
+	 * 
+	 * @param data
+	 *            Buffer holding the header.
+	 * @param limit
+	 *            End of the body in the buffer.
+	 * @param scratch
+	 *            Scratch space of the calling thread.
+	 * @return The name, null if none.
+	 * @throws IOException
+	 *             If the header is corrupt.
+	 */
+	private static String readString(byte[] data, int limit, Scratch scratch)
+			throws IOException {
+		int position = scratch.position;
+		if (position >= limit) {
+			throw new IOException("truncated message header");
+		}
+		if (data[position++] == 0) {
+			scratch.position = position;
+			return null;
+		}
+		if (position + 2 > limit) {
+			throw new IOException("truncated message header");
+		}
+		int length = ((data[position] & 0xff) << 8)
+				| (data[position + 1] & 0xff);
+		if (position + 2 + length > limit) {
+			throw new IOException("truncated message header");
+		}
+		scratch.position = position + 2 + length;
+		for (int i = 0; i < NAME_CACHE_SIZE; i++) {
+			byte[] name = scratch.names[i];
+			if (name != null && name.length == length + 2
+					&& regionMatches(name, data, position)) {
+				return scratch.values[i];
+			}
+		}
+		byte[] name = Arrays.copyOfRange(data, position, position + 2
+				+ length);
+		String value = new DataInputStream(new ByteArrayInputStream(name))
+				.readUTF();
+		scratch.names[scratch.next] = name;
+		scratch.values[scratch.next] = value;
+		scratch.next = (scratch.next + 1) % NAME_CACHE_SIZE;
+		return value;
+	}
+
+	private static boolean regionMatches(byte[] name, byte[] data, int offset) {
+		for (int i = 0; i < name.length; i++) {
+			if (name[i] != data[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write a frame, the caller flushes the stream.
+	 * 
+	 * @param output
+	 *            Stream of the connection.
+	 * @param sequenceNumber
+	 *            Sequence number of the message on this link.
+	 * @param dupe
+	 *            True if the frame is a duplicate made by a rule.
+	 * @param ack
+	 *            Ack of the messages received from the remote node, null if
+	 *            none is due.
+	 * @param body
+	 *            The serialized message, null for a control frame.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	public static void writeFrame(DataOutputStream output, long sequenceNumber,
+			boolean dupe, Ack ack, byte[] body) throws IOException {
+		writeFrame(output, sequenceNumber, dupe, ack, null, body, 0);
+	}
+
+	/**
+	 * Write a frame whose body ends with a payload written by the caller
+	 * right after this, the caller flushes the stream.
+	 * 
+	 * @param output
+	 *            Stream of the connection.
+	 * @param sequenceNumber
+	 *            Sequence number of the message on this link.
+	 * @param dupe
+	 *            True if the frame is a duplicate made by a rule.
+	 * @param ack
+	 *            Ack of the messages received from the remote node, null if
+	 *            none is due.
+	 * @param trace
+	 *            Trace stamps of the message, null if it is not sampled. The
+	 *            WRITE stamp is taken now.
+	 * @param body
+	 *            Start of the body, null for a control frame.
+	 * @param payloadLength
+	 *            Number of bytes the caller writes after the frame.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	public static void writeFrame(DataOutputStream output, long sequenceNumber,
+			boolean dupe, Ack ack, Trace trace, byte[] body, int payloadLength)
+			throws IOException {
+		writeHeader(output, body == null ? 0 : body.length + payloadLength,
+				sequenceNumber, dupe ? FLAG_DUPE : 0, ack,
+				body == null ? null : trace);
+		if (body != null) {
+			output.write(body);
+		}
+	}
+
+	/**
+	 * Write the header of a frame holding a fragment of a body, the caller
+	 * writes the fragment right after this and flushes the stream.
+	 * 
+	 * @param output
+	 *            Stream of the connection.
+	 * @param sequenceNumber
+	 *            Sequence number of the message on this link.
+	 * @param dupe
+	 *            True if the message is a duplicate made by a rule.
+	 * @param ack
+	 *            Ack of the messages received from the remote node, null if
+	 *            none is due.
+	 * @param trace
+	 *            Trace stamps of the message if this is its last fragment and
+	 *            it is sampled, null otherwise. The WRITE stamp is taken now.
+	 * @param offset
+	 *            Offset of the fragment in the body.
+	 * @param fragmentLength
+	 *            Length of the fragment.
+	 * @param bodyLength
+	 *            Length of the whole body.
+	 * @throws IOException
+	 *             If the header cannot be written.
+	 */
+	public static void writeFragment(DataOutputStream output,
+			long sequenceNumber, boolean dupe, Ack ack, Trace trace,
+			int offset, int fragmentLength, int bodyLength) throws IOException {
+		writeHeader(output, FRAGMENT_HEADER_LENGTH + fragmentLength,
+				sequenceNumber, (byte) (FLAG_FRAGMENT | (dupe ? FLAG_DUPE : 0)),
+				ack, trace);
+		output.writeInt(offset);
+		output.writeInt(bodyLength);
+	}
+
+	private static void writeHeader(DataOutputStream output, int length,
+			long sequenceNumber, byte flags, Ack ack, Trace trace)
+			throws IOException {
+		if (ack != null) {
+			flags |= FLAG_ACK;
+		}
+		if (trace != null) {
+			flags |= FLAG_TRACE;
+		}
+		output.writeInt(length);
+		output.writeLong(sequenceNumber);
+		output.writeByte(flags);
+		if (ack != null) {
+			output.writeLong(ack.getCumulative());
+			output.writeLong(ack.getSelective());
+		}
+		if (trace != null) {
+			trace.stamp(Trace.WRITE);
+			for (int i = 0; i < Trace.SENT_POINTS; i++) {
+				output.writeLong(trace.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Write the first frame of a connection, naming the local node. The
+	 * incarnation goes where other frames have their sequence number.
+	 * 
+	 * @param output
+	 *            Stream of the connection.
+	 * @param name
+	 *            Name of the local node.
+	 * @param incarnation
+	 *            Incarnation of the local node.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	public static void writeHello(DataOutputStream output, String name,
+			long incarnation) throws IOException {
+		byte[] body = name.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(body.length);
+		output.writeLong(incarnation);
+		output.writeByte(FLAG_HELLO);
+		output.write(body);
+	}
+
+	/**
+	 * Read a frame from a connection on which bodies are not fragmented.
+	 * 
+	 * @param input
+	 *            Stream of the connection.
+	 * @param stats
+	 *            Where to record decompression, null if not needed.
+	 * @param pool
+	 *            Pool to read bytes messages into, null to allocate them.
+	 * @return The frame, its message has the sequence number and dupe flag of
+	 *         the link.
+	 * @throws IOException
+	 *             If the frame cannot be read.
+	 * @throws ClassNotFoundException
+	 *             If the body is not a known message class.
+	 */
+	public static Frame readFrame(DataInputStream input,
+			CompressionStats stats, MessagePool pool) throws IOException,
+			ClassNotFoundException {
+		return readFrame(input, stats, pool, null);
+	}
+
+	/**
+	 * Read a frame. A fragment of a body is kept until the body is whole, the
+	 * frame returned meanwhile carries only its ack.
+	 * 
+	 * @param input
+	 *            Stream of the connection.
+	 * @param stats
+	 *            Where to record decompression, null if not needed.
+	 * @param pool
+	 *            Pool to read bytes messages into, null to allocate them.
+	 * @param reassembly
+	 *            Bodies being received in fragments on the connection, null
+	 *            if fragments are not expected.
+	 * @return The frame, its message has the sequence number and dupe flag of
+	 *         the link.
+	 * @throws IOException
+	 *             If the frame cannot be read.
+	 * @throws ClassNotFoundException
+	 *             If the body is not a known message class.
+	 */
+	public static Frame readFrame(DataInputStream input,
+			CompressionStats stats, MessagePool pool, Reassembly reassembly)
+			throws IOException, ClassNotFoundException {
+		int length = input.readInt();
+		long sequenceNumber = input.readLong();
+		byte flags = input.readByte();
+		if (length < 0 || length > MAX_BODY_LENGTH) {
+			throw new IOException("invalid frame length " + length);
+		}
+		Ack ack = null;
+		if ((flags & FLAG_ACK) != 0) {
+			ack = new Ack(input.readLong(), input.readLong());
+		}
+		Trace trace = null;
+		if ((flags & FLAG_TRACE) != 0) {
+			trace = new Trace();
+			for (int i = 0; i < Trace.SENT_POINTS; i++) {
+				trace.set(i, input.readLong());
+			}
+		}
+		if (length == 0) {
+			return new Frame(null, ack, null);
+		}
+		if ((flags & FLAG_HELLO) != 0) {
+			byte[] name = new byte[length];
+			input.readFully(name);
+			return new Frame(new String(name, StandardCharsets.UTF_8),
+					sequenceNumber);
+		}
+		if ((flags & FLAG_FRAGMENT) != 0) {
+			if (reassembly == null) {
+				throw new IOException("unexpected fragment");
+			}
+			byte[] body = reassembly.add(input, sequenceNumber,
+					(flags & FLAG_DUPE) != 0, length);
+			if (body == null) {
+				return new Frame(null, ack, null);
+			}
+			input = new DataInputStream(new ByteArrayInputStream(body));
+			length = body.length;
+		}
+		byte codec = input.readByte();
+		if (codec == CODEC_RAW) {
+			BytesMessage message = null;
+			if (pool != null && length <= pool.getBufferSize()) {
+				message = pool.obtain(null, null);
+			} else {
+				message = new BytesMessage(null, null,
+						ByteBuffer.allocate(length));
+			}
+			byte[] body = message.getBuffer().array();
+			body[0] = codec;
+			input.readFully(body, 1, length - 1);
+			long start = System.nanoTime();
+			decodeBytes(message, length);
+			message.setWireSize(length);
+			message.setSequenceNumber(sequenceNumber);
+			message.setDupe((flags & FLAG_DUPE) != 0);
+			return decoded(ack, message, trace, start);
+		}
+		byte[] body = new byte[length];
+		body[0] = codec;
+		input.readFully(body, 1, length - 1);
+		long start = System.nanoTime();
+		ByteArrayInputStream serialized = null;
+		if (body[0] == CODEC_NONE) {
+			serialized = new ByteArrayInputStream(body, 1, length - 1);
+		} else if (body[0] == CODEC_DEFLATE && length >= 5) {
+			int original = ((body[1] & 0xff) << 24) | ((body[2] & 0xff) << 16)
+					| ((body[3] & 0xff) << 8) | (body[4] & 0xff);
+			if (original < 0 || original > MAX_BODY_LENGTH) {
+				throw new IOException("invalid message length " + original);
+			}
+			long inflateStart = System.nanoTime();
+			byte[] restored = Compression.decompress(body, 5, length - 5,
+					original);
+			if (stats != null) {
+				stats.recordDecompress(System.nanoTime() - inflateStart);
+			}
+			serialized = new ByteArrayInputStream(restored);
+		} else {
+			throw new IOException("unknown codec " + body[0]);
+		}
+		ObjectInputStream objectInput = new ObjectInputStream(serialized);
+		Message message = (Message) objectInput.readObject();
+		message.setWireSize(length);
+		message.setSequenceNumber(sequenceNumber);
+		message.setDupe((flags & FLAG_DUPE) != 0);
+		return decoded(ack, message, trace, start);
+	}
+
+	/**
+	 * Make the frame of a decoded message.
+	 * 
+	 * @param ack
+	 *            Ack carried by the frame, null if none.
+	 * @param message
+	 *            The message.
+	 * @param trace
+	 *            Trace stamps carried by the frame, null if none.
+	 * @param start
+	 *            System.nanoTime() when the frame was read and decoding
+	 *            started.
+	 * @return The frame.
+	 */
+	private static Frame decoded(Ack ack, Message message, Trace trace,
+			long start) {
+		long end = System.nanoTime();
+		if (trace != null) {
+			trace.set(Trace.READ, start);
+			trace.set(Trace.DECODE, end);
+		}
+		message.setTrace(trace);
+		Frame frame = new Frame(null, ack, message);
+		frame.setDecodeNanos(end - start);
+		return frame;
+	}
+
+	/**
+	 * @param bodyLength
+	 *            Length of the body.
+	 * @param ack
+	 *            True if the frame carries an ack.
+	 * @param trace
+	 *            True if the frame carries trace stamps.
+	 * @return Number of bytes the frame takes on the wire.
+	 */
+	public static int frameLength(int bodyLength, boolean ack, boolean trace) {
+		return HEADER_LENGTH + (ack ? ACK_LENGTH : 0)
+				+ (trace ? TRACE_LENGTH : 0) + bodyLength;
+	}
+
+	/**
+	 * @param fragmentLength
+	 *            Length of the fragment.
+	 * @param ack
+	 *            True if the frame carries an ack.
+	 * @param trace
+	 *            True if the frame carries trace stamps.
+	 * @return Number of bytes a frame holding a fragment takes on the wire.
+	 */
+	public static int fragmentFrameLength(int fragmentLength, boolean ack,
+			boolean trace) {
+		return frameLength(FRAGMENT_HEADER_LENGTH + fragmentLength, ack, trace);
+	}
+
+	/**
+	 * Decode the header of a bytes message read into its own buffer, the
+	 * payload is the rest of the body.
+	 * 
+	 * @param message
+	 *            The message, its buffer holds the body from offset 0.
+	 * @param length
+	 *            Length of the body.
+	 * @throws IOException
+	 *             If the body is corrupt.
+	 */
+	private static void decodeBytes(BytesMessage message, int length)
+			throws IOException {
+		ByteBuffer buffer = message.getBuffer();
+		byte[] body = buffer.array();
+		Scratch scratch = SCRATCH.get();
+		scratch.position = 1;
+		message.setDest(readString(body, length, scratch));
+		message.setKind(readString(body, length, scratch));
+		message.setSource(readString(body, length, scratch));
+		buffer.limit(length);
+		buffer.position(scratch.position);
+		message.seal();
+	}
+}
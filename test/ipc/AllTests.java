@@ -0,0 +1,34 @@
+package ipc;
+
+/**
+ * Run every behavior test, stopping at the first failure.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class AllTests {
+
+	public static void main(String[] args) throws Exception {
+		LifecycleTest.main(args);
+		CloseTest.main(args);
+		ConfigurationTest.main(args);
+		RuleTest.main(args);
+		SequenceTest.main(args);
+		MulticastTest.main(args);
+		DedupWindowTest.main(args);
+		RestartTest.main(args);
+		TotalOrderTest.main(args);
+		CompressionTest.main(args);
+		BytesMessageTest.main(args);
+		MetricsTest.main(args);
+		JournalTest.main(args);
+		ReplayTest.main(args);
+		DatagramTest.main(args);
+		TlsTest.main(args);
+		TimingWheelTest.main(args);
+		ClockTest.main(args);
+		SendQueueTest.main(args);
+		ReassemblyTest.main(args);
+	}
+}
@@ -0,0 +1,104 @@
+package ipc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bytes messages and their pool: a pooled message goes back to the pool only
+ * once every copy is released, and over TCP a payload arrives as it was sent
+ * while the messages of both nodes keep coming back to their pools instead
+ * of new ones being made.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class BytesMessageTest {
+
+	private static final int BUFFER_SIZE = 1024;
+	private static final int MESSAGES = 20;
+
+	// how long a sent message may take to come back to the pool
+	private static final long RECYCLE_TIMEOUT = 5000;
+
+	public static void main(String[] args) throws Exception {
+		references();
+		roundTrip();
+		System.out.println("BytesMessageTest passed");
+	}
+
+	private static void references() {
+		MessagePool pool = new MessagePool(4, BUFFER_SIZE);
+		BytesMessage message = pool.obtain("bob", "k");
+		Check.equal(BUFFER_SIZE, message.getBuffer().remaining(),
+				"empty buffer");
+		message.getBuffer().put((byte) 1).flip();
+		Message copy = message.copy();
+		message.release();
+		Check.equal(0, pool.getFreeCount(), "a copy is still held");
+		copy.release();
+		Check.equal(1, pool.getFreeCount(), "back once all are released");
+
+		BytesMessage again = pool.obtain("carol", "k");
+		Check.that(again.getBuffer() == message.getBuffer(),
+				"the free buffer is taken again");
+		Check.equal(1L, pool.getCreatedCount(), "created");
+		Check.equal(BUFFER_SIZE, again.getBuffer().remaining(),
+				"buffer cleared");
+		Check.equal("carol", again.getDest(), "destination");
+
+		// an unpooled message has no pool to go back to
+		new BytesMessage("bob", "k", ByteBuffer.allocate(8)).release();
+	}
+
+	private static void roundTrip() throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - messagePoolSize: 8", "    messageBufferSize: "
+						+ BUFFER_SIZE, "  - name: alice", "    ip: 127.0.0.1",
+				"    port: " + Nodes.freePort(), "  - name: bob",
+				"    ip: 127.0.0.1", "    port: " + Nodes.freePort());
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		try {
+			for (int i = 0; i < MESSAGES; i++) {
+				BytesMessage message = alice.obtain("bob", "raw");
+				ByteBuffer buffer = message.getBuffer();
+				for (int j = 0; j < 100 + i; j++) {
+					buffer.put((byte) (i + j));
+				}
+				buffer.flip();
+				alice.send(message);
+
+				Message received = Nodes.receive(bob);
+				Check.that(received instanceof BytesMessage, "bytes message");
+				ByteBuffer payload = ((BytesMessage) received).getPayload();
+				Check.equal(100 + i, payload.remaining(), "payload length");
+				for (int j = 0; j < 100 + i; j++) {
+					Check.equal((byte) (i + j), payload.get(j), "byte " + j);
+				}
+				received.release();
+			}
+			awaitFree(alice.getMessagePool());
+			awaitFree(bob.getMessagePool());
+			Check.that(alice.getMessagePool().getCreatedCount() < MESSAGES,
+					"alice reused her messages");
+			Check.that(bob.getMessagePool().getCreatedCount() < MESSAGES,
+					"bob reused his messages");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+	}
+
+	/**
+	 * Wait until every message the pool made is back in it.
+	 */
+	private static void awaitFree(MessagePool pool) throws Exception {
+		long deadline = System.currentTimeMillis() + RECYCLE_TIMEOUT;
+		while (pool.getFreeCount() < pool.getCreatedCount()
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Check.equal((int) pool.getCreatedCount(), pool.getFreeCount(),
+				"messages back in the pool");
+	}
+}
@@ -0,0 +1,47 @@
+package ipc;
+
+/**
+ * Assertions of the behavior tests, which run as plain programs without a
+ * test framework. A failed check throws AssertionError, so a test stops at
+ * its first failure with a non-zero exit status.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Check {
+
+	private Check() {
+	}
+
+	/**
+	 * Fail unless a condition holds.
+	 * 
+	 * @param condition
+	 *            The condition.
+	 * @param what
+	 *            What the condition means, for the failure message.
+	 */
+	public static void that(boolean condition, String what) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+
+	/**
+	 * Fail unless a value is the expected one.
+	 * 
+	 * @param expected
+	 *            The expected value, may be null.
+	 * @param actual
+	 *            The value, may be null.
+	 * @param what
+	 *            What the value is, for the failure message.
+	 */
+	public static void equal(Object expected, Object actual, String what) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError(what + ": expected " + expected
+					+ ", got " + actual);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package ipc;
+
+import clock.TimeStamp;
+
+/**
+ * Two nodes with vector clocks in one JVM: each has a clock of its own, and a
+ * node can stamp and send messages as soon as it is ready, before it is
+ * initialized.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class ClockTest {
+
+	public static void main(String[] args) throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - transport: memory", "  - clockService: vector",
+				"  - name: alice", "    ip: 127.0.0.1", "    port: 12344",
+				"  - name: bob", "    ip: 127.0.0.1", "    port: 14255");
+		MessagePasser alice = new MessagePasser(path, "alice");
+		MessagePasser bob = new MessagePasser(path, "bob");
+		try {
+			Check.that(alice.awaitReady(Nodes.READY_TIMEOUT), "alice is ready");
+			Check.that(bob.awaitReady(Nodes.READY_TIMEOUT), "bob is ready");
+			int a = alice.getLocalNodeId();
+			int b = bob.getLocalNodeId();
+
+			// ready but not initialized
+			TimeStamp sent = alice.send(new TimeStampedMessage("bob", "k",
+					"hello"));
+			Check.that(sent != null, "alice stamps before initialize()");
+			Check.equal(1, sent.getValue(a), "alice's entry at alice");
+			Check.equal(0, bob.getClock().getLocalTimeCopy().getValue(a),
+					"alice's entry at bob before delivery");
+
+			alice.initialize();
+			bob.initialize();
+			Message message = Nodes.receive(bob);
+			TimeStamp received = ((TimeStampedMessage) message).getTimeStamp();
+			Check.equal(1, received.getValue(a), "alice's entry at bob");
+			Check.equal(0, alice.getClock().getLocalTimeCopy().getValue(b),
+					"bob's entry at alice");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+		System.out.println("ClockTest passed");
+	}
+}
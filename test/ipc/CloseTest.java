@@ -0,0 +1,138 @@
+package ipc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closing a node over TCP: messages queued before close() are still sent, the
+ * port is free again as soon as close() returns, and a node closed while it
+ * is still loading its configuration never binds it.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class CloseTest {
+
+	private static final int MESSAGES = 200;
+
+	// how long a node blocked on its configuration is given to close
+	private static final long CLOSE_TIMEOUT = 300;
+
+	// how long the configuration is held back after that node was closed
+	private static final long SETTLE_MILLIS = 500;
+
+	public static void main(String[] args) throws Exception {
+		int alicePort = Nodes.freePort();
+		int bobPort = Nodes.freePort();
+		String path = Nodes.configuration("configuration:",
+				"  - name: alice", "    ip: 127.0.0.1", "    port: "
+						+ alicePort, "  - name: bob", "    ip: 127.0.0.1",
+				"    port: " + bobPort);
+		drain(path);
+		reopen(path, alicePort);
+		closeWhileConfiguring(path, alicePort);
+		System.out.println("CloseTest passed");
+	}
+
+	private static void drain(String path) throws Exception {
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		try {
+			for (int i = 0; i < MESSAGES; i++) {
+				alice.send(new Message("bob", "k", i));
+			}
+			alice.close();
+			for (int i = 0; i < MESSAGES; i++) {
+				Check.equal(i, Nodes.receive(bob).getData(), "message at bob");
+			}
+		} finally {
+			alice.close();
+			bob.close();
+		}
+	}
+
+	private static void reopen(String path, int port) throws Exception {
+		for (int i = 0; i < 3; i++) {
+			MessagePasser alice = Nodes.start(path, "alice");
+			alice.close();
+			Check.that(isFree(port), "port free after close()");
+		}
+	}
+
+	/**
+	 * Serve the configuration over HTTP only once the node loading it has
+	 * been closed.
+	 */
+	private static void closeWhileConfiguring(String path, int port)
+			throws Exception {
+		final byte[] body = Files.readAllBytes(new File(path)
+				.toPath());
+		final ServerSocket server = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"));
+		final CountDownLatch asked = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		Thread http = new Thread() {
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					asked.countDown();
+					closed.await();
+					OutputStream output = socket.getOutputStream();
+					output.write(("HTTP/1.0 200 OK\r\nContent-Length: "
+							+ body.length + "\r\n\r\n").getBytes("US-ASCII"));
+					output.write(body);
+					output.flush();
+					socket.close();
+				} catch (Exception ex) {
+					asked.countDown();
+				}
+			}
+		};
+		http.setDaemon(true);
+		http.start();
+
+		// the source caches the file under the last segment of the URL
+		String name = "close-" + System.nanoTime() + ".yaml";
+		new File(name).deleteOnExit();
+		MessagePasser alice = new MessagePasser("http://127.0.0.1:"
+				+ server.getLocalPort() + "/" + name, "alice");
+		try {
+			Check.that(asked.await(Nodes.READY_TIMEOUT, TimeUnit.MILLISECONDS),
+					"configuration requested");
+			long start = System.nanoTime();
+			alice.close(CLOSE_TIMEOUT);
+			long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+					- start);
+			Check.that(took < CLOSE_TIMEOUT + CLOSE_TIMEOUT / 2, "close("
+					+ CLOSE_TIMEOUT + ") took " + took + " ms");
+			closed.countDown();
+			http.join();
+			Thread.sleep(SETTLE_MILLIS);
+			Check.equal(MessagePasser.State.STOPPED, alice.getState(),
+					"state after the configuration came in");
+			Check.that(isFree(port), "port never bound");
+		} finally {
+			closed.countDown();
+			server.close();
+			new File(name).delete();
+		}
+	}
+
+	private static boolean isFree(int port) {
+		try {
+			new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"))
+					.close();
+			return true;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package ipc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Compressed bodies through WireFormat: a large message is compressed once
+ * and read back as it was sent, a small one or one that does not get smaller
+ * goes as it is, and a body cut short is reported instead of decoded.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class CompressionTest {
+
+	private static final Compression DEFLATE = new Compression(
+			Compression.CODEC_DEFLATE, Deflater.BEST_SPEED, 256);
+
+	public static void main(String[] args) throws Exception {
+		roundTrip();
+		belowThreshold();
+		incompressible();
+		truncated();
+		System.out.println("CompressionTest passed");
+	}
+
+	private static void roundTrip() throws Exception {
+		char[] text = new char[8192];
+		Arrays.fill(text, 'a');
+		Message message = message(new String(text));
+		CompressionStats sent = new CompressionStats();
+		byte[] body = WireFormat.encode(message, DEFLATE, sent);
+		Check.that(body.length < WireFormat.encode(message).length / 10,
+				"body of " + body.length + " bytes is compressed");
+		Check.equal(1L, sent.getCompressed(), "compressed");
+
+		CompressionStats received = new CompressionStats();
+		Message read = read(body, received);
+		Check.equal(new String(text), read.getData(), "data read back");
+		Check.equal(7L, read.getSequenceNumber(), "sequence number");
+		Check.equal("bob", read.getDest(), "destination");
+		Check.equal(1L, received.getDecompressed(), "decompressed");
+	}
+
+	private static void belowThreshold() throws Exception {
+		Message message = message("short");
+		CompressionStats sent = new CompressionStats();
+		byte[] body = WireFormat.encode(message, DEFLATE, sent);
+		Check.that(Arrays.equals(WireFormat.encode(message), body),
+				"small body sent as it is");
+		Check.equal(0L, sent.getCompressed(), "nothing compressed");
+		Check.equal("short", read(body, null).getData(), "data read back");
+	}
+
+	private static void incompressible() throws Exception {
+		byte[] noise = new byte[4096];
+		new Random(42).nextBytes(noise);
+		Message message = message(noise);
+		CompressionStats sent = new CompressionStats();
+		byte[] body = WireFormat.encode(message, DEFLATE, sent);
+		Check.that(Arrays.equals(WireFormat.encode(message), body),
+				"incompressible body sent as it is");
+		Check.equal(1L, sent.getIncompressible(), "incompressible");
+		Check.that(Arrays.equals(noise, (byte[]) read(body, null).getData()),
+				"data read back");
+	}
+
+	private static void truncated() throws Exception {
+		char[] text = new char[8192];
+		Arrays.fill(text, 'a');
+		byte[] body = WireFormat.encode(message(new String(text)), DEFLATE,
+				null);
+		try {
+			read(Arrays.copyOf(body, body.length / 2), null);
+			throw new AssertionError("truncated body decoded");
+		} catch (IOException ex) {
+			Check.that(ex.getMessage().contains("truncated"), "reported: "
+					+ ex.getMessage());
+		}
+	}
+
+	private static Message message(Object data) {
+		Message message = new Message("bob", "bulk", data);
+		message.setSource("alice");
+		return message;
+	}
+
+	/**
+	 * Put a body into a frame and read the frame back.
+	 */
+	private static Message read(byte[] body, CompressionStats stats)
+			throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		WireFormat.writeFrame(output, 7, false, null, body);
+		output.flush();
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		return WireFormat.readFrame(input, stats, null).getMessage();
+	}
+}
@@ -0,0 +1,130 @@
+package ipc;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Reading and reloading the configuration file: unknown items and parts are
+ * ignored, and a reloaded file with an error changes nothing at all, not even
+ * the parts read before the error.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class ConfigurationTest {
+
+	// how long a reload may take to show
+	private static final long RELOAD_TIMEOUT = 5000;
+
+	private static final String[] NODES = { "configuration:",
+			"  - transport: memory", "  - name: alice", "    ip: 127.0.0.1",
+			"    port: 12344", "    id: 0", "  - name: bob",
+			"    ip: 127.0.0.1", "    port: 14255", "    id: 1" };
+
+	public static void main(String[] args) throws Exception {
+		unknown();
+		duplicateIds();
+		rejectedReload();
+		System.out.println("ConfigurationTest passed");
+	}
+
+	private static void unknown() throws Exception {
+		String path = Nodes.configuration(lines("  - colour: blue",
+				"extras:", "  - anything: 1", "groups:", "  - name: g",
+				"    members: [alice, carol, bob]"));
+		Configuration config = Configuration.load(path, "alice",
+				new LogTool(path + ".log", ConfigurationTest.class.getName()));
+		Check.that(config != null, "unknown item and part ignored");
+		Check.equal(new TreeSet<String>(Arrays.asList("alice", "bob")),
+				new TreeSet<String>(config.getContacts().keySet()), "nodes");
+		Check.equal(Arrays.asList("alice", "bob"), config.getGroups().get("g"),
+				"members that are nodes");
+		Files.delete(Paths.get(path + ".log"));
+	}
+
+	private static void duplicateIds() throws Exception {
+		String path = Nodes.configuration(lines("  - name: carol",
+				"    ip: 127.0.0.1", "    port: 15000", "    id: 1"));
+		Configuration config = Configuration.load(path, "alice",
+				new LogTool(path + ".log", ConfigurationTest.class.getName()));
+		Check.that(config == null, "two nodes with one ID rejected");
+		Files.delete(Paths.get(path + ".log"));
+	}
+
+	/**
+	 * A reload with new send rules and groups but two nodes with one ID is
+	 * rejected as a whole.
+	 */
+	private static void rejectedReload() throws Exception {
+		String path = Nodes.configuration(lines());
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		try {
+			reload(path, lines("  - name: carol", "    ip: 127.0.0.1",
+					"    port: 15000", "    id: 1", "sendRules:",
+					"  - action: drop", "    kind: k", "groups:",
+					"  - name: g", "    members: [alice, bob]"));
+			awaitLog(alice, "failed to reload config file");
+			Check.that(alice.getGroups().isEmpty(), "groups unchanged");
+			Check.equal(2, alice.getNumOfNodes(), "nodes unchanged");
+			alice.send(new Message("bob", "k", "kept"));
+			Check.equal("kept", Nodes.receive(bob).getData(),
+					"send rules unchanged");
+
+			// a good file is still picked up
+			reload(path, lines("groups:", "  - name: g",
+					"    members: [alice, bob]"));
+			long deadline = System.currentTimeMillis() + RELOAD_TIMEOUT;
+			while (!alice.getGroups().containsKey("g")
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Check.that(alice.getGroups().containsKey("g"), "group added");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+	}
+
+	/**
+	 * @return The nodes alice and bob followed by the given lines.
+	 */
+	private static String[] lines(String... more) {
+		String[] lines = Arrays.copyOf(NODES, NODES.length + more.length);
+		System.arraycopy(more, 0, lines, NODES.length, more.length);
+		return lines;
+	}
+
+	/**
+	 * Replace the configuration file atomically.
+	 */
+	private static void reload(String path, String[] lines) throws Exception {
+		Path target = Paths.get(path);
+		Path next = Paths.get(path + ".next");
+		StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			text.append(line).append('\n');
+		}
+		Files.write(next, text.toString().getBytes(StandardCharsets.UTF_8));
+		HttpConfigSource.install(next, target);
+	}
+
+	private static void awaitLog(MessagePasser passer, String line)
+			throws Exception {
+		Path log = Paths.get(passer.getLogFileName());
+		long deadline = System.currentTimeMillis() + RELOAD_TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			if (new String(Files.readAllBytes(log), StandardCharsets.ISO_8859_1)
+					.contains(line)) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("no \"" + line + "\" in " + log);
+	}
+}
@@ -0,0 +1,79 @@
+package ipc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Datagrams: messages of the datagram kinds go over UDP on a link of their
+ * own, the ones dropped by a rule or too large for the MTU show as gaps on
+ * that link and are not retransmitted even with "reliable: true", and the
+ * other kinds still go over the transport.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class DatagramTest {
+
+	private static final int TELEMETRY = 10;
+	private static final int CHAT = 3;
+
+	public static void main(String[] args) throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - reliable: true", "  - name: alice", "    ip: 127.0.0.1",
+				"    port: " + Nodes.freePort(), "  - name: bob",
+				"    ip: 127.0.0.1", "    port: " + Nodes.freePort(),
+				"datagrams:", "  - mtu: 1200", "  - kind: telemetry",
+				"  - kind: big", "sendRules:", "  - action: drop",
+				"    kind: telemetry", "    seqNum: 4");
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		try {
+			for (int i = 1; i <= TELEMETRY; i++) {
+				alice.send(new Message("bob", "telemetry", i));
+			}
+			alice.send(new Message("bob", "big", new byte[5000]));
+			alice.send(new Message("bob", "telemetry", "last"));
+			for (int i = 1; i <= CHAT; i++) {
+				alice.send(new Message("bob", "chat", i));
+			}
+
+			List<Object> telemetry = new ArrayList<Object>();
+			List<Object> chat = new ArrayList<Object>();
+			for (int i = 0; i < TELEMETRY + CHAT; i++) {
+				Message message = Nodes.receive(bob);
+				if (message.getKind().equals("telemetry")) {
+					telemetry.add(message.getData());
+				} else {
+					Check.equal("chat", message.getKind(), "kind");
+					chat.add(message.getData());
+				}
+			}
+			Check.equal("[1, 2, 3, 5, 6, 7, 8, 9, 10, last]",
+					telemetry.toString(), "telemetry");
+			Check.equal("[1, 2, 3]", chat.toString(), "chat");
+
+			// the dropped and the oversized one are never sent again
+			Thread.sleep(500);
+			Map<String, LinkStats> links = bob.getLinkStats();
+			LinkStats datagrams = links.get("alice/datagram");
+			Check.equal((long) TELEMETRY, datagrams.getReceived(),
+					"datagram link received");
+			Check.equal(12L, datagrams.getHighest(), "datagram link highest");
+			Check.equal(2L, datagrams.getGaps(), "4 and the big one lost");
+			Check.equal((long) CHAT, links.get("alice").getReceived(),
+					"transport link received");
+			Check.equal(0L, links.get("alice").getGaps(), "transport link gaps");
+
+			long sent = alice.getMetrics().getValues().get("datagrams_sent");
+			Check.that(sent > 0 && sent <= TELEMETRY, sent + " datagrams sent");
+			Check.equal(sent, bob.getMetrics().getValues()
+					.get("datagrams_received"), "datagrams received");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+		System.out.println("DatagramTest passed");
+	}
+}
@@ -0,0 +1,73 @@
+package ipc;
+
+/**
+ * Behavior of DedupWindow: duplicates are dropped in and out of order, the
+ * ack describes the window, and a jump past the window slides it.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class DedupWindowTest {
+
+	public static void main(String[] args) {
+		inOrder();
+		outOfOrder();
+		slide();
+		System.out.println("DedupWindowTest passed");
+	}
+
+	private static void inOrder() {
+		DedupWindow window = new DedupWindow();
+		for (long seq = 1; seq <= 3 * DedupWindow.SIZE; seq++) {
+			Check.that(window.accept(seq), "message " + seq + " is new");
+			Check.that(!window.accept(seq), "message " + seq
+					+ " again is a duplicate");
+		}
+		Ack ack = window.toAck();
+		Check.equal(3L * DedupWindow.SIZE, ack.getCumulative(),
+				"cumulative ack");
+		Check.equal(0L, ack.getSelective(), "selective ack");
+	}
+
+	private static void outOfOrder() {
+		DedupWindow window = new DedupWindow();
+		Check.that(window.accept(1), "message 1 is new");
+		Check.that(window.accept(3), "message 3 is new");
+		Check.that(window.accept(5), "message 5 is new");
+		Check.that(!window.accept(3), "message 3 again is a duplicate");
+		Ack ack = window.toAck();
+		Check.equal(1L, ack.getCumulative(), "cumulative ack over a gap");
+
+		// bit i of the selective ack stands for cumulative + 1 + i
+		Check.equal(0xaL, ack.getSelective(), "selective ack of 3 and 5");
+
+		// the gap filled moves the cumulative ack over everything received
+		Check.that(window.accept(2), "message 2 is new");
+		Check.that(window.accept(4), "message 4 is new");
+		ack = window.toAck();
+		Check.equal(5L, ack.getCumulative(), "cumulative ack after the gap");
+		Check.equal(0L, ack.getSelective(), "selective ack after the gap");
+		for (long seq = 1; seq <= 5; seq++) {
+			Check.that(!window.accept(seq), "message " + seq
+					+ " again is a duplicate");
+		}
+	}
+
+	private static void slide() {
+		DedupWindow window = new DedupWindow();
+		Check.that(window.accept(1), "message 1 is new");
+
+		// the source gave up on the messages that left its retransmit buffer
+		long far = 2 + 2L * DedupWindow.SIZE;
+		Check.that(window.accept(far), "message " + far + " is new");
+		Ack ack = window.toAck();
+		Check.equal(far - DedupWindow.SIZE, ack.getCumulative(),
+				"cumulative ack after the slide");
+		Check.that(!window.accept(far - DedupWindow.SIZE),
+				"a message behind the window is a duplicate");
+		Check.that(window.accept(far - 1), "a message in the window is new");
+		Check.that(!window.accept(far), "message " + far
+				+ " again is a duplicate");
+	}
+}
@@ -0,0 +1,110 @@
+package ipc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ipc.EventJournal.Event;
+
+/**
+ * The event journal: a full ring keeps the newest events, and the journals
+ * of two nodes read back after they closed hold the sends, receives and
+ * fired rules of the messages between them.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class JournalTest {
+
+	// header and three records
+	private static final long SMALL_JOURNAL = 128 + 3 * 160;
+
+	public static void main(String[] args) throws Exception {
+		ring();
+		nodes();
+		System.out.println("JournalTest passed");
+	}
+
+	private static void ring() throws Exception {
+		File file = File.createTempFile("ring", ".jnl");
+		file.deleteOnExit();
+		File log = File.createTempFile("ring", ".log");
+		log.deleteOnExit();
+		LogTool logger = new LogTool(log.getPath(),
+				JournalTest.class.getName());
+		EventJournal journal = EventJournal.open(file.getPath(),
+				SMALL_JOURNAL, "alice", logger);
+		Check.that(journal != null, "journal opened");
+		for (int i = 1; i <= 5; i++) {
+			journal.record(EventJournal.SEND, 0, "bob", "k", i, 100, null);
+		}
+		Check.equal(5L, journal.getCount(), "recorded");
+		journal.close(logger);
+		logger.close();
+
+		EventJournal.Contents contents = EventJournal.read(file.getPath());
+		Check.equal("alice", contents.getNode(), "node");
+		List<Event> events = contents.getEvents();
+		Check.equal(3, events.size(), "events kept");
+		for (int i = 0; i < 3; i++) {
+			Check.equal(i + 3L, events.get(i).getSequenceNumber(),
+					"oldest overwritten");
+		}
+	}
+
+	private static void nodes() throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		String path = Nodes.configuration("configuration:",
+				"  - transport: memory", "  - journal: " + directory
+						+ "/{name}.jnl", "  - name: alice",
+				"    ip: 127.0.0.1", "    port: 12344", "  - name: bob",
+				"    ip: 127.0.0.1", "    port: 14255", "sendRules:",
+				"  - action: drop", "    kind: lossy", "    seqNum: 2");
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		try {
+			for (int i = 1; i <= 3; i++) {
+				alice.send(new Message("bob", "lossy", i));
+			}
+			Check.equal(1, Nodes.receive(bob).getData(), "first");
+			Check.equal(3, Nodes.receive(bob).getData(), "second dropped");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+		File aliceJournal = new File(directory, "alice.jnl");
+		File bobJournal = new File(directory, "bob.jnl");
+		aliceJournal.deleteOnExit();
+		bobJournal.deleteOnExit();
+
+		List<Event> sent = events(aliceJournal, EventJournal.SEND);
+		Check.equal(2, sent.size(), "sends at alice");
+		Check.equal(1L, sent.get(0).getSequenceNumber(), "first send");
+		Check.equal(3L, sent.get(1).getSequenceNumber(), "second send");
+		Check.equal("bob", sent.get(0).getPeer(), "peer of the send");
+		List<Event> rules = events(aliceJournal, EventJournal.RULE);
+		Check.equal(1, rules.size(), "rules at alice");
+		Check.equal(Rule.ACTION_DROP, rules.get(0).getAction(), "action");
+		Check.equal(2L, rules.get(0).getSequenceNumber(), "dropped message");
+
+		List<Event> received = events(bobJournal, EventJournal.RECEIVE);
+		Check.equal(2, received.size(), "receives at bob");
+		Check.equal("alice", received.get(0).getPeer(), "peer of the receive");
+		Check.equal("lossy", received.get(1).getKind(), "kind");
+		Check.equal(3L, received.get(1).getSequenceNumber(), "second receive");
+	}
+
+	private static List<Event> events(File file, byte type) throws Exception {
+		List<Event> events = new ArrayList<Event>();
+		for (Event event : EventJournal.read(file.getPath()).getEvents()) {
+			if (event.getType() == type) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+}
@@ -0,0 +1,91 @@
+package ipc;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Behavior of the startup lifecycle: a node moves from CONFIGURING to READY
+ * to RUNNING to STOPPED, its threads wait without using the processor until
+ * it is initialized, and a configuration that cannot be loaded stops it
+ * instead of leaving awaitReady() to time out.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class LifecycleTest {
+
+	// how long the idle node is watched, and the processor time it may use
+	private static final long IDLE_MILLIS = 500;
+	private static final long IDLE_CPU_MILLIS = 100;
+
+	public static void main(String[] args) throws Exception {
+		states();
+		missingConfiguration();
+		System.out.println("LifecycleTest passed");
+	}
+
+	private static void states() throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - transport: memory", "  - name: alice",
+				"    ip: 127.0.0.1", "    port: 12344");
+		MessagePasser alice = new MessagePasser(path, "alice");
+		try {
+			Check.that(alice.awaitReady(Nodes.READY_TIMEOUT), "alice is ready");
+			Check.equal(MessagePasser.State.READY, alice.getState(), "state");
+			Check.that(alice.getTimeToReady() >= 0, "time to ready measured");
+
+			// ready but not initialized, nothing may spin
+			long cpu = cpuTime();
+			Thread.sleep(IDLE_MILLIS);
+			long used = (cpuTime() - cpu) / 1000000;
+			Check.that(used < IDLE_CPU_MILLIS, "idle node used " + used
+					+ " ms of processor time in " + IDLE_MILLIS + " ms");
+
+			alice.initialize();
+			Check.equal(MessagePasser.State.RUNNING, alice.getState(), "state");
+			alice.initialize();
+			Check.equal(MessagePasser.State.RUNNING, alice.getState(),
+					"initialized twice");
+		} finally {
+			alice.close();
+		}
+		Check.equal(MessagePasser.State.STOPPED, alice.getState(), "state");
+		Check.that(!alice.awaitReady(Nodes.READY_TIMEOUT),
+				"a closed node is not ready");
+		alice.close();
+	}
+
+	private static void missingConfiguration() throws Exception {
+		File missing = File.createTempFile("missing", ".yaml");
+		missing.delete();
+		MessagePasser alice = new MessagePasser(missing.getPath(), "alice");
+		try {
+			long start = System.nanoTime();
+			Check.that(!alice.awaitReady(Nodes.READY_TIMEOUT),
+					"a node without configuration is not ready");
+			Check.that(System.nanoTime() - start < Nodes.READY_TIMEOUT
+					* 1000000L, "failure reported before the timeout");
+			Check.equal(MessagePasser.State.STOPPED, alice.getState(), "state");
+		} finally {
+			alice.close();
+		}
+	}
+
+	/**
+	 * @return Processor time used by all threads of the JVM so far, in
+	 *         nanoseconds.
+	 */
+	private static long cpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long time = threads.getThreadCpuTime(id);
+			if (time > 0) {
+				total += time;
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,128 @@
+package ipc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of a node: the registry reads counters, families, gauges and
+ * histograms as flat values and as Prometheus text, and a running node
+ * serves its counts over JMX and HTTP until it is closed.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class MetricsTest {
+
+	private static final int MESSAGES = 3;
+
+	public static void main(String[] args) throws Exception {
+		registry();
+		node();
+		System.out.println("MetricsTest passed");
+	}
+
+	private static void registry() {
+		Metrics metrics = new Metrics();
+		metrics.counter("frames").add(3);
+		metrics.counter("sent", "peer", "bob").increment();
+		metrics.counter("sent", "peer", "bob").increment();
+		metrics.counter("sent", "peer", "carol").increment();
+		metrics.gauge("queue", new Metrics.Gauge() {
+			public long getValue() {
+				return 7;
+			}
+		});
+		Histogram latency = metrics.histogram("latency");
+		for (int i = 1; i <= 100; i++) {
+			latency.record(i);
+		}
+
+		TreeMap<String, Long> values = metrics.getValues();
+		Check.equal(3L, values.get("frames"), "counter");
+		Check.equal(2L, values.get("sent.bob"), "family member");
+		Check.equal(7L, values.get("queue"), "gauge");
+		Check.equal(100L, values.get("latency.count"), "histogram count");
+		Check.equal(5050L, values.get("latency.sum"), "histogram sum");
+		Check.equal(100L, values.get("latency.max"), "histogram max");
+		long median = values.get("latency.p50");
+		Check.that(median >= 47 && median <= 53, "median " + median);
+
+		String text = metrics.toText("ipc_");
+		Check.that(text.contains("# TYPE ipc_sent counter\n"), "family type");
+		Check.that(text.contains("ipc_sent{peer=\"bob\"} 2\n"), "labelled");
+		Check.that(text.contains("# TYPE ipc_queue gauge\n"), "gauge type");
+		Check.that(text.contains("ipc_latency_count 100\n"), "summary count");
+
+		metrics.forget("peer", "bob");
+		Check.that(!metrics.getValues().containsKey("sent.bob"),
+				"forgotten peer");
+		Check.equal(1L, metrics.getValues().get("sent.carol"), "other peer");
+	}
+
+	private static void node() throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - transport: memory", "  - metricsPort: 0",
+				"  - name: alice", "    ip: 127.0.0.1", "    port: 12344",
+				"  - name: bob", "    ip: 127.0.0.1", "    port: 14255");
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("ipc:type=MessagePasser,name="
+				+ ObjectName.quote("bob"));
+		int port = bob.getMetricsPort();
+		try {
+			for (int i = 0; i < MESSAGES; i++) {
+				alice.send(new Message("bob", "k", i));
+			}
+			for (int i = 0; i < MESSAGES; i++) {
+				Nodes.receive(bob);
+			}
+			Check.equal((long) MESSAGES, bob.getMetrics().getValues()
+					.get("received_messages.alice"), "received");
+			Check.equal((long) MESSAGES,
+					server.getAttribute(name, "received_messages.alice"),
+					"received over JMX");
+			Check.that(port > 0, "metrics port picked");
+			Check.that(get(port).contains("ipc_received_messages{peer=\"alice\"} "
+					+ MESSAGES + "\n"), "received over HTTP");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+		Check.that(!server.isRegistered(name), "bean unregistered");
+		try {
+			get(port);
+			throw new AssertionError("metrics still served after close()");
+		} catch (IOException ex) {
+			// nothing listens any more
+		}
+	}
+
+	private static String get(int port) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://127.0.0.1:" + port + "/metrics").openConnection();
+		try {
+			Check.equal(200, connection.getResponseCode(), "HTTP status");
+			InputStream input = connection.getInputStream();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] chunk = new byte[4096];
+			for (int n = input.read(chunk); n >= 0; n = input.read(chunk)) {
+				body.write(chunk, 0, n);
+			}
+			input.close();
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
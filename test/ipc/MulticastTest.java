@@ -0,0 +1,64 @@
+package ipc;
+
+/**
+ * Sending to a group over the memory transport: every member, the sender
+ * included, receives the message with the group name as its destination and
+ * the time stamp of a single send event, send rules are matched per member,
+ * and a group that does not exist is refused.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class MulticastTest {
+
+	public static void main(String[] args) throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - transport: memory", "  - clockService: vector",
+				"  - name: alice", "    ip: 127.0.0.1", "    port: 12344",
+				"  - name: bob", "    ip: 127.0.0.1", "    port: 14255",
+				"  - name: carol", "    ip: 127.0.0.1", "    port: 15000",
+				"groups:", "  - name: all", "    members: [alice, bob, carol]",
+				"  - name: others", "    members: [bob, carol, nobody]",
+				"sendRules:", "  - action: duplicate", "    kind: twice",
+				"    dest: carol");
+		MessagePasser alice = Nodes.start(path, "alice");
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser carol = Nodes.start(path, "carol");
+		try {
+			Check.equal("[1, 0, 0]", String.valueOf(alice.multicast("all",
+					"k", "one")), "one tick for all members");
+			Check.equal("[2, 0, 0]", String.valueOf(alice.multicast(
+					"others", "twice", "two")), "one tick again");
+			Check.that(alice.multicast("none", "k", "three") == null,
+					"unknown group refused");
+
+			// each member merges the stamp of alice's first send event
+			expect(Nodes.receive(alice), "all", "one", "[3, 0, 0]");
+			expect(Nodes.receive(bob), "all", "one", "[1, 1, 0]");
+			expect(Nodes.receive(carol), "all", "one", "[1, 0, 1]");
+
+			// only carol matches the rule, nobody is not a node
+			expect(Nodes.receive(bob), "others", "two", "[2, 2, 0]");
+			Message message = Nodes.receive(carol);
+			expect(message, "others", "two", "[2, 0, 2]");
+			Check.that(!message.isDupe(), "original at carol");
+			message = Nodes.receive(carol);
+			expect(message, "others", "two", "[2, 0, 3]");
+			Check.that(message.isDupe(), "duplicate at carol");
+		} finally {
+			carol.close();
+			bob.close();
+			alice.close();
+		}
+		System.out.println("MulticastTest passed");
+	}
+
+	private static void expect(Message message, String group, String data,
+			String timeStamp) {
+		Check.equal(group, message.getDest(), "destination");
+		Check.equal(data, message.getData(), "data");
+		Check.equal(timeStamp, String.valueOf(((TimeStampedMessage) message)
+				.getTimeStamp()), "time stamp of " + data);
+	}
+}
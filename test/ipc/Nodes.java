@@ -0,0 +1,125 @@
+package ipc;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Nodes of the behavior tests that run whole message passers in one JVM: a
+ * configuration written to a temporary file, nodes started from it, and
+ * receiving with a timeout so that a lost message fails the test instead of
+ * hanging it.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class Nodes {
+
+	// how long a message may take to arrive
+	public static final int RECEIVE_TIMEOUT = 5000;
+
+	public static final int READY_TIMEOUT = 5000;
+
+	private static final ExecutorService RECEIVERS = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private Nodes() {
+	}
+
+	/**
+	 * Write a configuration file, deleted when the JVM exits.
+	 * 
+	 * @param lines
+	 *            Lines of the YAML file.
+	 * @return Path of the file.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public static String configuration(String... lines) throws IOException {
+		File file = File.createTempFile("node", ".yaml");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		try {
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		return file.getPath();
+	}
+
+	/**
+	 * @return A TCP port nothing listens on right now.
+	 * @throws IOException
+	 *             If no port can be found.
+	 */
+	public static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Start a node and wait until it is running.
+	 * 
+	 * @param path
+	 *            Path of the configuration file.
+	 * @param name
+	 *            Name of the node.
+	 * @return The message passer of the node.
+	 */
+	public static MessagePasser start(String path, String name) {
+		MessagePasser passer = new MessagePasser(path, name);
+		Check.that(passer.awaitReady(READY_TIMEOUT), name + " is ready");
+		passer.initialize();
+		return passer;
+	}
+
+	/**
+	 * Receive the next message, failing if none comes in time.
+	 * 
+	 * @param passer
+	 *            The message passer to receive from.
+	 * @return The message.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 * @throws ExecutionException
+	 *             If receiving fails.
+	 */
+	public static Message receive(final MessagePasser passer)
+			throws InterruptedException, ExecutionException {
+		Future<Message> future = RECEIVERS.submit(new Callable<Message>() {
+			public Message call() {
+				return passer.receive();
+			}
+		});
+		try {
+			return future.get(RECEIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			future.cancel(true);
+			throw new AssertionError("no message within " + RECEIVE_TIMEOUT
+					+ " ms");
+		}
+	}
+}
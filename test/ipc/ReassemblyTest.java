@@ -0,0 +1,149 @@
+package ipc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Behavior of WireFormat.Reassembly through readFrame: fragments of a message
+ * make it whole, fragments of two messages may interleave, a duplicate made
+ * by a rule is put together apart from the original, and a fragment out of
+ * place is rejected.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class ReassemblyTest {
+
+	private static final int FRAGMENT = 100;
+
+	public static void main(String[] args) throws Exception {
+		whole();
+		interleaved();
+		duplicate();
+		outOfPlace();
+		System.out.println("ReassemblyTest passed");
+	}
+
+	private static void whole() throws Exception {
+		byte[] body = WireFormat.encode(new Message("bob", "k", text(350)));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		for (int offset = 0; offset < body.length; offset += FRAGMENT) {
+			fragment(output, 7, false, body, offset);
+		}
+		DataInputStream input = input(bytes);
+		WireFormat.Reassembly reassembly = new WireFormat.Reassembly();
+		Message message = null;
+		int frames = 0;
+		while (input.available() > 0) {
+			Check.that(message == null, "nothing follows the last fragment");
+			message = WireFormat.readFrame(input, null, null, reassembly)
+					.getMessage();
+			frames++;
+		}
+		Check.equal((body.length + FRAGMENT - 1) / FRAGMENT, frames,
+				"frames read");
+		Check.that(message != null, "the message is whole");
+		Check.equal(text(350), message.getData(), "data");
+		Check.equal(7L, message.getSequenceNumber(), "sequence number");
+	}
+
+	private static void interleaved() throws Exception {
+		byte[] first = WireFormat.encode(new Message("bob", "k", text(300)));
+		byte[] second = WireFormat.encode(new Message("bob", "k", text(250)));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		int offset = 0;
+		while (offset < Math.max(first.length, second.length)) {
+			if (offset < first.length) {
+				fragment(output, 1, false, first, offset);
+			}
+			if (offset < second.length) {
+				fragment(output, 2, false, second, offset);
+			}
+			offset += FRAGMENT;
+		}
+		Message[] whole = readAll(input(bytes), 2);
+		Check.equal(1L, whole[0].getSequenceNumber(), "first to complete");
+		Check.equal(text(300), whole[0].getData(), "first data");
+		Check.equal(2L, whole[1].getSequenceNumber(), "second to complete");
+		Check.equal(text(250), whole[1].getData(), "second data");
+	}
+
+	private static void duplicate() throws Exception {
+		byte[] body = WireFormat.encode(new Message("bob", "k", text(300)));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+
+		// the copy follows the original fragment by fragment
+		for (int offset = 0; offset < body.length; offset += FRAGMENT) {
+			fragment(output, 3, false, body, offset);
+			fragment(output, 3, true, body, offset);
+		}
+		Message[] whole = readAll(input(bytes), 2);
+		Check.that(!whole[0].isDupe(), "the original completes first");
+		Check.that(whole[1].isDupe(), "the copy completes second");
+		for (Message message : whole) {
+			Check.equal(3L, message.getSequenceNumber(), "sequence number");
+			Check.equal(text(300), message.getData(), "data");
+		}
+	}
+
+	private static void outOfPlace() throws Exception {
+		byte[] body = WireFormat.encode(new Message("bob", "k", text(300)));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		fragment(output, 4, false, body, FRAGMENT);
+		try {
+			WireFormat.readFrame(input(bytes), null, null,
+					new WireFormat.Reassembly());
+			Check.that(false, "a fragment without its start is rejected");
+		} catch (IOException ex) {
+			Check.that(ex.getMessage().contains("out of place"),
+					"failure names the misplaced fragment");
+		}
+	}
+
+	private static void fragment(DataOutputStream output, long sequenceNumber,
+			boolean dupe, byte[] body, int offset) throws IOException {
+		int length = Math.min(FRAGMENT, body.length - offset);
+		WireFormat.writeFragment(output, sequenceNumber, dupe, null, null,
+				offset, length, body.length);
+		output.write(body, offset, length);
+	}
+
+	private static Message[] readAll(DataInputStream input, int count)
+			throws Exception {
+		WireFormat.Reassembly reassembly = new WireFormat.Reassembly();
+		Message[] whole = new Message[count];
+		int done = 0;
+		while (input.available() > 0) {
+			Message message = WireFormat.readFrame(input, null, null,
+					reassembly).getMessage();
+			if (message != null) {
+				Check.that(done < count, "no more than " + count
+						+ " messages complete");
+				whole[done++] = message;
+			}
+		}
+		Check.equal(count, done, "messages completed");
+		return whole;
+	}
+
+	private static DataInputStream input(ByteArrayOutputStream bytes) {
+		return new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+	}
+
+	private static String text(int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+		return text.toString();
+	}
+}
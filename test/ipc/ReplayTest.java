@@ -0,0 +1,114 @@
+package ipc;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Record and replay: bob records what he receives from alice, and a node
+ * replaying bob's recording without any network delivers the same messages
+ * in the same order, with the same fields, payloads and merged time stamps.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class ReplayTest {
+
+	private static final int MESSAGES = 5;
+
+	public static void main(String[] args) throws Exception {
+		File directory = File.createTempFile("replay", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		new File(directory, "alice.rec").deleteOnExit();
+		new File(directory, "bob.rec").deleteOnExit();
+		String[] nodes = { "configuration:", "  - transport: memory",
+				"  - clockService: vector", "  - name: alice",
+				"    ip: 127.0.0.1", "    port: 12344", "  - name: bob",
+				"    ip: 127.0.0.1", "    port: 14255" };
+		List<Message> recorded = record(configuration(nodes, "  - record: "
+				+ directory + "/{name}.rec"));
+		replay(configuration(nodes, "  - replay: " + directory
+				+ "/{name}.rec", "  - replaySpeed: 0"), recorded);
+		System.out.println("ReplayTest passed");
+	}
+
+	private static List<Message> record(String path) throws Exception {
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		List<Message> received = new ArrayList<Message>();
+		try {
+			for (int i = 0; i < MESSAGES; i++) {
+				alice.send(new TimeStampedMessage("bob", "plain", "hello " + i));
+			}
+			alice.send(new TimeStampedMessage("bob", "list",
+					new ArrayList<Integer>(Arrays.asList(1, 2, 3))));
+			BytesMessage raw = alice.obtain("bob", "raw");
+			for (int i = 0; i < 100; i++) {
+				raw.getBuffer().put((byte) i);
+			}
+			raw.getBuffer().flip();
+			alice.send(raw);
+			for (int i = 0; i < MESSAGES + 2; i++) {
+				received.add(Nodes.receive(bob));
+			}
+			Check.equal((long) MESSAGES + 2, bob.getMetrics().getValues()
+					.get("recorded_messages"), "recorded at bob");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+		return received;
+	}
+
+	private static void replay(String path, List<Message> recorded)
+			throws Exception {
+		MessagePasser bob = Nodes.start(path, "bob");
+		try {
+			for (Message original : recorded) {
+				Message message = Nodes.receive(bob);
+				String what = "replayed " + original.getKind();
+				Check.equal(original.getKind(), message.getKind(), what);
+				Check.equal(original.getSource(), message.getSource(), what);
+				Check.equal(original.getSequenceNumber(),
+						message.getSequenceNumber(), what);
+				if (original instanceof BytesMessage) {
+					ByteBuffer payload = ((BytesMessage) original).getPayload();
+					Check.equal(payload, ((BytesMessage) message).getPayload(),
+							what);
+				} else {
+					Check.equal(original.getData(), message.getData(), what);
+					Check.equal(String.valueOf(((TimeStampedMessage) original)
+							.getTimeStamp()), String
+							.valueOf(((TimeStampedMessage) message)
+									.getTimeStamp()), what + " time stamp");
+				}
+			}
+			// the count goes up once the last message is already handed over
+			long deadline = System.currentTimeMillis() + Nodes.RECEIVE_TIMEOUT;
+			while (bob.getMetrics().getValues().get("replayed_messages") < recorded
+					.size() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Check.equal((long) recorded.size(), bob.getMetrics().getValues()
+					.get("replayed_messages"), "replayed");
+
+			// stamped and dropped, there is no network
+			Check.that(bob.send(new TimeStampedMessage("alice", "k", "x")) != null,
+					"send stamped");
+		} finally {
+			bob.close();
+		}
+	}
+
+	private static String configuration(String[] nodes, String... items)
+			throws Exception {
+		String[] lines = Arrays.copyOf(nodes, nodes.length + items.length);
+		System.arraycopy(items, 0, lines, nodes.length, items.length);
+		return Nodes.configuration(lines);
+	}
+}
@@ -0,0 +1,130 @@
+package ipc;
+
+import java.net.Socket;
+
+/**
+ * Two nodes with reliable delivery: alice restarts while bob keeps running,
+ * and the messages of her new incarnation, numbered from 1 again, are
+ * delivered instead of being dropped as duplicates. The link from bob to the
+ * new alice starts anew as well. Frames of the old alice that reach bob
+ * after the new one connected are dropped, so they neither get delivered nor
+ * take the sequence numbers of the new alice.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class RestartTest {
+
+	// incarnation of the old alice, written by hand
+	private static final long OLD_INCARNATION = 1;
+
+	// how long bob is given to read the frames of the old alice
+	private static final long STALE_MILLIS = 300;
+
+	public static void main(String[] args) throws Exception {
+		restart();
+		staleFrames();
+		System.out.println("RestartTest passed");
+	}
+
+	private static void restart() throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - transport: memory", "  - clockService: logical",
+				"  - reliable: true", "  - retransmitTimeout: 50",
+				"  - name: alice", "    ip: 127.0.0.1", "    port: 12344",
+				"  - name: bob", "    ip: 127.0.0.1", "    port: 14255");
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		try {
+			exchange(alice, bob, "first");
+
+			// the same name comes back as a new incarnation
+			alice.close();
+			alice = Nodes.start(path, "alice");
+			exchange(alice, bob, "second");
+			Check.equal(0L, bob.getDuplicateCount(),
+					"duplicates dropped at bob");
+		} finally {
+			alice.close();
+			bob.close();
+		}
+	}
+
+	/**
+	 * The old alice is a connection written by hand, which stays open while
+	 * the new alice connects and sends a retransmission and a new message
+	 * afterwards.
+	 */
+	private static void staleFrames() throws Exception {
+		int bobPort = Nodes.freePort();
+		String path = Nodes.configuration("configuration:",
+				"  - transport: tcp", "    sharedMemory: false",
+				"  - reliable: true", "  - retransmitTimeout: 50",
+				"  - name: alice", "    ip: 127.0.0.1",
+				"    port: " + Nodes.freePort(), "  - name: bob",
+				"    ip: 127.0.0.1", "    port: " + bobPort);
+		MessagePasser bob = Nodes.start(path, "bob");
+		TcpConnection old = new TcpConnection(new Socket("127.0.0.1",
+				bobPort), "alice", OLD_INCARNATION);
+		MessagePasser alice = null;
+		try {
+			write(old, 1, "old1");
+			Check.equal("old1", Nodes.receive(bob).getData(), "old message");
+
+			alice = Nodes.start(path, "alice");
+			alice.send(new Message("bob", "k", "new1"));
+			Check.equal("new1", Nodes.receive(bob).getData(), "new message");
+
+			// still in flight from the old alice
+			write(old, 1, "old1");
+			write(old, 2, "old2");
+			Thread.sleep(STALE_MILLIS);
+
+			alice.send(new Message("bob", "k", "new2"));
+			Message message = Nodes.receive(bob);
+			Check.equal("new2", message.getData(), "message after stale ones");
+			Check.equal(2L, message.getSequenceNumber(), "sequence number");
+		} finally {
+			old.close(null);
+			if (alice != null) {
+				alice.close();
+			}
+			bob.close();
+		}
+	}
+
+	private static void write(TcpConnection connection, long sequenceNumber,
+			String data) throws Exception {
+		Message message = new Message("bob", "k", data);
+		message.setSource("alice");
+		message.setSequenceNumber(sequenceNumber);
+		connection.writeMessage(message, null, WireFormat.encode(message));
+	}
+
+	/**
+	 * Send five messages from alice to bob and three back, each link
+	 * numbered from 1.
+	 */
+	private static void exchange(MessagePasser alice, MessagePasser bob,
+			String round) throws Exception {
+		for (int i = 0; i < 5; i++) {
+			alice.send(new Message("bob", "k", round + i));
+		}
+		for (int i = 0; i < 5; i++) {
+			Message message = Nodes.receive(bob);
+			Check.equal(round + i, message.getData(), "message at bob");
+			Check.equal(i + 1L, message.getSequenceNumber(),
+					"sequence number at bob");
+		}
+		for (int i = 0; i < 3; i++) {
+			bob.send(new Message("alice", "k", round + i));
+		}
+		for (int i = 0; i < 3; i++) {
+			Message message = Nodes.receive(alice);
+			Check.equal(round + i, message.getData(), "message at alice");
+			Check.equal(i + 1L, message.getSequenceNumber(),
+					"sequence number at alice");
+		}
+	}
+}
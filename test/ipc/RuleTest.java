@@ -0,0 +1,93 @@
+package ipc;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiling rules: settings that would be ignored or make no sense reject
+ * the rule like an unknown action does, and a reloaded rule that did not
+ * change keeps the token bucket of the one it replaces.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class RuleTest {
+
+	private static LogTool logger;
+
+	public static void main(String[] args) throws Exception {
+		String log = Files.createTempFile("rule", ".log").toString();
+		logger = new LogTool(log, RuleTest.class.getName());
+		try {
+			invalid();
+			carryOver();
+		} finally {
+			logger.close();
+			Files.delete(Paths.get(log));
+		}
+		System.out.println("RuleTest passed");
+	}
+
+	private static void invalid() {
+		Check.that(compile("action", "delay", "duration", 10) != null,
+				"timed delay");
+		Check.that(compile("action", "delay", "duration", 10,
+				"distribution", "normal", "jitter", 3) != null,
+				"normal delay");
+		Check.that(compile("action", "delay", "duration", 10,
+				"distribution", "exponential") != null, "exponential delay");
+		Check.that(compile("action", "reorder", "window", 4) != null,
+				"reorder");
+
+		Check.that(compile("action", "bounce") == null, "unknown action");
+		Check.that(compile("action", "reorder", "window", -2) == null,
+				"negative window");
+		Check.that(compile("action", "reorder", "window", 0) == null,
+				"empty window");
+		Check.that(compile("action", "delay", "duration", -5) == null,
+				"negative duration");
+		Check.that(compile("action", "delay", "distribution", "uniform",
+				"jitter", 3) == null, "uniform delay without duration");
+		Check.that(compile("action", "delay", "distribution", "normal",
+				"jitter", 3) == null, "normal delay without duration");
+		Check.that(compile("action", "delay", "duration", 0,
+				"distribution", "exponential") == null,
+				"exponential delay of 0");
+		Check.that(compile("action", "delay", "duration", 10,
+				"distribution", "exponential", "jitter", 3) == null,
+				"exponential delay with jitter");
+		Check.that(compile("action", "delay", "duration", 10,
+				"distribution", "uniform", "jitter", -3) == null,
+				"negative jitter");
+	}
+
+	private static void carryOver() {
+		long now = System.nanoTime();
+		Rule[] old = { compile("action", "throttle", "kind", "k", "rate",
+				1000, "burst", 0) };
+		Check.equal(0L, old[0].reserve(1000, now), "first message");
+
+		// the bucket of the old rule is empty for the next second
+		Rule[] same = { compile("action", "throttle", "kind", "k", "rate",
+				1000, "burst", 0) };
+		Rule[] changed = { compile("action", "throttle", "kind", "k",
+				"rate", 2000, "burst", 0) };
+		Rule.carryOver(old, same);
+		Rule.carryOver(old, changed);
+		Check.that(same[0].reserve(1000, now) > TimeUnit.MILLISECONDS
+				.toNanos(900), "unchanged rule keeps its bucket");
+		Check.equal(0L, changed[0].reserve(1000, now),
+				"changed rule starts full");
+	}
+
+	private static Rule compile(Object... settings) {
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		for (int i = 0; i < settings.length; i += 2) {
+			map.put((String) settings[i], settings[i + 1]);
+		}
+		return Rule.compile(map, logger);
+	}
+}
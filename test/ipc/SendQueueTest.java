@@ -0,0 +1,166 @@
+package ipc;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Behavior of SendQueue: FIFO without classes, order within a class, shares
+ * of the bytes in proportion to the weights, a fragment put back at the head
+ * of its class, and the charge settled with the real size of a message.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class SendQueueTest {
+
+	public static void main(String[] args) throws Exception {
+		fifo();
+		classOrder();
+		fairness();
+		sizes();
+		addFirst();
+		settle();
+		System.out.println("SendQueueTest passed");
+	}
+
+	private static void fifo() throws Exception {
+		SendQueue queue = new SendQueue();
+		for (int i = 0; i < 10; i++) {
+			queue.add(new Message("bob", i % 2 == 0 ? "a" : "b", i));
+		}
+		for (int i = 0; i < 10; i++) {
+			Check.equal(i, queue.take().getData(), "message in FIFO order");
+		}
+		Check.that(queue.isEmpty(), "queue is empty");
+		Check.that(queue.poll(1, TimeUnit.MILLISECONDS) == null,
+				"poll on an empty queue times out");
+	}
+
+	private static void classOrder() throws Exception {
+		SendQueue queue = configured(1, 1);
+		for (int i = 0; i < 20; i++) {
+			queue.add(new Message("bob", i % 3 == 0 ? "control" : "file", i));
+		}
+		int lastControl = -1;
+		int lastFile = -1;
+		for (int i = 0; i < 20; i++) {
+			Message message = queue.take();
+			int data = (Integer) message.getData();
+			if ("control".equals(message.getKind())) {
+				Check.that(data > lastControl, "control messages keep order");
+				lastControl = data;
+			} else {
+				Check.that(data > lastFile, "file messages keep order");
+				lastFile = data;
+			}
+		}
+	}
+
+	private static void fairness() throws Exception {
+		SendQueue queue = configured(4, 1);
+		for (int i = 0; i < 100; i++) {
+			queue.add(new Message("bob", "control", i));
+			queue.add(new Message("bob", "file", i));
+		}
+
+		// both classes are backlogged, so they share the bytes 4 to 1
+		int control = 0;
+		for (int i = 0; i < 50; i++) {
+			if ("control".equals(queue.take().getKind())) {
+				control++;
+			}
+		}
+		Check.equal(40, control, "control messages among the first 50");
+
+		// a class that runs dry leaves the whole connection to the other
+		while (queue.size() > 0) {
+			queue.take();
+		}
+		queue.add(new Message("bob", "file", 0));
+		queue.add(new Message("bob", "file", 1));
+		Check.equal("file", queue.take().getKind(),
+				"an idle class costs nothing");
+		queue.add(new Message("bob", "control", 0));
+		Check.equal("control", queue.peek().getKind(),
+				"a class back from idle gets no credit but no debt either");
+	}
+
+	private static void sizes() throws Exception {
+		SendQueue queue = configured(1, 1);
+		for (int i = 0; i < 20; i++) {
+			queue.add(bytes("control", 1000));
+			queue.add(bytes("file", 250));
+		}
+
+		// equal weights share bytes, not messages
+		int control = 0;
+		for (int i = 0; i < 10; i++) {
+			if ("control".equals(queue.take().getKind())) {
+				control++;
+			}
+		}
+		Check.equal(2, control, "control messages among the first 10");
+	}
+
+	private static void addFirst() throws Exception {
+		SendQueue queue = configured(1, 1);
+		queue.add(new Message("bob", "file", 1));
+		queue.add(new Message("bob", "file", 2));
+		Message first = queue.take();
+		queue.addFirst(first, 100);
+		Check.equal(2, queue.size(), "message put back");
+		Check.equal(1, queue.take().getData(), "put back at the head");
+		Check.equal(2, queue.take().getData(), "then the rest");
+	}
+
+	private static void settle() throws Exception {
+
+		// object messages count as a nominal size until settled
+		SendQueue even = configured(1, 1);
+		SendQueue settled = configured(1, 1);
+		for (int i = 0; i < 20; i++) {
+			even.add(new Message("bob", "control", i));
+			even.add(new Message("bob", "file", i));
+			settled.add(new Message("bob", "control", i));
+			settled.add(new Message("bob", "file", i));
+		}
+
+		// nothing has been taken, so there is nothing to settle
+		even.settle(1000000);
+		Check.equal("control", even.take().getKind(), "tie goes to control");
+		Check.equal("file", even.take().getKind(), "equal sizes alternate");
+		Check.equal("control", even.take().getKind(), "equal sizes alternate");
+
+		// the control message turned out ten times the nominal size
+		Check.equal("control", settled.take().getKind(), "tie goes to control");
+		settled.settle(2560);
+
+		// a message is settled only once
+		settled.settle(256);
+		for (int i = 0; i < 10; i++) {
+			Check.equal("file", settled.take().getKind(),
+					"file catches up with the real size of control");
+		}
+		Check.equal("control", settled.take().getKind(),
+				"control again once even");
+	}
+
+	private static SendQueue configured(int control, int file) {
+		LinkedHashMap<String, Integer> weights = new LinkedHashMap<String, Integer>();
+		weights.put("control", control);
+		weights.put("file", file);
+		HashMap<String, String> classes = new HashMap<String, String>();
+		classes.put("control", "control");
+		classes.put("file", "file");
+		SendQueue queue = new SendQueue();
+		queue.configure(weights, classes);
+		return queue;
+	}
+
+	private static Message bytes(String kind, int length) {
+		return new BytesMessage("bob", kind, ByteBuffer.allocate(length));
+	}
+}
@@ -0,0 +1,99 @@
+package ipc;
+
+import java.util.TreeSet;
+
+/**
+ * Per-link sequence numbers: every link numbers its messages from 1, threads
+ * sending at once take distinct numbers, a rule's seqNum picks the n-th
+ * message of its link, and LinkStats tells gaps, late arrivals and repeats
+ * apart.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class SequenceTest {
+
+	private static final int THREADS = 4;
+	private static final int MESSAGES = 50;
+
+	public static void main(String[] args) throws Exception {
+		linkStats();
+		links();
+		System.out.println("SequenceTest passed");
+	}
+
+	private static void linkStats() {
+		LinkStats stats = new LinkStats();
+		stats.record(1);
+		stats.record(2);
+		stats.record(5);
+		Check.equal(2L, stats.getGaps(), "3 and 4 skipped");
+		stats.record(3);
+		Check.equal(1L, stats.getReordered(), "3 came late");
+		stats.record(5);
+		Check.equal(1L, stats.getDuplicates(), "5 repeated");
+		Check.equal(5L, stats.getReceived(), "received");
+		Check.equal(5L, stats.getHighest(), "highest");
+
+		// a snapshot does not follow the statistics
+		LinkStats snapshot = stats.snapshot();
+		stats.record(6);
+		Check.equal(5L, snapshot.getReceived(), "snapshot");
+	}
+
+	private static void links() throws Exception {
+		String path = Nodes.configuration("configuration:",
+				"  - transport: memory", "  - name: alice",
+				"    ip: 127.0.0.1", "    port: 12344", "  - name: bob",
+				"    ip: 127.0.0.1", "    port: 14255", "  - name: carol",
+				"    ip: 127.0.0.1", "    port: 15000", "sendRules:",
+				"  - action: drop", "    dest: carol", "    seqNum: 2");
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser carol = Nodes.start(path, "carol");
+		final MessagePasser alice = Nodes.start(path, "alice");
+		try {
+			Thread[] senders = new Thread[THREADS];
+			for (int i = 0; i < THREADS; i++) {
+				senders[i] = new Thread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < MESSAGES; j++) {
+							alice.send(new Message("bob", "k", j));
+						}
+					}
+				});
+				senders[i].start();
+			}
+			for (Thread sender : senders) {
+				sender.join();
+			}
+			TreeSet<Long> numbers = new TreeSet<Long>();
+			for (int i = 0; i < THREADS * MESSAGES; i++) {
+				numbers.add(Nodes.receive(bob).getSequenceNumber());
+			}
+			Check.equal(THREADS * MESSAGES, numbers.size(),
+					"distinct sequence numbers at bob");
+			Check.equal(1L, numbers.first(), "first at bob");
+			Check.equal((long) THREADS * MESSAGES, numbers.last(),
+					"last at bob");
+
+			// the link to carol has numbers of its own
+			for (int i = 1; i <= 3; i++) {
+				alice.send(new Message("carol", "k", "c" + i));
+			}
+			Message message = Nodes.receive(carol);
+			Check.equal("c1", message.getData(), "first at carol");
+			Check.equal(1L, message.getSequenceNumber(), "numbered from 1");
+			message = Nodes.receive(carol);
+			Check.equal("c3", message.getData(), "second one dropped");
+			Check.equal(3L, message.getSequenceNumber(), "sequence number");
+			LinkStats stats = carol.getLinkStats().get("alice");
+			Check.equal(2L, stats.getReceived(), "received at carol");
+			Check.equal(1L, stats.getGaps(), "gap at carol");
+		} finally {
+			alice.close();
+			carol.close();
+			bob.close();
+		}
+	}
+}
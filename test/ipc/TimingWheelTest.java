@@ -0,0 +1,114 @@
+package ipc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Behavior of TimingWheel: items expire on their deadline in deadline order,
+ * ties in the order scheduled, deadlines beyond one turn of the wheel wait
+ * for it to come around, drain hands back everything in deadline order and
+ * the wheel tells when the next item is due.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class TimingWheelTest {
+
+	public static void main(String[] args) {
+		deadlines();
+		ties();
+		wrap();
+		drain();
+		nextDeadline();
+		System.out.println("TimingWheelTest passed");
+	}
+
+	private static void deadlines() {
+		TimingWheel<String> wheel = new TimingWheel<String>(8);
+		wheel.schedule("c", 3);
+		wheel.schedule("a", 1);
+		wheel.schedule("b", 2);
+		wheel.schedule("now", 0);
+		Check.equal(4, wheel.size(), "items held");
+		List<String> expired = new ArrayList<String>();
+		wheel.advance(0, expired);
+		Check.that(expired.isEmpty(), "nothing expires without a tick");
+		wheel.advance(1, expired);
+		Check.equal(Arrays.asList("a", "now"), expired,
+				"a deadline of 0 counts as 1 tick");
+		expired.clear();
+		wheel.advance(3, expired);
+		Check.equal(Arrays.asList("b", "c"), expired,
+				"several ticks at once expire in deadline order");
+		Check.equal(3L, wheel.getTick(), "ticks passed");
+		Check.equal(0, wheel.size(), "nothing left");
+
+		// an empty wheel jumps, the next deadline counts from there
+		wheel.advance(1000, expired);
+		Check.equal(1000L, wheel.getTick(), "ticks passed while empty");
+		wheel.schedule("d", 2);
+		expired.clear();
+		wheel.advance(1001, expired);
+		Check.that(expired.isEmpty(), "not due yet");
+		wheel.advance(1002, expired);
+		Check.equal(Arrays.asList("d"), expired, "due after the jump");
+	}
+
+	private static void ties() {
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(4);
+		for (int i = 0; i < 10; i++) {
+			wheel.schedule(i, 2);
+		}
+		List<Integer> expired = new ArrayList<Integer>();
+		wheel.advance(2, expired);
+		Check.equal(10, expired.size(), "all expired together");
+		for (int i = 0; i < 10; i++) {
+			Check.equal(i, expired.get(i), "same deadline in scheduling order");
+		}
+	}
+
+	private static void wrap() {
+		TimingWheel<String> wheel = new TimingWheel<String>(4);
+		wheel.schedule("far", 9);
+		wheel.schedule("near", 1);
+		List<String> expired = new ArrayList<String>();
+		wheel.advance(8, expired);
+		Check.equal(Arrays.asList("near"), expired,
+				"a later turn of the wheel is not due");
+		wheel.advance(9, expired);
+		Check.equal(Arrays.asList("near", "far"), expired,
+				"due once the wheel comes around");
+	}
+
+	private static void drain() {
+		TimingWheel<String> wheel = new TimingWheel<String>(4);
+		wheel.schedule("late", 11);
+		wheel.schedule("early", 1);
+		wheel.schedule("middle", 5);
+		wheel.schedule("middle too", 5);
+		List<String> items = new ArrayList<String>();
+		wheel.drain(items);
+		Check.equal(Arrays.asList("early", "middle", "middle too", "late"),
+				items, "drained in deadline order");
+		Check.equal(0, wheel.size(), "nothing left");
+		wheel.advance(20, items);
+		Check.equal(4, items.size(), "drained items do not expire again");
+	}
+
+	private static void nextDeadline() {
+		TimingWheel<String> wheel = new TimingWheel<String>(8);
+		Check.equal(Long.MAX_VALUE, wheel.nextDeadline(), "nothing held");
+		wheel.schedule("late", 5);
+		wheel.schedule("soon", 3);
+		Check.equal(3L, wheel.nextDeadline(), "earliest of two");
+
+		// only later rounds in the first slots, the earliest of them counts
+		wheel.advance(3, new ArrayList<String>());
+		wheel.schedule("round", 17);
+		Check.equal(5L, wheel.nextDeadline(), "after one expired");
+		wheel.advance(5, new ArrayList<String>());
+		Check.equal(20L, wheel.nextDeadline(), "two rounds ahead");
+	}
+}
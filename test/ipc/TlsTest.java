@@ -0,0 +1,118 @@
+package ipc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tls transport: two nodes whose certificates are in the trust store
+ * exchange messages both ways after a handshake on each side, and a node
+ * with a certificate nobody trusts gets nothing through. The key stores are
+ * made with the keytool of the running JDK.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class TlsTest {
+
+	private static final String PASSWORD = "changeit";
+	private static final int MESSAGES = 20;
+
+	public static void main(String[] args) throws Exception {
+		File directory = File.createTempFile("tls", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		for (String name : new String[] { "alice", "bob", "eve" }) {
+			keyStore(directory, name);
+		}
+		trust(directory, "alice");
+		trust(directory, "bob");
+
+		String path = Nodes.configuration("configuration:", "  - name: alice",
+				"    ip: 127.0.0.1", "    port: " + Nodes.freePort(),
+				"  - name: bob", "    ip: 127.0.0.1",
+				"    port: " + Nodes.freePort(), "  - name: eve",
+				"    ip: 127.0.0.1", "    port: " + Nodes.freePort(),
+				"  - transport: tls", "    keyStore: " + directory
+						+ "/{name}.p12", "    keyStorePassword: " + PASSWORD,
+				"    trustStore: " + directory + "/trust.p12");
+		MessagePasser bob = Nodes.start(path, "bob");
+		MessagePasser alice = Nodes.start(path, "alice");
+		MessagePasser eve = Nodes.start(path, "eve");
+		try {
+			for (int i = 0; i < MESSAGES; i++) {
+				alice.send(new Message("bob", "k", "to bob " + i));
+			}
+			for (int i = 0; i < MESSAGES; i++) {
+				Message message = Nodes.receive(bob);
+				Check.equal("alice", message.getSource(), "source");
+				Check.equal("to bob " + i, message.getData(), "data");
+			}
+			bob.send(new Message("alice", "k", "to alice"));
+			Check.equal("to alice", Nodes.receive(alice).getData(), "reply");
+			Check.that(alice.getMetrics().getValues().get("tls_handshakes") > 0,
+					"handshake at alice");
+			Check.that(bob.getMetrics().getValues().get("tls_handshakes") > 0,
+					"handshake at bob");
+
+			// the handshake fails, eve's message never reaches bob
+			eve.send(new Message("bob", "k", "from eve"));
+			alice.send(new Message("bob", "k", "after eve"));
+			Check.equal("after eve", Nodes.receive(bob).getData(),
+					"next message");
+			Thread.sleep(500);
+			Check.that(!bob.getMetrics().getValues()
+					.containsKey("received_messages.eve"), "nothing from eve");
+		} finally {
+			eve.close();
+			alice.close();
+			bob.close();
+		}
+		System.out.println("TlsTest passed");
+	}
+
+	/**
+	 * Make a key store holding a new key pair and certificate for a node.
+	 */
+	private static void keyStore(File directory, String name)
+			throws Exception {
+		File store = new File(directory, name + ".p12");
+		store.deleteOnExit();
+		new File(directory, name + ".crt").deleteOnExit();
+		keytool(directory, "-genkeypair", "-alias", name, "-keyalg", "EC",
+				"-groupname", "secp256r1", "-dname", "CN=" + name,
+				"-validity", "1", "-keystore", store.getPath(), "-storetype",
+				"PKCS12", "-storepass", PASSWORD, "-keypass", PASSWORD);
+		keytool(directory, "-exportcert", "-alias", name, "-keystore",
+				store.getPath(), "-storepass", PASSWORD, "-file", name
+						+ ".crt");
+	}
+
+	/**
+	 * Add the certificate of a node to the trust store.
+	 */
+	private static void trust(File directory, String name) throws Exception {
+		new File(directory, "trust.p12").deleteOnExit();
+		keytool(directory, "-importcert", "-noprompt", "-alias", name,
+				"-file", name + ".crt", "-keystore", "trust.p12",
+				"-storetype", "PKCS12", "-storepass", PASSWORD);
+	}
+
+	private static void keytool(File directory, String... arguments)
+			throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "keytool");
+		command.addAll(Arrays.asList(arguments));
+		Process process = new ProcessBuilder(command).directory(directory)
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool " + arguments[0] + " failed");
+		}
+	}
+}
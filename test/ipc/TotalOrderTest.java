@@ -0,0 +1,191 @@
+package ipc;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import clock.ClockService;
+import clock.TimeStamp;
+
+/**
+ * Behavior of TotalOrder at alice, a member of the ordered group "all" with
+ * bob and carol: a message is held back until every other member has gone
+ * past its time stamp, ties go by node ID, a link waits for a gap to fill,
+ * a restarted source is followed from its first message again, and a gap
+ * that can no longer be filled is skipped.
+ * 
+ * @author Jason Xi
+ * @author Yinsu Chu
+ * 
+ */
+public class TotalOrderTest {
+
+	private static final String GROUP = "all";
+
+	private static LogTool logger;
+
+	public static void main(String[] args) throws Exception {
+		File log = File.createTempFile("totalorder", ".log");
+		log.deleteOnExit();
+		logger = new LogTool(log.getPath(), TotalOrderTest.class.getName());
+		try {
+			holdBack();
+			ties();
+			gap();
+			restart();
+			gapTimeout();
+			wideGap();
+		} finally {
+			logger.close();
+		}
+		System.out.println("TotalOrderTest passed");
+	}
+
+	private static void holdBack() {
+		LinkedBlockingQueue<Message> delivered = new LinkedBlockingQueue<Message>();
+		TotalOrder order = configured(delivered, 0);
+		order.arrive(message("bob", 1, 1, "b1"));
+		Check.equal(1, order.size(), "held back until carol passes it");
+		order.hold(local(3, "a1"));
+		order.arrive(ack("carol", 1, 2));
+		Check.equal("b1", delivered.poll().getData(), "released by carol");
+		Check.that(delivered.isEmpty(), "alice's message waits for carol");
+		order.arrive(ack("carol", 2, 4));
+		Check.that(delivered.isEmpty(), "alice's message waits for bob");
+		order.arrive(ack("bob", 2, 3));
+		Check.equal("a1", delivered.poll().getData(),
+				"released once both passed it");
+		Check.equal(0, order.size(), "nothing held back");
+	}
+
+	private static void ties() {
+		LinkedBlockingQueue<Message> delivered = new LinkedBlockingQueue<Message>();
+		TotalOrder order = configured(delivered, 0);
+		order.arrive(message("carol", 1, 5, "c1"));
+		Check.that(delivered.isEmpty(), "carol's message waits for bob");
+
+		// anything bob sends later is stamped after 5
+		order.arrive(message("bob", 1, 5, "b1"));
+		Check.equal("b1", delivered.poll().getData(), "bob has the lower ID");
+		Check.equal("c1", delivered.poll().getData(), "then carol");
+	}
+
+	private static void gap() {
+		LinkedBlockingQueue<Message> delivered = new LinkedBlockingQueue<Message>();
+		TotalOrder order = configured(delivered, 0);
+		order.arrive(ack("carol", 1, 100));
+		order.arrive(message("bob", 2, 2, "b2"));
+		order.expire();
+		Check.that(delivered.isEmpty(), "message 2 waits for message 1");
+		order.arrive(message("bob", 1, 1, "b1"));
+		Check.equal("b1", delivered.poll().getData(), "message 1 first");
+		Check.equal("b2", delivered.poll().getData(), "then message 2");
+		order.arrive(message("bob", 1, 1, "b1"));
+		Check.that(delivered.isEmpty(), "a message taken already is ignored");
+	}
+
+	private static void restart() {
+		LinkedBlockingQueue<Message> delivered = new LinkedBlockingQueue<Message>();
+		TotalOrder order = configured(delivered, 0);
+		order.arrive(ack("carol", 1, 100));
+		order.arrive(message("bob", 1, 1, "b1"));
+		order.arrive(message("bob", 2, 2, "b2"));
+		order.arrive(message("bob", 4, 4, "b4"));
+		Check.equal(2, delivered.size(), "delivered before the restart");
+		delivered.clear();
+
+		// the new incarnation numbers its messages from 1 again
+		order.restart("bob");
+		order.arrive(message("bob", 1, 5, "new b1"));
+		Check.equal("new b1", delivered.poll().getData(),
+				"first message of the new incarnation");
+		order.arrive(message("bob", 3, 7, "new b3"));
+		order.arrive(message("bob", 2, 6, "new b2"));
+		Check.equal("new b2", delivered.poll().getData(), "then in order");
+		Check.equal("new b3", delivered.poll().getData(), "then in order");
+		Check.that(delivered.isEmpty(),
+				"the message the old incarnation left behind a gap is gone");
+	}
+
+	private static void gapTimeout() throws Exception {
+		LinkedBlockingQueue<Message> delivered = new LinkedBlockingQueue<Message>();
+		TotalOrder order = configured(delivered, 1);
+		order.arrive(ack("carol", 1, 100));
+		order.arrive(message("bob", 2, 2, "b2"));
+		order.arrive(message("bob", 4, 4, "b4"));
+		Check.that(delivered.isEmpty(), "the gap is open");
+		Thread.sleep(10);
+		order.expire();
+		Check.equal("b2", delivered.poll().getData(),
+				"delivered once the gap times out");
+		Check.that(delivered.isEmpty(),
+				"the gap after it has a timeout of its own");
+		Thread.sleep(10);
+		order.expire();
+		Check.equal("b4", delivered.poll().getData(),
+				"delivered once that gap times out too");
+		order.arrive(message("bob", 3, 3, "b3"));
+		Check.that(delivered.isEmpty(), "a message of a skipped gap is late");
+	}
+
+	private static void wideGap() {
+		LinkedBlockingQueue<Message> delivered = new LinkedBlockingQueue<Message>();
+		TotalOrder order = configured(delivered, 0);
+		order.arrive(ack("carol", 1, 100));
+		order.arrive(message("bob", 2, 2, "b2"));
+		order.expire();
+		Check.that(delivered.isEmpty(),
+				"without a timeout a narrow gap waits for a retransmission");
+
+		// the source may still retransmit what is in its window
+		long near = 1 + DedupWindow.SIZE;
+		order.arrive(message("bob", near, 3, "near"));
+		Check.equal("b2", delivered.poll().getData(),
+				"message 1 fell out of the window");
+		Check.that(delivered.isEmpty(), "the rest of the gap is in the window");
+
+		// but it keeps only the last SIZE messages, so near + 1 is gone too
+		long far = near + 1 + DedupWindow.SIZE;
+		order.arrive(message("bob", far, 4, "far"));
+		Check.equal("near", delivered.poll().getData(), "skipped to near");
+		Check.equal("far", delivered.poll().getData(), "then to far");
+	}
+
+	private static TotalOrder configured(LinkedBlockingQueue<Message> delivered,
+			long gapTimeout) {
+		Map<String, List<String>> groups = new HashMap<String, List<String>>();
+		groups.put(GROUP, Arrays.asList("alice", "bob", "carol"));
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		ids.put("alice", 0);
+		ids.put("bob", 1);
+		ids.put("carol", 2);
+		TotalOrder order = new TotalOrder("alice", delivered, logger);
+		order.configure(groups, ids, Collections.<String, Long> emptyMap(),
+				gapTimeout);
+		return order;
+	}
+
+	private static TimeStampedMessage message(String source, long seq,
+			int time, Object data) {
+		TimeStampedMessage message = new TimeStampedMessage(GROUP, "k", data);
+		message.setSource(source);
+		message.setSequenceNumber(seq);
+		message.setTimeStamp(TimeStamp.restore(ClockService.ClockType.LOGICAL,
+				new int[] { time }));
+		return message;
+	}
+
+	private static TimeStampedMessage ack(String source, long seq, int time) {
+		TimeStampedMessage ack = message(source, seq, time, null);
+		ack.setKind(TotalOrder.KIND_ACK);
+		return ack;
+	}
+
+	private static TimeStampedMessage local(int time, Object data) {
+		return message("alice", 0, time, data);
+	}
+}